@@ -0,0 +1,79 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.Closeable;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldif.LDIFException;
+
+/**
+ * In-memory LDAP server for benchmarks.  Schema checking is off so AD
+ * style attributes such as sAMAccountName and whenChanged can be stored
+ * next to inetOrgPerson ones.
+ */
+public class EmbeddedDirectory implements Closeable {
+
+	public static final String BASE_DN = "dc=example,dc=com";
+	public static final String PEOPLE_DN = "ou=People," + BASE_DN;
+	public static final String USERNAME = "cn=Directory Manager";
+	public static final String PASSWORD = "password";
+
+	private final InMemoryDirectoryServer server;
+
+	public EmbeddedDirectory() throws LDAPException, LDIFException {
+		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+		config.addAdditionalBindCredentials(USERNAME, PASSWORD);
+		config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+		config.setSchema(null);
+		config.setMaxSizeLimit(0);
+		server = new InMemoryDirectoryServer(config);
+		server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+		server.add("dn: " + PEOPLE_DN, "objectClass: top", "objectClass: organizationalUnit", "ou: People");
+		server.startListening();
+	}
+
+	/**
+	 * Adds AD style users user0..user(count-1) under ou=People.
+	 */
+	public void seedUsers(int count) throws LDAPException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss.0'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String whenChanged = format.format(new Date());
+		for(int i=0; i<count; i++) {
+			String id = "user" + i;
+			Entry entry = new Entry("cn=" + id + "," + PEOPLE_DN);
+			entry.addAttribute("objectClass", "top", "person", "organizationalPerson", "user");
+			entry.addAttribute("sAMAccountName", id);
+			entry.addAttribute("cn", id);
+			entry.addAttribute("sn", "Surname" + i);
+			entry.addAttribute("givenName", "Given" + i);
+			entry.addAttribute("displayName", "Given" + i + " Surname" + i);
+			entry.addAttribute("mail", id + "@example.com");
+			entry.addAttribute("whenChanged", whenChanged);
+			entry.addAttribute("memberOf", "CN=example-users,DC=example,DC=com", "CN=group" + (i % 50) + ",DC=example,DC=com");
+			if(i > 0) {
+				entry.addAttribute("manager", "cn=user" + (i / 100) + "," + PEOPLE_DN);
+			}
+			server.add(entry);
+		}
+	}
+
+	public String getUrl() {
+		return "ldap://localhost:" + server.getListenPort();
+	}
+
+	public int countEntries() throws LDAPException {
+		return server.countEntriesBelow(PEOPLE_DN) - 1;
+	}
+
+	@Override
+	public void close() {
+		server.shutDown(true);
+	}
+}
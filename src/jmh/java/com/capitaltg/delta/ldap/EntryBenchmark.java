@@ -0,0 +1,95 @@
+package com.capitaltg.delta.ldap;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.capitaltg.delta.mapping.ConversionMap;
+
+/**
+ * Per-entry work without any LDAP round trips: building the attribute map
+ * the expressions see, and diffing a source entry against an identical
+ * destination entry with the sample conversion map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EntryBenchmark {
+
+	private LDAPConnectionImpl connection;
+	private ConversionMap conversionMap;
+	private SearchResult sourceEntry;
+	private SearchResult destinationEntry;
+
+	@Setup
+	public void setup() {
+		connection = new LDAPConnectionImpl();
+		connection.setUniqueid("uid");
+		connection.setObjectclass("person,inetOrgPerson");
+		connection.registerMetrics();
+		conversionMap = ConversionMap.compile(SyncBenchmark.mappings());
+
+		BasicAttributes source = new BasicAttributes(true);
+		source.put(multiValued("objectClass", "top", "person", "organizationalPerson", "user"));
+		source.put("sAMAccountName", "user1");
+		source.put("cn", "user1");
+		source.put("sn", "Surname1");
+		source.put("givenName", "Given1");
+		source.put("displayName", "Given1 Surname1");
+		source.put("mail", "user1@example.com");
+		source.put("whenChanged", "20160329185432.0Z");
+		source.put(multiValued("memberOf", "CN=example-users,DC=example,DC=com", "CN=group1,DC=example,DC=com"));
+		for(int i=0; i<10; i++) {
+			source.put("extensionAttribute" + i, "value" + i);
+		}
+		sourceEntry = new SearchResult("cn=user1", null, source);
+
+		BasicAttributes destination = new BasicAttributes(true);
+		destination.put(multiValued("objectClass", "top", "person", "inetOrgPerson"));
+		destination.put("uid", "user1");
+		destination.put("cn", "user1");
+		destination.put("sn", "Surname1");
+		destination.put("givenName", "Given1");
+		destination.put("displayName", "Given1 Surname1");
+		destination.put("mail", "user1@example.com");
+		destination.put("departmentNumber", "true");
+		destinationEntry = new SearchResult("uid=user1", null, destination);
+		destinationEntry.setNameInNamespace("uid=user1,ou=People,dc=example,dc=com");
+	}
+
+	@Benchmark
+	public Map<String, Object> extractAttributes() {
+		return connection.extractAttributes(sourceEntry);
+	}
+
+	@Benchmark
+	public Map<String, String> updateEntry() throws NamingException {
+		return connection.updateEntry("user1", sourceEntry, destinationEntry, conversionMap);
+	}
+
+	private static BasicAttribute multiValued(String name, String... values) {
+		BasicAttribute attribute = new BasicAttribute(name);
+		for(String value : values) {
+			attribute.add(value);
+		}
+		return attribute;
+	}
+}
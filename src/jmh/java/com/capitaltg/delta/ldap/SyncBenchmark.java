@@ -0,0 +1,108 @@
+package com.capitaltg.delta.ldap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.capitaltg.delta.mapping.ConversionMap;
+
+/**
+ * Full syncAllUsers pass from one embedded directory to another.  The
+ * destination is populated during setup, so every measured pass reads
+ * the whole source and diffs every entry.  Select the directory size with
+ * -p users=10000,100000,1000000.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class SyncBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int users;
+
+	@Param({ "1", "8" })
+	public int syncthreads;
+
+	@Param({ "0", "32" })
+	public int writepipeline;
+
+	private EmbeddedDirectory sourceDirectory;
+	private EmbeddedDirectory destinationDirectory;
+	private LDAPConnectionImpl source;
+	private LDAPConnectionImpl destination;
+	private ConversionMap conversionMap;
+
+	@Setup
+	public void setup() throws Exception {
+		sourceDirectory = new EmbeddedDirectory();
+		sourceDirectory.seedUsers(users);
+		destinationDirectory = new EmbeddedDirectory();
+
+		source = connection(sourceDirectory, "sAMAccountName", "person,user", "whenChanged");
+		destination = connection(destinationDirectory, "uid", "person,inetOrgPerson", "modifyTimestamp");
+		destination.setSourceConnection(source);
+		destination.setReadonly(false);
+		destination.setSyncthreads(syncthreads);
+		destination.setWritepipeline(writepipeline);
+		destination.setPoolmaxsize(Math.max(2, syncthreads));
+		source.init();
+		destination.init();
+
+		conversionMap = ConversionMap.compile(mappings());
+		source.syncAllUsers(destination, 0L, conversionMap);
+		if(destinationDirectory.countEntries() != users) {
+			throw new IllegalStateException("Expected " + users + " destination entries but found " + destinationDirectory.countEntries());
+		}
+	}
+
+	@Benchmark
+	public SyncResult syncAllUsers() throws Exception {
+		return source.syncAllUsers(destination, 0L, conversionMap);
+	}
+
+	@TearDown
+	public void tearDown() {
+		sourceDirectory.close();
+		destinationDirectory.close();
+	}
+
+	static Map<String, String> mappings() {
+		Map<String, String> map = new LinkedHashMap<>();
+		map.put("uid", "attributes.samaccountname");
+		map.put("sn", "attributes.sn");
+		map.put("givenname", "attributes.givenname");
+		map.put("cn", "attributes.cn");
+		map.put("mail", "attributes.mail");
+		map.put("displayName", "attributes.displayname");
+		map.put("departmentNumber", "attributes.memberof?.contains('CN=example-users,DC=example,DC=com')");
+		return map;
+	}
+
+	private static LDAPConnectionImpl connection(EmbeddedDirectory directory, String uniqueid, String objectclass, String timestampattribute) {
+		LDAPConnectionImpl connection = new LDAPConnectionImpl();
+		connection.setLdapurl(directory.getUrl());
+		connection.setLdapusername(EmbeddedDirectory.USERNAME);
+		connection.setLdappassword(EmbeddedDirectory.PASSWORD);
+		connection.setLdapbasedn(EmbeddedDirectory.PEOPLE_DN);
+		connection.setUniqueid(uniqueid);
+		connection.setObjectclass(objectclass);
+		connection.setTimestampattribute(timestampattribute);
+		return connection;
+	}
+}
@@ -0,0 +1,71 @@
+package com.capitaltg.delta.mapping;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.directory.BasicAttributes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.capitaltg.delta.ldap.LDAPConnectionImpl;
+import com.capitaltg.delta.util.EntryView;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compares evaluating a conversion map expression with a fresh GroovyShell
+ * (the original runGroovy path) against the precompiled expression.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConversionMapBenchmark {
+
+	@Param({
+		"attributes.sn",
+		"attributes.memberof?.contains('CN=example-users,DC=example,DC=com')",
+		"if(!target.businessCategory) 'NEW' else target.businessCategory"
+	})
+	public String expression;
+
+	private LDAPConnectionImpl connection;
+	private MappingExpression compiled;
+	private Map<String, Object> bindings;
+
+	@Setup
+	public void setup() {
+		connection = new LDAPConnectionImpl();
+		Map<String, String> map = new HashMap<>();
+		map.put("value", expression);
+		compiled = ConversionMap.compile(map).get("value");
+
+		BasicAttributes attributes = new BasicAttributes(true);
+		attributes.put("sn", "Smith");
+		attributes.put("cn", "John Smith");
+		attributes.put("memberOf", "CN=example-users,DC=example,DC=com");
+		bindings = ImmutableMap.of("attributes", EntryView.of(attributes), "target", EntryView.of(null));
+	}
+
+	@Benchmark
+	public String groovyShell() {
+		return connection.runGroovy(bindings, expression);
+	}
+
+	@Benchmark
+	public Object compiled() {
+		return compiled.evaluate(bindings);
+	}
+}
@@ -0,0 +1,249 @@
+package com.capitaltg.delta;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.ldap.LDAPConnection;
+import com.capitaltg.delta.ldap.SourceConnection;
+import com.capitaltg.delta.ldap.WriteBatch;
+import com.capitaltg.delta.mapping.ConversionMap;
+import com.capitaltg.delta.metrics.MetricsRegistry;
+import com.capitaltg.delta.sync.FingerprintStore;
+import com.capitaltg.delta.sync.ProgressLog;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Fills in a few destination attributes for existing entries, such as one
+ * that was just mapped, without a full sync.  Only the source attributes
+ * their expressions read are fetched, only those expressions evaluated,
+ * and the modifies only touch those attributes.  Entries missing from the
+ * destination are left to the poller.
+ *
+ * Entries are written in batches, and every batch is recorded in a
+ * progress log once written, so a restarted job carries on where it left
+ * off.  The job runs on a low priority thread beside the poller, holds
+ * back while the poller is in a cycle, and can be limited to maxrate
+ * entries a second.  A job that completed is not run again until its
+ * progress file is removed, so a job for other attributes needs a
+ * progress file of its own.
+ */
+public class BackfillJob implements Runnable {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final SourceConnection sourceConnection;
+	private final LDAPConnection destinationConnection;
+	private String name = "backfill";
+	private Set<String> attributes;
+	private String filter;
+	private int batchsize = 500;
+	private double maxrate;
+	private long retryseconds = 60;
+	private String progressfile;
+	private DeltaPoller poller;
+	private ConversionMap conversionMap;
+	private MetricsRegistry metrics = new MetricsRegistry();
+	private RateLimiter limiter;
+	private ProgressLog progress;
+	private final AtomicLong backfilled = new AtomicLong();
+
+	public BackfillJob(SourceConnection source, LDAPConnection destination) {
+		this.sourceConnection = source;
+		this.destinationConnection = destination;
+	}
+
+	@PostConstruct
+	public void init() throws IOException {
+		if(attributes==null || attributes.isEmpty()) {
+			throw new IllegalStateException("Backfill "+name+" has no attributes");
+		}
+		if(Strings.isNullOrEmpty(progressfile)) {
+			throw new IllegalStateException("Backfill "+name+" has no progress file");
+		}
+		progress = new ProgressLog(progressfile);
+		limiter = maxrate>0 ? RateLimiter.create(maxrate) : null;
+		metrics.gauge("deltasync_backfill_entries", "Entries written by a backfill job", () -> backfilled.get(), "job", name);
+		logger.info("Initialized backfill {} of {}{} in batches of {}, progress in {}", name, attributes,
+				Strings.isNullOrEmpty(filter) ? "" : " for entries matching "+filter, batchsize, progress);
+	}
+
+	/**
+	 * @param conversionMap the full map, of which only the expressions of
+	 *        the backfilled attributes are used
+	 */
+	public void setConversionMap(ConversionMap conversionMap) {
+		this.conversionMap = conversionMap;
+	}
+
+	/**
+	 * Runs the job on a thread of its own unless it already completed.
+	 */
+	public void start() {
+		if(progress.isComplete()) {
+			logger.info("Backfill {} already completed", name);
+			return;
+		}
+		Thread thread = new Thread(this, "backfill-"+name);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Failed passes are resumed after retryseconds.
+	 */
+	@Override
+	public void run() {
+		Set<String> unmapped = new TreeSet<>(attributes);
+		unmapped.removeAll(conversionMap.keySet());
+		if(!unmapped.isEmpty()) {
+			logger.error("Backfill {} stopped: {} are not mapped", name, unmapped);
+			return;
+		}
+		ConversionMap selected = conversionMap.select(attributes);
+		while(true) {
+			try {
+				backfill(selected);
+				progress.markComplete();
+				progress.close();
+				return;
+			} catch(InterruptedNamingException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch(NamingException | IOException e) {
+				logger.error("Backfill "+name+" failed, will resume in "+retryseconds+" seconds", e);
+				metrics.counter("deltasync_failures_total", "Failures by operation and exception type",
+						"connection", name, "operation", "backfill", "exception", e.getClass().getSimpleName()).increment();
+			}
+			try {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(retryseconds));
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Entries go to the destination's workers, so a backfilled entry is
+	 * never written at the same time as the poller writes it, but not
+	 * through its coalescing buffer, where they could stand in for a change
+	 * the poller submitted.  The batch keeps their failures apart from the
+	 * poller's, and drops entries the poller synced since the job read
+	 * them, whose values here may be older.  Writes that fail for the entry
+	 * alone are logged and counted by the destination as usual and still
+	 * count as done here, like they would in a full sync.
+	 */
+	private void backfill(ConversionMap selected) throws NamingException, IOException {
+		long startTime = System.currentTimeMillis();
+		List<Long> keys = new ArrayList<>(batchsize);
+		long[] skipped = {0L};
+		try(WriteBatch batch = destinationConnection.openBatch()) {
+			int read = sourceConnection.readEntries(filter, selected, (id, result) -> {
+				if(id==null || progress.contains(FingerprintStore.key(id))) {
+					skipped[0]++;
+					return;
+				}
+				yieldToPoller();
+				if(limiter!=null) {
+					limiter.acquire();
+				}
+				destinationConnection.submitEntry(id, result, selected, batch);
+				keys.add(FingerprintStore.key(id));
+				if(keys.size()>=batchsize) {
+					checkpoint(batch, keys);
+				}
+			});
+			checkpoint(batch, keys);
+			logger.info("Backfill {} of {} went through {} entries in {} ms, {} of which were done before",
+					name, attributes, read, System.currentTimeMillis()-startTime, skipped[0]);
+		}
+	}
+
+	private void checkpoint(WriteBatch batch, List<Long> keys) throws NamingException, IOException {
+		batch.await();
+		progress.addAll(keys);
+		backfilled.addAndGet(keys.size());
+		logger.debug("Backfill {} wrote a batch of {}, {} entries done", name, keys.size(), progress.size());
+		keys.clear();
+	}
+
+	private void yieldToPoller() throws InterruptedNamingException {
+		try {
+			while(poller!=null && poller.isPolling()) {
+				Thread.sleep(100L);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedNamingException("Interrupted while waiting for the poller");
+		}
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param attributes comma separated destination attributes to fill in,
+	 *        spelled as in their map.* expressions
+	 */
+	public void setAttributes(String attributes) {
+		this.attributes = Arrays.stream(attributes.split(",")).map(String::trim)
+				.filter( attribute -> !attribute.isEmpty()).collect(Collectors.toCollection(LinkedHashSet::new));
+	}
+
+	/**
+	 * @param filter LDAP filter the entries must match besides the source's
+	 *        object classes and extra filter, or empty for all of them
+	 */
+	public void setFilter(String filter) {
+		this.filter = filter;
+	}
+
+	public void setBatchsize(int batchsize) {
+		this.batchsize = batchsize;
+	}
+
+	/**
+	 * @param maxrate entries per second, or 0 for as fast as the
+	 *        destination takes them
+	 */
+	public void setMaxrate(double maxrate) {
+		this.maxrate = maxrate;
+	}
+
+	public void setRetryseconds(long retryseconds) {
+		this.retryseconds = retryseconds;
+	}
+
+	public void setProgressfile(String progressfile) {
+		this.progressfile = progressfile;
+	}
+
+	/**
+	 * @param poller the poller to give way to while it is in a cycle
+	 */
+	public void setPoller(DeltaPoller poller) {
+		this.poller = poller;
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+}
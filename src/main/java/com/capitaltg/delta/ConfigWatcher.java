@@ -0,0 +1,130 @@
+package com.capitaltg.delta;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a properties file and hands its new contents to a listener
+ * whenever they change.  Editors often save a file in several steps, so
+ * the file is only read once it has been quiet for a moment.  Changes
+ * that only touch whitespace or comments are ignored.
+ */
+public class ConfigWatcher implements Runnable {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Path file;
+	private final Listener listener;
+	private long quietMillis = 1000;
+	private Properties current;
+	private WatchService watchService;
+
+	public interface Listener {
+		/**
+		 * @throws Exception to reject the new contents, which are then
+		 *         offered again with the next change
+		 */
+		void changed(Properties previous, Properties current) throws Exception;
+	}
+
+	public ConfigWatcher(Path file, Listener listener) {
+		this.file = file.toAbsolutePath();
+		this.listener = listener;
+	}
+
+	/**
+	 * Reads the file as it is now and starts watching it on a daemon
+	 * thread.
+	 */
+	public void start() throws IOException {
+		current = read();
+		watchService = FileSystems.getDefault().newWatchService();
+		file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		Thread thread = new Thread(this, "config-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("Watching {} for changes", file);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				WatchKey key = watchService.take();
+				boolean touched = drain(key);
+				while(touched) {
+					WatchKey more = watchService.poll(quietMillis, TimeUnit.MILLISECONDS);
+					if(more==null) {
+						break;
+					}
+					drain(more);
+				}
+				if(touched) {
+					reload();
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(ClosedWatchServiceException e) {
+			logger.debug("Stopped watching {}", file);
+		}
+	}
+
+	public void close() throws IOException {
+		if(watchService!=null) {
+			watchService.close();
+		}
+	}
+
+	private boolean drain(WatchKey key) {
+		boolean touched = false;
+		for(WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			touched |= event.kind()==StandardWatchEventKinds.OVERFLOW
+					|| (context instanceof Path && file.getFileName().equals(context));
+		}
+		key.reset();
+		return touched;
+	}
+
+	private void reload() {
+		try {
+			Properties changed = read();
+			if(changed.equals(current)) {
+				return;
+			}
+			listener.changed(current, changed);
+			current = changed;
+		} catch(Exception e) {
+			logger.error("Rejected changes to "+file+", keeping the previous settings", e);
+		}
+	}
+
+	private Properties read() throws IOException {
+		Properties properties = new Properties();
+		try(FileReader fileReader = new FileReader(file.toFile())) {
+			properties.load(fileReader);
+		}
+		return properties;
+	}
+
+	/**
+	 * @param quietMillis how long the file has to be left alone before it
+	 *        is read
+	 */
+	public void setQuietMillis(long quietMillis) {
+		this.quietMillis = quietMillis;
+	}
+}
@@ -1,7 +1,16 @@
 package com.capitaltg.delta;
 
 import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.PostConstruct;
 import javax.naming.NamingException;
@@ -10,63 +19,401 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.capitaltg.delta.ldap.LDAPConnection;
+import com.capitaltg.delta.ldap.SourceConnection;
+import com.capitaltg.delta.ldap.SyncResult;
+import com.capitaltg.delta.mapping.ConversionMap;
+import com.capitaltg.delta.metrics.MetricsRegistry;
+import com.capitaltg.delta.metrics.Timer;
+import com.capitaltg.delta.sync.CheckpointStore;
+import com.capitaltg.delta.sync.PartitionAssignment;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
 
 public class DeltaPoller implements Runnable {
 
+	private static final String HIGH_WATER_MARK = "highWaterMark";
+	private static final String POLL = "poll";
+
+	/*
+	 * Settings that can be reloaded while running, with their defaults in
+	 * delta-config.xml, or -1 where there is none.
+	 */
+	static final Map<String, Long> RELOADABLE_SETTINGS = ImmutableMap.<String, Long>builder()
+			.put("secondsBetweenSyncs", -1L)
+			.put("minSecondsBetweenSyncs", 0L)
+			.put("maxSecondsBetweenSyncs", 0L)
+			.put("entriesPerSync", 100L)
+			.put("secondsSinceChanged", -1L)
+			.put("secondsOverlap", 60L)
+			.put("secondsBetweenReconciles", 0L)
+			.build();
+
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-	private LDAPConnection sourceConnection;
+	private SourceConnection sourceConnection;
 	private LDAPConnection destinationConnection;
-	private Map<String, String> conversionMap;
+	private ConversionMap conversionMap;
+	private CheckpointStore checkpointStore;
+	private PartitionAssignment partitions;
 	
 	private long secondsBetweenSyncs;
+	private long minSecondsBetweenSyncs;
+	private long maxSecondsBetweenSyncs;
+	private long entriesPerSync = 100;
+	private volatile long pollInterval;
 	private long secondsSinceChanged;
+	private long secondsOverlap = 60;
+	private long secondsBetweenReconciles;
+	private long lastReconcile;
 	private boolean doFullSyncFirst;
+	private String checkpointFile;
+	private String changeMode = POLL;
+	private MetricsRegistry metrics = new MetricsRegistry();
+	private Timer cycleTimer;
+	private volatile long lastCycleEntries;
+	private volatile double lastCycleRate;
+	private volatile long lastCompleteCycleStart;
+	private volatile boolean polling = true;
+	private final AtomicReference<Reload> reload = new AtomicReference<>();
+	private final Set<String> staleAttributes = new TreeSet<>();
+	private final NavigableMap<Long, Long> passes = new TreeMap<>();
 	
-	public DeltaPoller(LDAPConnection source, LDAPConnection destination) {
+	public DeltaPoller(SourceConnection source, LDAPConnection destination) {
 		this.sourceConnection = source;
 		this.destinationConnection = destination;
 	}
 
 	@PostConstruct
-	public void init() {
+	public void init() throws IOException {
 		logger.info("Initialized DeltaPoller");
 		logger.info("  Will poll LDAP source every {} seconds", secondsBetweenSyncs);
+		resetPollInterval();
+		if(minSecondsBetweenSyncs<maxSecondsBetweenSyncs) {
+			logger.info("  Will adjust the interval between {} and {} seconds towards {} changes per poll", 
+					minSecondsBetweenSyncs, maxSecondsBetweenSyncs, entriesPerSync);
+		}
 		logger.info("  Will poll LDAP source every for changes in the last {} seconds", secondsSinceChanged);
+		if(!Strings.isNullOrEmpty(checkpointFile)) {
+			checkpointStore = new CheckpointStore(checkpointFile);
+			logger.info("  Will poll LDAP source for changes since the last checkpoint in {}, less {} seconds", checkpointStore, secondsOverlap);
+		}
+		if(!POLL.equalsIgnoreCase(changeMode)) {
+			logger.info("  Will follow changes with {} after catching up, reconnecting after {} seconds", changeMode, secondsBetweenSyncs);
+		}
 		if(doFullSyncFirst) {
 			logger.info("  Will run initial full sync");
 		}
+		if(secondsBetweenReconciles>0) {
+			logger.info("  Will reconcile orphaned destination entries every {} seconds", secondsBetweenReconciles);
+		}
+		if(partitions!=null) {
+			logger.info("  Will only write the partitions of unique ids this node owns");
+			partitions.setHighWaterMark(getHighWaterMark());
+		}
+		cycleTimer = metrics.timer("deltasync_cycle_seconds", "Duration of one sync pass");
+		metrics.gauge("deltasync_cycle_entries", "Entries read by the last sync pass", () -> lastCycleEntries);
+		metrics.gauge("deltasync_cycle_entries_per_second", "Entries per second of the last sync pass", () -> lastCycleRate);
+		metrics.gauge("deltasync_lag_seconds", "Seconds since the start of the last complete sync pass", 
+				() -> lastCompleteCycleStart==0L ? Double.NaN : (System.currentTimeMillis()-lastCompleteCycleStart)/1000.0);
+		metrics.gauge("deltasync_poll_interval_seconds", "Current interval between polls", () -> pollInterval/1000.0);
+		metrics.gauge("deltasync_checkpoint_timestamp_seconds", "Newest change covered by the checkpoint", () -> getHighWaterMark()/1000.0);
 	}
 	
 	@Override
 	public void run() {
 		
-		if(doFullSyncFirst) {
+		if(!recover()) {
+			return;
+		}
+		
+		if(doFullSyncFirst && getHighWaterMark()==0L && partitions!=null && partitions.getCatchUp()>0L) {
+			logger.info("Skipping initial full sync, catching up from the checkpoints of the nodes that owned this node's partitions");
+		} else if(doFullSyncFirst && getHighWaterMark()==0L) {
 			try {
-				sourceConnection.syncAllUsers(destinationConnection, 0L, conversionMap);
+				long cycleStart = System.currentTimeMillis();
+				passes.put(cycleStart, 0L);
+				destinationConnection.refresh(conversionMap);
+				SyncResult result = sourceConnection.fullSync(destinationConnection, conversionMap, checkpointStore)
+						.and(sourceConnection.syncAllGroups(destinationConnection, 0L));
+				recordCycle(result, cycleStart);
+				saveCheckpoint(capAtHeld(result));
 			} catch (NamingException | IOException e) {
 				logger.error("Failed while synchronizing all users",e);
+				countFailure(e);
 			}
+		} else if(doFullSyncFirst) {
+			logger.info("Skipping initial full sync, resuming from checkpoint {}", new Date(getHighWaterMark()));
 		}
 		
 		while(true) {
 			try {
-				long startTime = System.currentTimeMillis() - (secondsSinceChanged*1000);
-				sourceConnection.syncAllUsers(destinationConnection, startTime, conversionMap);
+				polling = true;
+				applyReload();
+				resyncStaleAttributes();
+				long startTime = getStartTime();
+				long cycleStart = System.currentTimeMillis();
+				passes.put(cycleStart, startTime);
+				destinationConnection.refresh(conversionMap);
+				SyncResult result = sourceConnection.syncAllUsers(destinationConnection, startTime, conversionMap)
+						.and(sourceConnection.syncAllGroups(destinationConnection, startTime));
+				recordCycle(result, cycleStart);
+				saveCheckpoint(capAtHeld(result));
+				if(partitions!=null && result.isComplete()) {
+					partitions.caughtUp(startTime);
+				}
 				logger.debug("Synchronized all objects");
-				Thread.sleep(secondsBetweenSyncs*1000);
+				if(result.isComplete()) {
+					reconcileIfDue();
+				}
+				polling = false;
+				if(!POLL.equalsIgnoreCase(changeMode)) {
+					sourceConnection.streamChanges(destinationConnection, conversionMap, changeMode, startTime, secondsBetweenSyncs*1000, checkpointStore);
+					Thread.sleep(secondsBetweenSyncs*1000);
+				} else {
+					adjustPollInterval(result);
+					Thread.sleep(Math.max(0L, pollInterval-(System.currentTimeMillis()-cycleStart)));
+				}
 			} catch (InterruptedException e) {
 				logger.error("Failed while synchronizing users",e);
 			} catch (NamingException e) {
 				logger.error("Failed while synchronizing users",e);
+				countFailure(e);
 			} catch (IOException e) {
 				logger.error("Failed while synchronizing users",e);
+				countFailure(e);
 			}
 		}
 		
 	}
 
-	public void setConversionMap(Map<String, String> conversionMap) {
+	/*
+	 * Writes left unacknowledged in the destination's journal by a crash
+	 * are settled before anything else is written, retrying until the
+	 * destination can be reached.  Returns false if interrupted.
+	 */
+	private boolean recover() {
+		while(true) {
+			try {
+				destinationConnection.recover();
+				return true;
+			} catch(NamingException | IOException e) {
+				logger.error("Failed to recover journaled writes, will try again in "+secondsBetweenSyncs+" seconds", e);
+				countFailure(e);
+			}
+			try {
+				Thread.sleep(secondsBetweenSyncs*1000);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Validates changed settings and hands them to the polling thread,
+	 * which swaps them in before its next cycle.  Expressions that are new
+	 * or changed are then synced for every entry on their own.
+	 *
+	 * @param conversionMap the new map, or null to keep the current one
+	 * @param properties the new values of {@link #RELOADABLE_SETTINGS}
+	 * @throws IllegalArgumentException if a setting is missing or invalid,
+	 *         in which case nothing changes
+	 */
+	public void reload(ConversionMap conversionMap, Properties properties) {
+		Map<String, Long> settings = new HashMap<>();
+		RELOADABLE_SETTINGS.forEach( (key, defaultValue) -> {
+			String value = properties.getProperty(key);
+			long parsed;
+			try {
+				parsed = Strings.isNullOrEmpty(value) ? defaultValue : Long.parseLong(value.trim());
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Setting "+key+" is not a number: "+value);
+			}
+			if(parsed<0 || (parsed==0 && key.equals("secondsBetweenSyncs"))) {
+				throw new IllegalArgumentException("Setting "+key+" is missing or out of range: "+value);
+			}
+			settings.put(key, parsed);
+		});
+		if(conversionMap!=null && conversionMap.size()==0) {
+			throw new IllegalArgumentException("No map.* expressions");
+		}
+		reload.set(new Reload(conversionMap, settings));
+	}
+
+	/*
+	 * Runs on the polling thread between cycles, so a cycle never sees
+	 * half of a reload.  Mappings that were dropped leave their attribute
+	 * in the destination as it was last written.
+	 */
+	private void applyReload() {
+		Reload next = reload.getAndSet(null);
+		if(next==null) {
+			return;
+		}
+		Map<String, Long> settings = next.settings;
+		secondsBetweenSyncs = settings.get("secondsBetweenSyncs");
+		minSecondsBetweenSyncs = settings.get("minSecondsBetweenSyncs");
+		maxSecondsBetweenSyncs = settings.get("maxSecondsBetweenSyncs");
+		entriesPerSync = settings.get("entriesPerSync");
+		secondsSinceChanged = settings.get("secondsSinceChanged");
+		secondsOverlap = settings.get("secondsOverlap");
+		secondsBetweenReconciles = settings.get("secondsBetweenReconciles");
+		resetPollInterval();
+		logger.info("Reloaded settings {}", new TreeSet<>(settings.entrySet()));
+		if(next.conversionMap==null) {
+			return;
+		}
+		Set<String> changed = next.conversionMap.changedSince(conversionMap);
+		Set<String> dropped = new TreeSet<>(conversionMap.keySet());
+		dropped.removeAll(next.conversionMap.keySet());
+		if(!dropped.isEmpty()) {
+			logger.info("No longer mapping {}, destination values are left as they are", dropped);
+		}
+		staleAttributes.addAll(changed);
+		staleAttributes.retainAll(next.conversionMap.keySet());
+		conversionMap = next.conversionMap;
+		if(!changed.isEmpty()) {
+			logger.info("Reloaded conversion map with new or changed expressions for {}", changed);
+		}
+	}
+
+	/*
+	 * Passes over every source entry with only the stale expressions, so
+	 * only the source attributes they read are fetched and only their
+	 * destination attributes written.  The checkpoint stays where it is,
+	 * and the attributes stay stale until a pass completes.
+	 */
+	private void resyncStaleAttributes() throws NamingException, IOException {
+		if(staleAttributes.isEmpty()) {
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		destinationConnection.refresh(conversionMap);
+		SyncResult result = sourceConnection.fullSync(destinationConnection, conversionMap.select(staleAttributes), null);
+		if(result.isComplete()) {
+			logger.info("Re-synchronized {} of {} entries in {} ms", staleAttributes, result.getEntries(), 
+					System.currentTimeMillis()-startTime);
+			staleAttributes.clear();
+		} else {
+			logger.warn("Re-synchronizing {} did not complete, will try again", staleAttributes);
+		}
+	}
+
+	private void resetPollInterval() {
+		if(minSecondsBetweenSyncs<=0 || minSecondsBetweenSyncs>secondsBetweenSyncs) {
+			minSecondsBetweenSyncs = secondsBetweenSyncs;
+		}
+		if(maxSecondsBetweenSyncs<secondsBetweenSyncs) {
+			maxSecondsBetweenSyncs = secondsBetweenSyncs;
+		}
+		pollInterval = TimeUnit.SECONDS.toMillis(secondsBetweenSyncs);
+	}
+
+	private void reconcileIfDue() throws NamingException, IOException {
+		if(secondsBetweenReconciles<=0 || System.currentTimeMillis()-lastReconcile < secondsBetweenReconciles*1000) {
+			return;
+		}
+		lastReconcile = System.currentTimeMillis();
+		long orphans = destinationConnection.reconcile(sourceConnection);
+		logger.info("Reconciliation found {} orphaned destination entries", orphans);
+	}
+
+	/*
+	 * Scales the interval by how far the last poll was from entriesPerSync
+	 * changes, at most doubling or halving it at a time, so idle sources
+	 * are polled less often and busy ones in smaller batches.
+	 */
+	private void adjustPollInterval(SyncResult result) {
+		double factor = (double)entriesPerSync/Math.max(1L, result.getEntries());
+		factor = Math.max(0.5, Math.min(2.0, factor));
+		long interval = Math.round(pollInterval*factor);
+		pollInterval = Math.max(TimeUnit.SECONDS.toMillis(minSecondsBetweenSyncs), 
+				Math.min(TimeUnit.SECONDS.toMillis(maxSecondsBetweenSyncs), interval));
+		logger.debug("Next poll in {} ms after {} changes", pollInterval, result.getEntries());
+	}
+
+	private void recordCycle(SyncResult result, long cycleStart) {
+		long millis = System.currentTimeMillis()-cycleStart;
+		cycleTimer.record(TimeUnit.MILLISECONDS.toNanos(millis));
+		lastCycleEntries = result.getEntries();
+		lastCycleRate = millis>0 ? result.getEntries()*1000.0/millis : 0.0;
+		if(result.isComplete()) {
+			lastCompleteCycleStart = cycleStart;
+		}
+	}
+
+	private void countFailure(Exception e) {
+		metrics.counter("deltasync_failures_total", "Failures by operation and exception type", 
+				"connection", "poller", "operation", "cycle", "exception", e.getClass().getSimpleName()).increment();
+	}
+
+	/*
+	 * Polls from the last processed change when a checkpoint exists,
+	 * otherwise falls back to the sliding secondsSinceChanged window.
+	 * Partitions gained from other nodes may need to go back further.
+	 */
+	private long getStartTime() {
+		long highWaterMark = getHighWaterMark();
+		long startTime = highWaterMark>0L ? highWaterMark - (secondsOverlap*1000) : System.currentTimeMillis() - (secondsSinceChanged*1000);
+		long catchUp = partitions==null ? 0L : partitions.getCatchUp();
+		if(catchUp>0L) {
+			startTime = Math.max(0L, Math.min(startTime, catchUp - (secondsOverlap*1000)));
+		}
+		return startTime;
+	}
+
+	private long getHighWaterMark() {
+		return checkpointStore==null ? 0L : checkpointStore.getLong(HIGH_WATER_MARK, 0L);
+	}
+
+	/*
+	 * Entries the destination still holds to coalesce them with later
+	 * changes were first submitted by the pass under way at the time, and
+	 * changed after that pass's start time.  The checkpoint stays at that
+	 * start time until they are written, so a restart reads them again.
+	 */
+	private SyncResult capAtHeld(SyncResult result) throws NamingException {
+		long heldSince = destinationConnection.awaitReleased();
+		if(heldSince==Long.MAX_VALUE) {
+			passes.headMap(passes.lastKey()).clear();
+			return result;
+		}
+		Map.Entry<Long, Long> pass = passes.floorEntry(heldSince);
+		if(pass==null) {
+			return new SyncResult(result.getEntries(), 0L, result.isComplete());
+		}
+		passes.headMap(pass.getKey()).clear();
+		if(pass.getValue()>=result.getHighWaterMark()) {
+			return result;
+		}
+		logger.debug("Holding the checkpoint at {} for entries held since {}", new Date(pass.getValue()), new Date(heldSince));
+		return new SyncResult(result.getEntries(), pass.getValue(), result.isComplete());
+	}
+
+	/*
+	 * Only a complete pass may move the checkpoint, since results are not
+	 * returned in change order.
+	 */
+	private void saveCheckpoint(SyncResult result) throws IOException {
+		if(checkpointStore==null || !result.isComplete() || result.getHighWaterMark()<=getHighWaterMark()) {
+			return;
+		}
+		checkpointStore.putLong(HIGH_WATER_MARK, result.getHighWaterMark());
+		if(partitions!=null) {
+			partitions.setHighWaterMark(result.getHighWaterMark());
+		}
+		logger.debug("Checkpointed changes up to {}", new Date(result.getHighWaterMark()));
+	}
+
+	/**
+	 * @return whether a cycle is under way, including the initial full
+	 *         sync, rather than waiting for the next one
+	 */
+	public boolean isPolling() {
+		return polling;
+	}
+
+	public void setConversionMap(ConversionMap conversionMap) {
 		this.conversionMap = conversionMap;
 	}
 
@@ -74,12 +421,84 @@ public class DeltaPoller implements Runnable {
 		this.secondsBetweenSyncs = secondsBetweenSyncs;
 	}
 
+	/**
+	 * @param minSecondsBetweenSyncs shortest interval the poll interval
+	 *        may shrink to when changes are frequent
+	 */
+	public void setMinSecondsBetweenSyncs(long minSecondsBetweenSyncs) {
+		this.minSecondsBetweenSyncs = minSecondsBetweenSyncs;
+	}
+
+	/**
+	 * @param maxSecondsBetweenSyncs longest interval the poll interval may
+	 *        grow to when there are no changes
+	 */
+	public void setMaxSecondsBetweenSyncs(long maxSecondsBetweenSyncs) {
+		this.maxSecondsBetweenSyncs = maxSecondsBetweenSyncs;
+	}
+
+	/**
+	 * @param entriesPerSync changes per poll the interval is adjusted
+	 *        towards
+	 */
+	public void setEntriesPerSync(long entriesPerSync) {
+		this.entriesPerSync = entriesPerSync;
+	}
+
 	public void setSecondsSinceChanged(long secondsSinceChanged) {
 		this.secondsSinceChanged = secondsSinceChanged;
 	}
 
+	public void setSecondsOverlap(long secondsOverlap) {
+		this.secondsOverlap = secondsOverlap;
+	}
+
+	/**
+	 * @param secondsBetweenReconciles how often to look for destination
+	 *        entries whose source entry is gone, or 0 for never
+	 */
+	public void setSecondsBetweenReconciles(long secondsBetweenReconciles) {
+		this.secondsBetweenReconciles = secondsBetweenReconciles;
+	}
+
 	public void setDoFullSyncFirst(boolean doFullSyncFirst) {
 		this.doFullSyncFirst = doFullSyncFirst;
 	}
+
+	/**
+	 * @param changeMode poll, or psearch, dirsync or syncrepl to follow a
+	 *        {@link com.capitaltg.delta.ldap.ChangeStream} after each
+	 *        catch-up poll
+	 */
+	public void setChangeMode(String changeMode) {
+		this.changeMode = changeMode;
+	}
+
+	/**
+	 * @param partitions this node's share of the unique ids when several
+	 *        nodes divide the source, whose destination should then be a
+	 *        {@link com.capitaltg.delta.ldap.PartitionedConnection}
+	 */
+	public void setPartitions(PartitionAssignment partitions) {
+		this.partitions = partitions;
+	}
+
+	public void setCheckpointFile(String checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	private static class Reload {
+		private final ConversionMap conversionMap;
+		private final Map<String, Long> settings;
+
+		private Reload(ConversionMap conversionMap, Map<String, Long> settings) {
+			this.conversionMap = conversionMap;
+			this.settings = settings;
+		}
+	}
 	
 }
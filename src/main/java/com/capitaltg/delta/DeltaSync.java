@@ -3,19 +3,34 @@ package com.capitaltg.delta;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.naming.NamingException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
+import com.capitaltg.delta.ldap.FanOutConnection;
+import com.capitaltg.delta.ldap.LDAPConnectionImpl;
+import com.capitaltg.delta.ldap.LdifDiff;
+import com.capitaltg.delta.ldap.LdifSourceConnection;
+import com.capitaltg.delta.mapping.ConversionMap;
+import com.google.common.collect.Sets;
+
 public class DeltaSync {
 
 	private static final Logger logger = LoggerFactory.getLogger(DeltaSync.class);
+	private static final int DIFF_CHUNK_SIZE = 100000;
+	private static final String CONFIG_FILE = "config/delta.properties";
 	private static final String DELTA_BANNER = 
 		"\n(_) ___ __ _ _ __ ___     __| | ___| | |_ __ _ \n"+
 		"| |/ __/ _` | '_ ` _ \\   / _` |/ _ \\ | __/ _` | \n"+
@@ -24,34 +39,153 @@ public class DeltaSync {
 			
 	public static void main(String[] args) throws Exception {
 		DeltaSync deltaSync = new DeltaSync();
+		if(args.length>0 && args[0].equalsIgnoreCase("diff")) {
+			if(args.length!=4) {
+				logger.error("Usage: DeltaSync diff <source.ldif> <destination.ldif> <changes.ldif>");
+				System.exit(2);
+			}
+			deltaSync.diff(args[1], args[2], args[3]);
+			return;
+		}
 		deltaSync.startSync();
 	}
 
 	
 	private void startSync() throws IOException{
 		String configFile = "delta-config.xml";
-		ApplicationContext context = new ClassPathXmlApplicationContext(configFile);
+		ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(configFile);
+		context.registerShutdownHook();
 		logger.info(DELTA_BANNER);
 		DeltaPoller poller = context.getBean(DeltaPoller.class);
-		poller.setConversionMap(readConversionMap());
+		ConversionMap mapping = readConversionMap();
+		ConversionMap conversionMap = mapping;
+		Map<String, FanOutConnection> fanOuts = context.getBeansOfType(FanOutConnection.class);
+		for(FanOutConnection fanOut : fanOuts.values()) {
+			conversionMap = configureFanOut(fanOut, conversionMap);
+		}
+		poller.setConversionMap(conversionMap);
 		Thread thread = new Thread(poller);
 		thread.start();
+		for(BackfillJob job : context.getBeansOfType(BackfillJob.class).values()) {
+			job.setConversionMap(mapping);
+			job.start();
+		}
+		if(Boolean.parseBoolean(readProperties().getProperty("watchConfig", "false").trim())) {
+			new ConfigWatcher(Paths.get(CONFIG_FILE), (previous, current) -> reload(poller, !fanOuts.isEmpty(), previous, current)).start();
+		}
 		logger.info("Started DeltaSync");
 	}
 
-	private Map<String, String> readConversionMap() throws IOException {
-		File file = new File("config/delta.properties");
-		FileReader fileReader = new FileReader(file);
+	/*
+	 * Map expressions and poller timings are swapped in by the poller;
+	 * everything else is wired into the Spring context and needs a
+	 * restart, as do the maps of a fan-out.
+	 */
+	private void reload(DeltaPoller poller, boolean fanOut, Properties previous, Properties current) {
+		Set<String> changed = new TreeSet<>();
+		for(String key : Sets.union(previous.stringPropertyNames(), current.stringPropertyNames())) {
+			if(!Objects.equals(previous.getProperty(key), current.getProperty(key))) {
+				changed.add(key);
+			}
+		}
+		boolean mapChanged = changed.removeIf( key -> key.startsWith("map."));
+		boolean settingsChanged = changed.removeAll(DeltaPoller.RELOADABLE_SETTINGS.keySet());
+		if(!changed.isEmpty()) {
+			logger.warn("Changes to {} take effect after a restart", changed);
+		}
+		ConversionMap conversionMap = null;
+		if(mapChanged && fanOut) {
+			logger.warn("Changes to map.* take effect after a restart when fanning out");
+		} else if(mapChanged) {
+			conversionMap = compileConversionMap(current, "map.");
+		}
+		if(conversionMap!=null || settingsChanged) {
+			poller.reload(conversionMap, current);
+		}
+	}
+
+	/*
+	 * Writes the changes that would bring the destination export in line
+	 * with the source export to an LDIF file, using the unique ids, object
+	 * classes and base of config/delta.properties.
+	 */
+	private void diff(String sourceFile, String destinationFile, String changeFile) throws IOException, NamingException {
+		Properties properties = readProperties();
+		ConversionMap conversionMap = readConversionMap();
+
+		LdifSourceConnection source = new LdifSourceConnection();
+		source.setLdiffile(sourceFile);
+		source.setUniqueid(properties.getProperty("ldap.source.uniqueid").trim());
+		source.setObjectclass(properties.getProperty("ldap.source.objectclass", "").trim());
+		source.init();
+
+		LdifSourceConnection destinationSnapshot = new LdifSourceConnection();
+		destinationSnapshot.setLdiffile(destinationFile);
+		destinationSnapshot.setUniqueid(properties.getProperty("ldap.destination.uniqueid").trim());
+		destinationSnapshot.init();
+
+		LDAPConnectionImpl destination = new LDAPConnectionImpl();
+		destination.setUniqueid(properties.getProperty("ldap.destination.uniqueid").trim());
+		destination.setObjectclass(properties.getProperty("ldap.destination.objectclass").trim());
+		destination.setLdapbasedn(properties.getProperty("ldap.destination.searchbase").trim());
+		destination.setChangefile(changeFile);
+		destination.setSourceConnection(source);
+		destination.setName("diff");
+		destination.init();
+
+		Path changes = Paths.get(changeFile).toAbsolutePath();
+		new LdifDiff(source, destinationSnapshot, destination, changes.getParent(), DIFF_CHUNK_SIZE)
+				.diff(conversionMap, "delete".equalsIgnoreCase(properties.getProperty("ldap.destination.orphanpolicy", "").trim()));
+		logger.info("Wrote changes to {}", changes);
+	}
+
+	/*
+	 * Destinations with <name>.map.* entries of their own use those, the
+	 * others share the map.* entries.  The source then reads what any of
+	 * them needs.
+	 */
+	private ConversionMap configureFanOut(FanOutConnection fanOut, ConversionMap conversionMap) throws IOException {
+		for(String name : fanOut.getNames()) {
+			ConversionMap destinationMap = readConversionMap(name + ".map.");
+			if(destinationMap.size()==0) {
+				destinationMap = conversionMap;
+			}
+			fanOut.setConversionMap(name, destinationMap);
+		}
+		return fanOut.getSourceConversionMap();
+	}
+
+	private Properties readProperties() throws IOException {
 		Properties properties = new Properties();
-		properties.load(fileReader);
+		try(FileReader fileReader = new FileReader(new File(CONFIG_FILE))) {
+			properties.load(fileReader);
+		}
+		return properties;
+	}
+
+	private ConversionMap readConversionMap() throws IOException {
+		return readConversionMap("map.");
+	}
+
+	private ConversionMap readConversionMap(String prefix) throws IOException {
+		return compileConversionMap(readProperties(), prefix);
+	}
+
+	private ConversionMap compileConversionMap(Properties properties, String prefix) {
 		Map<String, String> map = new HashMap<>();
 		properties.entrySet().forEach( e -> {
-			if(e.getKey().toString().startsWith("map.")) {
-				map.put(StringUtils.substringAfter(e.getKey().toString(),"map."), e.getValue().toString());
+			if(e.getKey().toString().startsWith(prefix)) {
+				map.put(StringUtils.substringAfter(e.getKey().toString(),prefix), e.getValue().toString());
 			}
 		});
-		fileReader.close();
-		return map;
+		ConversionMap conversionMap = ConversionMap.compile(map);
+		if(conversionMap.size()==0 && !prefix.equals("map.")) {
+			return conversionMap;
+		}
+		logger.info("Compiled {} {}* conversion map expressions", conversionMap.size(), prefix);
+		logger.info("  Source attributes read: {}", conversionMap.getSourceAttributes()==null ? "all" : conversionMap.getSourceAttributes());
+		logger.info("  Destination attributes read: {}", conversionMap.getTargetAttributes()==null ? "all" : conversionMap.getTargetAttributes());
+		return conversionMap;
 	}
 	
 }
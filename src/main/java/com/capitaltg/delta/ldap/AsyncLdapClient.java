@@ -0,0 +1,472 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.NoPermissionException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.AttributeInUseException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InvalidAttributeIdentifierException;
+import javax.naming.directory.InvalidAttributeValueException;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.NoSuchAttributeException;
+import javax.naming.directory.SchemaViolationException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.util.BerReader;
+import com.capitaltg.delta.util.BerWriter;
+
+/**
+ * Just enough of an LDAP v3 client to pipeline add and modify requests on
+ * one connection.  Requests are written as soon as they are made, up to
+ * depth of them outstanding, and a reader thread matches responses back
+ * to their handlers by message id.  JNDI cannot do this since every
+ * directory operation blocks until its response arrives.
+ * 
+ * The connection binds with a simple bind when it is opened.  Once it
+ * fails, every outstanding request fails with a CommunicationException
+ * and the client stays closed.  So does a server that leaves a request
+ * unanswered for longer than the timeout, or that sends something that
+ * cannot be decoded.
+ */
+public class AsyncLdapClient implements Closeable {
+
+	private static final int BIND_REQUEST = 0x60;
+	private static final int BIND_RESPONSE = 0x61;
+	private static final int UNBIND_REQUEST = 0x42;
+	private static final int MODIFY_REQUEST = 0x66;
+	private static final int ADD_REQUEST = 0x68;
+	private static final int EXTENDED_RESPONSE = 0x78;
+	private static final int SIMPLE_AUTHENTICATION = 0x80;
+	private static final int MAX_MESSAGE = 1 << 24;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final String name;
+	private final Socket socket;
+	private final OutputStream out;
+	private final DataInputStream in;
+	private final Semaphore window;
+	private final long timeoutNanos;
+	private final AtomicInteger messageIds = new AtomicInteger();
+	private final Map<Integer, Request> outstanding = new ConcurrentHashMap<>();
+	private volatile NamingException closedBy;
+	private Thread reader;
+
+	private AsyncLdapClient(String name, Socket socket, int depth, int timeoutMillis) throws IOException {
+		this.name = name;
+		this.socket = socket;
+		this.out = new BufferedOutputStream(socket.getOutputStream());
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.window = new Semaphore(depth);
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * Connects to the first server of an ldap:// or ldaps:// url and binds.
+	 * The certificate of an ldaps server has to match its host name, as it
+	 * does for JNDI.
+	 *
+	 * @param timeoutMillis how long connecting, binding and every request
+	 *        may take, or 0 to wait forever
+	 */
+	public static AsyncLdapClient connect(String url, String bindDn, String password, int depth, int timeoutMillis) throws NamingException {
+		URI uri = URI.create(url.trim().split("\\s+")[0]);
+		boolean secure = "ldaps".equalsIgnoreCase(uri.getScheme());
+		int port = uri.getPort()>0 ? uri.getPort() : secure ? 636 : 389;
+		AsyncLdapClient client = null;
+		try {
+			Socket socket = secure ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			if(secure) {
+				SSLParameters parameters = ((SSLSocket)socket).getSSLParameters();
+				parameters.setEndpointIdentificationAlgorithm("LDAPS");
+				((SSLSocket)socket).setSSLParameters(parameters);
+			}
+			socket.connect(new InetSocketAddress(uri.getHost(), port), timeoutMillis);
+			if(secure) {
+				socket.setSoTimeout(timeoutMillis);
+				((SSLSocket)socket).startHandshake();
+			}
+			client = new AsyncLdapClient(uri.getHost() + ":" + port, socket, depth, timeoutMillis);
+			client.bind(bindDn, password, timeoutMillis);
+			client.start();
+			return client;
+		} catch(IOException e) {
+			if(client!=null) {
+				client.close();
+			}
+			CommunicationException failure = new CommunicationException("Failed to connect to " + url);
+			failure.setRootCause(e);
+			throw failure;
+		} catch(NamingException e) {
+			client.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends a modify request, blocking while depth requests are
+	 * outstanding.  The handler runs on the reader thread.
+	 */
+	public void modify(String dn, ModificationItem[] items, ResultHandler handler) throws NamingException {
+		BerWriter request = new BerWriter().beginSequence(MODIFY_REQUEST).writeString(dn).beginSequence();
+		for(ModificationItem item : items) {
+			request.beginSequence().writeEnumerated(operation(item.getModificationOp()));
+			writeAttribute(request, item.getAttribute());
+			request.endSequence();
+		}
+		send(request.endSequence().endSequence(), handler);
+	}
+
+	public void add(String dn, Attributes attributes, ResultHandler handler) throws NamingException {
+		BerWriter request = new BerWriter().beginSequence(ADD_REQUEST).writeString(dn).beginSequence();
+		NamingEnumeration<? extends Attribute> all = attributes.getAll();
+		while(all.hasMoreElements()) {
+			writeAttribute(request, all.nextElement());
+		}
+		send(request.endSequence().endSequence(), handler);
+	}
+
+	public boolean isOpen() {
+		return closedBy==null;
+	}
+
+	public int getOutstanding() {
+		return outstanding.size();
+	}
+
+	@Override
+	public void close() {
+		if(closedBy==null) {
+			try {
+				synchronized(out) {
+					out.write(message(messageIds.incrementAndGet(), new BerWriter().write(UNBIND_REQUEST, new byte[0])));
+					out.flush();
+				}
+			} catch(IOException e) {
+				logger.debug("Failed to unbind from {}", name, e);
+			}
+		}
+		fail(new CommunicationException("Connection to " + name + " was closed"));
+	}
+
+	private void send(BerWriter request, ResultHandler handler) throws NamingException {
+		try {
+			window.acquire();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedNamingException("Interrupted while waiting for outstanding writes");
+		}
+		if(closedBy!=null) {
+			window.release();
+			throw closedBy;
+		}
+		int messageId = messageIds.incrementAndGet();
+		outstanding.put(messageId, new Request(handler));
+		try {
+			synchronized(out) {
+				out.write(message(messageId, request));
+				out.flush();
+			}
+		} catch(IOException e) {
+			CommunicationException failure = new CommunicationException("Failed to write to " + name);
+			failure.setRootCause(e);
+			fail(failure);
+		}
+		if(closedBy!=null && outstanding.remove(messageId)!=null) {
+			// closed while this was being sent, after the outstanding requests were failed
+			window.release();
+			complete(handler, closedBy);
+		}
+	}
+
+	private void bind(String bindDn, String password, int timeoutMillis) throws IOException, NamingException {
+		int messageId = messageIds.incrementAndGet();
+		out.write(message(messageId, new BerWriter().beginSequence(BIND_REQUEST).writeInt(3)
+				.writeString(bindDn==null ? "" : bindDn).writeString(SIMPLE_AUTHENTICATION, password==null ? "" : password).endSequence()));
+		out.flush();
+		socket.setSoTimeout(timeoutMillis);
+		BerReader response = readMessage(in.read());
+		if(response.readInt()!=messageId || response.peekTag()!=BIND_RESPONSE) {
+			throw new IOException("Unexpected response to bind");
+		}
+		NamingException failure = result(response.readSequence(BIND_RESPONSE));
+		if(failure!=null) {
+			throw failure;
+		}
+	}
+
+	private void start() {
+		reader = new Thread(this::read, "ldap-writer-" + name);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/*
+	 * The socket keeps the timeout it was bound with, so a quiet connection
+	 * wakes the reader up to look for requests that have gone unanswered
+	 * for too long.  Anything the reader fails on closes the connection,
+	 * since the handlers would otherwise wait forever.
+	 */
+	private void read() {
+		try {
+			while(closedBy==null) {
+				int first;
+				try {
+					first = in.read();
+				} catch(SocketTimeoutException e) {
+					checkTimeout();
+					continue;
+				}
+				BerReader response = readMessage(first);
+				int messageId = (int)response.readInt();
+				int tag = response.peekTag();
+				if(messageId==0 && tag==EXTENDED_RESPONSE) {
+					NamingException notice = result(response.readSequence(EXTENDED_RESPONSE));
+					fail(new CommunicationException(name + " closed the connection: " + (notice==null ? "" : notice.getMessage())));
+					return;
+				}
+				// decoded first, so a response that cannot be is failed with the rest
+				NamingException result = result(response.readSequence(tag));
+				Request request = outstanding.remove(messageId);
+				if(request==null) {
+					logger.warn("Ignoring response {} from {} to unknown message {}", Integer.toHexString(tag), name, messageId);
+					continue;
+				}
+				window.release();
+				complete(request.handler, result);
+			}
+		} catch(IOException | RuntimeException e) {
+			if(closedBy==null) {
+				CommunicationException failure = new CommunicationException("Lost connection to " + name);
+				failure.setRootCause(e);
+				fail(failure);
+			}
+		}
+	}
+
+	private void checkTimeout() throws IOException {
+		long now = System.nanoTime();
+		for(Request request : outstanding.values()) {
+			if(now - request.sent > timeoutNanos) {
+				throw new SocketTimeoutException("No response from " + name + " within " 
+						+ TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+			}
+		}
+	}
+
+	/*
+	 * Marks the client closed and fails everything still outstanding.
+	 */
+	private void fail(NamingException failure) {
+		synchronized(this) {
+			if(closedBy!=null) {
+				return;
+			}
+			closedBy = failure;
+		}
+		try {
+			socket.close();
+		} catch(IOException e) {
+			logger.debug("Failed to close connection to {}", name, e);
+		}
+		for(Integer messageId : outstanding.keySet()) {
+			Request request = outstanding.remove(messageId);
+			if(request!=null) {
+				window.release();
+				complete(request.handler, failure);
+			}
+		}
+	}
+
+	private void complete(ResultHandler handler, NamingException failure) {
+		try {
+			handler.completed(failure);
+		} catch(RuntimeException e) {
+			logger.error("Write handler failed", e);
+		}
+	}
+
+	/*
+	 * Reads the rest of a message whose first byte was already read.
+	 * Lengths beyond MAX_MESSAGE are taken for garbage rather than
+	 * allocated.
+	 */
+	private BerReader readMessage(int tag) throws IOException {
+		if(tag<0) {
+			throw new EOFException("Connection closed");
+		} else if(tag!=BerWriter.SEQUENCE) {
+			throw new IOException("Expected an LDAP message but found tag " + Integer.toHexString(tag));
+		}
+		int length = in.readUnsignedByte();
+		if((length & 0x80)!=0) {
+			int bytes = length & 0x7f;
+			if(bytes>4) {
+				throw new IOException("Invalid message length of " + bytes + " bytes");
+			}
+			long value = 0;
+			for(int i=0; i<bytes; i++) {
+				value = (value << 8) | in.readUnsignedByte();
+			}
+			if(value>MAX_MESSAGE) {
+				throw new IOException("Message of " + value + " bytes exceeds " + MAX_MESSAGE);
+			}
+			length = (int)value;
+		}
+		byte[] content = new byte[length];
+		in.readFully(content);
+		return new BerReader(content);
+	}
+
+	private static byte[] message(int messageId, BerWriter operation) {
+		byte[] body = operation.toByteArray();
+		BerWriter message = new BerWriter().beginSequence().writeInt(messageId);
+		return message.write(body[0] & 0xff, content(body)).endSequence().toByteArray();
+	}
+
+	/*
+	 * Strips the tag and length of an encoded element.
+	 */
+	private static byte[] content(byte[] element) {
+		int offset = 2;
+		if((element[1] & 0x80)!=0) {
+			offset += element[1] & 0x7f;
+		}
+		byte[] content = new byte[element.length - offset];
+		System.arraycopy(element, offset, content, 0, content.length);
+		return content;
+	}
+
+	private static void writeAttribute(BerWriter writer, Attribute attribute) throws NamingException {
+		writer.beginSequence().writeString(attribute.getID()).beginSequence(BerWriter.SET);
+		NamingEnumeration<?> values = attribute.getAll();
+		while(values.hasMoreElements()) {
+			Object value = values.nextElement();
+			if(value instanceof byte[]) {
+				writer.writeOctetString((byte[])value);
+			} else if(value!=null) {
+				writer.writeString(value.toString());
+			}
+		}
+		writer.endSequence().endSequence();
+	}
+
+	private static int operation(int modificationOp) {
+		switch(modificationOp) {
+		case DirContext.ADD_ATTRIBUTE:
+			return 0;
+		case DirContext.REMOVE_ATTRIBUTE:
+			return 1;
+		default:
+			return 2;
+		}
+	}
+
+	/*
+	 * Reads an LDAPResult and turns anything but success into the
+	 * exception JNDI would have thrown for it.
+	 */
+	private static NamingException result(BerReader result) throws IOException {
+		int code = result.readEnumerated();
+		result.skip();
+		String message = result.readString();
+		if(code==0) {
+			return null;
+		}
+		String explanation = "[LDAP: error code " + code + " - " + message + "]";
+		NamingException failure;
+		switch(code) {
+		case 16:
+			failure = new NoSuchAttributeException(explanation);
+			break;
+		case 17:
+			failure = new InvalidAttributeIdentifierException(explanation);
+			break;
+		case 19:
+		case 21:
+			failure = new InvalidAttributeValueException(explanation);
+			break;
+		case 20:
+			failure = new AttributeInUseException(explanation);
+			break;
+		case 32:
+			failure = new NameNotFoundException(explanation);
+			break;
+		case 49:
+			failure = new AuthenticationException(explanation);
+			break;
+		case 50:
+			failure = new NoPermissionException(explanation);
+			break;
+		case 51:
+		case 52:
+			failure = new ServiceUnavailableException(explanation);
+			break;
+		case 53:
+			failure = new OperationNotSupportedException(explanation);
+			break;
+		case 64:
+		case 65:
+		case 67:
+		case 69:
+			failure = new SchemaViolationException(explanation);
+			break;
+		case 68:
+			failure = new NameAlreadyBoundException(explanation);
+			break;
+		default:
+			failure = new NamingException(explanation);
+			break;
+		}
+		return failure;
+	}
+
+	private static class Request {
+		private final ResultHandler handler;
+		private final long sent = System.nanoTime();
+
+		private Request(ResultHandler handler) {
+			this.handler = handler;
+		}
+	}
+
+	@FunctionalInterface
+	public interface ResultHandler {
+		/**
+		 * @param failure null if the server reported success
+		 */
+		public void completed(NamingException failure);
+	}
+}
@@ -0,0 +1,333 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.sync.CheckpointStore;
+import com.capitaltg.delta.util.BerReader;
+import com.capitaltg.delta.util.BerWriter;
+
+/**
+ * Long-lived change source.  Three server mechanisms are supported:
+ * <ul>
+ * <li>psearch: the persistent search control (OpenDJ, 389 DS).  Changes are
+ *     pushed as they happen.  There is no cookie, the caller catches up by
+ *     polling before the stream is opened, and again once it is open for
+ *     what changed in between.</li>
+ * <li>dirsync: the Active Directory DirSync control.  AD cannot hold a
+ *     DirSync search open, so it is repeated every poll interval with the
+ *     cookie from the previous response.  DirSync only returns changed
+ *     attributes, so every reported entry is read back in full.</li>
+ * <li>syncrepl: RFC 4533 content synchronization in refreshOnly mode,
+ *     repeated every poll interval with the cookie from the Sync Done
+ *     control.  refreshAndPersist delivers its cookies in intermediate
+ *     responses, which JNDI does not expose.</li>
+ * </ul>
+ * {@link #run()} returns only by throwing, typically when the connection
+ * drops, and the caller is expected to reconnect.  Cookies are kept once
+ * every entry before them has been synced, so the next round and a
+ * reconnect resume where the last one stopped.  They are kept in the map
+ * the caller hands over, and saved to the checkpoint store as well when
+ * there is one, so that a restart resumes too.
+ */
+public class ChangeStream {
+
+	static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+	static final String ENTRY_CHANGE_OID = "2.16.840.1.113730.3.4.7";
+	static final String DIRSYNC_OID = "1.2.840.113556.1.4.841";
+	static final String SYNC_REQUEST_OID = "1.3.6.1.4.1.4203.1.9.1.1";
+	static final String SYNC_STATE_OID = "1.3.6.1.4.1.4203.1.9.1.2";
+	static final String SYNC_DONE_OID = "1.3.6.1.4.1.4203.1.9.1.3";
+
+	private static final int PSEARCH_ALL_CHANGES = 1 | 2 | 4 | 8;
+	private static final int PSEARCH_DELETE = 2;
+	private static final int DIRSYNC_MAX_BYTES = 1048576;
+	private static final int SYNC_REFRESH_ONLY = 1;
+	private static final int SYNC_STATE_DELETE = 3;
+
+	public enum Mode {
+		PSEARCH, DIRSYNC, SYNCREPL;
+
+		public static Mode parse(String mode) {
+			return valueOf(mode.trim().toUpperCase(Locale.US));
+		}
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Mode mode;
+	private final Hashtable<String, String> environment;
+	private final String basedn;
+	private final String filter;
+	private final String[] attributes;
+	private final long pollMillis;
+	private final CheckpointStore checkpointStore;
+	private final Map<String, byte[]> cookies;
+	private final ChangeHandler handler;
+
+	/**
+	 * @param cookies the cookies of earlier streams, keyed by mode, which
+	 *        this one updates
+	 * @param checkpointStore where cookies are saved across restarts, or
+	 *        null to only keep them in cookies
+	 */
+	public ChangeStream(Mode mode, Hashtable<String, String> environment, String basedn, String filter, String[] attributes,
+			long pollMillis, Map<String, byte[]> cookies, CheckpointStore checkpointStore, ChangeHandler handler) {
+		this.mode = mode;
+		this.environment = new Hashtable<>(environment);
+		this.environment.remove("com.sun.jndi.ldap.connect.pool");
+		this.basedn = basedn;
+		this.filter = filter;
+		this.attributes = attributes;
+		this.pollMillis = pollMillis;
+		this.checkpointStore = checkpointStore;
+		this.cookies = cookies;
+		this.handler = handler;
+	}
+
+	public void run() throws NamingException, IOException, InterruptedException {
+		logger.info("Opening {} change stream on {} for {}", mode, basedn, filter);
+		LdapContext ldapContext = new InitialLdapContext(environment, null);
+		try {
+			switch(mode) {
+			case PSEARCH:
+				persistentSearch(ldapContext);
+				break;
+			case DIRSYNC:
+				while(true) {
+					if(!dirSync(ldapContext)) {
+						Thread.sleep(pollMillis);
+					}
+				}
+			case SYNCREPL:
+				while(true) {
+					contentSync(ldapContext);
+					Thread.sleep(pollMillis);
+				}
+			}
+		} finally {
+			ldapContext.close();
+		}
+		throw new NamingException("Persistent search on "+basedn+" ended");
+	}
+
+	private void persistentSearch(LdapContext ldapContext) throws NamingException, IOException {
+		byte[] value = new BerWriter().beginSequence()
+				.writeInt(PSEARCH_ALL_CHANGES)
+				.writeBoolean(true)
+				.writeBoolean(true)
+				.endSequence().toByteArray();
+		ldapContext.setRequestControls(new Control[]{ new BasicControl(PERSISTENT_SEARCH_OID, Control.CRITICAL, value) });
+		Thread stream = Thread.currentThread();
+		Thread catchUp = new Thread(() -> {
+			try {
+				Thread.sleep(pollMillis);
+				handler.opened();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch(NamingException | IOException e) {
+				logger.error("Failed to catch up with changes made before the persistent search on "+basedn+" was opened", e);
+				stream.interrupt();
+			}
+		}, "psearch-catch-up");
+		catchUp.setDaemon(true);
+		catchUp.start();
+		NamingEnumeration<SearchResult> results = null;
+		try {
+			results = ldapContext.search(basedn, filter, searchControls());
+			while(results.hasMore()) {
+				SearchResult result = results.next();
+				byte[] change = getControlValue(result, ENTRY_CHANGE_OID);
+				if(change != null && new BerReader(change).readSequence().readEnumerated() == PSEARCH_DELETE) {
+					handler.deleted(result.getNameInNamespace());
+				} else {
+					handler.changed(result);
+				}
+			}
+		} finally {
+			catchUp.interrupt();
+			if(results != null) {
+				results.close();
+			}
+		}
+	}
+
+	/*
+	 * Runs one DirSync round.  Returns true if the server has more
+	 * changes ready.
+	 */
+	private boolean dirSync(LdapContext ldapContext) throws NamingException, IOException {
+		String key = cookieKey();
+		byte[] cookie = loadCookie(key);
+		byte[] value = new BerWriter().beginSequence()
+				.writeInt(0)
+				.writeInt(DIRSYNC_MAX_BYTES)
+				.writeOctetString(cookie == null ? new byte[0] : cookie)
+				.endSequence().toByteArray();
+		ldapContext.setRequestControls(new Control[]{ new BasicControl(DIRSYNC_OID, Control.CRITICAL, value) });
+		List<String> dns = new ArrayList<>();
+		NamingEnumeration<SearchResult> results = ldapContext.search(basedn, filter, searchControls());
+		try {
+			while(results.hasMore()) {
+				dns.add(results.next().getNameInNamespace());
+			}
+		} finally {
+			results.close();
+		}
+		byte[] response = getControlValue(ldapContext.getResponseControls(), DIRSYNC_OID);
+		if(response == null) {
+			throw new NamingException("DirSync response control missing from "+basedn);
+		}
+		// the entries are read without the DirSync control, which would
+		// otherwise go along with every lookup
+		ldapContext.setRequestControls(null);
+		for(String dn : dns) {
+			try {
+				Attributes full = ldapContext.getAttributes(dn, attributes);
+				SearchResult entry = new SearchResult(dn, null, full, false);
+				entry.setNameInNamespace(dn);
+				handler.changed(entry);
+			} catch(NameNotFoundException e) {
+				handler.deleted(dn);
+			}
+		}
+		BerReader reader = new BerReader(response).readSequence();
+		boolean moreData = reader.readInt() != 0;
+		reader.readInt();
+		handler.flush();
+		saveCookie(key, reader.readOctetString());
+		if(!dns.isEmpty()) {
+			logger.debug("DirSync reported {} changed entries", dns.size());
+		}
+		return moreData;
+	}
+
+	private void contentSync(LdapContext ldapContext) throws NamingException, IOException {
+		String key = cookieKey();
+		byte[] cookie = loadCookie(key);
+		BerWriter writer = new BerWriter().beginSequence().writeEnumerated(SYNC_REFRESH_ONLY);
+		if(cookie != null) {
+			writer.writeOctetString(cookie);
+		}
+		byte[] value = writer.endSequence().toByteArray();
+		ldapContext.setRequestControls(new Control[]{ new BasicControl(SYNC_REQUEST_OID, Control.CRITICAL, value) });
+		int counter = 0;
+		NamingEnumeration<SearchResult> results = ldapContext.search(basedn, filter, searchControls());
+		try {
+			while(results.hasMore()) {
+				SearchResult result = results.next();
+				counter++;
+				byte[] state = getControlValue(result, SYNC_STATE_OID);
+				if(state != null && new BerReader(state).readSequence().readEnumerated() == SYNC_STATE_DELETE) {
+					handler.deleted(result.getNameInNamespace());
+				} else {
+					handler.changed(result);
+				}
+			}
+		} finally {
+			results.close();
+		}
+		byte[] done = getControlValue(ldapContext.getResponseControls(), SYNC_DONE_OID);
+		handler.flush();
+		if(done != null) {
+			BerReader reader = new BerReader(done).readSequence();
+			if(reader.peekTag() == BerWriter.OCTET_STRING) {
+				saveCookie(key, reader.readOctetString());
+			}
+		}
+		if(counter > 0) {
+			logger.debug("Content sync reported {} changed entries", counter);
+		}
+	}
+
+	private SearchControls searchControls() {
+		SearchControls searchControls = new SearchControls();
+		searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		searchControls.setReturningAttributes(mode == Mode.DIRSYNC ? null : attributes);
+		return searchControls;
+	}
+
+	private String cookieKey() {
+		return "cookie." + mode.name().toLowerCase(Locale.US);
+	}
+
+	private byte[] loadCookie(String key) {
+		byte[] cookie = cookies.get(key);
+		if(cookie == null && checkpointStore != null) {
+			String saved = checkpointStore.get(key);
+			cookie = saved == null ? null : Base64.getDecoder().decode(saved);
+		}
+		return cookie;
+	}
+
+	private void saveCookie(String key, byte[] cookie) throws IOException {
+		if(cookie == null || cookie.length == 0) {
+			return;
+		}
+		cookies.put(key, cookie);
+		if(checkpointStore != null) {
+			checkpointStore.put(key, Base64.getEncoder().encodeToString(cookie));
+		}
+	}
+
+	private static byte[] getControlValue(SearchResult result, String oid) throws NamingException {
+		return result instanceof HasControls ? getControlValue(((HasControls)result).getControls(), oid) : null;
+	}
+
+	private static byte[] getControlValue(Control[] controls, String oid) {
+		if(controls == null) {
+			return null;
+		}
+		for(Control control : controls) {
+			if(oid.equals(control.getID())) {
+				return control.getEncodedValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Receives the changes reported by the stream.
+	 */
+	public interface ChangeHandler {
+
+		public void changed(SearchResult entry) throws NamingException;
+
+		public void deleted(String dn) throws NamingException;
+
+		/**
+		 * Called once a persistent search has been open for a poll
+		 * interval, on a thread of its own, to sync what changed before it
+		 * was opened.  JNDI only hands the search back with its first
+		 * result, so there is no telling exactly when the server took it.
+		 * A failure breaks off the stream.
+		 */
+		public void opened() throws NamingException, IOException;
+
+		/**
+		 * Called before a cookie is saved.  Must not return until every
+		 * change handed over so far has been synced.
+		 */
+		public void flush() throws NamingException;
+	}
+}
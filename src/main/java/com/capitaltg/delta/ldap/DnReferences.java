@@ -0,0 +1,50 @@
+package com.capitaltg.delta.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Translates dn-valued source attributes such as manager, secretary or
+ * directReports into the dns of the same entries in the destination.
+ * Bound to mapping expressions as <code>references</code>, e.g.
+ * <code>map.manager = references.translate(attributes.manager)</code>.
+ * During a full sync with the source's dn index no lookups are made.
+ */
+public class DnReferences {
+
+	private final SourceConnection source;
+	private final LDAPConnectionImpl destination;
+
+	public DnReferences(SourceConnection source, LDAPConnectionImpl destination) {
+		this.source = source;
+		this.destination = destination;
+	}
+
+	/**
+	 * @param value a dn or a collection of them
+	 * @return the destination dn or a list of them.  Dns of entries
+	 *         without a unique id are dropped.
+	 */
+	public Object translate(Object value) {
+		if(value instanceof Collection) {
+			List<String> dns = new ArrayList<>();
+			for(Object dn : (Collection<?>)value) {
+				String translated = translateDN(dn);
+				if(translated!=null) {
+					dns.add(translated);
+				}
+			}
+			return dns;
+		}
+		return translateDN(value);
+	}
+
+	private String translateDN(Object dn) {
+		if(dn==null) {
+			return null;
+		}
+		String id = source.getUniqueIDByDN(dn.toString());
+		return id==null ? null : destination.createDNFromUniqueID(id);
+	}
+}
@@ -0,0 +1,147 @@
+package com.capitaltg.delta.ldap;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchResult;
+
+/**
+ * In-memory snapshot of the destination keyed by unique id.  Entries are
+ * copied into plain {@link BasicAttributes} so the index does not hold on
+ * to the JNDI context each search result references.
+ */
+public class EntryIndex {
+
+	private final Map<String, SearchResult> entries = new ConcurrentHashMap<>();
+	private volatile long lastRefresh;
+	private volatile boolean loaded;
+
+	public SearchResult get(String id) {
+		return entries.get(key(id));
+	}
+
+	/**
+	 * @return false if an entry was already indexed for the id
+	 */
+	public boolean put(String id, SearchResult result) throws NamingException {
+		return entries.put(key(id), compact(result)) == null;
+	}
+
+	public void put(String id, String dn, Attributes attributes) throws NamingException {
+		SearchResult result = new SearchResult(dn, null, copy(attributes), true);
+		result.setNameInNamespace(dn);
+		entries.put(key(id), result);
+	}
+
+	public void remove(String id) {
+		entries.remove(key(id));
+	}
+
+	/**
+	 * Applies modifications the destination has accepted to the indexed copy.
+	 */
+	public void modify(String id, ModificationItem[] items) throws NamingException {
+		SearchResult result = entries.get(key(id));
+		if(result == null) {
+			return;
+		}
+		Attributes attributes = copy(result.getAttributes());
+		for(ModificationItem item : items) {
+			Attribute attribute = item.getAttribute();
+			switch(item.getModificationOp()) {
+			case DirContext.ADD_ATTRIBUTE:
+				Attribute existing = attributes.get(attribute.getID());
+				if(existing == null) {
+					attributes.put(copy(attribute));
+				} else {
+					NamingEnumeration<?> values = attribute.getAll();
+					while(values.hasMoreElements()) {
+						existing.add(values.nextElement());
+					}
+				}
+				break;
+			case DirContext.REPLACE_ATTRIBUTE:
+				attributes.put(copy(attribute));
+				break;
+			case DirContext.REMOVE_ATTRIBUTE:
+				if(attribute.size() == 0 || attribute.get() == null) {
+					attributes.remove(attribute.getID());
+				} else {
+					Attribute current = attributes.get(attribute.getID());
+					if(current != null) {
+						NamingEnumeration<?> values = attribute.getAll();
+						while(values.hasMoreElements()) {
+							current.remove(values.nextElement());
+						}
+						if(current.size() == 0) {
+							attributes.remove(attribute.getID());
+						}
+					}
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		put(id, result.getNameInNamespace(), attributes);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public void clear() {
+		entries.clear();
+		loaded = false;
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	public long getLastRefresh() {
+		return lastRefresh;
+	}
+
+	public void markRefreshed(long timestamp) {
+		this.lastRefresh = timestamp;
+		this.loaded = true;
+	}
+
+	private static String key(String id) {
+		return id.toLowerCase(Locale.US);
+	}
+
+	private static SearchResult compact(SearchResult result) throws NamingException {
+		SearchResult compacted = new SearchResult(result.getName(), null, copy(result.getAttributes()), result.isRelative());
+		compacted.setNameInNamespace(result.getNameInNamespace());
+		return compacted;
+	}
+
+	private static Attributes copy(Attributes attributes) throws NamingException {
+		Attributes copy = new BasicAttributes(true);
+		NamingEnumeration<? extends Attribute> all = attributes.getAll();
+		while(all.hasMoreElements()) {
+			copy.put(copy(all.nextElement()));
+		}
+		return copy;
+	}
+
+	private static Attribute copy(Attribute attribute) throws NamingException {
+		Attribute copy = new BasicAttribute(attribute.getID().intern());
+		NamingEnumeration<?> values = attribute.getAll();
+		while(values.hasMoreElements()) {
+			copy.add(values.nextElement());
+		}
+		return copy;
+	}
+}
@@ -0,0 +1,37 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.Closeable;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+
+/**
+ * Sends entry writes to a destination.  A write may complete after the
+ * call that started it returns, so its outcome is reported to a listener.
+ * A listener that throws fails the whole pass: the exception comes out of
+ * {@link #awaitWritten()}, or straight out of the write call when the
+ * writer completes writes synchronously.
+ */
+public interface EntryWriter extends Closeable {
+
+	public void modify(String dn, ModificationItem[] items, WriteListener listener) throws NamingException;
+
+	public void add(String dn, Attributes attributes, WriteListener listener) throws NamingException;
+
+	/**
+	 * Waits for every write started so far to complete.
+	 * 
+	 * @throws NamingException the first exception a listener threw since
+	 *         the previous call
+	 */
+	public void awaitWritten() throws NamingException;
+
+	@FunctionalInterface
+	public interface WriteListener {
+		/**
+		 * @param failure null if the write succeeded
+		 */
+		public void completed(NamingException failure) throws NamingException;
+	}
+}
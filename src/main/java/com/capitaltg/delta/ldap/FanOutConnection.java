@@ -0,0 +1,232 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.SearchResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.mapping.ConversionMap;
+import com.capitaltg.delta.metrics.MetricsRegistry;
+import com.capitaltg.delta.sync.SyncWorkerPool;
+
+/**
+ * Stands in for several destinations behind one source, so the source is
+ * read and decoded once however many destinations there are.  Every
+ * destination has its own conversion map and its own queue, drained by a
+ * thread of its own into the destination, so a slow destination only
+ * holds up the source once its queue is full.  Read only mode and write
+ * concurrency are settings of each destination.
+ *
+ * The conversion map handed in by the source is only used to decide which
+ * source attributes to read; see {@link #getSourceConversionMap()}.
+ */
+public class FanOutConnection implements LDAPConnection {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Map<String, LDAPConnection> destinations;
+	private final Map<String, ConversionMap> conversionMaps = new LinkedHashMap<>();
+	private final Map<String, SyncWorkerPool> queues = new LinkedHashMap<>();
+	private int queuesize = 1000;
+	private MetricsRegistry metrics = new MetricsRegistry();
+
+	public FanOutConnection(Map<String, LDAPConnection> destinations) {
+		this.destinations = new LinkedHashMap<>(destinations);
+	}
+
+	@PostConstruct
+	public void init() {
+		for(String name : destinations.keySet()) {
+			SyncWorkerPool queue = new SyncWorkerPool("fanout-"+name, 1, queuesize);
+			queues.put(name, queue);
+			metrics.gauge("deltasync_fanout_pending", "Entries queued for a destination and not yet handed to it",
+					queue::getPending, "connection", name);
+		}
+		logger.info("Initialized fan-out to {} with queues of {} entries", destinations.keySet(), queuesize);
+	}
+
+	/**
+	 * @return names of the destinations, in the order they were given
+	 */
+	public Set<String> getNames() {
+		return Collections.unmodifiableSet(destinations.keySet());
+	}
+
+	public void setConversionMap(String name, ConversionMap conversionMap) {
+		if(!destinations.containsKey(name)) {
+			throw new IllegalArgumentException("No destination "+name);
+		}
+		conversionMaps.put(name, conversionMap);
+	}
+
+	/**
+	 * @return a map of every expression of every destination, for the
+	 *         source to read the attributes any of them needs
+	 */
+	public ConversionMap getSourceConversionMap() {
+		return ConversionMap.combine(conversionMaps.values());
+	}
+
+	@Override
+	public void refresh(ConversionMap conversionMap) throws NamingException, IOException {
+		for(Map.Entry<String, LDAPConnection> e : destinations.entrySet()) {
+			e.getValue().refresh(conversionMap(e.getKey(), conversionMap));
+		}
+	}
+
+	/*
+	 * Sharded full syncs need the entry written when this returns, so the
+	 * destinations are written one after the other.
+	 */
+	@Override
+	public void syncEntry(String id, SearchResult result, ConversionMap conversionMap) throws NamingException {
+		NamingException failure = null;
+		for(Map.Entry<String, LDAPConnection> e : destinations.entrySet()) {
+			try {
+				e.getValue().syncEntry(id, result, conversionMap(e.getKey(), conversionMap));
+			} catch(NamingException ex) {
+				logger.error("Failed to sync "+id+" to "+e.getKey(), ex);
+				failure = failure==null ? ex : failure;
+			}
+		}
+		if(failure!=null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public void submitEntry(String id, SearchResult result, ConversionMap conversionMap) throws NamingException {
+		for(Map.Entry<String, LDAPConnection> e : destinations.entrySet()) {
+			LDAPConnection destination = e.getValue();
+			ConversionMap destinationMap = conversionMap(e.getKey(), conversionMap);
+			try {
+				queues.get(e.getKey()).submit(id, () -> destination.submitEntry(id, result, destinationMap));
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedNamingException("Interrupted while queueing "+id+" for "+e.getKey());
+			}
+		}
+	}
+
+	/*
+	 * Batches belong to one destination, so jobs run against the
+	 * destinations themselves.
+	 */
+	@Override
+	public WriteBatch openBatch() throws NamingException {
+		throw new OperationNotSupportedException("A fan-out cannot batch writes");
+	}
+
+	@Override
+	public void submitEntry(String id, SearchResult result, ConversionMap conversionMap, WriteBatch batch) throws NamingException {
+		throw new OperationNotSupportedException("A fan-out cannot batch writes");
+	}
+
+	/*
+	 * Waits for every destination even when one of them failed, and
+	 * reports the first failure.
+	 */
+	@Override
+	public void awaitSynced() throws NamingException {
+		await(true);
+	}
+
+	/*
+	 * Held since the oldest entry any destination still holds.
+	 */
+	@Override
+	public long awaitReleased() throws NamingException {
+		return await(false);
+	}
+
+	private long await(boolean flush) throws NamingException {
+		NamingException failure = null;
+		long heldSince = Long.MAX_VALUE;
+		for(Map.Entry<String, LDAPConnection> e : destinations.entrySet()) {
+			try {
+				queues.get(e.getKey()).awaitCompletion();
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedNamingException("Interrupted while waiting for "+e.getKey());
+			} catch(NamingException ex) {
+				failure = failure==null ? ex : failure;
+			}
+			try {
+				if(flush) {
+					e.getValue().awaitSynced();
+				} else {
+					heldSince = Math.min(heldSince, e.getValue().awaitReleased());
+				}
+			} catch(NamingException ex) {
+				logger.error("Failed while waiting for "+e.getKey(), ex);
+				failure = failure==null ? ex : failure;
+			}
+		}
+		if(failure!=null) {
+			throw failure;
+		}
+		return heldSince;
+	}
+
+	@Override
+	public long reconcile(SourceConnection sourceConnection) throws NamingException, IOException {
+		long orphans = 0L;
+		for(LDAPConnection destination : destinations.values()) {
+			orphans += destination.reconcile(sourceConnection);
+		}
+		return orphans;
+	}
+
+	@Override
+	public void syncGroup(String groupId, String sourceGroupDn, SourceConnection sourceConnection) throws NamingException, IOException {
+		NamingException failure = null;
+		for(Map.Entry<String, LDAPConnection> e : destinations.entrySet()) {
+			try {
+				e.getValue().syncGroup(groupId, sourceGroupDn, sourceConnection);
+			} catch(NamingException ex) {
+				logger.error("Failed to sync group "+groupId+" to "+e.getKey(), ex);
+				failure = failure==null ? ex : failure;
+			}
+		}
+		if(failure!=null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public int recover() throws NamingException, IOException {
+		int recovered = 0;
+		for(LDAPConnection destination : destinations.values()) {
+			recovered += destination.recover();
+		}
+		return recovered;
+	}
+
+	private ConversionMap conversionMap(String name, ConversionMap fallback) {
+		ConversionMap conversionMap = conversionMaps.get(name);
+		return conversionMap==null ? fallback : conversionMap;
+	}
+
+	public void setQueuesize(int queuesize) {
+		this.queuesize = queuesize;
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public String toString() {
+		return destinations.keySet().toString();
+	}
+}
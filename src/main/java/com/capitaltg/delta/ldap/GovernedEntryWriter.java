@@ -0,0 +1,98 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.LimitExceededException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+
+import com.capitaltg.delta.sync.RateGovernor;
+
+/**
+ * Holds every write of another writer to the limits of a
+ * {@link RateGovernor}, and reports to it how long each write took and
+ * whether it failed from overload.
+ */
+public class GovernedEntryWriter implements EntryWriter {
+
+	private final EntryWriter writer;
+	private final RateGovernor governor;
+
+	public GovernedEntryWriter(EntryWriter writer, RateGovernor governor) {
+		this.writer = writer;
+		this.governor = governor;
+	}
+
+	@Override
+	public void modify(String dn, ModificationItem[] items, WriteListener listener) throws NamingException {
+		RateGovernor.Permit permit = acquire(governor);
+		AtomicBoolean released = new AtomicBoolean();
+		try {
+			writer.modify(dn, items, failure -> {
+				release(permit, isOverload(failure), released);
+				listener.completed(failure);
+			});
+		} catch(NamingException | RuntimeException e) {
+			release(permit, isOverload(e), released);
+			throw e;
+		}
+	}
+
+	@Override
+	public void add(String dn, Attributes attributes, WriteListener listener) throws NamingException {
+		RateGovernor.Permit permit = acquire(governor);
+		AtomicBoolean released = new AtomicBoolean();
+		try {
+			writer.add(dn, attributes, failure -> {
+				release(permit, isOverload(failure), released);
+				listener.completed(failure);
+			});
+		} catch(NamingException | RuntimeException e) {
+			release(permit, isOverload(e), released);
+			throw e;
+		}
+	}
+
+	@Override
+	public void awaitWritten() throws NamingException {
+		writer.awaitWritten();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	static RateGovernor.Permit acquire(RateGovernor governor) throws NamingException {
+		try {
+			return governor.acquire();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedNamingException("Interrupted while waiting to write");
+		}
+	}
+
+	/*
+	 * A listener that throws after the permit was released reaches the
+	 * catch block as well, which must not release it again.
+	 */
+	private static void release(RateGovernor.Permit permit, boolean overloaded, AtomicBoolean released) {
+		if(released.compareAndSet(false, true)) {
+			permit.release(overloaded);
+		}
+	}
+
+	/*
+	 * Busy, unavailable, over an administrative limit or unreachable, as
+	 * opposed to failures caused by the entry itself.
+	 */
+	static boolean isOverload(Exception failure) {
+		return failure instanceof ServiceUnavailableException || failure instanceof LimitExceededException
+				|| failure instanceof CommunicationException;
+	}
+}
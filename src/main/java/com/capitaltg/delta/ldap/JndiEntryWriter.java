@@ -0,0 +1,61 @@
+package com.capitaltg.delta.ldap;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Writes through JNDI on pooled contexts, one blocking round trip per
+ * write.  Listeners run before the write call returns.
+ */
+public class JndiEntryWriter implements EntryWriter {
+
+	private final LdapContextPool pool;
+
+	public JndiEntryWriter(LdapContextPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public void modify(String dn, ModificationItem[] items, WriteListener listener) throws NamingException {
+		listener.completed(write( ctx -> ctx.modifyAttributes(dn, items)));
+	}
+
+	@Override
+	public void add(String dn, Attributes attributes, WriteListener listener) throws NamingException {
+		listener.completed(write( ctx -> ctx.createSubcontext(dn, attributes).close()));
+	}
+
+	@Override
+	public void awaitWritten() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/*
+	 * Returns the failure instead of throwing it.  A context is only
+	 * discarded when the failure says the connection is broken.
+	 */
+	private NamingException write(Write write) throws NamingException {
+		LdapContext context = pool.borrow();
+		try {
+			write.apply(context);
+			pool.release(context);
+			return null;
+		} catch(NamingException e) {
+			pool.release(context, e);
+			return e;
+		} catch(RuntimeException e) {
+			pool.release(context, e);
+			throw e;
+		}
+	}
+
+	@FunctionalInterface
+	private interface Write {
+		public void apply(LdapContext context) throws NamingException;
+	}
+}
@@ -0,0 +1,108 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.sync.WriteJournal;
+
+/**
+ * Journals every write of another writer before it is made and
+ * acknowledges it once it completed, so that a crash leaves a record of
+ * the writes that were in flight.
+ */
+public class JournaledEntryWriter implements EntryWriter {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final EntryWriter writer;
+	private final WriteJournal journal;
+
+	public JournaledEntryWriter(EntryWriter writer, WriteJournal journal) {
+		this.writer = writer;
+		this.journal = journal;
+	}
+
+	@Override
+	public void modify(String dn, ModificationItem[] items, WriteListener listener) throws NamingException {
+		long sequence = intend( () -> journal.intendModify(dn, items));
+		AtomicBoolean acknowledged = new AtomicBoolean();
+		try {
+			writer.modify(dn, items, failure -> {
+				acknowledge(sequence, failure==null, acknowledged);
+				listener.completed(failure);
+			});
+		} catch(NamingException | RuntimeException e) {
+			acknowledge(sequence, false, acknowledged);
+			throw e;
+		}
+	}
+
+	@Override
+	public void add(String dn, Attributes attributes, WriteListener listener) throws NamingException {
+		long sequence = intend( () -> journal.intendCreate(dn, attributes));
+		AtomicBoolean acknowledged = new AtomicBoolean();
+		try {
+			writer.add(dn, attributes, failure -> {
+				acknowledge(sequence, failure==null, acknowledged);
+				listener.completed(failure);
+			});
+		} catch(NamingException | RuntimeException e) {
+			acknowledge(sequence, false, acknowledged);
+			throw e;
+		}
+	}
+
+	@Override
+	public void awaitWritten() throws NamingException {
+		writer.awaitWritten();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	private long intend(Intent intent) throws NamingException {
+		try {
+			return intent.write();
+		} catch(IOException e) {
+			throw failure("Failed to journal a write", e);
+		}
+	}
+
+	/*
+	 * A write whose acknowledgement is lost is verified again after a
+	 * restart, so failing to acknowledge does not fail the write.  A
+	 * listener that throws after the write was acknowledged reaches the
+	 * catch block as well, which must not acknowledge it again.
+	 */
+	private void acknowledge(long sequence, boolean applied, AtomicBoolean acknowledged) {
+		if(!acknowledged.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			journal.acknowledge(sequence, applied);
+		} catch(IOException e) {
+			logger.warn("Failed to acknowledge journaled write " + sequence, e);
+		}
+	}
+
+	private static NamingException failure(String message, IOException e) {
+		CommunicationException failure = new CommunicationException(message);
+		failure.setRootCause(e);
+		return failure;
+	}
+
+	@FunctionalInterface
+	private interface Intent {
+		public long write() throws IOException;
+	}
+}
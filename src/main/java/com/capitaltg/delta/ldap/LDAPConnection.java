@@ -1,12 +1,21 @@
 package com.capitaltg.delta.ldap;
 
 import java.io.IOException;
-import java.util.Map;
 
 import javax.naming.NamingException;
 import javax.naming.directory.SearchResult;
 
+import com.capitaltg.delta.mapping.ConversionMap;
+
 public interface LDAPConnection {
-	public void syncAllUsers(LDAPConnection connection, long timestamp, Map<String, String> conversionMap) throws NamingException, IOException;
-	public void syncEntry(String id, SearchResult result, Map<String, String> conversionMap) throws NamingException;
-}
\ No newline at end of file
+	public void refresh(ConversionMap conversionMap) throws NamingException, IOException;
+	public void syncEntry(String id, SearchResult result, ConversionMap conversionMap) throws NamingException;
+	public void submitEntry(String id, SearchResult result, ConversionMap conversionMap) throws NamingException;
+	public void awaitSynced() throws NamingException;
+	public long awaitReleased() throws NamingException;
+	public WriteBatch openBatch() throws NamingException;
+	public void submitEntry(String id, SearchResult result, ConversionMap conversionMap, WriteBatch batch) throws NamingException;
+	public long reconcile(SourceConnection sourceConnection) throws NamingException, IOException;
+	public void syncGroup(String groupId, String sourceGroupDn, SourceConnection sourceConnection) throws NamingException, IOException;
+	public int recover() throws NamingException, IOException;
+}
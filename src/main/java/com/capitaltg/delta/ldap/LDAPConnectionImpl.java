@@ -1,47 +1,107 @@
 package com.capitaltg.delta.ldap;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.naming.CommunicationException;
 import javax.naming.Context;
+import javax.naming.InterruptedNamingException;
+import javax.naming.InvalidNameException;
+import javax.naming.NameAlreadyBoundException;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.NoSuchAttributeException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.AttributeInUseException;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.InvalidAttributeIdentifierException;
+import javax.naming.directory.InvalidAttributeValueException;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SchemaViolationException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.Control;
-import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapReferralException;
 import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.LdapName;
 import javax.naming.ldap.PagedResultsResponseControl;
+import javax.naming.ldap.SortControl;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.capitaltg.delta.util.CaseInsensitiveMap;
+import com.capitaltg.delta.mapping.ConversionMap;
+import com.capitaltg.delta.mapping.MappingExpression;
+import com.capitaltg.delta.metrics.MetricsRegistry;
+import com.capitaltg.delta.metrics.Timer;
+import com.capitaltg.delta.sync.CheckpointStore;
+import com.capitaltg.delta.sync.CoalescingBuffer;
+import com.capitaltg.delta.sync.FingerprintStore;
+import com.capitaltg.delta.sync.RateGovernor;
+import com.capitaltg.delta.sync.SyncWorkerPool;
+import com.capitaltg.delta.sync.WriteJournal;
+import com.capitaltg.delta.util.EntryView;
+import com.capitaltg.delta.util.LongHashSet;
+import com.capitaltg.delta.util.LongStringMap;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
 
 import groovy.lang.GroovyShell;
 
@@ -49,12 +109,20 @@ import groovy.lang.GroovyShell;
  * @author tslazar
  *
  */
-public class LDAPConnectionImpl implements LDAPConnection {
+public class LDAPConnectionImpl implements LDAPConnection, SourceConnection {
 
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
 	private Hashtable<String, String> context;
-	private static Control[] PAGING_CONTROLS;
-	private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss.0'Z'");
+	private static final Pattern DN_SPACES = Pattern.compile("\\s*([,=+])\\s*");
+	private static final DateTimeFormatter WHEN_PARSE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+	private static final String ORPHAN_REPORT = "report";
+	private static final String ORPHAN_DELETE = "delete";
+	private static final String ORPHAN_DISABLE = "disable";
+	private static final String ORPHAN_MOVE = "move";
+	private static final int RECONCILE_CHUNK_SIZE = 100000;
+	private static final String FULL_SYNC_STARTED = "fullsync.started";
+	private static final String FULL_SYNC_SHARD = "fullsync.shard.";
+	private static final DateTimeFormatter WHEN_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss'.0Z'").withZone(ZoneOffset.UTC);
 	
 	private String ldapusername;
 	private String ldappassword;
@@ -64,10 +132,67 @@ public class LDAPConnectionImpl implements LDAPConnection {
 	private List<String> objectclass;
 	private String extrafilter;
 	private boolean doNotRepeatFailures = true;
-	private Set<String> failedCreations = new HashSet<>();
-	private int pageSize = 100;
+	private Set<String> failedCreations = ConcurrentHashMap.newKeySet();
+	private int pagesize = 100;
+	private String shards;
+	private int shardthreads = 4;
+	private String orphanpolicy = ORPHAN_REPORT;
+	private String orphanbase;
+	private String orphandisable = "nsAccountLock=true";
+	private long orphanlimit = 1000;
+	private String groupobjectclass;
+	private String groupid = "cn";
+	private String groupmember = "member";
+	private String groupbasedn;
+	private int groupchunksize = 500;
+	private int syncthreads = 1;
+	private int syncqueuesize = 1000;
+	private SyncWorkerPool workerPool;
+	private long coalescewindow;
+	private int coalescesize = 10000;
+	private CoalescingBuffer coalescer;
+	private String timestampattribute = "whenChanged";
+	private boolean snapshotindex;
+	private boolean dnindex;
+	private volatile LongStringMap dnIndex;
+	private DnReferences references;
+	private long snapshotoverlap = 60;
+	private final EntryIndex index = new EntryIndex();
+	private LdapContextPool pool;
+	private EntryWriter entryWriter;
+	private LdifEntryWriter changes;
+	private WriteJournal journal;
+	private String journaldir;
+	private int journalsegmentsize = 64;
+	private String changefile;
+	private RateGovernor governor;
+	private int writepipeline;
+	private long writetimeout = 30;
+	private int poolminsize = 1;
+	private int poolmaxsize = 10;
+	private long poolborrowtimeout = 30;
+	private long poolidletimeout = 300;
+	private long poolvalidateafter = 60;
+	private String fingerprintfile;
+	private FingerprintStore fingerprints;
+	private final AtomicLong unchangedEntries = new AtomicLong();
+	private final Striped<Lock> entryLocks = Striped.lock(256);
+	private final List<WriteBatch> batches = new CopyOnWriteArrayList<>();
+	private final Map<String, byte[]> streamCookies = new ConcurrentHashMap<>();
+	private int dncachesize = 10000;
+	private long dncachettl = 3600;
+	private Cache<String, Optional<String>> uniqueIdsByDn;
+	private Cache<String, String> dnsByUniqueId;
+	private String name = "ldap";
+	private MetricsRegistry metrics = new MetricsRegistry();
+	private Timer pageFetchTimer;
+	private Timer lookupTimer;
+	private Timer mappingTimer;
+	private Timer modifyTimer;
+	private Timer createTimer;
+	private LongAdder entriesRead;
 
-	private LDAPConnection sourceConnection;
+	private SourceConnection sourceConnection;
 	private boolean readonly = true;
 	
 	@PostConstruct
@@ -75,25 +200,149 @@ public class LDAPConnectionImpl implements LDAPConnection {
 
 		logger.info("Read only is: {}",Boolean.valueOf(readonly));
 		
-		context=new Hashtable<>();
-		context.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-		context.put(Context.SECURITY_PRINCIPAL, ldapusername);
-		context.put(Context.SECURITY_CREDENTIALS, ldappassword);
-		context.put(Context.PROVIDER_URL, ldapurl);
-        context.put(Context.REFERRAL,"ignore");
-		context.put("com.sun.jndi.ldap.connect.pool", "true");
-
-		System.setProperty("com.sun.jndi.ldap.connect.pool.protocol","plain ssl");
-		System.setProperty("com.sun.jndi.ldap.connect.pool.initsize","5");
-		printSettings();
-		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-		try {
-			PAGING_CONTROLS = new Control[]{new PagedResultsControl(pageSize, Control.CRITICAL)};
-		} catch (IOException e) {
-			logger.error("Failed to initialize paging controls",e);
+		if(Strings.isNullOrEmpty(ldapurl)) {
+			if(Strings.isNullOrEmpty(changefile)) {
+				throw new IllegalStateException("A connection without an ldap url needs a change file");
+			}
+			logger.info("Initialized LDAPConnection without a directory, every entry will be recorded as new");
+		} else {
+			context=new Hashtable<>();
+			context.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+			context.put(Context.SECURITY_PRINCIPAL, ldapusername);
+			context.put(Context.SECURITY_CREDENTIALS, ldappassword);
+			context.put(Context.PROVIDER_URL, ldapurl);
+	        context.put(Context.REFERRAL,"ignore");
+			printSettings();
+			pool = new LdapContextPool(ldapurl+"/"+ldapbasedn, context, poolminsize, poolmaxsize,
+					poolborrowtimeout*1000, poolidletimeout*1000, poolvalidateafter*1000);
+			pool.prefill();
+			logger.info("   Pooling {} to {} connections", poolminsize, poolmaxsize);
+		}
+		if(!Strings.isNullOrEmpty(changefile)) {
+			try {
+				changes = new LdifEntryWriter(Paths.get(changefile));
+			} catch(IOException e) {
+				throw new IllegalStateException("Failed to open change file "+changefile, e);
+			}
+			entryWriter = changes;
+			logger.info("   Will record creates and updates in {} instead of making them", changefile);
+		} else if(writepipeline>0) {
+			entryWriter = new PipelinedEntryWriter(ldapurl, ldapusername, ldappassword, writepipeline, (int)(writetimeout*1000));
+			logger.info("   Will pipeline up to {} writes on one connection, each timing out after {} seconds", writepipeline, writetimeout);
+		} else {
+			entryWriter = new JndiEntryWriter(pool);
+		}
+		if(!Strings.isNullOrEmpty(journaldir) && changes==null) {
+			try {
+				journal = new WriteJournal(journaldir, journalsegmentsize*1024*1024);
+			} catch(IOException e) {
+				throw new IllegalStateException("Failed to open write journal "+journaldir, e);
+			}
+			failedCreations.addAll(journal.getFailed());
+			entryWriter = new JournaledEntryWriter(entryWriter, journal);
+			logger.info("   Will journal writes in {}", journal);
+		}
+		if(governor!=null && governor.isLimited()) {
+			entryWriter = new GovernedEntryWriter(entryWriter, governor);
 		}
+		uniqueIdsByDn = CacheBuilder.newBuilder().maximumSize(dncachesize)
+				.expireAfterWrite(dncachettl, TimeUnit.SECONDS).recordStats().build();
+		dnsByUniqueId = CacheBuilder.newBuilder().maximumSize(dncachesize)
+				.expireAfterWrite(dncachettl, TimeUnit.SECONDS).recordStats().build();
+		if(!Strings.isNullOrEmpty(fingerprintfile)) {
+			try {
+				fingerprints = new FingerprintStore(fingerprintfile, 1024);
+				logger.info("   Will skip entries whose fingerprint in {} is unchanged", fingerprints);
+			} catch(IOException e) {
+				throw new IllegalStateException("Failed to open fingerprint store "+fingerprintfile, e);
+			}
+		}
+		if(syncthreads>1) {
+			logger.info("   Will sync entries on {} workers", syncthreads);
+			if(syncthreads>poolmaxsize) {
+				logger.warn("   {} sync workers will share {} pooled connections", syncthreads, poolmaxsize);
+			}
+			workerPool = new SyncWorkerPool("sync-"+uniqueid, syncthreads, syncqueuesize);
+		}
+		if(coalescewindow>0) {
+			logger.info("   Will coalesce repeated changes to an entry within {} seconds", coalescewindow);
+			coalescer = new CoalescingBuffer("coalesce-"+uniqueid, coalescewindow*1000, coalescesize, this::enqueue);
+		}
+		if(snapshotindex) {
+			logger.info("   Will answer lookups from a snapshot index of {}", ldapbasedn);
+		}
+		if(ORPHAN_MOVE.equalsIgnoreCase(orphanpolicy) && Strings.isNullOrEmpty(orphanbase)) {
+			throw new IllegalStateException("Orphan policy move needs an orphan base");
+		}
+		if(!Strings.isNullOrEmpty(shards)) {
+			logger.info("   Will run full syncs as {} shards on {} threads", SearchShard.parse(shards, uniqueid, ldapbasedn).size(), shardthreads);
+			// every shard holds a pooled connection for its search, and the
+			// lookups of its mappings need more from the same pool
+			if(shardthreads>=poolmaxsize) {
+				logger.warn("   {} shard threads leave none of {} pooled connections for lookups", shardthreads, poolmaxsize);
+			}
+		}
+		registerMetrics();
 		
 	}
+
+	void registerMetrics() {
+		pageFetchTimer = metrics.timer("deltasync_page_fetch_seconds", "Time spent fetching one page of search results", labels());
+		lookupTimer = metrics.timer("deltasync_lookup_seconds", "Time to look up the destination entry for a unique id", labels());
+		mappingTimer = metrics.timer("deltasync_mapping_seconds", "Time to evaluate one conversion map expression", labels());
+		modifyTimer = metrics.timer("deltasync_write_seconds", "Time to write one entry", labels("operation", "modify"));
+		createTimer = metrics.timer("deltasync_write_seconds", "Time to write one entry", labels("operation", "create"));
+		entriesRead = metrics.counter("deltasync_entries_read_total", "Entries returned by searches and change streams", labels());
+		if(pool!=null) {
+			metrics.gauge("deltasync_pool_active", "Pooled contexts currently borrowed", () -> pool.getActive(), labels());
+			metrics.gauge("deltasync_pool_idle", "Pooled contexts currently idle", () -> pool.getIdle(), labels());
+			metrics.gauge("deltasync_pool_borrow_timeouts", "Borrowers that gave up waiting for a context", () -> pool.getTimeouts(), labels());
+			metrics.gauge("deltasync_pool_wait_seconds_max", "Longest wait for a pooled context", () -> pool.getMaxWaitMillis()/1000, labels());
+		}
+		metrics.gauge("deltasync_dn_index_entries", "Dns in the index of the running full sync", () -> dnIndex==null ? 0 : dnIndex.size(), labels());
+		metrics.gauge("deltasync_dn_cache_hit_ratio", "Hit ratio of the dn to unique id cache", () -> uniqueIdsByDn.stats().hitRate(), labels());
+	}
+
+	/**
+	 * Writes whatever is still held or queued, then stops the coalescer's
+	 * releaser, the sync workers and the pool's evictor, and closes the
+	 * pool's idle contexts.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		try {
+			awaitSynced();
+		} catch(NamingException e) {
+			logger.error("Failed to write queued entries while shutting down", e);
+		} finally {
+			if(coalescer!=null) {
+				coalescer.shutdown();
+			}
+			if(workerPool!=null) {
+				workerPool.shutdown();
+			}
+			if(pool!=null) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	private String[] labels(String... extra) {
+		String[] labels = new String[extra.length+2];
+		labels[0] = "connection";
+		labels[1] = name;
+		System.arraycopy(extra, 0, labels, 2, extra.length);
+		return labels;
+	}
+
+	private void countEntry(String outcome) {
+		metrics.counter("deltasync_entries_synced_total", "Entries synced by outcome", labels("outcome", outcome)).increment();
+	}
+
+	private void countFailure(String operation, Exception e) {
+		metrics.counter("deltasync_failures_total", "Failures by operation and exception type", 
+				labels("operation", operation, "exception", e.getClass().getSimpleName())).increment();
+	}
 	
 	private void printSettings() {
 		logger.info("Initialized LDAPConnection with settings:");
@@ -103,68 +352,833 @@ public class LDAPConnectionImpl implements LDAPConnection {
 	}
 	
 	@Override
-	public void syncAllUsers(LDAPConnection connection, long timestamp, Map<String, String> conversionMap) throws NamingException, IOException {
+	public SyncResult syncAllUsers(LDAPConnection connection, long timestamp, ConversionMap conversionMap) throws NamingException, IOException {
+
+		String filter = createFilter("("+timestampattribute+">="+convertTimestampToWhen(timestamp)+")");
+		logger.debug("Searching for objects matching: {}",filter);
+		
+		int counter = 0;
+		long[] highWaterMark = {0L};
+		boolean complete = false;
+		try {
+			try {
+				counter = pagedSearch(filter, projection(conversionMap.getSourceAttributes()), result -> {
+					String id = getAttribute(result.getAttributes(), uniqueid);
+					highWaterMark[0] = Math.max(highWaterMark[0], convertWhenToTimestamp(getAttribute(result.getAttributes(), timestampattribute)));
+					cacheDN(id, result.getNameInNamespace());
+					connection.submitEntry(id, result, conversionMap);
+				});
+			} finally {
+				connection.awaitReleased();
+			}
+			complete = true;
+		} catch(LdapReferralException e) {
+			logger.error("Failed while following LDAP referral",e);
+			countFailure("search", e);
+		} catch(NamingException e) {
+			logger.error("Failure while syncing users",e);
+			countFailure("search", e);
+		}
+		logger.debug("Synchronized {} results",counter);
+		logger.debug("Unique id by dn cache: {}", uniqueIdsByDn.stats());
+		logger.debug("Connection pool {}", pool);
+		return new SyncResult(counter, highWaterMark[0], complete);
+
+	}
+
+	/*
+	 * Reads every shard on its own thread and pooled context.  Entries are
+	 * synced on the shard's thread rather than submitted, so a shard is
+	 * finished once its search returns and its writes are awaited, and can
+	 * then be recorded in the checkpoint store.  An interrupted full sync
+	 * then only repeats the shards that were not finished.  The high water
+	 * mark is capped at the time the first attempt started, since finished
+	 * shards were not looked at again.
+	 *
+	 * Writes are awaited for the whole destination, so a failed write may
+	 * be reported to another shard than its own.  Once one is, no further
+	 * shard is recorded, which leaves the shard it belonged to unrecorded.
+	 */
+	private SyncResult syncShards(LDAPConnection connection, ConversionMap conversionMap, CheckpointStore checkpointStore) throws NamingException, IOException {
+		List<SearchShard> searchShards = SearchShard.parse(shards, uniqueid, ldapbasedn);
+		if(searchShards.isEmpty()) {
+			return syncAllUsers(connection, 0L, conversionMap);
+		}
+		long started = System.currentTimeMillis();
+		if(checkpointStore!=null) {
+			started = checkpointStore.getLong(FULL_SYNC_STARTED, started);
+			checkpointStore.putLong(FULL_SYNC_STARTED, started);
+		}
+		String[] returningAttributes = projection(conversionMap.getSourceAttributes());
+		AtomicInteger threads = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(shardthreads, searchShards.size()), runnable -> {
+			Thread thread = new Thread(runnable, "shard-"+uniqueid+"-"+threads.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		int counter = 0;
+		long highWaterMark = 0L;
+		boolean complete = true;
+		Object recording = new Object();
+		boolean[] writesFailed = {false};
+		try {
+			List<Future<SyncResult>> futures = new ArrayList<>();
+			for(SearchShard shard : searchShards) {
+				String key = FULL_SYNC_SHARD + shard.getKey();
+				if(checkpointStore!=null && checkpointStore.get(key)!=null) {
+					logger.info("Shard {} was already synchronized", shard);
+					highWaterMark = Math.max(highWaterMark, checkpointStore.getLong(key, 0L));
+					continue;
+				}
+				futures.add(executor.submit(() -> {
+					SyncResult result = syncShard(shard, connection, conversionMap, returningAttributes);
+					synchronized(recording) {
+						try {
+							connection.awaitSynced();
+						} catch(NamingException e) {
+							writesFailed[0] = true;
+							throw e;
+						}
+						if(writesFailed[0]) {
+							logger.warn("Not recording shard {}, since writes of the full sync failed", shard);
+							return new SyncResult(result.getEntries(), result.getHighWaterMark(), false);
+						}
+						if(checkpointStore!=null) {
+							checkpointStore.putLong(key, result.getHighWaterMark());
+						}
+					}
+					return result;
+				}));
+			}
+			for(Future<SyncResult> future : futures) {
+				try {
+					SyncResult result = future.get();
+					counter += result.getEntries();
+					highWaterMark = Math.max(highWaterMark, result.getHighWaterMark());
+					complete &= result.isComplete();
+				} catch(ExecutionException e) {
+					logger.error("Failure while syncing shard", e.getCause());
+					countFailure("search", e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+					complete = false;
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedNamingException("Interrupted while waiting for shards");
+		} finally {
+			executor.shutdownNow();
+			connection.awaitSynced();
+		}
+		if(complete && checkpointStore!=null) {
+			for(SearchShard shard : searchShards) {
+				checkpointStore.remove(FULL_SYNC_SHARD + shard.getKey());
+			}
+			checkpointStore.remove(FULL_SYNC_STARTED);
+		}
+		logger.debug("Synchronized {} results in {} shards", counter, searchShards.size());
+		return new SyncResult(counter, Math.min(highWaterMark, started), complete);
+	}
+
+	/*
+	 * With the dn index, a first pass reads only the dn and unique id of
+	 * every entry, so that references between entries are translated in
+	 * the second without a lookup each.  The index is dropped afterwards,
+	 * since it is not kept up to date.
+	 */
+	@Override
+	public SyncResult fullSync(LDAPConnection connection, ConversionMap conversionMap, CheckpointStore checkpointStore) throws NamingException, IOException {
+		if(dnindex) {
+			long startTime = System.currentTimeMillis();
+			LongStringMap index = new LongStringMap();
+			readUniqueIds(false, (id, dn) -> {
+				if(id!=null) {
+					index.put(dnKey(dn), id);
+				}
+			});
+			dnIndex = index;
+			logger.info("Indexed {} dns of {} in {} ms", index.size(), ldapbasedn, System.currentTimeMillis()-startTime);
+		}
+		try {
+			return syncShards(connection, conversionMap, checkpointStore);
+		} finally {
+			dnIndex = null;
+		}
+	}
+
+	/*
+	 * Entries have to match the object classes and extra filter as well.
+	 */
+	@Override
+	public int readEntries(String filter, ConversionMap conversionMap, EntryHandler handler) throws NamingException, IOException {
+		return pagedSearch(createFilter(Strings.emptyToNull(filter)), projection(conversionMap.getSourceAttributes()), result -> {
+			String id = getAttribute(result.getAttributes(), uniqueid);
+			cacheDN(id, result.getNameInNamespace());
+			handler.handle(id, result);
+		});
+	}
 
+	private SyncResult syncShard(SearchShard shard, LDAPConnection connection, ConversionMap conversionMap, String[] returningAttributes) throws NamingException, IOException {
+		long startTime = System.currentTimeMillis();
+		long[] highWaterMark = {0L};
+		int counter = pagedSearch(shard.getBase(), createFilter(shard.getFilter()), returningAttributes, result -> {
+			String id = getAttribute(result.getAttributes(), uniqueid);
+			highWaterMark[0] = Math.max(highWaterMark[0], convertWhenToTimestamp(getAttribute(result.getAttributes(), timestampattribute)));
+			cacheDN(id, result.getNameInNamespace());
+			connection.syncEntry(id, result, conversionMap);
+		});
+		logger.info("Synchronized {} results from shard {} in {} ms", counter, shard, System.currentTimeMillis()-startTime);
+		return new SyncResult(counter, highWaterMark[0], true);
+	}
+
+	/*
+	 * Follows changes with a long-lived search until the connection
+	 * fails.  Deletions are only logged for now.  A persistent search
+	 * syncs everything changed since the catch-up poll started once more
+	 * after it is open, since it only reports what changed afterwards.
+	 */
+	@Override
+	public void streamChanges(LDAPConnection connection, ConversionMap conversionMap, String mode, long since, long pollMillis, CheckpointStore checkpointStore) throws NamingException, IOException {
+		ChangeStream stream = new ChangeStream(ChangeStream.Mode.parse(mode), context, ldapbasedn, createFilter(null),
+				projection(conversionMap.getSourceAttributes()), pollMillis, streamCookies, checkpointStore, new ChangeStream.ChangeHandler() {
+			@Override
+			public void changed(SearchResult entry) throws NamingException {
+				String id = getAttribute(entry.getAttributes(), uniqueid);
+				entriesRead.increment();
+				cacheDN(id, entry.getNameInNamespace());
+				connection.submitEntry(id, entry, conversionMap);
+			}
+			@Override
+			public void deleted(String dn) {
+				logger.info("Source entry {} was deleted", dn);
+				invalidateDN(dn);
+			}
+			@Override
+			public void opened() throws NamingException, IOException {
+				if(!syncAllUsers(connection, since, conversionMap).isComplete()) {
+					throw new NamingException("Failed to sync the changes made on "+ldapbasedn+" before the persistent search");
+				}
+			}
+			@Override
+			public void flush() throws NamingException {
+				connection.awaitSynced();
+			}
+		});
+		try {
+			stream.run();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedNamingException("Interrupted while following changes");
+		} finally {
+			connection.awaitSynced();
+		}
+	}
+
+	private String createFilter(String timestampFilter) {
 		List<String> filters = new ArrayList<>();
 		objectclass.stream().forEach( oc -> filters.add("(objectClass="+oc+")"));
-		filters.add("(whenChanged>="+convertTimestampToWhen(timestamp)+")");
+		if(timestampFilter!=null) {
+			filters.add(timestampFilter);
+		}
 		if(!Strings.isNullOrEmpty(extrafilter)) {
 			filters.add(extrafilter);
 		}
-		String filter = "(&"+filters.stream().collect(Collectors.joining())+")";
-		logger.debug("Searching for objects matching: {}",filter);
+		return "(&"+filters.stream().collect(Collectors.joining())+")";
+	}
+
+	private int pagedSearch(String filter, String[] returningAttributes, SearchResultHandler handler) throws NamingException, IOException {
+		return pagedSearch(ldapbasedn, filter, returningAttributes, null, handler);
+	}
+
+	private int pagedSearch(String base, String filter, String[] returningAttributes, SearchResultHandler handler) throws NamingException, IOException {
+		return pagedSearch(base, filter, returningAttributes, null, handler);
+	}
+
+	/*
+	 * Runs a paged subtree search under the given base and hands every
+	 * result to the handler.  The sort control is sent with every page
+	 * when given.  Returns the number of results read.
+	 */
+	private int pagedSearch(String base, String filter, String[] returningAttributes, Control sortControl, SearchResultHandler handler) throws NamingException, IOException {
 		
 		int counter = 0;
-        LdapContext ldapcontext = null;
-        NamingEnumeration<SearchResult> results = null;
-        byte[] cookie = null;
-        
-        try {
-        	
-            ldapcontext = new InitialLdapContext(context, null);
-            ldapcontext.setRequestControls(PAGING_CONTROLS);
-	        ldapcontext.setRequestControls(new Control[]{
-                    new PagedResultsControl(pageSize, cookie, Control.CRITICAL) });
-	        
-        	do {
-		        SearchControls searchControls = new SearchControls();
-		        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-		        results = ldapcontext.search(ldapbasedn, filter, searchControls);
-		        while(results.hasMoreElements()) {
-		        	SearchResult result = results.nextElement();
-		        	counter++;
-		        	connection.syncEntry(getAttribute(result.getAttributes(), uniqueid), result, conversionMap);
-		        }
-		        cookie = getCookie(ldapcontext);
-		        ldapcontext.setRequestControls(new Control[]{
-                        new PagedResultsControl(pageSize, cookie, Control.CRITICAL) });
-		        if(cookie!=null) {
-//		        	logger.debug("Read {} results.  Getting another page of results.",counter);
-		        }
-        	} while(cookie!=null);
-        	
-        } catch(LdapReferralException e) {
-        	logger.error("Failed while following LDAP referral",e);
-        	e.printStackTrace();
-        } catch(NamingException e) {
-        	logger.error("Failure while syncing users",e);
-        	if(ldapcontext!=null) {
-        		try {
-        			ldapcontext.close();
-        		} catch(NamingException ex) {
-        			logger.error("Failed to close context after failure",e);
-        		}
-        	}
-        } finally {
-        	if(results!=null){
-        		results.close();
-        	}
-        	if(ldapcontext!=null){
-        		ldapcontext.close();
-        	}
-        }
-    	logger.debug("Synchronized {} results",counter);
+		LdapContext ldapcontext = borrowContext();
+		NamingEnumeration<SearchResult> results = null;
+		byte[] cookie = null;
+		Exception failure = null;
+		
+		try {
+			ldapcontext.setRequestControls(pageControls(cookie, sortControl));
+			
+			do {
+				SearchControls searchControls = new SearchControls();
+				searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+				searchControls.setReturningAttributes(returningAttributes);
+				long fetchStart = System.nanoTime();
+				long handlerNanos = 0L;
+				results = ldapcontext.search(base, filter, searchControls);
+				while(results.hasMoreElements()) {
+					SearchResult result = results.nextElement();
+					counter++;
+					entriesRead.increment();
+					long handlerStart = System.nanoTime();
+					handler.handle(result);
+					handlerNanos += System.nanoTime()-handlerStart;
+				}
+				results.close();
+				pageFetchTimer.record(System.nanoTime()-fetchStart-handlerNanos);
+				cookie = getCookie(ldapcontext);
+				ldapcontext.setRequestControls(pageControls(cookie, sortControl));
+			} while(cookie!=null);
+			
+		} catch(NamingException | IOException | RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			if(results!=null){
+				results.close();
+			}
+			pool.release(ldapcontext, failure);
+		}
+		return counter;
+	}
+
+	private Control[] pageControls(byte[] cookie, Control sortControl) throws IOException {
+		Control paged = new PagedResultsControl(pagesize, cookie, Control.CRITICAL);
+		return sortControl==null ? new Control[]{ paged } : new Control[]{ paged, sortControl };
+	}
+
+	/*
+	 * The sort is requested as non-critical.  Servers that ignore it
+	 * return ids out of order, which the caller has to detect.
+	 */
+	@Override
+	public void readUniqueIds(boolean sorted, UniqueIdHandler handler) throws NamingException, IOException {
+		Control sortControl = sorted ? new SortControl(uniqueid, Control.NONCRITICAL) : null;
+		int counter = pagedSearch(ldapbasedn, createFilter(null), new String[]{uniqueid}, sortControl, 
+				result -> handler.handle(getAttribute(result.getAttributes(), uniqueid), result.getNameInNamespace()));
+		logger.debug("Read {} unique ids{}", counter, sorted ? " with a server-side sort" : "");
+	}
 
+	/*
+	 * Acts on destination entries whose unique id is gone from the source
+	 * according to the orphan policy.  Read only connections only report.
+	 */
+	@Override
+	public long reconcile(SourceConnection sourceConnection) throws NamingException, IOException {
+		long startTime = System.currentTimeMillis();
+		Path directory = Files.createTempDirectory("deltasync-reconcile");
+		Throwable failure = null;
+		try {
+			OrphanReconciler reconciler = new OrphanReconciler(directory, RECONCILE_CHUNK_SIZE);
+			long orphans = reconciler.reconcile(sourceConnection, this, orphanlimit, this::handleOrphan);
+			logger.info("Reconciled {} against its source in {} ms", ldapbasedn, System.currentTimeMillis()-startTime);
+			return orphans;
+		} catch(Throwable e) {
+			failure = e;
+			throw e;
+		} finally {
+			deleteDirectory(directory, failure);
+		}
+	}
+
+	/*
+	 * Deletes the directory and whatever the reconciler left in it, going
+	 * on past files that cannot be deleted.  Those failures are added to
+	 * the one the reconcile ended with, if any, rather than hiding it.
+	 */
+	private static void deleteDirectory(Path directory, Throwable failure) throws IOException {
+		List<IOException> errors = new ArrayList<>();
+		try {
+			Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					errors.add(e);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+					if(e!=null) {
+						errors.add(e);
+					}
+					delete(dir);
+					return FileVisitResult.CONTINUE;
+				}
+
+				private void delete(Path path) {
+					try {
+						Files.deleteIfExists(path);
+					} catch(IOException e) {
+						errors.add(e);
+					}
+				}
+			});
+		} catch(IOException e) {
+			errors.add(e);
+		}
+		if(errors.isEmpty()) {
+			return;
+		}
+		if(failure!=null) {
+			errors.forEach(failure::addSuppressed);
+			return;
+		}
+		IOException first = errors.get(0);
+		errors.subList(1, errors.size()).forEach(first::addSuppressed);
+		throw first;
+	}
+
+	private void handleOrphan(String id, String dn) {
+		String policy = readonly ? ORPHAN_REPORT : orphanpolicy.toLowerCase(Locale.US);
+		try {
+			switch(policy) {
+			case ORPHAN_DELETE:
+				withWriteContext( ctx -> {
+					ctx.destroySubcontext(dn);
+					return null;
+				});
+				logger.info("Deleted orphan {}", dn);
+				break;
+			case ORPHAN_DISABLE:
+				String attribute = StringUtils.substringBefore(orphandisable, "=").trim();
+				String value = StringUtils.substringAfter(orphandisable, "=").trim();
+				withWriteContext( ctx -> {
+					ctx.modifyAttributes(dn, new ModificationItem[]{
+							new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(attribute, value)) });
+					return null;
+				});
+				logger.info("Disabled orphan {} with {}", dn, orphandisable);
+				break;
+			case ORPHAN_MOVE:
+				LdapName name = new LdapName(dn);
+				String newDn = name.getRdn(name.size()-1) + "," + orphanbase;
+				withWriteContext( ctx -> {
+					ctx.rename(dn, newDn);
+					return null;
+				});
+				logger.info("Moved orphan {} to {}", dn, newDn);
+				break;
+			default:
+				logger.info("Orphan {} has no source entry", dn);
+				break;
+			}
+		} catch(NamingException e) {
+			logger.error("Failed to "+policy+" orphan "+dn, e);
+			countFailure("orphan", e);
+			return;
+		}
+		metrics.counter("deltasync_orphans_total", "Destination entries without a source entry, by action", labels("action", policy)).increment();
+		if(!ORPHAN_REPORT.equals(policy)) {
+			invalidateDN(dn);
+			dnsByUniqueId.invalidate(id);
+			if(snapshotindex) {
+				index.remove(id);
+			}
+			if(fingerprints!=null) {
+				fingerprints.remove(FingerprintStore.key(id));
+			}
+		}
+	}
+
+	/*
+	 * Hands every group of the group object class changed since the
+	 * timestamp to the destination.  Does nothing unless groups are
+	 * configured.
+	 */
+	@Override
+	public SyncResult syncAllGroups(LDAPConnection connection, long timestamp) throws NamingException, IOException {
+		if(Strings.isNullOrEmpty(groupobjectclass)) {
+			return new SyncResult(0, 0L, true);
+		}
+		String filter = "(&(objectClass="+groupobjectclass+")("+timestampattribute+">="+convertTimestampToWhen(timestamp)+"))";
+		int counter = 0;
+		long[] highWaterMark = {0L};
+		boolean complete = false;
+		try {
+			counter = pagedSearch(getGroupbasedn(), filter, new String[]{groupid, timestampattribute}, result -> {
+				String id = getAttribute(result.getAttributes(), groupid);
+				highWaterMark[0] = Math.max(highWaterMark[0], convertWhenToTimestamp(getAttribute(result.getAttributes(), timestampattribute)));
+				if(id!=null) {
+					connection.syncGroup(id, result.getNameInNamespace(), this);
+				}
+			});
+			complete = true;
+		} catch(NamingException e) {
+			logger.error("Failure while syncing groups",e);
+			countFailure("groups", e);
+		}
+		logger.debug("Synchronized {} groups",counter);
+		return new SyncResult(counter, highWaterMark[0], complete);
+	}
+
+	/*
+	 * Reads the members of a group in ranges, which Active Directory
+	 * requires for groups of more than 1500 members, and hands each to the
+	 * handler with its unique id.  Members without one, such as nested
+	 * groups, get a null id.  Ids are looked up a chunk of members at a
+	 * time.
+	 */
+	@Override
+	public void readMemberIds(String groupDn, UniqueIdHandler handler) throws NamingException, IOException {
+		List<String> chunk = new ArrayList<>();
+		readRanged(groupDn, groupmember, member -> {
+			chunk.add(member);
+			if(chunk.size()>=groupchunksize) {
+				resolveUniqueIds(chunk, handler);
+			}
+		});
+		resolveUniqueIds(chunk, handler);
+	}
+
+	/*
+	 * Brings the members of the destination group named groupId in line
+	 * with the source group.  Only hashes of the member dns are held:
+	 * the destination members are hashed first, the source members are
+	 * translated through their unique ids to the dns of their destination
+	 * entries and added in chunks as they are read, and the destination
+	 * members are read once more to find the ones to remove.  Removals are
+	 * sent after that read, since changing the list while reading it in
+	 * ranges shifts the ranges.  The whole member list is never replaced.
+	 *
+	 * Source members without a destination entry yet are left for a later
+	 * pass.  Only destination members that are synced entries, the ones
+	 * with a unique id, are ever removed, so nested groups and members
+	 * added by hand stay.
+	 */
+	@Override
+	public void syncGroup(String groupId, String sourceGroupDn, SourceConnection sourceConnection) throws NamingException, IOException {
+		if(Strings.isNullOrEmpty(groupobjectclass)) {
+			return;
+		}
+		String groupDn = findGroup(groupId);
+		if(groupDn==null) {
+			logger.warn("No destination group {} for {}", groupId, sourceGroupDn);
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		LongHashSet existing = new LongHashSet();
+		readRanged(groupDn, groupmember, member -> existing.add(dnKey(member)));
+		LongHashSet wanted = new LongHashSet(existing.size());
+		LongHashSet wantedIds = new LongHashSet(existing.size());
+		List<String> ids = new ArrayList<>();
+		List<String> added = new ArrayList<>();
+		int[] counts = {0, 0, 0, 0};
+		UniqueIdHandler addMissing = (id, memberDn) -> {
+			if(memberDn==null) {
+				counts[3]++;
+				return;
+			}
+			long key = dnKey(memberDn);
+			if(wanted.add(key) && !existing.contains(key)) {
+				added.add(memberDn);
+				if(added.size()>=groupchunksize) {
+					counts[0] += modifyMembers(groupDn, DirContext.ADD_ATTRIBUTE, added);
+				}
+			}
+		};
+		sourceConnection.readMemberIds(sourceGroupDn, (id, member) -> {
+			if(id==null) {
+				counts[2]++;
+				return;
+			}
+			wantedIds.add(FingerprintStore.key(id));
+			ids.add(id);
+			if(ids.size()>=groupchunksize) {
+				resolveDNs(ids, addMissing);
+			}
+		});
+		resolveDNs(ids, addMissing);
+		counts[0] += modifyMembers(groupDn, DirContext.ADD_ATTRIBUTE, added);
+		List<String> candidates = new ArrayList<>();
+		readRanged(groupDn, groupmember, member -> {
+			if(!wanted.contains(dnKey(member))) {
+				candidates.add(member);
+			}
+		});
+		List<String> removed = new ArrayList<>();
+		for(List<String> chunk : Lists.partition(candidates, groupchunksize)) {
+			resolveUniqueIds(new ArrayList<>(chunk), (id, member) -> {
+				if(id!=null && !wantedIds.contains(FingerprintStore.key(id))) {
+					removed.add(member);
+				}
+			});
+		}
+		for(List<String> chunk : Lists.partition(removed, groupchunksize)) {
+			counts[1] += modifyMembers(groupDn, DirContext.REMOVE_ATTRIBUTE, new ArrayList<>(chunk));
+		}
+		if(counts[0]>0 || counts[1]>0 || counts[2]>0 || counts[3]>0) {
+			logger.info("Group {}: added {} and removed {} of {} members in {} ms, skipped {} source members without a unique id"
+					+ " and {} not in the destination yet", 
+					groupDn, counts[0], counts[1], wanted.size(), System.currentTimeMillis()-startTime, counts[2], counts[3]);
+		}
+	}
+
+	/*
+	 * Hands each id to the handler with the dn of its entry, or null when
+	 * there is none, and clears the list.  The snapshot index and the dn
+	 * cache are asked first, and the rest are looked up in one search.
+	 */
+	private void resolveDNs(List<String> ids, UniqueIdHandler handler) throws NamingException, IOException {
+		Map<String,String> dns = new HashMap<>();
+		List<String> unresolved = new ArrayList<>();
+		for(String id : ids) {
+			String key = id.toLowerCase(Locale.US);
+			if(snapshotindex && index.isLoaded()) {
+				SearchResult entry = index.get(id);
+				if(entry!=null) {
+					dns.put(key, entry.getNameInNamespace());
+				}
+				continue;
+			}
+			String dn = dnsByUniqueId.getIfPresent(key);
+			if(dn!=null) {
+				dns.put(key, dn);
+			} else {
+				unresolved.add(id);
+			}
+		}
+		if(!unresolved.isEmpty()) {
+			StringBuilder filter = new StringBuilder("(|");
+			for(int i=0; i<unresolved.size(); i++) {
+				filter.append('(').append(uniqueid).append("={").append(i).append("})");
+			}
+			search(ldapbasedn, filter.append(')').toString(), unresolved.toArray(), result -> {
+				String id = getAttribute(result.getAttributes(), uniqueid);
+				if(id!=null && dns.putIfAbsent(id.toLowerCase(Locale.US), result.getNameInNamespace())==null) {
+					cacheDN(id, result.getNameInNamespace());
+				}
+			});
+		}
+		for(String id : ids) {
+			handler.handle(id, dns.get(id.toLowerCase(Locale.US)));
+		}
+		ids.clear();
+	}
+
+	/*
+	 * Hands each dn to the handler with the unique id of its entry, or
+	 * null when it has none or is outside the base dn, where nothing is
+	 * synced, and clears the list.  Dns missing from the dn index and
+	 * cache are looked up in one search for the values of their relative
+	 * names, which also finds entries of the same name elsewhere, so the
+	 * results are matched by dn.
+	 */
+	private void resolveUniqueIds(List<String> dns, UniqueIdHandler handler) throws NamingException, IOException {
+		LdapName base = new LdapName(ldapbasedn);
+		Map<String,Optional<String>> ids = new HashMap<>();
+		StringBuilder filter = new StringBuilder("(|");
+		List<Object> values = new ArrayList<>();
+		for(String dn : dns) {
+			String key = normalizeDN(dn);
+			Optional<String> cached = cachedUniqueID(dn);
+			if(cached!=null) {
+				ids.put(key, cached);
+				continue;
+			}
+			LdapName name;
+			try {
+				name = new LdapName(dn);
+			} catch(InvalidNameException e) {
+				logger.warn("Ignoring invalid member dn {}", dn);
+				ids.put(key, Optional.empty());
+				continue;
+			}
+			if(name.size()<=base.size() || !name.startsWith(base)) {
+				ids.put(key, Optional.empty());
+				continue;
+			}
+			filter.append("(&");
+			NamingEnumeration<? extends Attribute> rdn = name.getRdn(name.size()-1).toAttributes().getAll();
+			while(rdn.hasMoreElements()) {
+				Attribute attribute = rdn.nextElement();
+				filter.append('(').append(attribute.getID()).append("={").append(values.size()).append("})");
+				values.add(attribute.get());
+			}
+			filter.append(')');
+		}
+		if(!values.isEmpty()) {
+			search(ldapbasedn, filter.append(')').toString(), values.toArray(), result -> {
+				String key = normalizeDN(result.getNameInNamespace());
+				String id = getAttribute(result.getAttributes(), uniqueid);
+				ids.put(key, Optional.ofNullable(id));
+				uniqueIdsByDn.put(key, Optional.ofNullable(id));
+			});
+		}
+		for(String dn : dns) {
+			String key = normalizeDN(dn);
+			Optional<String> id = ids.get(key);
+			if(id==null) {
+				id = Optional.empty();
+				uniqueIdsByDn.put(key, id);
+			}
+			handler.handle(id.orElse(null), dn);
+		}
+		dns.clear();
+	}
+
+	/*
+	 * One search of up to a chunk of entries, which fits within the size
+	 * limits servers put on searches that are not paged.
+	 */
+	private void search(String base, String filter, Object[] filterArgs, SearchResultHandler handler) throws NamingException, IOException {
+		SearchControls searchControls = new SearchControls();
+		searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		searchControls.setReturningAttributes(new String[]{uniqueid});
+		long startTime = System.nanoTime();
+		List<SearchResult> found = withContext( ctx -> {
+			List<SearchResult> results = new ArrayList<>();
+			NamingEnumeration<SearchResult> enumeration = ctx.search(base, filter, filterArgs, searchControls);
+			try {
+				while(enumeration.hasMoreElements()) {
+					results.add(enumeration.nextElement());
+				}
+			} finally {
+				enumeration.close();
+			}
+			return results;
+		});
+		lookupTimer.recordSince(startTime);
+		for(SearchResult result : found) {
+			handler.handle(result);
+		}
+	}
+
+	private String findGroup(String groupId) throws NamingException {
+		SearchControls searchControls = new SearchControls();
+		searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		searchControls.setReturningAttributes(new String[]{groupid});
+		return withContext( ctx -> {
+			NamingEnumeration<SearchResult> results = ctx.search(getGroupbasedn(), 
+					"(&(objectClass="+groupobjectclass+")("+groupid+"={0}))", new Object[]{groupId}, searchControls);
+			try {
+				return results.hasMoreElements() ? results.nextElement().getNameInNamespace() : null;
+			} finally {
+				results.close();
+			}
+		});
+	}
+
+	/*
+	 * Sends the values as one modification and clears the list.  If the
+	 * server rejects the chunk because some values were already added or
+	 * removed, the values are sent one at a time.  Returns how many values
+	 * were changed.
+	 */
+	private int modifyMembers(String groupDn, int operation, List<String> members) throws NamingException {
+		if(members.isEmpty()) {
+			return 0;
+		}
+		int count = members.size();
+		if(readonly) {
+			logger.info("Read only mode: Will not {} {} members of {}", operation==DirContext.ADD_ATTRIBUTE ? "add" : "remove", count, groupDn);
+			members.clear();
+			return 0;
+		}
+		BasicAttribute attribute = new BasicAttribute(groupmember);
+		members.forEach(attribute::add);
+		long startTime = System.nanoTime();
+		try {
+			withWriteContext( ctx -> {
+				ctx.modifyAttributes(groupDn, new ModificationItem[]{ new ModificationItem(operation, attribute) });
+				return null;
+			});
+		} catch(AttributeInUseException | NoSuchAttributeException e) {
+			count = 0;
+			for(String member : members) {
+				try {
+					withWriteContext( ctx -> {
+						ctx.modifyAttributes(groupDn, new ModificationItem[]{ new ModificationItem(operation, new BasicAttribute(groupmember, member)) });
+						return null;
+					});
+					count++;
+				} catch(AttributeInUseException | NoSuchAttributeException ignored) {
+					logger.debug("{} was already {} {}", member, operation==DirContext.ADD_ATTRIBUTE ? "in" : "not in", groupDn);
+				}
+			}
+		}
+		modifyTimer.recordSince(startTime);
+		metrics.counter("deltasync_group_members_total", "Group members added and removed", 
+				labels("operation", operation==DirContext.ADD_ATTRIBUTE ? "add" : "remove")).add(count);
+		members.clear();
+		return count;
+	}
+
+	/*
+	 * Reads all values of an attribute, following range options such as
+	 * member;range=1500-* until the server returns the last range.
+	 */
+	private void readRanged(String dn, String attribute, ValueHandler handler) throws NamingException, IOException {
+		int start = 0;
+		while(true) {
+			String requested = start==0 ? attribute : attribute+";range="+start+"-*";
+			Attributes attributes = withContext( ctx -> ctx.getAttributes(dn, new String[]{requested}));
+			Attribute values = null;
+			NamingEnumeration<? extends Attribute> all = attributes.getAll();
+			while(all.hasMoreElements()) {
+				Attribute candidate = all.nextElement();
+				String id = candidate.getID().toLowerCase(Locale.US);
+				if(id.equals(attribute.toLowerCase(Locale.US)) || id.startsWith(attribute.toLowerCase(Locale.US)+";range=")) {
+					values = candidate;
+				}
+			}
+			if(values==null) {
+				return;
+			}
+			NamingEnumeration<?> members = values.getAll();
+			int read = 0;
+			while(members.hasMoreElements()) {
+				handler.handle(members.nextElement().toString());
+				read++;
+			}
+			String id = values.getID();
+			int range = id.toLowerCase(Locale.US).indexOf(";range=");
+			if(range<0 || id.endsWith("-*") || read==0) {
+				return;
+			}
+			start = Integer.parseInt(id.substring(id.lastIndexOf('-')+1)) + 1;
+		}
+	}
+
+	private static long dnKey(String dn) {
+		return Hashing.murmur3_128().hashString(normalizeDN(dn), StandardCharsets.UTF_8).asLong();
+	}
+
+	private String getGroupbasedn() {
+		return Strings.isNullOrEmpty(groupbasedn) ? ldapbasedn : groupbasedn;
+	}
+
+	/*
+	 * Loads the snapshot index on first use and afterwards picks up
+	 * entries changed since the previous refresh.  Entries deleted from
+	 * the destination by other processes are only dropped on a full
+	 * reload.
+	 */
+	@Override
+	public void refresh(ConversionMap conversionMap) throws NamingException, IOException {
+		if(!snapshotindex) {
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		String filter = "("+uniqueid+"=*)";
+		if(index.isLoaded()) {
+			long since = index.getLastRefresh() - snapshotoverlap*1000;
+			filter = "(&"+filter+"("+timestampattribute+">="+convertTimestampToWhen(since)+"))";
+		}
+		int counter = pagedSearch(filter, projection(conversionMap.getTargetAttributes()), result -> {
+			String id = getAttribute(result.getAttributes(), uniqueid);
+			if(id!=null && !index.put(id, result) && !index.isLoaded()) {
+				logger.warn("User {} has more than one matching profile.  Indexed {}", id, result.getNameInNamespace());
+			}
+		});
+		logger.debug("Refreshed snapshot index with {} entries in {} ms, {} entries indexed", 
+				counter, System.currentTimeMillis()-startTime, index.size());
+		index.markRefreshed(startTime);
 	}
 
 	public void setLdapusername(String ldapusername) {
@@ -179,78 +1193,389 @@ public class LDAPConnectionImpl implements LDAPConnection {
 	public void setLdapbasedn(String ldapbasedn) {
 		this.ldapbasedn = ldapbasedn;
 	}
-	public void setUniqueid(String uniqueid) {
-		this.uniqueid = uniqueid;
+	public void setUniqueid(String uniqueid) {
+		this.uniqueid = uniqueid;
+	}
+	
+	
+	/* 
+	 * Updates this LDAP from a foreign search result using 
+	 * provided conversion map.  First checks for values in
+	 * its own LDAP and then compares with provided mapping
+	 * for update or create.  Partial maps bypass the fingerprints, which
+	 * stand for the whole mapping of an entry.
+	 */
+	@Override
+	public void syncEntry(String id, SearchResult sourceEntry, ConversionMap conversionMap) throws NamingException {
+		syncEntry(id, sourceEntry, conversionMap, null);
+	}
+
+	/*
+	 * Syncs of one entry hold a lock for it, whichever thread they run
+	 * on, so a batched write and the poller's never interleave.
+	 */
+	private void syncEntry(String id, SearchResult sourceEntry, ConversionMap conversionMap, WriteBatch batch) throws NamingException {
+		long key = FingerprintStore.key(id);
+		Lock lock = entryLocks.get(key);
+		lock.lock();
+		try {
+			if(batch==null && !conversionMap.isPartial()) {
+				batches.forEach( b -> b.supersede(key));
+			} else if(batch!=null && batch.isSuperseded(key)) {
+				countEntry("superseded");
+				return;
+			}
+			boolean fingerprinted = fingerprints!=null && !conversionMap.isPartial();
+			long fingerprint = 0L;
+			if(fingerprinted) {
+				fingerprint = sourceFingerprint(id, sourceEntry, conversionMap);
+				if(isUnchanged(id, fingerprint, conversionMap)) {
+					unchangedEntries.incrementAndGet();
+					countEntry("skipped");
+					return;
+				}
+			}
+			SearchResult existingDestinationEntry = findEntry(id, projection(conversionMap.getTargetAttributes()));
+			long sourceFingerprint = fingerprint;
+			Consumer<Map<String,String>> onWritten = !fingerprinted ? written -> {} : 
+					written -> recordFingerprint(id, sourceFingerprint, destinationFingerprint(conversionMap, written::get));
+			syncEntry(id, sourceEntry, existingDestinationEntry, conversionMap, onWritten, batch);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void syncEntry(String id, SearchResult sourceEntry, SearchResult existingDestinationEntry, ConversionMap conversionMap, 
+			Consumer<Map<String,String>> onWritten) throws NamingException {
+		syncEntry(id, sourceEntry, existingDestinationEntry, conversionMap, onWritten, null);
+	}
+
+	/*
+	 * Creates the entry when there is no existing destination entry, and
+	 * otherwise updates it.  A partial map cannot create an entry, which is
+	 * left to the next sync with the full map.
+	 */
+	private void syncEntry(String id, SearchResult sourceEntry, SearchResult existingDestinationEntry, ConversionMap conversionMap, 
+			Consumer<Map<String,String>> onWritten, WriteBatch batch) throws NamingException {
+		if(existingDestinationEntry==null && conversionMap.isPartial()) {
+			logger.debug("Not creating {} from the attributes {} alone", id, conversionMap.keySet());
+		} else if(existingDestinationEntry==null) {
+			createEntry(id, sourceEntry, conversionMap, onWritten);
+		} else {
+			cacheDN(id, existingDestinationEntry.getNameInNamespace());
+			updateEntry(id, sourceEntry, existingDestinationEntry, conversionMap, onWritten, batch);
+		}
+	}
+
+	/*
+	 * Makes sure every journaled write that was never acknowledged was
+	 * applied.  A create is looked up and made again if the entry is
+	 * missing.  A modify is made again, and values that are already there
+	 * or already gone show it had been applied before.  Failures other
+	 * than lost connections only fail that write, so one bad record cannot
+	 * hold up every start.
+	 */
+	@Override
+	public int recover() throws NamingException, IOException {
+		if(journal==null || journal.getUnacknowledged().isEmpty()) {
+			return 0;
+		}
+		List<WriteJournal.Intent> intents = new ArrayList<>(journal.getUnacknowledged());
+		if(readonly) {
+			logger.warn("Read only mode: Will not recover {} journaled writes", intents.size());
+			return 0;
+		}
+		int replayed = 0;
+		for(WriteJournal.Intent intent : intents) {
+			boolean applied = true;
+			try {
+				if(intent.isCreate()) {
+					try {
+						withContext( ctx -> ctx.getAttributes(intent.getDn(), new String[]{uniqueid}));
+					} catch(NameNotFoundException e) {
+						withWriteContext( ctx -> {
+							ctx.createSubcontext(intent.getDn(), intent.getAttributes()).close();
+							return null;
+						});
+						replayed++;
+					}
+				} else {
+					try {
+						withWriteContext( ctx -> {
+							ctx.modifyAttributes(intent.getDn(), intent.getItems());
+							return null;
+						});
+						replayed++;
+					} catch(AttributeInUseException | NoSuchAttributeException e) {
+						logger.debug("Journaled {} had been applied", intent);
+					}
+				}
+			} catch(CommunicationException | ServiceUnavailableException e) {
+				throw e;
+			} catch(NamingException e) {
+				logger.error("Failed to recover journaled "+intent, e);
+				countFailure("recover", e);
+				applied = false;
+			}
+			journal.acknowledge(intent.getSequence(), applied);
+		}
+		logger.info("Recovered {} journaled writes, {} of which had to be made again", intents.size(), replayed);
+		return intents.size();
+	}
+
+	/*
+	 * Records the deletion of an entry in the change file.
+	 */
+	void recordDelete(String dn) throws NamingException {
+		if(changes==null) {
+			throw new OperationNotSupportedException("Deletions can only be recorded in a change file");
+		}
+		changes.delete(dn);
+	}
+
+	/*
+	 * An entry is unchanged when its source fingerprint matches the one
+	 * recorded after the last successful write.  When the snapshot index
+	 * is loaded the destination copy is checked for drift as well, since
+	 * it costs nothing.  Values a mapping reads from other entries or the
+	 * destination are not part of the fingerprint.
+	 */
+	private boolean isUnchanged(String id, long fingerprint, ConversionMap conversionMap) {
+		long key = FingerprintStore.key(id);
+		if(!fingerprints.matchesSource(key, fingerprint)) {
+			return false;
+		}
+		if(snapshotindex && index.isLoaded()) {
+			SearchResult existing = index.get(id);
+			return existing!=null && fingerprints.getDestination(key)==
+					destinationFingerprint(conversionMap, k -> joinValues(getAttributeValues(existing.getAttributes(), k)));
+		}
+		return true;
+	}
+
+	private void recordFingerprint(String id, long sourceFingerprint, long destinationFingerprint) {
+		try {
+			fingerprints.put(FingerprintStore.key(id), sourceFingerprint, destinationFingerprint);
+		} catch(IOException e) {
+			logger.warn("Failed to record fingerprint for "+id, e);
+		}
+	}
+
+	private long sourceFingerprint(String id, SearchResult entry, ConversionMap conversionMap) throws NamingException {
+		Hasher hasher = Hashing.murmur3_128().newHasher().putLong(conversionMap.getFingerprint());
+		List<Attribute> attributes = new ArrayList<>(Collections.list(entry.getAttributes().getAll()));
+		attributes.sort(Comparator.comparing(a -> a.getID().toLowerCase(Locale.US)));
+		for(Attribute attribute : attributes) {
+			if(attribute.getID().equalsIgnoreCase(timestampattribute)) {
+				continue;
+			}
+			hasher.putUnencodedChars(attribute.getID().toLowerCase(Locale.US)).putChar(':');
+			NamingEnumeration<?> values = attribute.getAll();
+			while(values.hasMoreElements()) {
+				Object value = values.nextElement();
+				if(value instanceof byte[]) {
+					hasher.putBytes((byte[])value);
+				} else {
+					hasher.putUnencodedChars(String.valueOf(value));
+				}
+				hasher.putChar('\n');
+			}
+		}
+		return hasher.hash().asLong();
+	}
+
+	private long destinationFingerprint(ConversionMap conversionMap, Function<String,String> values) {
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		for(String key : conversionMap.keySet()) {
+			String value = values.apply(key);
+			if(!Strings.isNullOrEmpty(value)) {
+				hasher.putUnencodedChars(key.toLowerCase(Locale.US)).putChar('=')
+						.putUnencodedChars(value.toLowerCase(Locale.US)).putChar('\n');
+			}
+		}
+		return hasher.hash().asLong();
+	}
+
+	/*
+	 * Holds the entry in the coalescing buffer when there is one, where a
+	 * later version of it replaces this one.  Otherwise it is enqueued
+	 * right away, as are entries for a partial map, which must not stand
+	 * in for a full sync of the entry.
+	 */
+	@Override
+	public void submitEntry(String id, SearchResult sourceEntry, ConversionMap conversionMap) throws NamingException {
+		SyncWorkerPool.SyncTask task = () -> syncEntry(id, sourceEntry, conversionMap);
+		if(coalescer==null || conversionMap.isPartial()) {
+			enqueue(id, task);
+		} else if(coalescer.put(id, task)) {
+			countEntry("coalesced");
+		}
+	}
+
+	/*
+	 * Goes to the same worker as the poller's syncs of the entry, but never
+	 * into the coalescing buffer, where it would stand in for the poller's.
+	 * Partial maps only, since the entry is not created when it is missing.
+	 */
+	@Override
+	public void submitEntry(String id, SearchResult sourceEntry, ConversionMap conversionMap, WriteBatch batch) throws NamingException {
+		if(!conversionMap.isPartial()) {
+			throw new IllegalArgumentException("Batched writes need a partial map");
+		}
+		batch.begin();
+		try {
+			enqueue(id, () -> {
+				NamingException failure = null;
+				try {
+					syncEntry(id, sourceEntry, conversionMap, batch);
+				} catch(NamingException e) {
+					logger.error("Failed to sync "+id, e);
+					failure = e;
+				} finally {
+					batch.end(failure);
+				}
+			});
+		} catch(NamingException e) {
+			// interrupted before the task was queued
+			batch.end(null);
+			throw e;
+		}
+	}
+
+	@Override
+	public WriteBatch openBatch() {
+		WriteBatch[] batch = new WriteBatch[1];
+		batch[0] = new WriteBatch(() -> batches.remove(batch[0]));
+		batches.add(batch[0]);
+		return batch[0];
+	}
+
+	/*
+	 * Hands the task to the worker pool when one is configured, blocking
+	 * while its queue is full.  Otherwise syncs on the calling thread.
+	 */
+	private void enqueue(String id, SyncWorkerPool.SyncTask task) throws NamingException {
+		if(workerPool==null) {
+			task.run();
+			return;
+		}
+		try {
+			workerPool.submit(id, task);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedNamingException("Interrupted while queueing "+id);
+		}
+	}
+
+	/*
+	 * Held entries are released first, so everything submitted is written
+	 * when this returns.
+	 */
+	@Override
+	public void awaitSynced() throws NamingException {
+		await(true);
 	}
-	
-	
-	/* 
-	 * Updates this LDAP from a foreign search result using 
-	 * provided conversion map.  First checks for values in
-	 * its own LDAP and then compares with provided mapping
-	 * for update or create.
+
+	/*
+	 * Entries held to be coalesced that are not due yet stay held, so the
+	 * next poll can still replace them.
 	 */
 	@Override
-	public void syncEntry(String id, SearchResult sourceEntry, Map<String, String> conversionMap) throws NamingException {
-		SearchResult existingDestinationEntry = findEntry(id);
-		if(existingDestinationEntry==null) {
-			createEntry(id, sourceEntry, conversionMap);
-		} else {
-			updateEntry(id, sourceEntry, existingDestinationEntry, conversionMap);
-		}
+	public long awaitReleased() throws NamingException {
+		return await(false);
 	}
 
-	private Map<String,Object> extractAttributes(SearchResult result) {
-		Map<String,Object> map = new CaseInsensitiveMap();
-		NamingEnumeration<? extends Attribute> attributes = result.getAttributes().getAll();
-		try {
-			while(attributes.hasMoreElements()) {
-				Attribute attribute = attributes.nextElement();
-				map.put(attribute.getID(), getStringOrListValue(attribute));
+	private long await(boolean flush) throws NamingException {
+		NamingException coalesceFailure = null;
+		long heldSince = Long.MAX_VALUE;
+		if(coalescer!=null) {
+			try {
+				if(flush) {
+					coalescer.flush();
+				} else {
+					heldSince = coalescer.releaseDue();
+				}
+			} catch(NamingException e) {
+				coalesceFailure = e;
+			}
+			long absorbed = coalescer.getAbsorbed();
+			if(absorbed>0) {
+				logger.debug("Coalesced {} repeated changes", absorbed);
 			}
-		} catch(NamingException e) {
-			logger.error("Failed to map attribute map",e);
 		}
-		return map;
-	}
-	
-	private Object getStringOrListValue(Attribute attribute) throws NamingException{
-		if(attribute==null){
-			return null;
+		if(workerPool!=null) {
+			try {
+				workerPool.awaitCompletion();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedNamingException("Interrupted while waiting for queued entries");
+			}
 		}
-		List<Object> list = new ArrayList<>();
-		NamingEnumeration<?> attributes = attribute.getAll();
-		while(attributes.hasMoreElements()) {
-			list.add(attributes.nextElement());
+		if(entryWriter!=null) {
+			entryWriter.awaitWritten();
 		}
-		if(list.size()==0){
-			return null;
-		} else if(list.size()==1){
-			return list.get(0);
+		if(fingerprints!=null) {
+			fingerprints.flush();
+			long unchanged = unchangedEntries.getAndSet(0L);
+			if(unchanged>0) {
+				logger.debug("Skipped {} entries with unchanged fingerprints", unchanged);
+			}
 		}
-		return list;
+		if(coalesceFailure!=null) {
+			throw coalesceFailure;
+		}
+		return heldSince;
+	}
+
+	Map<String,Object> extractAttributes(SearchResult result) {
+		return EntryView.of(result==null ? null : result.getAttributes());
+	}
+
+	/*
+	 * What expressions see while mapping one entry, built once and shared
+	 * by all of them.
+	 */
+	private Map<String,Object> bindings(SearchResult sourceEntry, SearchResult existingDestinationEntry) {
+		return ImmutableMap.<String,Object>builder()
+				.put("source",sourceEntry)
+				.put("sourceConnection",sourceConnection)
+				.put("destinationConnection",this)
+				.put("references",references)
+				.put("attributes",extractAttributes(sourceEntry))
+				.put("target",extractAttributes(existingDestinationEntry))
+				.build();
 	}
 	
-	private void updateEntry(String id, final SearchResult sourceEntry, final SearchResult existingDestinationEntry, Map<String, String> conversionMap) {
+	Map<String,String> updateEntry(String id, final SearchResult sourceEntry, final SearchResult existingDestinationEntry, ConversionMap conversionMap) throws NamingException {
+		return updateEntry(id, sourceEntry, existingDestinationEntry, conversionMap, written -> {}, null);
+	}
+
+	/*
+	 * Returns the mapped values the destination holds once the update is
+	 * written, or null if nothing will be.  onWritten is called with them
+	 * when the write succeeded, which may be after this returns.  Mapping
+	 * errors only fail the entry; see modifyFailed for write failures,
+	 * which go to the batch when there is one.
+	 */
+	private Map<String,String> updateEntry(String id, final SearchResult sourceEntry, final SearchResult existingDestinationEntry, ConversionMap conversionMap, 
+			Consumer<Map<String,String>> onWritten, WriteBatch batch) throws NamingException {
 
 		try {
 //		logger.debug("Will try to update existing entry for {}",id);
 		List<ModificationItem> modificationItems = new ArrayList<>();
-		ModificationItem mi = getObjectClassUpdates(existingDestinationEntry);
-		if(mi!=null){
-//			modificationItems.add(mi);
-		}
+		Map<String,String> written = new HashMap<>();
+		Map<String,Object> bindings = bindings(sourceEntry, existingDestinationEntry);
 		conversionMap.entrySet().stream().forEach( e -> {
-			String sourceValue = runGroovy(
-					ImmutableMap.of(
-							"source",sourceEntry,
-							"sourceConnection",sourceConnection,
-							"destinationConnection",this,
-							"attributes",extractAttributes(sourceEntry),
-							"target",extractAttributes(existingDestinationEntry)), 
-					e.getValue());
+			List<String> sourceValues = evaluateValues(bindings, e.getValue());
 			
-			String destinationValue = getAttribute(existingDestinationEntry.getAttributes(), e.getKey());
+			List<String> destinationValues = getAttributeValues(existingDestinationEntry.getAttributes(), e.getKey());
+			written.put(e.getKey(), joinValues(sourceValues));
+			if(sourceValues.size()>1 || destinationValues.size()>1) {
+				modificationItems.addAll(valueUpdates(e.getKey(), sourceValues, destinationValues));
+				return;
+			}
+			String sourceValue = sourceValues.isEmpty() ? null : sourceValues.get(0);
+			String destinationValue = destinationValues.isEmpty() ? null : destinationValues.get(0);
 //			logger.debug("{} : {} : {} : {}",id, e, sourceValue, destinationValue);	
 			
 			if(sourceValue !=null) {
@@ -270,49 +1595,104 @@ public class LDAPConnectionImpl implements LDAPConnection {
 		if(modificationItems.size()>0) {
 			ModificationItem[] items = new ModificationItem[modificationItems.size()];
 			modificationItems.toArray(items);
-			updateObject(existingDestinationEntry.getNameInNamespace(), items);
-			if(readonly) {
-				return;
+			if(readonly && changes==null) {
+				logger.info("Read only mode: Will not update {} with {}", existingDestinationEntry.getNameInNamespace(), items);
+				return null;
 			}
-			logger.debug("Updated {} with these updates: {}",id,items);
+			long startTime = System.nanoTime();
+			EntryWriter.WriteListener listener = failure -> {
+				if(failure!=null) {
+					modifyFailed(id, failure);
+					return;
+				}
+				modifyTimer.recordSince(startTime);
+				if(snapshotindex) {
+					index.modify(id, items);
+				}
+				logger.debug("Updated {} with these updates: {}",id,items);
+				countEntry("modified");
+				onWritten.accept(written);
+			};
+			if(batch==null) {
+				entryWriter.modify(existingDestinationEntry.getNameInNamespace(), items, listener);
+			} else {
+				try {
+					entryWriter.modify(existingDestinationEntry.getNameInNamespace(), items, batch.track(listener));
+				} catch(NamingException | RuntimeException e) {
+					// thrown instead of reaching the listener
+					batch.end(null);
+					throw e;
+				}
+			}
+		} else {
+			countEntry("unchanged");
+			onWritten.accept(written);
 		}
 		logger.trace("Finished updating entry for {}",id);
-		} catch(Exception e) {
-			logger.error("Failed to update "+id,e);
-			if(doNotRepeatFailures) {
-				failedCreations.add(id);
-				logger.warn("Will not try again to update user id: {}", id);
+		return written;
+		} catch(RuntimeException e) {
+			updateFailed(id, e);
+			return null;
+		}
+	}
+
+	private void markFailed(String id) {
+		failedCreations.add(id);
+		if(journal!=null) {
+			try {
+				journal.recordFailed(id);
+			} catch(IOException e) {
+				logger.warn("Failed to journal failed user id "+id, e);
 			}
 		}
 	}
 
-	private ModificationItem getObjectClassUpdates(final SearchResult existingDestinationEntry) throws NamingException{
-		List<String> objectClasses = (List<String>)getStringOrListValue(existingDestinationEntry.getAttributes().get("objectClass"));
-		objectClasses = objectClasses.stream().map( v -> v.toLowerCase()).collect(Collectors.toList());
-		List<String> toHave = objectclass.stream().map( v -> v.toLowerCase()).collect(Collectors.toList());
-		toHave.removeAll(objectClasses);
-		if(toHave.size()>0) {
-			objectClasses.addAll(toHave);
-			BasicAttribute oc = new BasicAttribute("objectClass");
-			objectClasses.stream().forEach( ocv -> oc.add(ocv));
-			return new ModificationItem(DirContext.REPLACE_ATTRIBUTE, oc);
+	/*
+	 * Like createFailed, only failures expected for single entries are
+	 * swallowed.  Anything else, such as a lost connection or an overloaded
+	 * server, is thrown and fails the pass, so the checkpoint stays where
+	 * it is and the entry is picked up again.
+	 */
+	private void modifyFailed(String id, NamingException e) throws NamingException {
+		if(e instanceof SchemaViolationException || e instanceof AttributeInUseException
+				|| e instanceof NoSuchAttributeException || e instanceof InvalidAttributeValueException
+				|| e instanceof InvalidAttributeIdentifierException || e instanceof NameNotFoundException) {
+			updateFailed(id, e);
+		} else {
+			logger.error("Failed to update "+id, e);
+			countFailure("modify", e);
+			throw e;
 		}
-		return null;
 	}
-	
-	private void updateObject(String objectDn, ModificationItem[] mods) throws NamingException {
 
-		if(readonly) {
-			logger.info("Read only mode: Will not update {} with {}", objectDn, mods);
-			return;
+	private void updateFailed(String id, Exception e) {
+		logger.error("Failed to update "+id,e);
+		countFailure("modify", e);
+		if(doNotRepeatFailures) {
+			markFailed(id);
+			logger.warn("Will not try again to update user id: {}", id);
 		}
-		
-		DirContext ctx=new InitialDirContext(context);
-		try {
-			ctx.modifyAttributes(objectDn, mods);
-		} finally {
-			ctx.close();
+	}
+
+	/*
+	 * Adds and removes single values of a multi-valued attribute instead
+	 * of replacing all of them.  Values are compared ignoring case.
+	 */
+	private List<ModificationItem> valueUpdates(String name, List<String> sourceValues, List<String> destinationValues) {
+		Set<String> existing = destinationValues.stream().map( v -> v.toLowerCase(Locale.US)).collect(Collectors.toSet());
+		Set<String> wanted = sourceValues.stream().map( v -> v.toLowerCase(Locale.US)).collect(Collectors.toSet());
+		BasicAttribute added = new BasicAttribute(name);
+		sourceValues.stream().filter( v -> !existing.contains(v.toLowerCase(Locale.US))).forEach(added::add);
+		BasicAttribute removed = new BasicAttribute(name);
+		destinationValues.stream().filter( v -> !wanted.contains(v.toLowerCase(Locale.US))).forEach(removed::add);
+		List<ModificationItem> items = new ArrayList<>();
+		if(added.size()>0) {
+			items.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, added));
+		}
+		if(removed.size()>0) {
+			items.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, removed));
 		}
+		return items;
 	}
 
 
@@ -330,57 +1710,153 @@ public class LDAPConnectionImpl implements LDAPConnection {
 		}
 	}
 
-	private SearchResult findEntry(String uid) {
+	/*
+	 * Every value of the attribute, in the order the server returned them.
+	 */
+	private List<String> getAttributeValues(Attributes attributes, String name) {
+		List<String> values = new ArrayList<>();
+		try {
+			Attribute attribute = attributes.get(name);
+			if(attribute!=null) {
+				NamingEnumeration<?> all = attribute.getAll();
+				while(all.hasMoreElements()) {
+					values.add(all.nextElement().toString());
+				}
+			}
+		} catch(NamingException e) {
+			logger.error("Failed to get attribute "+name,e);
+		}
+		return values;
+	}
+
+	/*
+	 * A single value as is, several sorted and joined so that fingerprints
+	 * do not depend on value order.
+	 */
+	private static String joinValues(List<String> values) {
+		if(values.isEmpty()) {
+			return null;
+		} else if(values.size()==1) {
+			return values.get(0);
+		}
+		return values.stream().sorted(String.CASE_INSENSITIVE_ORDER).collect(Collectors.joining("\n"));
+	}
+
+	private SearchResult findEntry(String uid, String[] returningAttributes) {
 		
+		if(snapshotindex && index.isLoaded()) {
+			return index.get(uid);
+		} else if(pool==null) {
+			return null;
+		}
 		String searchFilter = "("+uniqueid+"="+uid+")";
-        LdapContext ldapContext = null;
         try {
-        	SearchResult searchResult = null;
 	        SearchControls searchControls = new SearchControls();
 	        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            ldapContext = new InitialLdapContext(context, null);
-            NamingEnumeration<SearchResult> results = ldapContext.search(ldapbasedn, searchFilter, searchControls);
-
-	        if(results.hasMoreElements()) {
-	        	searchResult = results.nextElement();
-//	            logger.debug("Found existing matching user for {}: {}",uid, searchResult.getNameInNamespace());
-	        }
-	        ldapContext.close();
-	        if(results.hasMoreElements()) {
-	        	// TODO improve diagnosis
-	        	logger.warn("User {} has more than one matching profile.  Updated first matching result {}", uid,searchResult.getNameInNamespace());
-	        }
-	        results.close();
-	        close(ldapContext);
-	        return searchResult;
+	        searchControls.setReturningAttributes(returningAttributes);
+	        long startTime = System.nanoTime();
+	        SearchResult found = withContext( ldapContext -> {
+	        	SearchResult searchResult = null;
+	            NamingEnumeration<SearchResult> results = ldapContext.search(ldapbasedn, searchFilter, searchControls);
+	            try {
+			        if(results.hasMoreElements()) {
+			        	searchResult = results.nextElement();
+//			            logger.debug("Found existing matching user for {}: {}",uid, searchResult.getNameInNamespace());
+			        }
+			        if(results.hasMoreElements()) {
+			        	// TODO improve diagnosis
+			        	logger.warn("User {} has more than one matching profile.  Updated first matching result {}", uid,searchResult.getNameInNamespace());
+			        }
+	            } finally {
+	            	results.close();
+	            }
+		        return searchResult;
+	        });
+	        lookupTimer.recordSince(startTime);
+	        return found;
 
         } catch(NamingException e){
         	logger.error("Failed to find user due to NamingException",e);
-        	if(ldapContext!=null) {
-        		try {
-        			ldapContext.close();
-        		} catch(NamingException ex) {
-        			logger.error("Failed to close context after failure",e);
-        		}
-        	}
+        	countFailure("lookup", e);
             return null;
         } 
 		
 	}
 	
-	private void close(LdapContext context) {
+	/*
+	 * Attributes to request for entries of this connection given the
+	 * ones the conversion map reads.  Null requests every attribute,
+	 * which is what happens when the map could not be analyzed.
+	 */
+	private String[] projection(Set<String> attributes) {
+		if(attributes==null) {
+			return null;
+		}
+		Set<String> projection = new LinkedHashSet<>(attributes);
+		projection.add(uniqueid.toLowerCase(Locale.US));
+		projection.add("objectclass");
+		projection.add(timestampattribute.toLowerCase(Locale.US));
+		return projection.toArray(new String[projection.size()]);
+	}
+
+	private LdapContext borrowContext() throws NamingException {
+		if(pool==null) {
+			throw new OperationNotSupportedException(name+" has no directory, only a change file");
+		}
+		return pool.borrow();
+	}
+
+	/*
+	 * Runs the callback with a pooled context.  The context goes back to
+	 * the pool unless the connection itself failed.
+	 */
+	private <T> T withContext(ContextCallback<T> callback) throws NamingException {
+		LdapContext ldapContext = borrowContext();
+		try {
+			T value = callback.apply(ldapContext);
+			pool.release(ldapContext);
+			return value;
+		} catch(NamingException | RuntimeException e) {
+			pool.release(ldapContext, e);
+			throw e;
+		}
+	}
+
+	/*
+	 * Writes outside the entry writer are held to the same governor.
+	 */
+	private <T> T withWriteContext(ContextCallback<T> callback) throws NamingException {
+		if(governor==null || !governor.isLimited()) {
+			return withContext(callback);
+		}
+		RateGovernor.Permit permit = GovernedEntryWriter.acquire(governor);
 		try {
-			context.close();
-		} catch(Exception e) {
-			logger.error("Exception thrown while closing");
+			T value = withContext(callback);
+			permit.release(false);
+			return value;
+		} catch(NamingException | RuntimeException e) {
+			permit.release(GovernedEntryWriter.isOverload(e));
+			throw e;
 		}
 	}
 
+	/*
+	 * Returns the dn of the existing entry when one has been seen, and
+	 * otherwise the dn a new entry would be created with.
+	 */
 	public String createDNFromUniqueID(String uid) {
-		return uniqueid+"="+uid + "," + ldapbasedn;
+		if(uid==null) {
+			return null;
+		}
+		String dn = dnsByUniqueId.getIfPresent(uid.toLowerCase(Locale.US));
+		return dn!=null ? dn : uniqueid+"="+uid + "," + ldapbasedn;
 	}
 	
-	private void createEntry(String id, SearchResult result, Map<String, String> conversionMap) throws NamingException {
+	/*
+	 * Starts the creation of the entry.  onWritten is called with the
+	 * mapped values once it was created, which may be after this returns.
+	 */
+	private void createEntry(String id, SearchResult result, ConversionMap conversionMap, Consumer<Map<String,String>> onWritten) throws NamingException {
 
 		logger.debug("Creating new entry for {}",id);
 		if(doNotRepeatFailures && failedCreations.contains(id)) {
@@ -393,55 +1869,71 @@ public class LDAPConnectionImpl implements LDAPConnection {
 
 		String dn = createDNFromUniqueID(id);
 		
-		if(readonly) {
+		if(readonly && changes==null) {
 			logger.info("Read only mode: Will not create user {}", dn);
 			return;
 		}
 		
-		DirContext ctx = null;
-		Context newEntry = null;
-		try {
-			logger.info("Will create user {} with attributes {}", dn, attributes);
-			ctx = new InitialDirContext(context);
-			newEntry = ctx.createSubcontext(dn, attributes);
-			newEntry.close();
+		logger.info("Will create user {} with attributes {}", dn, attributes);
+		long startTime = System.nanoTime();
+		entryWriter.add(dn, attributes, failure -> {
+			if(failure!=null) {
+				createFailed(id, failure);
+				return;
+			}
+			createTimer.recordSince(startTime);
 			logger.info("Created user {}", dn);
-		} catch (AttributeInUseException e) {
+			countEntry("created");
+			cacheDN(id, dn);
+			if(snapshotindex) {
+				index.put(id, dn, attributes);
+			}
+			Map<String,String> written = new HashMap<>();
+			conversionMap.keySet().forEach( key -> written.put(key, joinValues(getAttributeValues(attributes, key))));
+			onWritten.accept(written);
+		});
+
+	}
+
+	/*
+	 * Failures other than the ones expected for single entries are
+	 * thrown, which fails the pass.
+	 */
+	private void createFailed(String id, NamingException e) throws NamingException {
+		if(e instanceof NameAlreadyBoundException) {
+			countFailure("create", e);
+			if(!snapshotindex) {
+				throw e;
+			}
+			logger.warn("User {} was created since the snapshot index was refreshed and will be updated after the next refresh", id);
+		} else if(e instanceof AttributeInUseException) {
 			logger.error("Failed to create user "+id, e);
-		} catch(SchemaViolationException e) {
+			countFailure("create", e);
+		} else if(e instanceof SchemaViolationException) {
 			logger.error("Failed to create user "+id, e);
+			countFailure("create", e);
 			if(doNotRepeatFailures) {
-				failedCreations.add(id);
+				markFailed(id);
 				logger.warn("Will not try again to create user id: {}", id);
 			}
-		} finally {
-			if (newEntry != null) {
-				newEntry.close();
-			}
-			if (ctx != null) {
-				ctx.close();
-			}
+		} else {
+			throw e;
 		}
-
 	}
 
-	private Attributes createAttributes(SearchResult searchResult, Map<String, String> conversionMap) {
+	private Attributes createAttributes(SearchResult searchResult, ConversionMap conversionMap) {
 		Attributes attributes = new BasicAttributes(true);
 		BasicAttribute oc = new BasicAttribute("objectClass");
 		objectclass.stream().forEach( ocv -> oc.add(ocv));
 		attributes.put(oc);
 		
+		Map<String,Object> bindings = bindings(searchResult, null);
 		conversionMap.entrySet().forEach( e -> {
-			String string = runGroovy(
-					ImmutableMap.of(
-							"source",searchResult,
-							"sourceConnection",sourceConnection,
-							"destinationConnection",this,
-							"attributes",extractAttributes(searchResult),
-							"target",ImmutableMap.of()), 
-					e.getValue());
-			if(string!=null) {
-				attributes.put(e.getKey(), string);
+			List<String> values = evaluateValues(bindings, e.getValue());
+			if(!values.isEmpty()) {
+				BasicAttribute attribute = new BasicAttribute(e.getKey());
+				values.forEach(attribute::add);
+				attributes.put(attribute);
 			}
 		});
 		
@@ -453,8 +1945,26 @@ public class LDAPConnectionImpl implements LDAPConnection {
 	}
 
 	private String convertTimestampToWhen(long timestamp) {
-		Date date = new Date(timestamp);
-		return dateFormat.format(date);
+		return WHEN_FORMAT.format(Instant.ofEpochMilli(timestamp));
+	}
+
+	/*
+	 * Parses a generalized time such as 20160329185432.0Z or
+	 * 20160329185432-0400.  Fractions of a second are dropped.
+	 */
+	private long convertWhenToTimestamp(String when) {
+		if(when==null || when.length()<14) {
+			return 0L;
+		}
+		try {
+			LocalDateTime time = LocalDateTime.parse(when.substring(0, 14), WHEN_PARSE);
+			int sign = Math.max(when.indexOf('+'), when.indexOf('-'));
+			ZoneOffset offset = sign>0 ? ZoneOffset.of(when.substring(sign)) : ZoneOffset.UTC;
+			return time.toInstant(offset).toEpochMilli();
+		} catch(DateTimeException e) {
+			logger.warn("Could not parse {} value {}", timestampattribute, when);
+			return 0L;
+		}
 	}
 
 	public void setExtrafilter(String extrafilter) {
@@ -477,6 +1987,51 @@ public class LDAPConnectionImpl implements LDAPConnection {
 		map.entrySet().forEach( e -> shell.setVariable(e.getKey(), e.getValue()));
 		Object object = shell.evaluate(string);
 //		logger.debug("Evaluated '{}' against {} and got {}",string,map,object);
+		return toStringValue(object);
+	}
+
+	/*
+	 * Collections, arrays and multi-valued attributes give one value per
+	 * element, leaving out empty ones.  Anything else is a single value.
+	 */
+	private List<String> evaluateValues(Map<String,Object> map, MappingExpression expression) {
+		long startTime = System.nanoTime();
+		Object object;
+		try {
+			object = expression.evaluate(map);
+		} finally {
+			mappingTimer.recordSince(startTime);
+		}
+		List<String> values = new ArrayList<>();
+		if(object instanceof Collection) {
+			((Collection<?>)object).forEach( o -> addValue(values, toStringValue(o)));
+		} else if(object instanceof Object[]) {
+			Arrays.stream((Object[])object).forEach( o -> addValue(values, toStringValue(o)));
+		} else if(object instanceof Attribute && ((Attribute)object).size()>1) {
+			try {
+				NamingEnumeration<?> all = ((Attribute)object).getAll();
+				while(all.hasMoreElements()) {
+					addValue(values, toStringValue(all.nextElement()));
+				}
+			} catch(NamingException e) {
+				logger.error("Failed to read values of "+((Attribute)object).getID(), e);
+			}
+		} else {
+			String value = toStringValue(object);
+			if(value!=null) {
+				values.add(value);
+			}
+		}
+		return values;
+	}
+
+	private static void addValue(List<String> values, String value) {
+		if(!Strings.isNullOrEmpty(value)) {
+			values.add(value);
+		}
+	}
+
+	private String toStringValue(Object object) {
 		if(object==null){
 			return null;
 		}
@@ -491,34 +2046,90 @@ public class LDAPConnectionImpl implements LDAPConnection {
 		return object.toString();
 	}
 
-	public void setSourceConnection(LDAPConnection sourceConnection) {
+	public void setSourceConnection(SourceConnection sourceConnection) {
 		this.sourceConnection = sourceConnection;
+		this.references = new DnReferences(sourceConnection, this);
 	}
 
+    @Override
     public String getUniqueIDByDN(String dn) {
     	try {
-	    	Attributes attributes = getDNAttributes(dn);
-	    	return attributes.get(uniqueid).get().toString();
+    		return lookupUniqueIDByDN(dn);
     	}catch(NamingException e) {
     		logger.error("Exception thrown while getting unique id by dn",e);
+    		countFailure("lookup", e);
     		return null;
     	}
     }
+
+    /*
+     * Returns null for entries that do not exist or have no unique id,
+     * and throws any other failure rather than treating it as either.
+     */
+    private String lookupUniqueIDByDN(String dn) throws NamingException {
+    	Optional<String> cached = cachedUniqueID(dn);
+    	if(cached!=null) {
+    		return cached.orElse(null);
+    	}
+    	String key = normalizeDN(dn);
+    	Attributes attributes = getDNAttributes(dn);
+    	String id = attributes==null || attributes.get(uniqueid)==null ? null : attributes.get(uniqueid).get().toString();
+    	uniqueIdsByDn.put(key, Optional.ofNullable(id));
+    	return id;
+    }
+
+    /*
+     * Returns null when neither the dn index nor the cache knows the dn.
+     */
+    private Optional<String> cachedUniqueID(String dn) {
+    	LongStringMap index = dnIndex;
+    	if(index!=null) {
+    		String id = index.get(dnKey(dn));
+    		if(id!=null) {
+    			return Optional.of(id);
+    		}
+    	}
+    	return uniqueIdsByDn.getIfPresent(normalizeDN(dn));
+    }
+
+    /*
+     * Lower cases the dn and drops spaces around separators so that the
+     * different spellings of one dn share a cache entry.
+     */
+    private static String normalizeDN(String dn) {
+    	return DN_SPACES.matcher(dn.trim().toLowerCase(Locale.US)).replaceAll("$1");
+    }
+
+    private void cacheDN(String id, String dn) {
+    	if(id!=null && dn!=null) {
+    		uniqueIdsByDn.put(normalizeDN(dn), Optional.of(id));
+    		dnsByUniqueId.put(id.toLowerCase(Locale.US), dn);
+    	}
+    }
+
+    private void invalidateDN(String dn) {
+    	Optional<String> id = uniqueIdsByDn.getIfPresent(normalizeDN(dn));
+    	uniqueIdsByDn.invalidate(normalizeDN(dn));
+    	if(id!=null && id.isPresent()) {
+    		dnsByUniqueId.invalidate(id.get().toLowerCase(Locale.US));
+    	}
+    }
+
+    public CacheStats getUniqueIdCacheStats() {
+    	return uniqueIdsByDn.stats();
+    }
+
+    public CacheStats getDnCacheStats() {
+    	return dnsByUniqueId.stats();
+    }
 	
-    private Attributes getDNAttributes(String dn) {
+    private Attributes getDNAttributes(String dn) throws NamingException {
 //    	logger.debug("Getting attributes for DN: {}",dn);
     	Attributes attributes = null;
-    	LdapContext ldapContext = null;
 		try {
-			ldapContext = new InitialLdapContext(context, null);
-	        SearchControls searchControls = new SearchControls();
-	        searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-	        attributes = ldapContext.getAttributes(dn);
-			ldapContext.close();
+	        attributes = withContext( ldapContext -> ldapContext.getAttributes(dn, new String[]{uniqueid}));
 		} catch(NameNotFoundException e) {
 			logger.warn("Could not find attributes for entry with dn {}",dn);
-		} catch(NamingException e){
-			e.printStackTrace();
 		}
 //		logger.debug("  Found attributes: {}",attributes);
 		return attributes;
@@ -528,4 +2139,228 @@ public class LDAPConnectionImpl implements LDAPConnection {
 		this.readonly = readonly;
 	}
 
+	public void setTimestampattribute(String timestampattribute) {
+		this.timestampattribute = timestampattribute;
+	}
+
+	public void setPoolminsize(int poolminsize) {
+		this.poolminsize = poolminsize;
+	}
+
+	public void setPoolmaxsize(int poolmaxsize) {
+		this.poolmaxsize = poolmaxsize;
+	}
+
+	public void setPoolborrowtimeout(long poolborrowtimeout) {
+		this.poolborrowtimeout = poolborrowtimeout;
+	}
+
+	public void setPoolidletimeout(long poolidletimeout) {
+		this.poolidletimeout = poolidletimeout;
+	}
+
+	public void setPoolvalidateafter(long poolvalidateafter) {
+		this.poolvalidateafter = poolvalidateafter;
+	}
+
+	public LdapContextPool getPool() {
+		return pool;
+	}
+
+	public void setDncachesize(int dncachesize) {
+		this.dncachesize = dncachesize;
+	}
+
+	public void setDncachettl(long dncachettl) {
+		this.dncachettl = dncachettl;
+	}
+
+	public void setFingerprintfile(String fingerprintfile) {
+		this.fingerprintfile = fingerprintfile;
+	}
+
+	public void setSyncthreads(int syncthreads) {
+		this.syncthreads = syncthreads;
+	}
+
+	public void setSyncqueuesize(int syncqueuesize) {
+		this.syncqueuesize = syncqueuesize;
+	}
+
+	/**
+	 * @param coalescewindow seconds submitted entries are held so that
+	 *        repeated changes to one entry, within a poll or across polls,
+	 *        are written once, 0 for none
+	 */
+	public void setCoalescewindow(long coalescewindow) {
+		this.coalescewindow = coalescewindow;
+	}
+
+	/**
+	 * @param coalescesize entries held at most, beyond which the oldest
+	 *        is written early
+	 */
+	public void setCoalescesize(int coalescesize) {
+		this.coalescesize = coalescesize;
+	}
+
+	/**
+	 * @param dnindex whether full syncs first index the dn of every entry,
+	 *        so that getUniqueIDByDN answers from memory
+	 */
+	public void setDnindex(boolean dnindex) {
+		this.dnindex = dnindex;
+	}
+
+	public void setSnapshotindex(boolean snapshotindex) {
+		this.snapshotindex = snapshotindex;
+	}
+
+	public void setSnapshotoverlap(long snapshotoverlap) {
+		this.snapshotoverlap = snapshotoverlap;
+	}
+
+	/**
+	 * @param changefile LDIF file to record creates and updates in instead
+	 *        of making them, which is required without an ldap url
+	 */
+	public void setChangefile(String changefile) {
+		this.changefile = changefile;
+	}
+
+	/**
+	 * @param journaldir directory of the write journal, or empty to not
+	 *        journal writes
+	 */
+	public void setJournaldir(String journaldir) {
+		this.journaldir = journaldir;
+	}
+
+	/**
+	 * @param journalsegmentsize size of each journal segment in megabytes
+	 */
+	public void setJournalsegmentsize(int journalsegmentsize) {
+		this.journalsegmentsize = journalsegmentsize;
+	}
+
+	/**
+	 * @param governor limits on the rate and concurrency of writes to
+	 *        this directory
+	 */
+	public void setGovernor(RateGovernor governor) {
+		this.governor = governor;
+	}
+
+	/**
+	 * @param writepipeline writes kept outstanding on one connection, or 0
+	 *        to write through the pool one round trip at a time
+	 */
+	public void setWritepipeline(int writepipeline) {
+		this.writepipeline = writepipeline;
+	}
+
+	/**
+	 * @param writetimeout seconds the pipelined writer waits to connect,
+	 *        bind, or for the response to a write
+	 */
+	public void setWritetimeout(long writetimeout) {
+		this.writetimeout = writetimeout;
+	}
+
+	public void setPagesize(int pagesize) {
+		this.pagesize = pagesize;
+	}
+
+	/**
+	 * @param shards how to split a full sync, see {@link SearchShard#parse}
+	 */
+	public void setShards(String shards) {
+		this.shards = shards;
+	}
+
+	public void setShardthreads(int shardthreads) {
+		this.shardthreads = shardthreads;
+	}
+
+	/**
+	 * @param orphanpolicy report, delete, disable or move
+	 */
+	public void setOrphanpolicy(String orphanpolicy) {
+		this.orphanpolicy = orphanpolicy;
+	}
+
+	/**
+	 * @param orphanbase container orphans are moved to, outside the search base
+	 */
+	public void setOrphanbase(String orphanbase) {
+		this.orphanbase = orphanbase;
+	}
+
+	/**
+	 * @param orphandisable attribute=value written to disable an orphan
+	 */
+	public void setOrphandisable(String orphandisable) {
+		this.orphandisable = orphandisable;
+	}
+
+	public void setOrphanlimit(long orphanlimit) {
+		this.orphanlimit = orphanlimit;
+	}
+
+	/**
+	 * @param groupobjectclass object class of the groups to sync, or empty
+	 *        to sync no groups
+	 */
+	public void setGroupobjectclass(String groupobjectclass) {
+		this.groupobjectclass = groupobjectclass;
+	}
+
+	/**
+	 * @param groupid attribute that names a group on both sides
+	 */
+	public void setGroupid(String groupid) {
+		this.groupid = groupid;
+	}
+
+	public void setGroupmember(String groupmember) {
+		this.groupmember = groupmember;
+	}
+
+	public void setGroupbasedn(String groupbasedn) {
+		this.groupbasedn = groupbasedn;
+	}
+
+	/**
+	 * @param groupchunksize most member values sent in one modification
+	 */
+	public void setGroupchunksize(int groupchunksize) {
+		this.groupchunksize = groupchunksize;
+	}
+
+	/**
+	 * @param name label that tells this connection's metrics apart
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	@FunctionalInterface
+	private interface ContextCallback<T> {
+		public T apply(LdapContext ldapContext) throws NamingException;
+	}
+
+	@FunctionalInterface
+	private interface ValueHandler {
+		public void handle(String value) throws NamingException, IOException;
+	}
+
+	@FunctionalInterface
+	private interface SearchResultHandler {
+		public void handle(SearchResult result) throws NamingException, IOException;
+	}
+
 }
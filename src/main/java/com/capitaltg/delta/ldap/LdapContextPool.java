@@ -0,0 +1,282 @@
+package com.capitaltg.delta.ldap;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of bound {@link LdapContext}s for one connection.  Replaces the
+ * implicit JNDI pool, which is configured through system properties shared
+ * by every connection and cannot be observed.
+ * 
+ * At most maxSize contexts are handed out at once; borrowers wait up to the
+ * borrow timeout for one to come back.  Idle contexts are checked with a
+ * root DSE read before reuse once they have been idle for the validation
+ * interval, and closed by a background evictor after the idle timeout as
+ * long as more than minSize remain.
+ */
+public class LdapContextPool {
+
+	private static final String[] ROOT_DSE_ATTRIBUTES = { "supportedLDAPVersion" };
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final String name;
+	private final Hashtable<String, String> environment;
+	private final int minSize;
+	private final int maxSize;
+	private final long borrowTimeoutMillis;
+	private final long idleTimeoutMillis;
+	private final long validateAfterMillis;
+
+	private final LinkedBlockingDeque<PooledContext> idle = new LinkedBlockingDeque<>();
+	private final Semaphore permits;
+	private final ScheduledExecutorService evictor;
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong destroyed = new AtomicLong();
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	public LdapContextPool(String name, Hashtable<String, String> environment, int minSize, int maxSize,
+			long borrowTimeoutMillis, long idleTimeoutMillis, long validateAfterMillis) {
+		if(minSize<0 || maxSize<1 || minSize>maxSize) {
+			throw new IllegalArgumentException("LDAP pool " + name + " needs 0 <= minsize <= maxsize and maxsize >= 1, not "
+					+ minSize + " and " + maxSize);
+		}
+		this.name = name;
+		this.environment = new Hashtable<>(environment);
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.validateAfterMillis = validateAfterMillis;
+		this.permits = new Semaphore(maxSize, true);
+		this.evictor = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread(runnable, "ldap-pool-evictor-" + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1000L, idleTimeoutMillis / 2);
+		evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens minSize contexts up front.  Failures are logged, not thrown, so a
+	 * server that is down at startup does not stop the process.
+	 */
+	public void prefill() {
+		for(int i=idle.size(); i<minSize; i++) {
+			try {
+				idle.offerFirst(new PooledContext(create()));
+			} catch(NamingException e) {
+				logger.warn("Failed to prefill LDAP pool {}: {}", name, e.getMessage());
+				return;
+			}
+		}
+	}
+
+	public LdapContext borrow() throws NamingException {
+		long start = System.nanoTime();
+		try {
+			if(!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				timeouts.incrementAndGet();
+				throw new ServiceUnavailableException("Timed out after " + borrowTimeoutMillis + " ms waiting for a connection to " + name);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedNamingException("Interrupted while waiting for a connection to " + name);
+		}
+		long waited = System.nanoTime() - start;
+		waitNanos.addAndGet(waited);
+		maxWaitNanos.accumulateAndGet(waited, Math::max);
+		borrows.incrementAndGet();
+		try {
+			LdapContext context = takeIdle();
+			if(context == null) {
+				context = create();
+			}
+			active.incrementAndGet();
+			return context;
+		} catch(NamingException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns a context to the pool.  Request controls are cleared so paging
+	 * or sync controls do not leak into the next borrower.
+	 */
+	public void release(LdapContext context) {
+		try {
+			context.setRequestControls(null);
+			idle.offerFirst(new PooledContext(context));
+		} catch(NamingException e) {
+			close(context);
+		} finally {
+			active.decrementAndGet();
+			permits.release();
+		}
+	}
+
+	/**
+	 * Closes a context that failed instead of returning it to the pool.
+	 */
+	public void invalidate(LdapContext context) {
+		close(context);
+		active.decrementAndGet();
+		permits.release();
+	}
+
+	/**
+	 * Releases or invalidates the context depending on the failure, if any,
+	 * seen while it was borrowed.
+	 */
+	public void release(LdapContext context, Exception failure) {
+		if(failure instanceof CommunicationException || failure instanceof ServiceUnavailableException) {
+			invalidate(context);
+		} else {
+			release(context);
+		}
+	}
+
+	public void shutdown() {
+		evictor.shutdownNow();
+		PooledContext pooled;
+		while((pooled = idle.pollFirst()) != null) {
+			close(pooled.context);
+		}
+	}
+
+	public int getActive() {
+		return active.get();
+	}
+
+	public int getIdle() {
+		return idle.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getCreated() {
+		return created.get();
+	}
+
+	public long getDestroyed() {
+		return destroyed.get();
+	}
+
+	public long getBorrows() {
+		return borrows.get();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	public double getAverageWaitMillis() {
+		long count = borrows.get();
+		return count == 0 ? 0.0 : waitNanos.get() / 1e6 / count;
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	private LdapContext takeIdle() {
+		PooledContext pooled;
+		while((pooled = idle.pollFirst()) != null) {
+			if(System.currentTimeMillis() - pooled.idleSince < validateAfterMillis || isValid(pooled.context)) {
+				return pooled.context;
+			}
+			close(pooled.context);
+		}
+		return null;
+	}
+
+	private LdapContext create() throws NamingException {
+		LdapContext context = new InitialLdapContext(environment, null);
+		created.incrementAndGet();
+		return context;
+	}
+
+	private boolean isValid(LdapContext context) {
+		try {
+			context.getAttributes("", ROOT_DSE_ATTRIBUTES);
+			return true;
+		} catch(NamingException e) {
+			logger.debug("Discarding broken connection to {}: {}", name, e.getMessage());
+			return false;
+		}
+	}
+
+	private void evict() {
+		try {
+			long now = System.currentTimeMillis();
+			Iterator<PooledContext> iterator = idle.descendingIterator();
+			while(iterator.hasNext()) {
+				PooledContext pooled = iterator.next();
+				if(now - pooled.idleSince > idleTimeoutMillis && idle.size() > minSize) {
+					if(idle.remove(pooled)) {
+						close(pooled.context);
+					}
+				} else if(now - pooled.idleSince > validateAfterMillis && idle.remove(pooled)) {
+					if(isValid(pooled.context)) {
+						idle.offerLast(pooled);
+					} else {
+						close(pooled.context);
+					}
+				}
+			}
+			prefill();
+		} catch(RuntimeException e) {
+			logger.error("Failed while evicting idle connections to " + name, e);
+		}
+	}
+
+	private void close(LdapContext context) {
+		destroyed.incrementAndGet();
+		try {
+			context.close();
+		} catch(NamingException e) {
+			logger.debug("Failed to close connection to {}", name, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d active, %d idle, %d created, %d destroyed, %d timeouts, %.1f ms average wait, %.1f ms max wait",
+				name, getActive(), getIdle(), getCreated(), getDestroyed(), getTimeouts(), getAverageWaitMillis(), getMaxWaitMillis());
+	}
+
+	private static class PooledContext {
+		private final LdapContext context;
+		private final long idleSince = System.currentTimeMillis();
+
+		private PooledContext(LdapContext context) {
+			this.context = context;
+		}
+	}
+}
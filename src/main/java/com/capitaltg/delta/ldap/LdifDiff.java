@@ -0,0 +1,140 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.ldif.LdifReader;
+import com.capitaltg.delta.ldif.LdifWriter;
+import com.capitaltg.delta.mapping.ConversionMap;
+import com.capitaltg.delta.util.ExternalSorter;
+
+/**
+ * Compares an LDIF export of the source with one of the destination
+ * through a conversion map, without either directory.  Both exports are
+ * sorted on disk by unique id and merge-joined, and every entry goes
+ * through the destination connection as if it had been found there, so
+ * the change records it writes are the ones a sync would make.
+ */
+public class LdifDiff {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final LdifSourceConnection source;
+	private final LdifSourceConnection destinationSnapshot;
+	private final LDAPConnectionImpl destination;
+	private final Path directory;
+	private final int chunkSize;
+
+	/**
+	 * @param destination a connection recording to a change file, usually
+	 *        without an ldap url
+	 * @param directory where sort runs are written
+	 * @param chunkSize entries sorted in memory at a time
+	 */
+	public LdifDiff(LdifSourceConnection source, LdifSourceConnection destinationSnapshot, LDAPConnectionImpl destination,
+			Path directory, int chunkSize) {
+		this.source = source;
+		this.destinationSnapshot = destinationSnapshot;
+		this.destination = destination;
+		this.directory = directory;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @param deleteOrphans whether to record the deletion of destination
+	 *        entries that are not in the source, which are otherwise only
+	 *        counted
+	 */
+	public SyncResult diff(ConversionMap conversionMap, boolean deleteOrphans) throws NamingException, IOException {
+		long startTime = System.currentTimeMillis();
+		Path runs = Files.createTempDirectory(directory, "deltasync-diff");
+		try(ExternalSorter sourceEntries = sort(source, runs);
+				ExternalSorter destinationEntries = sort(destinationSnapshot, runs)) {
+			Iterator<String> sources = sourceEntries.sorted();
+			Iterator<String> destinations = destinationEntries.sorted();
+			String[] sourceLine = next(sources);
+			String[] destinationLine = next(destinations);
+			String previous = null;
+			int compared = 0;
+			long orphans = 0L;
+			while(sourceLine!=null || destinationLine!=null) {
+				int comparison = sourceLine==null ? 1 : destinationLine==null ? -1 : sourceLine[0].compareTo(destinationLine[0]);
+				if(comparison<=0) {
+					if(sourceLine[0].equals(previous)) {
+						logger.warn("Source has more than one entry with unique id {}, only the first is compared", sourceLine[1]);
+					} else {
+						destination.syncEntry(sourceLine[1], decode(sourceLine[2]), comparison==0 ? decode(destinationLine[2]) : null,
+								conversionMap, written -> {});
+						compared++;
+					}
+					previous = sourceLine[0];
+					sourceLine = next(sources);
+				} else {
+					SearchResult orphan = decode(destinationLine[2]);
+					if(deleteOrphans) {
+						destination.recordDelete(orphan.getNameInNamespace());
+					}
+					orphans++;
+				}
+				if(comparison>=0) {
+					destinationLine = next(destinations);
+				}
+			}
+			destination.awaitSynced();
+			logger.info("Compared {} source entries with {} in {} ms, {} destination entries are not in the source",
+					compared, destinationSnapshot, System.currentTimeMillis()-startTime, orphans);
+			return new SyncResult(compared, 0L, true);
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			Files.deleteIfExists(runs);
+		}
+	}
+
+	/*
+	 * Lines of lower cased unique id, unique id and the base64 encoded
+	 * LDIF of the entry, which sort by unique id.
+	 */
+	private ExternalSorter sort(LdifSourceConnection connection, Path runs) throws NamingException, IOException {
+		ExternalSorter sorter = new ExternalSorter(runs, chunkSize);
+		try {
+			connection.read( (id, result) -> sorter.add(id.toLowerCase(Locale.US) + "\t" + id + "\t" + encode(result)));
+		} catch(NamingException | IOException | RuntimeException e) {
+			sorter.close();
+			throw e;
+		}
+		logger.debug("Sorted {} entries of {}", sorter.size(), connection);
+		return sorter;
+	}
+
+	private static String[] next(Iterator<String> lines) {
+		return lines.hasNext() ? lines.next().split("\t", 3) : null;
+	}
+
+	private static String encode(SearchResult result) throws NamingException, IOException {
+		StringWriter ldif = new StringWriter();
+		new LdifWriter(ldif).writeEntry(result.getNameInNamespace(), result.getAttributes());
+		return Base64.getEncoder().encodeToString(ldif.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static SearchResult decode(String encoded) throws IOException {
+		String ldif = new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8);
+		try(LdifReader reader = new LdifReader(new StringReader(ldif))) {
+			return reader.next();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+
+import com.capitaltg.delta.ldif.LdifWriter;
+
+/**
+ * Records writes as LDIF change records instead of making them, so a dry
+ * run leaves a file that can be reviewed and replayed.  Every write
+ * succeeds as soon as its record was written.
+ */
+public class LdifEntryWriter implements EntryWriter {
+
+	private final Path file;
+	private final LdifWriter writer;
+
+	public LdifEntryWriter(Path file) throws IOException {
+		this.file = file;
+		this.writer = LdifWriter.open(file);
+	}
+
+	@Override
+	public void modify(String dn, ModificationItem[] items, WriteListener listener) throws NamingException {
+		synchronized(writer) {
+			try {
+				writer.writeModify(dn, items);
+			} catch(IOException e) {
+				listener.completed(failure(e));
+				return;
+			}
+		}
+		listener.completed(null);
+	}
+
+	@Override
+	public void add(String dn, Attributes attributes, WriteListener listener) throws NamingException {
+		synchronized(writer) {
+			try {
+				writer.writeAdd(dn, attributes);
+			} catch(IOException e) {
+				listener.completed(failure(e));
+				return;
+			}
+		}
+		listener.completed(null);
+	}
+
+	public void delete(String dn) throws NamingException {
+		synchronized(writer) {
+			try {
+				writer.writeDelete(dn);
+			} catch(IOException e) {
+				throw failure(e);
+			}
+		}
+	}
+
+	@Override
+	public void awaitWritten() throws NamingException {
+		synchronized(writer) {
+			try {
+				writer.flush();
+			} catch(IOException e) {
+				throw failure(e);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized(writer) {
+			writer.close();
+		}
+	}
+
+	private NamingException failure(IOException e) {
+		CommunicationException failure = new CommunicationException("Failed to write to " + file);
+		failure.setRootCause(e);
+		return failure;
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
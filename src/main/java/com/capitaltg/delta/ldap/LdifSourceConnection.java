@@ -0,0 +1,274 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.ldif.LdifReader;
+import com.capitaltg.delta.mapping.ConversionMap;
+import com.capitaltg.delta.sync.CheckpointStore;
+import com.capitaltg.delta.util.LongStringMap;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+
+/**
+ * A source that reads its entries from an LDIF export instead of a
+ * directory.  The file is streamed on every pass, so it may be of any
+ * size.  Only entries with a unique id and every configured object class
+ * are synced.
+ *
+ * Mappings that look up other entries through getUniqueIDByDN are
+ * answered from a bounded cache of the dns read so far, or from the dn
+ * itself when its RDN is the unique id.  Groups and change streams are not
+ * supported.
+ */
+public class LdifSourceConnection implements SourceConnection {
+
+	private static final Pattern DN_SPACES = Pattern.compile("\\s*([,=+])\\s*");
+	private static final DateTimeFormatter WHEN_PARSE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private Path ldiffile;
+	private String uniqueid;
+	private List<String> objectclass = ImmutableList.of();
+	private String timestampattribute = "whenChanged";
+	private int dncachesize = 10000;
+	private Cache<String, String> uniqueIdsByDn;
+	private boolean dnindex;
+	private volatile LongStringMap dnIndex;
+
+	@PostConstruct
+	public void init() {
+		uniqueIdsByDn = CacheBuilder.newBuilder().maximumSize(dncachesize).build();
+		logger.info("Initialized LDIF source {} with unique id {}", ldiffile, uniqueid);
+	}
+
+	@Override
+	public SyncResult syncAllUsers(LDAPConnection connection, long timestamp, ConversionMap conversionMap) throws NamingException, IOException {
+		int[] counter = {0};
+		long[] highWaterMark = {0L};
+		try {
+			read( (id, result) -> {
+				long changed = convertWhenToTimestamp(getAttribute(result, timestampattribute));
+				if(changed!=0L && changed<timestamp) {
+					return;
+				}
+				highWaterMark[0] = Math.max(highWaterMark[0], changed);
+				connection.submitEntry(id, result, conversionMap);
+				counter[0]++;
+			});
+		} finally {
+			connection.awaitReleased();
+		}
+		logger.debug("Synchronized {} entries from {}", counter[0], ldiffile);
+		return new SyncResult(counter[0], highWaterMark[0], true);
+	}
+
+	/*
+	 * One pass over the file, which has nothing to shard or resume.  With
+	 * the dn index a first pass reads every dn, so references to entries
+	 * further down the file are found too.
+	 */
+	@Override
+	public SyncResult fullSync(LDAPConnection connection, ConversionMap conversionMap, CheckpointStore checkpointStore) throws NamingException, IOException {
+		if(dnindex) {
+			LongStringMap index = new LongStringMap();
+			read( (id, result) -> index.put(dnKey(result.getNameInNamespace()), id));
+			dnIndex = index;
+			logger.info("Indexed {} dns of {}", index.size(), ldiffile);
+		}
+		try {
+			return syncAllUsers(connection, 0L, conversionMap);
+		} finally {
+			dnIndex = null;
+		}
+	}
+
+	@Override
+	public SyncResult syncAllGroups(LDAPConnection connection, long timestamp) {
+		return new SyncResult(0, 0L, true);
+	}
+
+	@Override
+	public void readUniqueIds(boolean sorted, UniqueIdHandler handler) throws NamingException, IOException {
+		read( (id, result) -> handler.handle(id, result.getNameInNamespace()));
+	}
+
+	/**
+	 * Streams every entry with a unique id and the configured object
+	 * classes to the handler, in file order.
+	 */
+	public void read(EntryHandler handler) throws NamingException, IOException {
+		try(LdifReader reader = LdifReader.open(ldiffile)) {
+			SearchResult result;
+			while((result = reader.next())!=null) {
+				String id = getAttribute(result, uniqueid);
+				if(id==null || !hasObjectClasses(result)) {
+					continue;
+				}
+				uniqueIdsByDn.put(normalizeDN(result.getNameInNamespace()), id);
+				handler.handle(id, result);
+			}
+		}
+	}
+
+	@Override
+	public int readEntries(String filter, ConversionMap conversionMap, EntryHandler handler) throws NamingException, IOException {
+		if(!Strings.isNullOrEmpty(filter)) {
+			throw new OperationNotSupportedException("An LDIF source cannot filter entries");
+		}
+		int[] counter = {0};
+		read( (id, result) -> {
+			counter[0]++;
+			handler.handle(id, result);
+		});
+		return counter[0];
+	}
+
+	@Override
+	public String getUniqueIDByDN(String dn) {
+		if(dn==null) {
+			return null;
+		}
+		LongStringMap index = dnIndex;
+		String id = index==null ? null : index.get(dnKey(dn));
+		if(id!=null) {
+			return id;
+		}
+		id = uniqueIdsByDn.getIfPresent(normalizeDN(dn));
+		if(id!=null) {
+			return id;
+		}
+		try {
+			List<Rdn> rdns = new LdapName(dn).getRdns();
+			Rdn rdn = rdns.isEmpty() ? null : rdns.get(rdns.size()-1);
+			if(rdn!=null && rdn.getType().equalsIgnoreCase(uniqueid)) {
+				return rdn.getValue().toString();
+			}
+		} catch(NamingException e) {
+			logger.warn("Could not parse dn {}", dn);
+		}
+		return null;
+	}
+
+	@Override
+	public void streamChanges(LDAPConnection connection, ConversionMap conversionMap, String mode, long since, long pollMillis, CheckpointStore checkpointStore) throws NamingException {
+		throw new OperationNotSupportedException("An LDIF source cannot stream changes");
+	}
+
+	@Override
+	public void readMemberIds(String groupDn, UniqueIdHandler handler) throws NamingException {
+		throw new OperationNotSupportedException("An LDIF source has no groups");
+	}
+
+	private boolean hasObjectClasses(SearchResult result) throws NamingException {
+		if(objectclass.isEmpty()) {
+			return true;
+		}
+		Attribute attribute = result.getAttributes().get("objectClass");
+		if(attribute==null) {
+			return false;
+		}
+		int found = 0;
+		NamingEnumeration<?> values = attribute.getAll();
+		while(values.hasMoreElements()) {
+			String value = String.valueOf(values.nextElement());
+			if(objectclass.stream().anyMatch(value::equalsIgnoreCase)) {
+				found++;
+			}
+		}
+		return found>=objectclass.size();
+	}
+
+	private static String getAttribute(SearchResult result, String name) throws NamingException {
+		Attribute attribute = result.getAttributes().get(name);
+		return attribute==null || attribute.get()==null ? null : attribute.get().toString();
+	}
+
+	private long convertWhenToTimestamp(String when) {
+		if(when==null || when.length()<14) {
+			return 0L;
+		}
+		try {
+			LocalDateTime time = LocalDateTime.parse(when.substring(0, 14), WHEN_PARSE);
+			int sign = Math.max(when.indexOf('+'), when.indexOf('-'));
+			ZoneOffset offset = sign>0 ? ZoneOffset.of(when.substring(sign)) : ZoneOffset.UTC;
+			return time.toInstant(offset).toEpochMilli();
+		} catch(DateTimeException e) {
+			logger.warn("Could not parse {} value {}", timestampattribute, when);
+			return 0L;
+		}
+	}
+
+	private static String normalizeDN(String dn) {
+		return DN_SPACES.matcher(dn.trim().toLowerCase(Locale.US)).replaceAll("$1");
+	}
+
+	private static long dnKey(String dn) {
+		return Hashing.murmur3_128().hashString(normalizeDN(dn), StandardCharsets.UTF_8).asLong();
+	}
+
+	public void setLdiffile(String ldiffile) {
+		this.ldiffile = Paths.get(ldiffile);
+	}
+
+	public void setUniqueid(String uniqueid) {
+		this.uniqueid = uniqueid;
+	}
+
+	/**
+	 * @param objectclass comma separated object classes entries must all
+	 *        have to be synced, or empty for every entry
+	 */
+	public void setObjectclass(String objectclass) {
+		this.objectclass = Strings.isNullOrEmpty(objectclass) ? ImmutableList.of() : ImmutableList.copyOf(objectclass.split(","));
+	}
+
+	public void setTimestampattribute(String timestampattribute) {
+		this.timestampattribute = timestampattribute;
+	}
+
+	/**
+	 * @param dnindex whether full syncs first index the dn of every entry
+	 */
+	public void setDnindex(boolean dnindex) {
+		this.dnindex = dnindex;
+	}
+
+	public void setDncachesize(int dncachesize) {
+		this.dncachesize = dncachesize;
+	}
+
+	public Path getLdiffile() {
+		return ldiffile;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(ldiffile);
+	}
+}
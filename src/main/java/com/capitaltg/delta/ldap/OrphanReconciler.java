@@ -0,0 +1,314 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.util.ExternalSorter;
+
+/**
+ * Finds destination entries whose unique id no longer exists in the source
+ * by merge-joining the unique ids of both sides in sorted order, so that
+ * neither side is ever held on the heap.
+ * 
+ * Each side is first read with a server-side sort and consumed as it
+ * arrives.  Server ordering rules do not always agree with ours, so the
+ * order is checked as the ids come in; a side that turns out not to be
+ * sorted is read again without the sort control and sorted on disk.
+ * Because of that, orphans are only collected in a file during the merge
+ * and handed to the handler once both sides were read completely.
+ */
+public class OrphanReconciler {
+
+	private static final String[] END = new String[0];
+	private static final int QUEUE_SIZE = 1000;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Path directory;
+	private final int chunkSize;
+
+	/**
+	 * @param directory where sort runs and the orphan list are written
+	 * @param chunkSize ids sorted in memory at a time
+	 */
+	public OrphanReconciler(Path directory, int chunkSize) {
+		this.directory = directory;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Hands every orphan to the handler, unless the source returned no ids
+	 * at all or there are more than limit orphans, in which case they are
+	 * only counted.
+	 * 
+	 * @return the number of orphans found
+	 */
+	public long reconcile(SourceConnection source, SourceConnection destination, long limit, OrphanHandler handler) throws NamingException, IOException {
+		boolean sourceSorted = true;
+		boolean destinationSorted = true;
+		Path orphans = Files.createTempFile(directory, "orphans", ".txt");
+		try {
+			long[] counts = null;
+			while(counts==null) {
+				try(IdStream sourceIds = open(source, sourceSorted, true);
+						IdStream destinationIds = open(destination, destinationSorted, false);
+						BufferedWriter writer = Files.newBufferedWriter(orphans, StandardCharsets.UTF_8)) {
+					counts = merge(sourceIds, destinationIds, writer);
+				} catch(UnsortedException e) {
+					if(e.source && sourceSorted) {
+						sourceSorted = false;
+					} else if(!e.source && destinationSorted) {
+						destinationSorted = false;
+					} else {
+						throw new IOException("Unique ids are out of order after sorting", e);
+					}
+					logger.info("{} unique ids are not in the expected order, will sort them on disk", e.source ? "Source" : "Destination");
+				}
+			}
+			long orphanCount = counts[2];
+			logger.info("Compared {} source and {} destination unique ids, found {} orphans", counts[0], counts[1], orphanCount);
+			if(counts[0]==0L) {
+				logger.warn("Source returned no unique ids, will not act on {} orphans", orphanCount);
+			} else if(orphanCount>limit) {
+				logger.warn("Found {} orphans, more than the limit of {}.  Will not act on them", orphanCount, limit);
+			} else {
+				try(BufferedReader reader = Files.newBufferedReader(orphans, StandardCharsets.UTF_8)) {
+					String line;
+					while((line = reader.readLine())!=null) {
+						int tab = line.indexOf('\t');
+						handler.orphan(line.substring(0, tab), line.substring(tab+1));
+					}
+				}
+			}
+			return orphanCount;
+		} finally {
+			Files.deleteIfExists(orphans);
+		}
+	}
+
+	/*
+	 * Walks both sides in order.  A destination id below the current
+	 * source id cannot appear in the source any more.  Both sides are read
+	 * to the end so their order is checked completely.
+	 */
+	private long[] merge(IdStream sourceIds, IdStream destinationIds, BufferedWriter orphans) throws NamingException, IOException, UnsortedException {
+		long sources = 0L;
+		long destinations = 0L;
+		long orphanCount = 0L;
+		String[] source = sourceIds.next();
+		String[] destination = destinationIds.next();
+		while(destination!=null) {
+			int comparison = source==null ? -1 : destination[0].compareTo(source[0]);
+			if(comparison<0) {
+				orphans.write(destination[0] + "\t" + destination[1]);
+				orphans.newLine();
+				orphanCount++;
+			}
+			if(comparison<=0) {
+				destinations++;
+				destination = destinationIds.next();
+			} else {
+				sources++;
+				source = sourceIds.next();
+			}
+		}
+		while(source!=null) {
+			sources++;
+			source = sourceIds.next();
+		}
+		return new long[] { sources, destinations, orphanCount };
+	}
+
+	private IdStream open(SourceConnection connection, boolean serverSorted, boolean source) throws NamingException, IOException {
+		return serverSorted ? new StreamedIds(connection, source) : new DiskSortedIds(connection, source);
+	}
+
+	/**
+	 * Receives orphans as their lower cased unique id and dn.
+	 */
+	@FunctionalInterface
+	public interface OrphanHandler {
+		public void orphan(String id, String dn) throws NamingException;
+	}
+
+	/*
+	 * Lower cased unique ids and dns of one side, in ascending order of id.
+	 */
+	private abstract static class IdStream implements Closeable {
+
+		private final boolean source;
+		private String previous;
+
+		private IdStream(boolean source) {
+			this.source = source;
+		}
+
+		/**
+		 * @return the next id and dn, or null at the end
+		 */
+		String[] next() throws NamingException, IOException, UnsortedException {
+			String[] entry = read();
+			if(entry!=null) {
+				if(previous!=null && entry[0].compareTo(previous)<0) {
+					throw new UnsortedException(source, previous, entry[0]);
+				}
+				previous = entry[0];
+			}
+			return entry;
+		}
+
+		abstract String[] read() throws NamingException, IOException;
+
+		@Override
+		public void close() throws IOException {
+		}
+	}
+
+	/*
+	 * Reads the ids with a server-side sort on a separate thread and hands
+	 * them over through a small queue.
+	 */
+	private static class StreamedIds extends IdStream {
+
+		private final BlockingQueue<String[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+		private final Thread reader;
+		private volatile boolean closed;
+		private volatile Exception failure;
+
+		private StreamedIds(SourceConnection connection, boolean source) {
+			super(source);
+			reader = new Thread(() -> {
+				try {
+					connection.readUniqueIds(true, (id, dn) -> {
+						if(id!=null) {
+							offer(new String[] { id.toLowerCase(Locale.US), dn });
+						}
+					});
+				} catch(NamingException | IOException | RuntimeException e) {
+					failure = e;
+				} finally {
+					try {
+						offer(END);
+					} catch(InterruptedNamingException e) {
+						// closed before the end was read
+					}
+				}
+			}, "reconcile-" + (source ? "source" : "destination"));
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		private void offer(String[] entry) throws InterruptedNamingException {
+			try {
+				while(!queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+					if(closed) {
+						throw new InterruptedNamingException("Reconciliation was abandoned");
+					}
+				}
+			} catch(InterruptedException e) {
+				throw new InterruptedNamingException("Interrupted while reading unique ids");
+			}
+		}
+
+		@Override
+		String[] read() throws NamingException, IOException {
+			String[] entry;
+			try {
+				entry = queue.take();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedNamingException("Interrupted while reading unique ids");
+			}
+			if(entry!=END) {
+				return entry;
+			}
+			queue.offer(END);
+			if(failure instanceof NamingException) {
+				throw (NamingException)failure;
+			} else if(failure instanceof IOException) {
+				throw (IOException)failure;
+			} else if(failure!=null) {
+				throw (RuntimeException)failure;
+			}
+			return null;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			queue.clear();
+		}
+	}
+
+	/*
+	 * Reads all ids without a sort control into an external sorter first.
+	 */
+	private class DiskSortedIds extends IdStream {
+
+		private final ExternalSorter sorter = new ExternalSorter(directory, chunkSize);
+		private final Iterator<String> lines;
+
+		private DiskSortedIds(SourceConnection connection, boolean source) throws NamingException, IOException {
+			super(source);
+			try {
+				connection.readUniqueIds(false, (id, dn) -> {
+					if(id!=null) {
+						sorter.add(id.toLowerCase(Locale.US) + "\t" + dn);
+					}
+				});
+				lines = sorter.sorted();
+			} catch(NamingException | IOException | RuntimeException e) {
+				sorter.close();
+				throw e;
+			}
+		}
+
+		@Override
+		String[] read() throws IOException {
+			try {
+				if(!lines.hasNext()) {
+					return null;
+				}
+				String line = lines.next();
+				int tab = line.indexOf('\t');
+				return new String[] { line.substring(0, tab), line.substring(tab+1) };
+			} catch(UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			sorter.close();
+		}
+	}
+
+	private static class UnsortedException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		private final boolean source;
+
+		private UnsortedException(boolean source, String previous, String next) {
+			super(next + " came after " + previous);
+			this.source = source;
+		}
+	}
+}
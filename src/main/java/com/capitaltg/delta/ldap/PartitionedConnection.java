@@ -0,0 +1,117 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.mapping.ConversionMap;
+import com.capitaltg.delta.sync.PartitionAssignment;
+
+/**
+ * Destination that only writes the entries and groups whose unique id
+ * falls in a partition this node owns.  Every node still reads all
+ * changes from the source, since LDAP cannot filter on a hash, but only
+ * maps and writes its own share of them.  Orphans are reconciled by the
+ * leader alone.
+ */
+public class PartitionedConnection implements LDAPConnection {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final LDAPConnection destination;
+	private final PartitionAssignment partitions;
+	private final AtomicLong skipped = new AtomicLong();
+
+	public PartitionedConnection(LDAPConnection destination, PartitionAssignment partitions) {
+		this.destination = destination;
+		this.partitions = partitions;
+	}
+
+	@Override
+	public void syncEntry(String id, SearchResult result, ConversionMap conversionMap) throws NamingException {
+		if(partitions.owns(id)) {
+			destination.syncEntry(id, result, conversionMap);
+		} else {
+			skipped.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void submitEntry(String id, SearchResult result, ConversionMap conversionMap) throws NamingException {
+		if(partitions.owns(id)) {
+			destination.submitEntry(id, result, conversionMap);
+		} else {
+			skipped.incrementAndGet();
+		}
+	}
+
+	@Override
+	public WriteBatch openBatch() throws NamingException {
+		return destination.openBatch();
+	}
+
+	@Override
+	public void submitEntry(String id, SearchResult result, ConversionMap conversionMap, WriteBatch batch) throws NamingException {
+		if(partitions.owns(id)) {
+			destination.submitEntry(id, result, conversionMap, batch);
+		} else {
+			skipped.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void awaitSynced() throws NamingException {
+		destination.awaitSynced();
+		logSkipped();
+	}
+
+	@Override
+	public long awaitReleased() throws NamingException {
+		long heldSince = destination.awaitReleased();
+		logSkipped();
+		return heldSince;
+	}
+
+	private void logSkipped() {
+		long others = skipped.getAndSet(0L);
+		if(others>0) {
+			logger.debug("Left {} entries to the nodes owning them", others);
+		}
+	}
+
+	@Override
+	public void syncGroup(String groupId, String sourceGroupDn, SourceConnection sourceConnection) throws NamingException, IOException {
+		if(partitions.owns(groupId)) {
+			destination.syncGroup(groupId, sourceGroupDn, sourceConnection);
+		}
+	}
+
+	@Override
+	public long reconcile(SourceConnection sourceConnection) throws NamingException, IOException {
+		if(!partitions.isLeader()) {
+			logger.debug("Leaving reconciliation to the leader");
+			return 0L;
+		}
+		return destination.reconcile(sourceConnection);
+	}
+
+	@Override
+	public void refresh(ConversionMap conversionMap) throws NamingException, IOException {
+		destination.refresh(conversionMap);
+	}
+
+	@Override
+	public int recover() throws NamingException, IOException {
+		return destination.recover();
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(destination);
+	}
+}
@@ -0,0 +1,130 @@
+package com.capitaltg.delta.ldap;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.ModificationItem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes through an {@link AsyncLdapClient}, keeping up to depth writes
+ * outstanding on one connection, so throughput follows the pipeline depth
+ * rather than the number of sync threads.  Listeners run on the client's
+ * reader thread and must not write themselves.
+ * 
+ * Servers may process the requests of one connection in any order, so a
+ * write to a dn that still has a write outstanding waits for it first.
+ * A failed connection is replaced on the next write.
+ */
+public class PipelinedEntryWriter implements EntryWriter {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final String url;
+	private final String bindDn;
+	private final String password;
+	private final int depth;
+	private final int timeoutMillis;
+	private final Set<String> inFlight = new HashSet<>();
+	private final AtomicReference<NamingException> failure = new AtomicReference<>();
+	private final Object monitor = new Object();
+	private AsyncLdapClient client;
+
+	public PipelinedEntryWriter(String url, String bindDn, String password, int depth, int timeoutMillis) {
+		this.url = url;
+		this.bindDn = bindDn;
+		this.password = password;
+		this.depth = depth;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	@Override
+	public void modify(String dn, ModificationItem[] items, WriteListener listener) throws NamingException {
+		String key = begin(dn);
+		try {
+			client().modify(dn, items, result -> complete(key, listener, result));
+		} catch(NamingException e) {
+			complete(key, listener, e);
+		}
+	}
+
+	@Override
+	public void add(String dn, Attributes attributes, WriteListener listener) throws NamingException {
+		String key = begin(dn);
+		try {
+			client().add(dn, attributes, result -> complete(key, listener, result));
+		} catch(NamingException e) {
+			complete(key, listener, e);
+		}
+	}
+
+	@Override
+	public void awaitWritten() throws NamingException {
+		synchronized(monitor) {
+			while(!inFlight.isEmpty()) {
+				try {
+					monitor.wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedNamingException("Interrupted while waiting for outstanding writes");
+				}
+			}
+		}
+		NamingException e = failure.getAndSet(null);
+		if(e!=null) {
+			throw e;
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if(client!=null) {
+			client.close();
+			client = null;
+		}
+	}
+
+	private synchronized AsyncLdapClient client() throws NamingException {
+		if(client==null || !client.isOpen()) {
+			client = AsyncLdapClient.connect(url, bindDn, password, depth, timeoutMillis);
+			logger.info("Opened pipelined write connection to {} with {} outstanding writes", url, depth);
+		}
+		return client;
+	}
+
+	private String begin(String dn) throws NamingException {
+		String key = dn.trim().toLowerCase(Locale.US);
+		synchronized(monitor) {
+			while(inFlight.contains(key)) {
+				try {
+					monitor.wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedNamingException("Interrupted while waiting for a write to " + dn);
+				}
+			}
+			inFlight.add(key);
+		}
+		return key;
+	}
+
+	private void complete(String key, WriteListener listener, NamingException result) {
+		try {
+			listener.completed(result);
+		} catch(NamingException e) {
+			failure.compareAndSet(null, e);
+		} finally {
+			synchronized(monitor) {
+				inFlight.remove(key);
+				monitor.notifyAll();
+			}
+		}
+	}
+}
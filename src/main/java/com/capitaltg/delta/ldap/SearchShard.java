@@ -0,0 +1,85 @@
+package com.capitaltg.delta.ldap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+
+/**
+ * One disjoint slice of a full sync: a search base and an optional extra
+ * filter.  Shards are read in parallel, so they must not overlap.
+ */
+public class SearchShard {
+
+	private static final String PREFIX = "prefix";
+	private static final String PREFIX_CHARACTERS = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+	private final String base;
+	private final String filter;
+
+	public SearchShard(String base, String filter) {
+		this.base = base;
+		this.filter = filter;
+	}
+
+	/**
+	 * Parses a shard specification.  "prefix" splits on the first character
+	 * of the unique id, with one more shard for ids starting with anything
+	 * else.  Otherwise the specification is a semicolon separated list in
+	 * which filters such as (uSNChanged&lt;=500000) search the whole base
+	 * and anything else is taken as a container relative to the base, such
+	 * as ou=Sales.
+	 * 
+	 * @return no shards if the specification is empty
+	 */
+	public static List<SearchShard> parse(String specification, String uniqueid, String base) {
+		List<SearchShard> shards = new ArrayList<>();
+		if(Strings.isNullOrEmpty(specification)) {
+			return shards;
+		}
+		if(PREFIX.equalsIgnoreCase(specification.trim())) {
+			List<String> prefixes = PREFIX_CHARACTERS.chars()
+					.mapToObj( c -> "(" + uniqueid + "=" + (char)c + "*)")
+					.collect(Collectors.toList());
+			prefixes.forEach( prefix -> shards.add(new SearchShard(base, prefix)));
+			shards.add(new SearchShard(base, "(!(|" + String.join("", prefixes) + "))"));
+			return shards;
+		}
+		for(String part : Splitter.on(';').trimResults().omitEmptyStrings().split(specification)) {
+			if(part.startsWith("(")) {
+				shards.add(new SearchShard(base, part));
+			} else {
+				shards.add(new SearchShard(part + "," + base, null));
+			}
+		}
+		return shards;
+	}
+
+	public String getBase() {
+		return base;
+	}
+
+	/**
+	 * @return the extra filter, or null to read everything under the base
+	 */
+	public String getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @return a key that changes whenever the base or filter does, so that
+	 *         progress recorded for an edited shard is not reused
+	 */
+	public String getKey() {
+		return Hashing.murmur3_128().hashString(base + "\n" + Strings.nullToEmpty(filter), StandardCharsets.UTF_8).toString();
+	}
+
+	@Override
+	public String toString() {
+		return filter==null ? base : base + " " + filter;
+	}
+}
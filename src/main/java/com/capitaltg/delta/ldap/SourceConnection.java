@@ -0,0 +1,33 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.IOException;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+import com.capitaltg.delta.mapping.ConversionMap;
+import com.capitaltg.delta.sync.CheckpointStore;
+
+/**
+ * The side entries are read from and synced to an {@link LDAPConnection}.
+ */
+public interface SourceConnection {
+	public SyncResult syncAllUsers(LDAPConnection connection, long timestamp, ConversionMap conversionMap) throws NamingException, IOException;
+	public SyncResult syncAllGroups(LDAPConnection connection, long timestamp) throws NamingException, IOException;
+	public SyncResult fullSync(LDAPConnection connection, ConversionMap conversionMap, CheckpointStore checkpointStore) throws NamingException, IOException;
+	public void streamChanges(LDAPConnection connection, ConversionMap conversionMap, String mode, long since, long pollMillis, CheckpointStore checkpointStore) throws NamingException, IOException;
+	public void readMemberIds(String groupDn, UniqueIdHandler handler) throws NamingException, IOException;
+	public void readUniqueIds(boolean sorted, UniqueIdHandler handler) throws NamingException, IOException;
+	public int readEntries(String filter, ConversionMap conversionMap, EntryHandler handler) throws NamingException, IOException;
+	public String getUniqueIDByDN(String dn);
+
+	@FunctionalInterface
+	public interface UniqueIdHandler {
+		public void handle(String id, String dn) throws NamingException, IOException;
+	}
+
+	@FunctionalInterface
+	public interface EntryHandler {
+		public void handle(String id, SearchResult result) throws NamingException, IOException;
+	}
+}
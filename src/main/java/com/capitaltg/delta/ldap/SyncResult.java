@@ -0,0 +1,50 @@
+package com.capitaltg.delta.ldap;
+
+/**
+ * Outcome of one {@link SourceConnection#syncAllUsers} pass.
+ */
+public class SyncResult {
+
+	private final int entries;
+	private final long highWaterMark;
+	private final boolean complete;
+
+	public SyncResult(int entries, long highWaterMark, boolean complete) {
+		this.entries = entries;
+		this.highWaterMark = highWaterMark;
+		this.complete = complete;
+	}
+
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return newest change timestamp among the entries read, in
+	 *         milliseconds, or 0 if none carried one
+	 */
+	public long getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * @return false if the pass stopped early, in which case entries older
+	 *         than the high water mark may not have been read
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return the outcome of this pass and another one over the same
+	 *         period, which is only complete if both were
+	 */
+	public SyncResult and(SyncResult other) {
+		return new SyncResult(entries + other.entries, Math.max(highWaterMark, other.highWaterMark), complete && other.complete);
+	}
+
+	@Override
+	public String toString() {
+		return entries + " entries, high water mark " + highWaterMark + (complete ? "" : " (incomplete)");
+	}
+}
@@ -0,0 +1,108 @@
+package com.capitaltg.delta.ldap;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+
+import com.capitaltg.delta.ldap.EntryWriter.WriteListener;
+import com.capitaltg.delta.util.LongHashSet;
+
+/**
+ * Writes submitted by a job that runs beside the poller, such as a
+ * backfill, and that are awaited and fail apart from the poller's.
+ * Failures of these writes never reach {@link LDAPConnection#awaitSynced()},
+ * and it never hands the poller's to the job.
+ *
+ * The destination marks every entry the poller syncs while the batch is
+ * open as superseded.  The poller wrote the entry from a source entry at
+ * least as recent as the one the job read, or will pick up the changes
+ * in between, so a superseded entry is not written for the job.
+ */
+public class WriteBatch implements Closeable {
+
+	private final AtomicReference<NamingException> failure = new AtomicReference<>();
+	private final LongHashSet superseded = new LongHashSet();
+	private final Object monitor = new Object();
+	private final Runnable onClose;
+	private int pending;
+
+	WriteBatch(Runnable onClose) {
+		this.onClose = onClose;
+	}
+
+	/**
+	 * Waits until every write submitted so far has completed.
+	 *
+	 * @throws NamingException the first failure of a write of this batch
+	 *         since the previous call
+	 */
+	public void await() throws NamingException {
+		synchronized(monitor) {
+			while(pending>0) {
+				try {
+					monitor.wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedNamingException("Interrupted while waiting for batched writes");
+				}
+			}
+		}
+		NamingException e = failure.getAndSet(null);
+		if(e!=null) {
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops marking entries as superseded.
+	 */
+	@Override
+	public void close() {
+		onClose.run();
+	}
+
+	void begin() {
+		synchronized(monitor) {
+			pending++;
+		}
+	}
+
+	void end(NamingException e) {
+		if(e!=null) {
+			failure.compareAndSet(null, e);
+		}
+		synchronized(monitor) {
+			if(--pending==0) {
+				monitor.notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Counts the write as pending until the listener ran, and keeps what
+	 * it throws for await.
+	 */
+	WriteListener track(WriteListener listener) {
+		begin();
+		return result -> {
+			NamingException thrown = null;
+			try {
+				listener.completed(result);
+			} catch(NamingException e) {
+				thrown = e;
+			} finally {
+				end(thrown);
+			}
+		};
+	}
+
+	synchronized void supersede(long key) {
+		superseded.add(key);
+	}
+
+	synchronized boolean isSuperseded(long key) {
+		return superseded.contains(key);
+	}
+}
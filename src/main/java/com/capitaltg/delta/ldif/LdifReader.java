@@ -0,0 +1,189 @@
+package com.capitaltg.delta.ldif;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.Locale;
+
+import javax.naming.directory.Attribute;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the entries of an LDIF file (RFC 2849) one at a time, so files of
+ * any size are read in the memory of one entry.  Content records and
+ * change records of type add are returned as entries; other change
+ * records are skipped.  Base64 values that are not valid UTF-8, and values
+ * of attributes with the binary option, are returned as byte arrays.
+ */
+public class LdifReader implements Closeable {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final BufferedReader reader;
+	private String pending;
+	private long lineNumber;
+	private long skipped;
+
+	public LdifReader(Reader reader) {
+		this.reader = reader instanceof BufferedReader ? (BufferedReader)reader : new BufferedReader(reader);
+	}
+
+	public static LdifReader open(Path file) throws IOException {
+		return new LdifReader(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the next entry, or null at the end of the file
+	 */
+	public SearchResult next() throws IOException {
+		while(true) {
+			String dn = null;
+			BasicAttributes attributes = new BasicAttributes(true);
+			boolean skip = false;
+			String line;
+			while((line = readLine())!=null) {
+				if(line.isEmpty()) {
+					if(dn!=null) {
+						break;
+					}
+					continue;
+				}
+				if(skip) {
+					// the "-" lines of modify records have no colon
+					continue;
+				}
+				int colon = line.indexOf(':');
+				if(colon<=0) {
+					throw new IOException("Expected an attribute on line " + lineNumber + " but found " + line);
+				}
+				String name = line.substring(0, colon);
+				if(dn==null) {
+					if(name.equalsIgnoreCase("version")) {
+						continue;
+					} else if(!name.equalsIgnoreCase("dn")) {
+						throw new IOException("Expected a dn on line " + lineNumber + " but found " + name);
+					}
+					dn = value(name, line, colon).toString();
+				} else if(name.equalsIgnoreCase("control")) {
+					continue;
+				} else if(name.equalsIgnoreCase("changetype")) {
+					String changeType = value(name, line, colon).toString().trim();
+					if(!changeType.equalsIgnoreCase("add")) {
+						skip = true;
+					}
+				} else {
+					Attribute attribute = attributes.get(name);
+					if(attribute==null) {
+						attribute = new BasicAttribute(name);
+						attributes.put(attribute);
+					}
+					attribute.add(value(name, line, colon));
+				}
+			}
+			if(dn==null) {
+				return null;
+			} else if(skip) {
+				skipped++;
+				logger.debug("Skipped change record for {}", dn);
+				continue;
+			}
+			SearchResult result = new SearchResult(dn, null, attributes, true);
+			result.setNameInNamespace(dn);
+			return result;
+		}
+	}
+
+	/**
+	 * @return change records other than adds that were skipped
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/*
+	 * Joins folded lines and drops comments.
+	 */
+	private String readLine() throws IOException {
+		String line = pending!=null ? pending : nextPhysicalLine();
+		pending = null;
+		while(line!=null && line.startsWith("#")) {
+			line = nextPhysicalLine();
+			while(line!=null && line.startsWith(" ")) {
+				line = nextPhysicalLine();
+			}
+		}
+		if(line==null || line.isEmpty()) {
+			return line;
+		}
+		StringBuilder folded = null;
+		String next;
+		while((next = nextPhysicalLine())!=null && next.startsWith(" ")) {
+			if(folded==null) {
+				folded = new StringBuilder(line);
+			}
+			folded.append(next, 1, next.length());
+		}
+		pending = next;
+		return folded==null ? line : folded.toString();
+	}
+
+	private String nextPhysicalLine() throws IOException {
+		String line = reader.readLine();
+		if(line!=null) {
+			lineNumber++;
+		}
+		return line;
+	}
+
+	private Object value(String name, String line, int colon) throws IOException {
+		if(line.length()==colon+1) {
+			return "";
+		}
+		char type = line.charAt(colon+1);
+		if(type==':') {
+			byte[] bytes = Base64.getMimeDecoder().decode(line.substring(colon+2).trim());
+			return binary(name) ? bytes : text(bytes);
+		} else if(type=='<') {
+			byte[] bytes = Files.readAllBytes(Paths.get(URI.create(line.substring(colon+2).trim())));
+			return binary(name) ? bytes : text(bytes);
+		}
+		int start = colon+1;
+		while(start<line.length() && line.charAt(start)==' ') {
+			start++;
+		}
+		return line.substring(start);
+	}
+
+	private static boolean binary(String name) {
+		return name.toLowerCase(Locale.US).contains(";binary");
+	}
+
+	private static Object text(byte[] bytes) {
+		try {
+			return StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+					.decode(ByteBuffer.wrap(bytes)).toString();
+		} catch(CharacterCodingException e) {
+			return bytes;
+		}
+	}
+}
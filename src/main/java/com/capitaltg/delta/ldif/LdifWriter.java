@@ -0,0 +1,167 @@
+package com.capitaltg.delta.ldif;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+/**
+ * Writes LDIF content and change records (RFC 2849) as they come.  Values
+ * that are not safe strings are base64 encoded and long lines are folded,
+ * so the output can be replayed with ldapmodify.  Not thread safe.
+ */
+public class LdifWriter implements Closeable, Flushable {
+
+	private static final int LINE_LENGTH = 76;
+
+	private final Writer writer;
+
+	public LdifWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Creates or replaces the file and starts it with a version line.
+	 */
+	public static LdifWriter open(Path file) throws IOException {
+		LdifWriter writer = new LdifWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+		writer.writeLine("version", "1");
+		writer.writer.write('\n');
+		return writer;
+	}
+
+	public void writeEntry(String dn, Attributes attributes) throws IOException, NamingException {
+		writeLine("dn", dn);
+		writeAttributes(attributes);
+		writer.write('\n');
+	}
+
+	public void writeAdd(String dn, Attributes attributes) throws IOException, NamingException {
+		writeLine("dn", dn);
+		writeLine("changetype", "add");
+		writeAttributes(attributes);
+		writer.write('\n');
+	}
+
+	/**
+	 * A removal of an attribute without values deletes all its values.
+	 */
+	public void writeModify(String dn, ModificationItem[] items) throws IOException, NamingException {
+		writeLine("dn", dn);
+		writeLine("changetype", "modify");
+		for(ModificationItem item : items) {
+			Attribute attribute = item.getAttribute();
+			writeLine(operation(item.getModificationOp()), attribute.getID());
+			writeValues(attribute);
+			writer.write("-\n");
+		}
+		writer.write('\n');
+	}
+
+	public void writeDelete(String dn) throws IOException {
+		writeLine("dn", dn);
+		writeLine("changetype", "delete");
+		writer.write('\n');
+	}
+
+	public void writeComment(String comment) throws IOException {
+		writer.write("# ");
+		writer.write(comment.replace('\n', ' '));
+		writer.write('\n');
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	private void writeAttributes(Attributes attributes) throws IOException, NamingException {
+		NamingEnumeration<? extends Attribute> all = attributes.getAll();
+		while(all.hasMoreElements()) {
+			writeValues(all.nextElement());
+		}
+	}
+
+	private void writeValues(Attribute attribute) throws IOException, NamingException {
+		NamingEnumeration<?> values = attribute.getAll();
+		while(values.hasMoreElements()) {
+			Object value = values.nextElement();
+			if(value instanceof byte[]) {
+				writeFolded(attribute.getID() + ":: " + Base64.getEncoder().encodeToString((byte[])value));
+			} else if(value!=null) {
+				writeLine(attribute.getID(), value.toString());
+			}
+		}
+	}
+
+	private void writeLine(String name, String value) throws IOException {
+		if(isSafe(value)) {
+			writeFolded(name + ": " + value);
+		} else {
+			writeFolded(name + ":: " + Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8)));
+		}
+	}
+
+	private void writeFolded(String line) throws IOException {
+		if(line.length()<=LINE_LENGTH) {
+			writer.write(line);
+			writer.write('\n');
+			return;
+		}
+		writer.write(line, 0, LINE_LENGTH);
+		writer.write('\n');
+		for(int i=LINE_LENGTH; i<line.length(); i+=LINE_LENGTH-1) {
+			writer.write(' ');
+			writer.write(line, i, Math.min(LINE_LENGTH-1, line.length()-i));
+			writer.write('\n');
+		}
+	}
+
+	/*
+	 * SAFE-STRING of RFC 2849, less trailing spaces which some readers
+	 * drop.
+	 */
+	static boolean isSafe(String value) {
+		if(value.isEmpty()) {
+			return true;
+		}
+		char first = value.charAt(0);
+		if(first==' ' || first==':' || first=='<' || value.charAt(value.length()-1)==' ') {
+			return false;
+		}
+		for(int i=0; i<value.length(); i++) {
+			char c = value.charAt(i);
+			if(c==0 || c=='\n' || c=='\r' || c>0x7f) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String operation(int modificationOp) {
+		switch(modificationOp) {
+		case DirContext.ADD_ATTRIBUTE:
+			return "add";
+		case DirContext.REMOVE_ATTRIBUTE:
+			return "delete";
+		default:
+			return "replace";
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package com.capitaltg.delta.mapping;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fast path for plain <code>attributes.xyz</code> expressions.  Reads the
+ * source attribute directly instead of going through Groovy.
+ */
+public class AttributeCopyExpression implements MappingExpression {
+
+	private static final Pattern PATTERN = Pattern.compile("^\\s*attributes\\s*\\.\\s*([A-Za-z_]\\w*)\\s*$");
+
+	private final String expression;
+	private final String attribute;
+
+	private AttributeCopyExpression(String expression, String attribute) {
+		this.expression = expression;
+		this.attribute = attribute;
+	}
+
+	/**
+	 * @return a copy expression, or null if the expression is anything more
+	 *         than a single attribute reference
+	 */
+	public static AttributeCopyExpression parse(String expression) {
+		Matcher matcher = PATTERN.matcher(expression);
+		if(!matcher.matches()) {
+			return null;
+		}
+		return new AttributeCopyExpression(expression, matcher.group(1));
+	}
+
+	@Override
+	public Object evaluate(Map<String, Object> bindings) {
+		Map<?, ?> attributes = (Map<?, ?>)bindings.get("attributes");
+		return attributes == null ? null : attributes.get(attribute);
+	}
+
+	public String getAttribute() {
+		return attribute;
+	}
+
+	@Override
+	public Set<String> getSourceAttributes() {
+		return Collections.singleton(attribute.toLowerCase(Locale.US));
+	}
+
+	@Override
+	public Set<String> getTargetAttributes() {
+		return Collections.emptySet();
+	}
+
+	@Override
+	public String getExpression() {
+		return expression;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+}
@@ -0,0 +1,170 @@
+package com.capitaltg.delta.mapping;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import groovy.lang.GroovyClassLoader;
+
+/**
+ * Destination attribute name to compiled {@link MappingExpression}, in
+ * attribute name order.  Every expression is compiled when the map is
+ * built, so a syntax error in delta.properties fails at startup rather than
+ * on the first entry.
+ */
+public class ConversionMap {
+
+	private final Map<String, MappingExpression> expressions;
+	private final Set<String> sourceAttributes;
+	private final Set<String> targetAttributes;
+	private final long fingerprint;
+	private final boolean partial;
+
+	private ConversionMap(Map<String, MappingExpression> expressions, boolean partial) {
+		this.expressions = Collections.unmodifiableMap(expressions);
+		this.partial = partial;
+		Set<String> source = new HashSet<>();
+		Set<String> target = new HashSet<>();
+		for(Map.Entry<String, MappingExpression> e : expressions.entrySet()) {
+			source = union(source, e.getValue().getSourceAttributes());
+			target = union(target, e.getValue().getTargetAttributes());
+			if(target != null) {
+				target.add(e.getKey().toLowerCase(Locale.US));
+			}
+		}
+		this.sourceAttributes = source == null ? null : Collections.unmodifiableSet(source);
+		this.targetAttributes = target == null ? null : Collections.unmodifiableSet(target);
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		expressions.entrySet().forEach( e -> hasher.putUnencodedChars(e.getKey()).putChar('=')
+				.putUnencodedChars(e.getValue().getExpression()).putChar('\n'));
+		this.fingerprint = hasher.hash().asLong();
+	}
+
+	public static ConversionMap compile(Map<String, String> map) {
+		GroovyClassLoader classLoader = new GroovyClassLoader(ConversionMap.class.getClassLoader());
+		Map<String, MappingExpression> expressions = new LinkedHashMap<>();
+		new TreeMap<>(map).entrySet().forEach( e -> {
+			MappingExpression expression = AttributeCopyExpression.parse(e.getValue());
+			if(expression == null) {
+				expression = new GroovyMappingExpression(classLoader, e.getKey(), e.getValue());
+			}
+			expressions.put(e.getKey(), expression);
+		});
+		return new ConversionMap(expressions, false);
+	}
+
+	/**
+	 * @return a map of the expressions of all the maps, keyed by map and
+	 *         attribute, which reads every source attribute any of them
+	 *         reads.  Only meant for choosing what to read.
+	 */
+	public static ConversionMap combine(Collection<ConversionMap> maps) {
+		Map<String, MappingExpression> expressions = new LinkedHashMap<>();
+		int index = 0;
+		for(ConversionMap map : maps) {
+			for(Map.Entry<String, MappingExpression> e : map.entrySet()) {
+				expressions.put(index + ":" + e.getKey(), e.getValue());
+			}
+			index++;
+		}
+		return new ConversionMap(expressions, false);
+	}
+
+	/**
+	 * @return a map of only the expressions of the given attributes, for
+	 *         syncing those attributes alone.  See {@link #isPartial()}.
+	 */
+	public ConversionMap select(Collection<String> attributes) {
+		Map<String, MappingExpression> selected = new LinkedHashMap<>();
+		expressions.entrySet().stream().filter( e -> attributes.contains(e.getKey()))
+				.forEach( e -> selected.put(e.getKey(), e.getValue()));
+		return new ConversionMap(selected, true);
+	}
+
+	/**
+	 * @return attributes whose expression is new or differs from the one
+	 *         in previous
+	 */
+	public Set<String> changedSince(ConversionMap previous) {
+		Set<String> changed = new TreeSet<>();
+		expressions.entrySet().forEach( e -> {
+			MappingExpression expression = previous==null ? null : previous.get(e.getKey());
+			if(expression == null || !expression.getExpression().equals(e.getValue().getExpression())) {
+				changed.add(e.getKey());
+			}
+		});
+		return changed;
+	}
+
+	public Set<Map.Entry<String, MappingExpression>> entrySet() {
+		return expressions.entrySet();
+	}
+
+	public Set<String> keySet() {
+		return expressions.keySet();
+	}
+
+	public MappingExpression get(String attribute) {
+		return expressions.get(attribute);
+	}
+
+	/**
+	 * @return source attributes read by any expression, or null if at least
+	 *         one expression could not be analyzed
+	 */
+	public Set<String> getSourceAttributes() {
+		return sourceAttributes;
+	}
+
+	/**
+	 * @return mapped destination attributes plus the ones read through
+	 *         <code>target</code>, or null if at least one expression could
+	 *         not be analyzed
+	 */
+	public Set<String> getTargetAttributes() {
+		return targetAttributes;
+	}
+
+	/**
+	 * @return hash of every mapping, which changes whenever any expression
+	 *         does
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return whether this map leaves out attributes of the full mapping.
+	 *         Entries are not created from a partial map, and entries
+	 *         synced with one keep their fingerprints.
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+
+	public int size() {
+		return expressions.size();
+	}
+
+	private static Set<String> union(Set<String> set, Set<String> attributes) {
+		if(set == null || attributes == null) {
+			return null;
+		}
+		set.addAll(attributes);
+		return set;
+	}
+
+	@Override
+	public String toString() {
+		return expressions.toString();
+	}
+}
@@ -0,0 +1,117 @@
+package com.capitaltg.delta.mapping;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.codehaus.groovy.ast.CodeVisitorSupport;
+import org.codehaus.groovy.ast.ModuleNode;
+import org.codehaus.groovy.ast.expr.ArgumentListExpression;
+import org.codehaus.groovy.ast.expr.BinaryExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.MethodCallExpression;
+import org.codehaus.groovy.ast.expr.PropertyExpression;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.syntax.Types;
+
+/**
+ * Works out which source and target attributes a Groovy expression reads.
+ * Only constant references such as <code>attributes.sn</code>,
+ * <code>attributes['sn']</code> or <code>target.get('sn')</code> are
+ * understood.  Any other use of <code>attributes</code>, <code>target</code>
+ * or the raw <code>source</code> result makes that side unknown, reported
+ * as null.
+ */
+class ExpressionAnalyzer extends CodeVisitorSupport {
+
+	private static final String ATTRIBUTES = "attributes";
+	private static final String TARGET = "target";
+	private static final String SOURCE = "source";
+
+	private Set<String> sourceAttributes = new HashSet<>();
+	private Set<String> targetAttributes = new HashSet<>();
+
+	static ExpressionAnalyzer analyze(String expression) {
+		ExpressionAnalyzer analyzer = new ExpressionAnalyzer();
+		CompilationUnit unit = new CompilationUnit();
+		unit.addSource("analysis.groovy", expression);
+		unit.compile(Phases.CONVERSION);
+		ModuleNode module = unit.getAST().getModules().get(0);
+		if(!module.getMethods().isEmpty() || module.getClasses().size() > 1) {
+			analyzer.sourceAttributes = null;
+			analyzer.targetAttributes = null;
+			return analyzer;
+		}
+		module.getStatementBlock().visit(analyzer);
+		return analyzer;
+	}
+
+	Set<String> getSourceAttributes() {
+		return sourceAttributes == null ? null : Collections.unmodifiableSet(sourceAttributes);
+	}
+
+	Set<String> getTargetAttributes() {
+		return targetAttributes == null ? null : Collections.unmodifiableSet(targetAttributes);
+	}
+
+	@Override
+	public void visitPropertyExpression(PropertyExpression expression) {
+		if(!reference(expression.getObjectExpression(), expression.getProperty())) {
+			super.visitPropertyExpression(expression);
+		}
+	}
+
+	@Override
+	public void visitBinaryExpression(BinaryExpression expression) {
+		if(expression.getOperation().getType() != Types.LEFT_SQUARE_BRACKET
+				|| !reference(expression.getLeftExpression(), expression.getRightExpression())) {
+			super.visitBinaryExpression(expression);
+		}
+	}
+
+	@Override
+	public void visitMethodCallExpression(MethodCallExpression call) {
+		if("get".equals(call.getMethodAsString()) && call.getArguments() instanceof ArgumentListExpression) {
+			ArgumentListExpression arguments = (ArgumentListExpression)call.getArguments();
+			if(arguments.getExpressions().size() == 1 && reference(call.getObjectExpression(), arguments.getExpression(0))) {
+				return;
+			}
+		}
+		super.visitMethodCallExpression(call);
+	}
+
+	@Override
+	public void visitVariableExpression(VariableExpression expression) {
+		String name = expression.getName();
+		if(ATTRIBUTES.equals(name) || SOURCE.equals(name)) {
+			sourceAttributes = null;
+		} else if(TARGET.equals(name)) {
+			targetAttributes = null;
+		}
+	}
+
+	private boolean reference(Expression object, Expression property) {
+		if(!(object instanceof VariableExpression) || !(property instanceof ConstantExpression)
+				|| !(((ConstantExpression)property).getValue() instanceof String)) {
+			return false;
+		}
+		String name = ((VariableExpression)object).getName();
+		String attribute = ((String)((ConstantExpression)property).getValue()).toLowerCase(Locale.US);
+		if(ATTRIBUTES.equals(name)) {
+			if(sourceAttributes != null) {
+				sourceAttributes.add(attribute);
+			}
+			return true;
+		} else if(TARGET.equals(name)) {
+			if(targetAttributes != null) {
+				targetAttributes.add(attribute);
+			}
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,58 @@
+package com.capitaltg.delta.mapping;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+
+/**
+ * Groovy expression compiled to a script class once.  Each evaluation gets
+ * its own script instance and binding, so instances may be shared between
+ * threads.
+ */
+public class GroovyMappingExpression implements MappingExpression {
+
+	private final String expression;
+	private final Class<?> scriptClass;
+	private final Set<String> sourceAttributes;
+	private final Set<String> targetAttributes;
+
+	public GroovyMappingExpression(GroovyClassLoader classLoader, String name, String expression) {
+		this.expression = expression;
+		this.scriptClass = classLoader.parseClass(expression, "map_" + name.replaceAll("\\W", "_") + ".groovy");
+		ExpressionAnalyzer analyzer = ExpressionAnalyzer.analyze(expression);
+		this.sourceAttributes = analyzer.getSourceAttributes();
+		this.targetAttributes = analyzer.getTargetAttributes();
+	}
+
+	@Override
+	public Object evaluate(Map<String, Object> bindings) {
+		Script script = InvokerHelper.createScript(scriptClass, new Binding(new HashMap<>(bindings)));
+		return script.run();
+	}
+
+	@Override
+	public Set<String> getSourceAttributes() {
+		return sourceAttributes;
+	}
+
+	@Override
+	public Set<String> getTargetAttributes() {
+		return targetAttributes;
+	}
+
+	@Override
+	public String getExpression() {
+		return expression;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+}
@@ -0,0 +1,28 @@
+package com.capitaltg.delta.mapping;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A single right hand side of a <code>map.*</code> entry, prepared once and
+ * evaluated for every synchronized entry.
+ */
+public interface MappingExpression {
+
+	public Object evaluate(Map<String, Object> bindings);
+
+	public String getExpression();
+
+	/**
+	 * @return lower case names of the source attributes the expression
+	 *         reads, or null if it may read any of them
+	 */
+	public Set<String> getSourceAttributes();
+
+	/**
+	 * @return lower case names of the destination attributes the expression
+	 *         reads, or null if it may read any of them
+	 */
+	public Set<String> getTargetAttributes();
+
+}
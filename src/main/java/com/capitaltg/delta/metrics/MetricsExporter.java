@@ -0,0 +1,167 @@
+package com.capitaltg.delta.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publishes a {@link MetricsRegistry} as a JMX bean and on a local HTTP
+ * endpoint in Prometheus text format.  Both are off by default; while
+ * they are off nothing ever reads the registry.
+ */
+public class MetricsExporter {
+
+	private static final String OBJECT_NAME = "com.capitaltg.delta:type=Metrics";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final MetricsRegistry registry;
+	private boolean jmx;
+	private String httphost = "127.0.0.1";
+	private int httpport;
+	private HttpServer server;
+	private ObjectName objectName;
+
+	public MetricsExporter(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@PostConstruct
+	public void init() throws IOException, JMException {
+		if(jmx) {
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(OBJECT_NAME);
+			mbeanServer.registerMBean(new RegistryMBean(), objectName);
+			logger.info("Publishing metrics as JMX bean {}", objectName);
+		}
+		if(httpport>0) {
+			server = HttpServer.create(new InetSocketAddress(Strings.isNullOrEmpty(httphost) ? "127.0.0.1" : httphost, httpport), 0);
+			server.createContext("/metrics", this::handle);
+			server.start();
+			logger.info("Publishing metrics on http://{}:{}/metrics", httphost, httpport);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() throws JMException {
+		if(server!=null) {
+			server.stop(0);
+			server = null;
+		}
+		if(objectName!=null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if(!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			StringWriter body = new StringWriter();
+			registry.writePrometheus(body);
+			byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(200, bytes.length);
+			try(OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	public void setJmx(boolean jmx) {
+		this.jmx = jmx;
+	}
+
+	public void setHttphost(String httphost) {
+		this.httphost = httphost;
+	}
+
+	/**
+	 * @param httpport port of the /metrics endpoint, or 0 for none
+	 */
+	public void setHttpport(int httpport) {
+		this.httpport = httpport;
+	}
+
+	/*
+	 * Exposes every sample as a read-only attribute named like its
+	 * Prometheus series.  The attribute list follows the registry, so new
+	 * failure counters show up without registering anything.
+	 */
+	private class RegistryMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Double value = registry.samples().get(attribute);
+			if(value==null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			Map<String, Double> samples = registry.samples();
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes) {
+				if(samples.containsKey(attribute)) {
+					list.add(new Attribute(attribute, samples.get(attribute)));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName() + " is read only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			throw new ReflectionException(new NoSuchMethodException(actionName), "DeltaSync metrics have no operations");
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			MBeanAttributeInfo[] attributes = registry.samples().keySet().stream()
+					.map( name -> new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false))
+					.toArray(MBeanAttributeInfo[]::new);
+			return new MBeanInfo(MetricsRegistry.class.getName(), "DeltaSync metrics", attributes, null, null, null);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.capitaltg.delta.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, timers and gauges of one DeltaSync process.  Every metric
+ * belongs to a family with a name and help text and is told apart from
+ * its siblings by labels, given as alternating names and values.
+ * 
+ * Callers look up their metrics once and keep them; only failure
+ * counters, whose labels are not known up front, are looked up when they
+ * are incremented.  Nothing is computed until an exporter asks for
+ * {@link #samples()} or {@link #writePrometheus(Writer)}.
+ */
+public class MetricsRegistry {
+
+	private enum Type { counter, gauge, histogram }
+
+	private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+	public LongAdder counter(String name, String help, String... labels) {
+		return (LongAdder)family(name, help, Type.counter).metrics.computeIfAbsent(labels(labels), k -> new LongAdder());
+	}
+
+	public Timer timer(String name, String help, String... labels) {
+		return (Timer)family(name, help, Type.histogram).metrics.computeIfAbsent(labels(labels), k -> new Timer());
+	}
+
+	/**
+	 * Registers a gauge read when the registry is exported.  A gauge
+	 * registered again with the same labels replaces the previous one.
+	 */
+	public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+		family(name, help, Type.gauge).metrics.put(labels(labels), value);
+	}
+
+	/**
+	 * Current value of every sample, keyed by its name and labels in
+	 * Prometheus notation.
+	 */
+	public Map<String, Double> samples() {
+		Map<String, Double> samples = new TreeMap<>();
+		forEachSample((name, labels, value) -> samples.put(name + braces(labels), value));
+		return samples;
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text exposition format.
+	 */
+	public void writePrometheus(Writer writer) throws IOException {
+		for(Family family : families.values()) {
+			writer.write("# HELP " + family.name + " " + family.help + "\n");
+			writer.write("# TYPE " + family.name + " " + family.type + "\n");
+			StringBuilder lines = new StringBuilder();
+			family.forEachSample((name, labels, value) -> 
+					lines.append(name).append(braces(labels)).append(' ').append(format(value)).append('\n'));
+			writer.write(lines.toString());
+		}
+	}
+
+	private void forEachSample(SampleVisitor visitor) {
+		families.values().forEach( family -> family.forEachSample(visitor));
+	}
+
+	private Family family(String name, String help, Type type) {
+		Family family = families.computeIfAbsent(name, k -> new Family(name, help, type));
+		if(family.type!=type) {
+			throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+		}
+		return family;
+	}
+
+	private static String labels(String... labels) {
+		if(labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be name and value pairs");
+		}
+		StringBuilder builder = new StringBuilder();
+		for(int i=0; i<labels.length; i+=2) {
+			if(builder.length()>0) {
+				builder.append(',');
+			}
+			builder.append(labels[i]).append("=\"").append(escape(labels[i+1])).append('"');
+		}
+		return builder.toString();
+	}
+
+	private static String escape(String value) {
+		return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String braces(String labels) {
+		return labels.isEmpty() ? "" : "{" + labels + "}";
+	}
+
+	private static String format(double value) {
+		if(Double.isNaN(value)) {
+			return "NaN";
+		} else if(Double.isInfinite(value)) {
+			return value>0 ? "+Inf" : "-Inf";
+		} else if(value==Math.rint(value) && Math.abs(value)<1e15) {
+			return Long.toString((long)value);
+		}
+		return BigDecimal.valueOf(value).toPlainString();
+	}
+
+	private static class Family {
+
+		private final String name;
+		private final String help;
+		private final Type type;
+		private final ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<>();
+
+		private Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+
+		private void forEachSample(SampleVisitor visitor) {
+			metrics.forEach( (labels, metric) -> {
+				switch(type) {
+				case counter:
+					visitor.visit(name, labels, ((LongAdder)metric).sum());
+					break;
+				case gauge:
+					visitor.visit(name, labels, ((DoubleSupplier)metric).getAsDouble());
+					break;
+				case histogram:
+					Timer timer = (Timer)metric;
+					String prefix = labels.isEmpty() ? "" : labels + ",";
+					long[] buckets = timer.getCumulativeBuckets();
+					for(int i=0; i<buckets.length; i++) {
+						visitor.visit(name + "_bucket", prefix + "le=\"" + format(Timer.BUCKETS[i]) + "\"", buckets[i]);
+					}
+					long count = timer.getCount();
+					visitor.visit(name + "_bucket", prefix + "le=\"+Inf\"", count);
+					visitor.visit(name + "_sum", labels, timer.getSumSeconds());
+					visitor.visit(name + "_count", labels, count);
+					break;
+				}
+			});
+		}
+	}
+
+	@FunctionalInterface
+	private interface SampleVisitor {
+		public void visit(String name, String labels, double value);
+	}
+}
@@ -0,0 +1,71 @@
+package com.capitaltg.delta.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets.  Recording is a couple of
+ * {@link LongAdder} increments, so timers can stay on the hot path when
+ * nobody is scraping them.
+ */
+public class Timer {
+
+	static final double[] BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+			1, 2.5, 5, 10, 30, 60, 300, 900 };
+
+	private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+	static {
+		for(int i=0; i<BUCKETS.length; i++) {
+			BUCKET_NANOS[i] = (long)(BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS.length];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumNanos = new LongAdder();
+
+	Timer() {
+		for(int i=0; i<buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		count.increment();
+		sumNanos.add(nanos);
+		for(int i=0; i<BUCKET_NANOS.length; i++) {
+			if(nanos<=BUCKET_NANOS[i]) {
+				buckets[i].increment();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Records the time since startNanos, taken from {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getSumSeconds() {
+		return sumNanos.sum() / 1e9;
+	}
+
+	/*
+	 * Cumulative counts for each bucket, as Prometheus expects them.
+	 */
+	long[] getCumulativeBuckets() {
+		long[] cumulative = new long[buckets.length];
+		long total = 0L;
+		for(int i=0; i<buckets.length; i++) {
+			total += buckets[i].sum();
+			cumulative[i] = total;
+		}
+		return cumulative;
+	}
+}
@@ -0,0 +1,80 @@
+package com.capitaltg.delta.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Small durable key/value file.  Every change rewrites a temporary file,
+ * syncs it and renames it over the previous one, so a crash leaves either
+ * the old or the new contents but never a partial file.
+ */
+public class CheckpointStore {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Path file;
+	private final Properties properties = new Properties();
+
+	public CheckpointStore(String file) throws IOException {
+		this.file = Paths.get(file).toAbsolutePath();
+		if(Files.exists(this.file)) {
+			try(InputStream in = Files.newInputStream(this.file)) {
+				properties.load(in);
+			}
+			logger.info("Loaded checkpoints from {}: {}", this.file, properties);
+		} else {
+			Files.createDirectories(this.file.getParent());
+		}
+	}
+
+	public synchronized String get(String key) {
+		return properties.getProperty(key);
+	}
+
+	public synchronized long getLong(String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	public synchronized void put(String key, String value) throws IOException {
+		properties.setProperty(key, value);
+		save();
+	}
+
+	public synchronized void putLong(String key, long value) throws IOException {
+		put(key, Long.toString(value));
+	}
+
+	public synchronized void remove(String key) throws IOException {
+		if(properties.remove(key) != null) {
+			save();
+		}
+	}
+
+	private void save() throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try(OutputStream out = Files.newOutputStream(temp)) {
+			properties.store(out, "DeltaSync checkpoints");
+		}
+		try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
@@ -0,0 +1,213 @@
+package com.capitaltg.delta.sync;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.NamingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.sync.SyncWorkerPool.SyncTask;
+
+/**
+ * Holds sync tasks for a short window so that repeated observations of the
+ * same unique id collapse into the latest one.  A key is released once the
+ * window has passed since it was first held, however often it was
+ * replaced, so an entry that keeps changing is still written once per
+ * window.  Keys are released one at a time in the order they were first
+ * held, and a key observed again after its release is held anew, so the
+ * order of writes per key is kept.
+ *
+ * When more than maxSize keys are held the oldest is released on the
+ * calling thread, which bounds memory during bulk loads.
+ *
+ * Tasks stay held from one poll to the next, so an entry seen again by
+ * the next poll replaces its earlier version.  {@link #releaseDue()} tells
+ * the poller since when tasks are held, so that it does not checkpoint
+ * past changes that are not written yet.
+ */
+public class CoalescingBuffer {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final long windowMillis;
+	private final int maxSize;
+	private final Sink sink;
+	private final Map<String, Held> held = new LinkedHashMap<>();
+	private final Object releaseLock = new Object();
+	private final AtomicReference<NamingException> failure = new AtomicReference<>();
+	private final Thread releaser;
+	private long absorbed;
+
+	public CoalescingBuffer(String name, long windowMillis, int maxSize, Sink sink) {
+		this.windowMillis = windowMillis;
+		this.maxSize = maxSize;
+		this.sink = sink;
+		releaser = new Thread(this::releaseWhenDue, name);
+		releaser.setDaemon(true);
+		releaser.start();
+	}
+
+	/**
+	 * Holds the task, replacing one held for the same key.
+	 *
+	 * @return whether an earlier task for the key was replaced
+	 */
+	public boolean put(String key, SyncTask task) throws NamingException {
+		String normalized = key==null ? "" : key.toLowerCase(Locale.US);
+		boolean full;
+		synchronized(held) {
+			Held previous = held.get(normalized);
+			if(previous!=null) {
+				previous.task = task;
+				absorbed++;
+				return true;
+			}
+			boolean wasEmpty = held.isEmpty();
+			held.put(normalized, new Held(key, task, System.currentTimeMillis(), windowMillis));
+			full = held.size()>maxSize;
+			if(wasEmpty) {
+				held.notifyAll();
+			}
+		}
+		if(full) {
+			release(false, true);
+		}
+		return false;
+	}
+
+	/**
+	 * Releases every held task now.
+	 *
+	 * @throws NamingException the first failure reported by the sink since
+	 *         the previous call
+	 */
+	public void flush() throws NamingException {
+		release(true, false);
+		throwFailure();
+	}
+
+	/**
+	 * Releases the tasks that are due and leaves the others held.  Tasks
+	 * released by the releaser thread meanwhile have been handed to the
+	 * sink when this returns.
+	 *
+	 * @return when the oldest task still held was first held, or
+	 *         Long.MAX_VALUE if none is
+	 * @throws NamingException the first failure reported by the sink since
+	 *         the previous call
+	 */
+	public long releaseDue() throws NamingException {
+		long heldSince;
+		synchronized(releaseLock) {
+			release(false, false);
+			synchronized(held) {
+				heldSince = held.isEmpty() ? Long.MAX_VALUE : held.values().iterator().next().heldAt;
+			}
+		}
+		throwFailure();
+		return heldSince;
+	}
+
+	/**
+	 * @return observations replaced by a later one since the previous call
+	 */
+	public long getAbsorbed() {
+		synchronized(held) {
+			long result = absorbed;
+			absorbed = 0L;
+			return result;
+		}
+	}
+
+	public int size() {
+		synchronized(held) {
+			return held.size();
+		}
+	}
+
+	public void shutdown() {
+		releaser.interrupt();
+	}
+
+	/*
+	 * Takes keys off the front while they are due, or all of them, or just
+	 * the oldest, and hands each to the sink.  The release lock keeps
+	 * releases in the order keys were taken.
+	 */
+	private void release(boolean all, boolean oldest) throws NamingException {
+		synchronized(releaseLock) {
+			while(true) {
+				Held next;
+				synchronized(held) {
+					Iterator<Held> iterator = held.values().iterator();
+					if(!iterator.hasNext()) {
+						return;
+					}
+					next = iterator.next();
+					if(!all && !oldest && next.due>System.currentTimeMillis()) {
+						return;
+					}
+					iterator.remove();
+				}
+				sink.release(next.key, next.task);
+				if(oldest) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void throwFailure() throws NamingException {
+		NamingException e = failure.getAndSet(null);
+		if(e!=null) {
+			throw e;
+		}
+	}
+
+	private void releaseWhenDue() {
+		while(!Thread.currentThread().isInterrupted()) {
+			try {
+				synchronized(held) {
+					long wait = held.isEmpty() ? 0L : held.values().iterator().next().due-System.currentTimeMillis();
+					if(held.isEmpty() || wait>0) {
+						held.wait(held.isEmpty() ? 0L : wait);
+						continue;
+					}
+				}
+				release(false, false);
+			} catch(InterruptedException e) {
+				return;
+			} catch(NamingException e) {
+				logger.error("Failed while releasing coalesced entry", e);
+				failure.compareAndSet(null, e);
+			} catch(RuntimeException e) {
+				logger.error("Unexpected failure while releasing coalesced entry", e);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	public interface Sink {
+		public void release(String key, SyncTask task) throws NamingException;
+	}
+
+	private static class Held {
+
+		private final String key;
+		private final long heldAt;
+		private final long due;
+		private SyncTask task;
+
+		private Held(String key, SyncTask task, long heldAt, long windowMillis) {
+			this.key = key;
+			this.task = task;
+			this.heldAt = heldAt;
+			this.due = heldAt + windowMillis;
+		}
+	}
+}
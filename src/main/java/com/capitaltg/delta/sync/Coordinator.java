@@ -0,0 +1,29 @@
+package com.capitaltg.delta.sync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.SortedMap;
+
+/**
+ * Keeps track of the DeltaSync nodes that share the work of one source.
+ * A node is a member while it holds a lease, which it renews with every
+ * heartbeat and gives up when closed.
+ */
+public interface Coordinator extends Closeable {
+
+	public String getNode();
+
+	/**
+	 * @return how long a lease lasts without a heartbeat
+	 */
+	public long getLeaseMillis();
+
+	/**
+	 * Takes or renews this node's lease and publishes its checkpoint.
+	 *
+	 * @return the last published checkpoint of every node holding a lease,
+	 *         this one included, by node
+	 */
+	public SortedMap<String, Long> heartbeat(long highWaterMark) throws IOException;
+
+}
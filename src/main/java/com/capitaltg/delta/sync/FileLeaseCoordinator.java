@@ -0,0 +1,172 @@
+package com.capitaltg.delta.sync;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+
+/**
+ * Coordinator for nodes that share a directory, such as an NFS mount, or
+ * that run on one machine for testing.  Every node keeps a lease file with
+ * its expiry and checkpoint, replaced atomically on every heartbeat.
+ * Heartbeats take an exclusive lock on the directory, so no two nodes
+ * ever see a different set of leases while one is being renewed.  Expired
+ * leases are removed by whoever finds them.  Clocks of the nodes must
+ * agree to well within the lease.
+ */
+public class FileLeaseCoordinator implements Coordinator {
+
+	private static final String LOCK = "coordinator.lock";
+	private static final String SUFFIX = ".lease";
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final String instance = UUID.randomUUID().toString();
+	private Path directory;
+	private String node;
+	private long leaseseconds = 30;
+
+	@PostConstruct
+	public void init() throws IOException {
+		Files.createDirectories(directory);
+		if(Strings.isNullOrEmpty(node)) {
+			node = ManagementFactory.getRuntimeMXBean().getName();
+		}
+		node = node.replaceAll("[^\\w.@-]", "_");
+		logger.info("Initialized coordinator in {} as node {} with leases of {} seconds", directory, node, leaseseconds);
+	}
+
+	@Override
+	public String getNode() {
+		return node;
+	}
+
+	@Override
+	public long getLeaseMillis() {
+		return TimeUnit.SECONDS.toMillis(leaseseconds);
+	}
+
+	/*
+	 * A live lease of the same node name from another process means the
+	 * name is taken, which would make both think they own the same
+	 * partitions.
+	 */
+	@Override
+	public SortedMap<String, Long> heartbeat(long highWaterMark) throws IOException {
+		try(FileChannel channel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			FileLock lock = channel.lock();
+			try {
+				long now = System.currentTimeMillis();
+				SortedMap<String, Long> nodes = new TreeMap<>();
+				try(DirectoryStream<Path> leases = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+					for(Path lease : leases) {
+						Properties properties = read(lease);
+						if(properties==null) {
+							continue;
+						}
+						String owner = properties.getProperty("node");
+						if(Long.parseLong(properties.getProperty("expires", "0"))<now) {
+							Files.deleteIfExists(lease);
+							logger.info("Lease of node {} expired", owner);
+						} else if(node.equals(owner) && !instance.equals(properties.getProperty("instance"))) {
+							throw new IOException("Node " + node + " is already running elsewhere");
+						} else {
+							nodes.put(owner, Long.parseLong(properties.getProperty("highWaterMark", "0")));
+						}
+					}
+				}
+				Properties properties = new Properties();
+				properties.setProperty("node", node);
+				properties.setProperty("instance", instance);
+				properties.setProperty("expires", Long.toString(now+getLeaseMillis()));
+				properties.setProperty("highWaterMark", Long.toString(highWaterMark));
+				Path temporary = directory.resolve(node + SUFFIX + ".tmp");
+				try(Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+					properties.store(writer, null);
+				}
+				Files.move(temporary, lease(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				nodes.put(node, highWaterMark);
+				return nodes;
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Gives up the lease, so the other nodes take over at once instead of
+	 * when it expires.
+	 */
+	@Override
+	public void close() throws IOException {
+		try(FileChannel channel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			FileLock lock = channel.lock();
+			try {
+				Properties properties = read(lease());
+				if(properties!=null && instance.equals(properties.getProperty("instance"))) {
+					Files.deleteIfExists(lease());
+					logger.info("Gave up the lease of node {}", node);
+				}
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	private Path lease() {
+		return directory.resolve(node + SUFFIX);
+	}
+
+	private static Properties read(Path lease) throws IOException {
+		Properties properties = new Properties();
+		try(Reader reader = Files.newBufferedReader(lease, StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		} catch(NoSuchFileException e) {
+			return null;
+		}
+		return properties.getProperty("node")==null ? null : properties;
+	}
+
+	public void setDirectory(String directory) {
+		this.directory = Paths.get(directory);
+	}
+
+	/**
+	 * @param node name of this node, unique among the nodes sharing the
+	 *        directory, or empty for the process id and host name
+	 */
+	public void setNode(String node) {
+		this.node = node;
+	}
+
+	public void setLeaseseconds(long leaseseconds) {
+		this.leaseseconds = leaseseconds;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(directory);
+	}
+}
@@ -0,0 +1,201 @@
+package com.capitaltg.delta.sync;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Memory-mapped hash table from a 64-bit key (the hashed unique id) to the
+ * fingerprint of the source entry last synced and of the destination state
+ * written for it.  Uses open addressing with linear probing, so lookups
+ * touch one or two cache lines and never allocate.  The table doubles into
+ * a new file once it is 70% full.
+ * 
+ * Slots are 24 bytes: key, source fingerprint, destination fingerprint.
+ * A key of 0 marks an empty slot.
+ */
+public class FingerprintStore {
+
+	private static final long MAGIC = 0x44454c5441465031L;
+	private static final int HEADER = 16;
+	private static final int SLOT = 24;
+	private static final int MINIMUM_CAPACITY = 1024;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Path file;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int size;
+
+	public FingerprintStore(String file, int initialCapacity) throws IOException {
+		this.file = Paths.get(file).toAbsolutePath();
+		if(Files.exists(this.file)) {
+			buffer = map(this.file, Files.size(this.file));
+			if(buffer.getLong(0) != MAGIC) {
+				throw new IOException(file + " is not a fingerprint store");
+			}
+			capacity = buffer.getInt(8);
+			size = buffer.getInt(12);
+			logger.info("Loaded {} fingerprints from {}", size, this.file);
+		} else {
+			Files.createDirectories(this.file.getParent());
+			capacity = Integer.highestOneBit(Math.max(MINIMUM_CAPACITY, initialCapacity) * 2 - 1);
+			buffer = create(this.file, capacity);
+		}
+	}
+
+	public static long key(String id) {
+		long key = Hashing.murmur3_128().hashString(id.toLowerCase(Locale.US), StandardCharsets.UTF_8).asLong();
+		return key == 0L ? 1L : key;
+	}
+
+	public synchronized boolean matchesSource(long key, long sourceFingerprint) {
+		int slot = find(key);
+		return slot >= 0 && buffer.getLong(offset(slot) + 8) == sourceFingerprint;
+	}
+
+	/**
+	 * @return the destination fingerprint recorded for the key, or 0
+	 */
+	public synchronized long getDestination(long key) {
+		int slot = find(key);
+		return slot < 0 ? 0L : buffer.getLong(offset(slot) + 16);
+	}
+
+	public synchronized void put(long key, long sourceFingerprint, long destinationFingerprint) throws IOException {
+		if((size + 1) * 10L > capacity * 7L) {
+			grow();
+		}
+		int slot = probe(key);
+		int offset = offset(slot);
+		if(buffer.getLong(offset) == 0L) {
+			size++;
+			buffer.putInt(12, size);
+		}
+		buffer.putLong(offset, key);
+		buffer.putLong(offset + 8, sourceFingerprint);
+		buffer.putLong(offset + 16, destinationFingerprint);
+	}
+
+	/*
+	 * Removes the key and shifts back any entries that probed past it, so
+	 * no tombstones are needed.
+	 */
+	public synchronized void remove(long key) {
+		int slot = find(key);
+		if(slot < 0) {
+			return;
+		}
+		int mask = capacity - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while(buffer.getLong(offset(next)) != 0L) {
+			int home = home(buffer.getLong(offset(next)));
+			if(((next - home) & mask) >= ((next - hole) & mask)) {
+				copySlot(next, hole);
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		clearSlot(hole);
+		size--;
+		buffer.putInt(12, size);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized void flush() {
+		buffer.force();
+	}
+
+	private int find(long key) {
+		int slot = probe(key);
+		return buffer.getLong(offset(slot)) == key ? slot : -1;
+	}
+
+	private int probe(long key) {
+		int mask = capacity - 1;
+		int slot = home(key);
+		while(true) {
+			long current = buffer.getLong(offset(slot));
+			if(current == 0L || current == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private int home(long key) {
+		return (int)(key ^ (key >>> 32)) & (capacity - 1);
+	}
+
+	private static int offset(int slot) {
+		return HEADER + slot * SLOT;
+	}
+
+	private void copySlot(int from, int to) {
+		for(int i=0; i<SLOT; i+=8) {
+			buffer.putLong(offset(to) + i, buffer.getLong(offset(from) + i));
+		}
+	}
+
+	private void clearSlot(int slot) {
+		for(int i=0; i<SLOT; i+=8) {
+			buffer.putLong(offset(slot) + i, 0L);
+		}
+	}
+
+	private void grow() throws IOException {
+		MappedByteBuffer old = buffer;
+		int oldCapacity = capacity;
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.deleteIfExists(temp);
+		capacity = oldCapacity * 2;
+		buffer = create(temp, capacity);
+		size = 0;
+		for(int slot=0; slot<oldCapacity; slot++) {
+			int offset = offset(slot);
+			long key = old.getLong(offset);
+			if(key != 0L) {
+				put(key, old.getLong(offset + 8), old.getLong(offset + 16));
+			}
+		}
+		buffer.force();
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Grew fingerprint store {} to {} slots", file, capacity);
+	}
+
+	private static MappedByteBuffer create(Path path, int capacity) throws IOException {
+		MappedByteBuffer buffer = map(path, HEADER + (long)capacity * SLOT);
+		buffer.putLong(0, MAGIC);
+		buffer.putInt(8, capacity);
+		buffer.putInt(12, 0);
+		return buffer;
+	}
+
+	private static MappedByteBuffer map(Path path, long length) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
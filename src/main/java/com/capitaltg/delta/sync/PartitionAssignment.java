@@ -0,0 +1,231 @@
+package com.capitaltg.delta.sync;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.metrics.MetricsRegistry;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Divides unique ids among the nodes known to a {@link Coordinator}.  Ids
+ * hash into a fixed number of partitions, and partitions are placed on a
+ * consistent hash ring of the nodes, so a node joining or leaving only
+ * moves the partitions next to it on the ring.
+ *
+ * A node that gains partitions has to catch up on the changes their
+ * previous owner may not have written.  Nodes publish their checkpoint
+ * with every heartbeat, so the catch-up starts at the oldest checkpoint
+ * of the previous owners rather than with a full sync.  A previous owner
+ * that never published one may not have written anything, so that
+ * catch-up starts at the epoch, which makes it a full pass.  Writes of
+ * both owners may overlap for a heartbeat, which is harmless since writes
+ * are idempotent.
+ *
+ * A node whose lease was not renewed for two thirds of the lease owns
+ * nothing, since the other nodes may already have taken its partitions
+ * over.  Once it renews its lease again it catches up as if it had just
+ * joined, and from when it stopped writing.
+ */
+public class PartitionAssignment {
+
+	private static final int VIRTUAL_NODES = 64;
+	private static final HashFunction HASH = Hashing.murmur3_32();
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Coordinator coordinator;
+	private int partitions = 1024;
+	private MetricsRegistry metrics = new MetricsRegistry();
+	private ScheduledExecutorService heartbeats;
+	private volatile String[] owners;
+	private volatile SortedMap<String, Long> nodes;
+	private volatile long highWaterMark;
+	private volatile long ownedUntil;
+	private long catchUp;
+
+	public PartitionAssignment(Coordinator coordinator) {
+		this.coordinator = coordinator;
+	}
+
+	@PostConstruct
+	public void init() {
+		try {
+			heartbeat();
+		} catch(IOException e) {
+			throw new IllegalStateException("Failed to join through coordinator "+coordinator, e);
+		}
+		long period = Math.max(1000L, coordinator.getLeaseMillis()/3);
+		heartbeats = Executors.newSingleThreadScheduledExecutor( runnable -> {
+			Thread thread = new Thread(runnable, "heartbeat-"+coordinator.getNode());
+			thread.setDaemon(true);
+			return thread;
+		});
+		heartbeats.scheduleWithFixedDelay(() -> {
+			try {
+				heartbeat();
+			} catch(IOException | RuntimeException e) {
+				logger.error("Failed to renew the lease of node "+coordinator.getNode(), e);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+		metrics.gauge("deltasync_cluster_nodes", "Nodes sharing the source", () -> nodes.size());
+		metrics.gauge("deltasync_partitions_owned", "Partitions of the unique ids this node writes", () -> owned());
+		logger.info("Initialized partitioning of unique ids into {} partitions", partitions);
+	}
+
+	/**
+	 * @return whether this node writes the entry with the unique id
+	 */
+	public boolean owns(String id) {
+		String[] current = owners;
+		if(current==null) {
+			return true;
+		}
+		return !lapsed() && coordinator.getNode().equals(current[partition(id)]);
+	}
+
+	/**
+	 * @return whether this node does the work that only one node should,
+	 *         such as reconciling orphans
+	 */
+	public boolean isLeader() {
+		SortedMap<String, Long> current = nodes;
+		if(current==null) {
+			return true;
+		}
+		return !lapsed() && current.firstKey().equals(coordinator.getNode());
+	}
+
+	/**
+	 * @return the checkpoint from which gained partitions still have to be
+	 *         caught up, or 0 if there are none
+	 */
+	public synchronized long getCatchUp() {
+		return catchUp;
+	}
+
+	/**
+	 * Called after a complete pass over changes since startTime.
+	 */
+	public synchronized void caughtUp(long startTime) {
+		if(catchUp>0L && startTime<=catchUp) {
+			logger.info("Caught up on gained partitions");
+			catchUp = 0L;
+		}
+	}
+
+	/**
+	 * @param highWaterMark this node's checkpoint, published with the next
+	 *        heartbeat
+	 */
+	public void setHighWaterMark(long highWaterMark) {
+		this.highWaterMark = highWaterMark;
+	}
+
+	public void shutdown() throws IOException {
+		if(heartbeats!=null) {
+			heartbeats.shutdownNow();
+		}
+		coordinator.close();
+	}
+
+	/*
+	 * The lease counts from before it was asked for, and ownership ends a
+	 * third of the lease before the lease does, to leave room for clocks
+	 * that differ a little.
+	 */
+	synchronized void heartbeat() throws IOException {
+		long started = System.currentTimeMillis();
+		boolean lapsed = owners!=null && lapsed();
+		long lapsedAt = ownedUntil;
+		SortedMap<String, Long> live = coordinator.heartbeat(highWaterMark);
+		ownedUntil = started + coordinator.getLeaseMillis()*2/3;
+		SortedMap<String, Long> previousNodes = nodes;
+		if(!lapsed && previousNodes!=null && previousNodes.keySet().equals(live.keySet())) {
+			nodes = live;
+			return;
+		}
+		if(lapsed) {
+			logger.warn("Lease of node {} was renewed after it lapsed, catching up as a new node", coordinator.getNode());
+		}
+		String self = coordinator.getNode();
+		String[] previousOwners = lapsed ? null : owners;
+		if(previousOwners==null) {
+			previousNodes = new TreeMap<>(live);
+			previousNodes.remove(self);
+			previousOwners = previousNodes.isEmpty() ? null : assign(previousNodes.keySet());
+		} else {
+			previousNodes = new TreeMap<>(previousNodes);
+			previousNodes.putAll(live);
+		}
+		String[] assigned = assign(live.keySet());
+		int gained = 0;
+		// nothing was written since the lease lapsed
+		long from = lapsed ? Math.max(1L, lapsedAt) : 0L;
+		for(int i=0; i<assigned.length && previousOwners!=null; i++) {
+			if(self.equals(assigned[i]) && !self.equals(previousOwners[i])) {
+				gained++;
+				long previous = Math.max(1L, previousNodes.getOrDefault(previousOwners[i], 0L));
+				from = from==0L ? previous : Math.min(from, previous);
+			}
+		}
+		if(from>0L) {
+			catchUp = catchUp==0L ? from : Math.min(catchUp, from);
+		}
+		owners = assigned;
+		nodes = live;
+		logger.info("Nodes {} share the source, this node {} owns {} of {} partitions and gained {}",
+				live.keySet(), self, owned(), partitions, gained);
+	}
+
+	private String[] assign(Collection<String> members) {
+		TreeMap<Integer, String> ring = new TreeMap<>();
+		for(String member : members) {
+			for(int i=0; i<VIRTUAL_NODES; i++) {
+				ring.put(HASH.hashString(member + "#" + i, StandardCharsets.UTF_8).asInt(), member);
+			}
+		}
+		String[] assigned = new String[partitions];
+		for(int i=0; i<partitions; i++) {
+			Map.Entry<Integer, String> owner = ring.ceilingEntry(HASH.hashInt(i).asInt());
+			assigned[i] = (owner==null ? ring.firstEntry() : owner).getValue();
+		}
+		return assigned;
+	}
+
+	private boolean lapsed() {
+		return System.currentTimeMillis()>=ownedUntil;
+	}
+
+	private int partition(String id) {
+		String key = id==null ? "" : id.toLowerCase(Locale.US);
+		return (HASH.hashString(key, StandardCharsets.UTF_8).asInt() & 0x7fffffff) % partitions;
+	}
+
+	private long owned() {
+		String[] current = owners;
+		return current==null ? partitions : Arrays.stream(current).filter(coordinator.getNode()::equals).count();
+	}
+
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+}
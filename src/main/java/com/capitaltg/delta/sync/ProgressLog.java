@@ -0,0 +1,117 @@
+package com.capitaltg.delta.sync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.util.LongHashSet;
+
+/**
+ * Append-only file of the 64-bit keys of the items a job has finished, so
+ * that a job that was interrupted skips them when it resumes, in whatever
+ * order they come back.  Keys are forced to disk a batch at a time.  A
+ * record torn by a crash is cut off when the file is opened.
+ *
+ * The header holds a magic number and whether the job completed.
+ */
+public class ProgressLog implements Closeable {
+
+	private static final long MAGIC = 0x44454c544150524cL;
+	private static final int HEADER = 16;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Path file;
+	private final FileChannel channel;
+	private final LongHashSet done = new LongHashSet();
+	private boolean complete;
+
+	public ProgressLog(String file) throws IOException {
+		this.file = Paths.get(file).toAbsolutePath();
+		Files.createDirectories(this.file.getParent());
+		channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		if(channel.size()<HEADER) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER).putLong(MAGIC).putLong(0L);
+			header.flip();
+			channel.truncate(0L);
+			channel.write(header, 0L);
+			channel.force(false);
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(channel.size(), 1 << 20));
+		channel.read(buffer, 0L);
+		buffer.flip();
+		if(buffer.getLong() != MAGIC) {
+			channel.close();
+			throw new IOException(file + " is not a progress log");
+		}
+		complete = buffer.getLong() != 0L;
+		long length = HEADER + (channel.size()-HEADER)/8*8;
+		for(long position = HEADER; position<length; ) {
+			while(buffer.remaining()>=8 && position<length) {
+				done.add(buffer.getLong());
+				position += 8;
+			}
+			buffer.compact();
+			channel.read(buffer, position + buffer.position());
+			buffer.flip();
+		}
+		channel.truncate(length);
+		logger.info("Loaded progress of {} items from {}", done.size(), this.file);
+	}
+
+	public synchronized boolean contains(long key) {
+		return done.contains(key);
+	}
+
+	/**
+	 * Records the keys as done once they are on disk.
+	 */
+	public synchronized void addAll(Collection<Long> keys) throws IOException {
+		if(keys.isEmpty()) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(keys.size()*8);
+		keys.forEach(buffer::putLong);
+		buffer.flip();
+		long position = channel.size();
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		channel.force(false);
+		keys.forEach(done::add);
+	}
+
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	public synchronized void markComplete() throws IOException {
+		channel.write((ByteBuffer)ByteBuffer.allocate(8).putLong(1L).flip(), 8L);
+		channel.force(false);
+		complete = true;
+	}
+
+	public synchronized int size() {
+		return done.size();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
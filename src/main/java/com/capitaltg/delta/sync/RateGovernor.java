@@ -0,0 +1,319 @@
+package com.capitaltg.delta.sync;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.capitaltg.delta.metrics.MetricsRegistry;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Limits the writes made to a directory in operations per second and in
+ * writes outstanding at once.  Both limits are adjusted AIMD-style once
+ * a second: they are halved when the writes of the last second were
+ * slower on average than the target latency or failed with overload
+ * errors more often than the error threshold, and are otherwise raised
+ * by a step towards their ceilings.
+ *
+ * The ceilings are maxrate and maxconcurrency unless a time-of-day
+ * window overrides them, for instance
+ * "08:00-18:00=50/2;22:00-06:00=0/16" for 50 writes a second, two at a
+ * time, during business hours.  A ceiling of 0 is unlimited and is not
+ * adapted.
+ */
+public class RateGovernor {
+
+	private static final long ADJUST_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private static final int RATE_STEPS = 20;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	private final long adjustInterval;
+
+	private double maxrate;
+	private int maxconcurrency;
+	private long targetlatency;
+	private double errorthreshold = 0.05;
+	private String windows;
+	private MetricsRegistry metrics;
+
+	private final List<Window> parsedWindows = new ArrayList<>();
+	private Window ceiling;
+	private RateLimiter limiter;
+	private double rate;
+	private int concurrency;
+	private int inFlight;
+	private long intervalStart = System.nanoTime();
+	private long intervalWrites;
+	private long intervalErrors;
+	private long intervalLatency;
+
+	public RateGovernor() {
+		this(ADJUST_INTERVAL);
+	}
+
+	RateGovernor(long adjustInterval) {
+		this.adjustInterval = adjustInterval;
+	}
+
+	@PostConstruct
+	public void init() {
+		parsedWindows.clear();
+		if(!Strings.isNullOrEmpty(windows)) {
+			for(String window : windows.split(";")) {
+				if(!window.trim().isEmpty()) {
+					parsedWindows.add(Window.parse(window.trim()));
+				}
+			}
+		}
+		lock.lock();
+		try {
+			applyCeiling(currentCeiling());
+		} finally {
+			lock.unlock();
+		}
+		if(metrics!=null) {
+			metrics.gauge("deltasync_write_rate_limit", "Writes per second currently allowed, 0 for unlimited", () -> rate);
+			metrics.gauge("deltasync_write_concurrency_limit", "Writes currently allowed at once, 0 for unlimited", () -> concurrency);
+		}
+		logger.info("Governing writes at up to {} per second and {} at once, within {} ms, windows {}",
+				maxrate, maxconcurrency, targetlatency, parsedWindows);
+	}
+
+	/**
+	 * Blocks until a write may start.  The permit must be released once
+	 * the write has completed.
+	 */
+	public Permit acquire() throws InterruptedException {
+		RateLimiter rateLimiter;
+		lock.lockInterruptibly();
+		try {
+			Window current = currentCeiling();
+			if(current!=ceiling) {
+				applyCeiling(current);
+			}
+			while(concurrency>0 && inFlight>=concurrency) {
+				released.await();
+			}
+			inFlight++;
+			rateLimiter = limiter;
+		} finally {
+			lock.unlock();
+		}
+		if(rateLimiter!=null) {
+			rateLimiter.acquire();
+		}
+		return new Permit();
+	}
+
+	public boolean isLimited() {
+		return maxrate>0 || maxconcurrency>0 || !parsedWindows.isEmpty();
+	}
+
+	/**
+	 * @return writes per second currently allowed, 0 for unlimited
+	 */
+	public double getRate() {
+		lock.lock();
+		try {
+			return rate;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return writes currently allowed at once, 0 for unlimited
+	 */
+	public int getConcurrency() {
+		lock.lock();
+		try {
+			return concurrency;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void completed(long latencyNanos, boolean overloaded) {
+		lock.lock();
+		try {
+			inFlight--;
+			intervalWrites++;
+			intervalLatency += latencyNanos;
+			if(overloaded) {
+				intervalErrors++;
+			}
+			long now = System.nanoTime();
+			if(now-intervalStart>=adjustInterval) {
+				adjust();
+				intervalStart = now;
+				intervalWrites = 0;
+				intervalErrors = 0;
+				intervalLatency = 0;
+			}
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void adjust() {
+		double errorRate = (double)intervalErrors/intervalWrites;
+		long averageLatency = TimeUnit.NANOSECONDS.toMillis(intervalLatency/intervalWrites);
+		boolean backOff = errorRate>errorthreshold || (targetlatency>0 && averageLatency>targetlatency);
+		double previousRate = rate;
+		int previousConcurrency = concurrency;
+		if(ceiling.rate>0) {
+			rate = backOff ? Math.max(1.0, rate/2) : Math.min(ceiling.rate, rate + Math.max(1.0, ceiling.rate/RATE_STEPS));
+			limiter.setRate(rate);
+		}
+		if(ceiling.concurrency>0) {
+			concurrency = backOff ? Math.max(1, concurrency/2) : Math.min(ceiling.concurrency, concurrency+1);
+		}
+		if(backOff && (rate!=previousRate || concurrency!=previousConcurrency)) {
+			logger.info("Backing off to {} writes per second and {} at once after {} ms average latency and {} overload errors in {} writes",
+					rate, concurrency, averageLatency, intervalErrors, intervalWrites);
+		}
+	}
+
+	/*
+	 * Entering a window starts from its ceilings, and limits that became
+	 * unlimited stop being enforced.
+	 */
+	private void applyCeiling(Window window) {
+		ceiling = window;
+		rate = window.rate;
+		concurrency = window.concurrency;
+		limiter = rate>0 ? RateLimiter.create(rate) : null;
+		released.signalAll();
+		logger.debug("Write ceilings are now {}", window);
+	}
+
+	private Window currentCeiling() {
+		LocalTime now = LocalTime.now();
+		for(Window window : parsedWindows) {
+			if(window.contains(now)) {
+				return window;
+			}
+		}
+		if(ceiling==null || ceiling.start!=null || ceiling.rate!=maxrate || ceiling.concurrency!=maxconcurrency) {
+			return new Window(null, null, maxrate, maxconcurrency);
+		}
+		return ceiling;
+	}
+
+	/**
+	 * @param maxrate writes per second outside any window, 0 for unlimited
+	 */
+	public void setMaxrate(double maxrate) {
+		this.maxrate = maxrate;
+	}
+
+	/**
+	 * @param maxconcurrency writes at once outside any window, 0 for
+	 *        unlimited
+	 */
+	public void setMaxconcurrency(int maxconcurrency) {
+		this.maxconcurrency = maxconcurrency;
+	}
+
+	/**
+	 * @param targetlatency average write latency in milliseconds above
+	 *        which to back off, 0 to back off on errors only
+	 */
+	public void setTargetlatency(long targetlatency) {
+		this.targetlatency = targetlatency;
+	}
+
+	/**
+	 * @param errorthreshold fraction of writes failing with overload
+	 *        errors above which to back off
+	 */
+	public void setErrorthreshold(double errorthreshold) {
+		this.errorthreshold = errorthreshold;
+	}
+
+	/**
+	 * @param windows ;-separated HH:mm-HH:mm=rate/concurrency ceilings
+	 */
+	public void setWindows(String windows) {
+		this.windows = windows;
+	}
+
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * One started write.  Releasing more than once has no effect, so a
+	 * permit can be released both by a completion and a failure path.
+	 */
+	public class Permit {
+
+		private final long start = System.nanoTime();
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		/**
+		 * @param overloaded whether the write failed in a way that says
+		 *        the directory is overloaded or unreachable
+		 */
+		public void release(boolean overloaded) {
+			if(released.compareAndSet(false, true)) {
+				completed(System.nanoTime()-start, overloaded);
+			}
+		}
+	}
+
+	private static class Window {
+
+		private final LocalTime start;
+		private final LocalTime end;
+		private final double rate;
+		private final int concurrency;
+
+		private Window(LocalTime start, LocalTime end, double rate, int concurrency) {
+			this.start = start;
+			this.end = end;
+			this.rate = rate;
+			this.concurrency = concurrency;
+		}
+
+		static Window parse(String window) {
+			String[] parts = window.split("=");
+			String[] times = parts[0].trim().split("-");
+			String[] limits = parts.length>1 ? parts[1].trim().split("/") : new String[0];
+			if(times.length!=2 || limits.length!=2) {
+				throw new IllegalArgumentException("Expected HH:mm-HH:mm=rate/concurrency but found " + window);
+			}
+			return new Window(LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()),
+					Double.parseDouble(limits[0].trim()), Integer.parseInt(limits[1].trim()));
+		}
+
+		/*
+		 * Windows ending before they start span midnight.
+		 */
+		boolean contains(LocalTime time) {
+			if(start.isBefore(end)) {
+				return !time.isBefore(start) && time.isBefore(end);
+			}
+			return !time.isBefore(start) || time.isBefore(end);
+		}
+
+		@Override
+		public String toString() {
+			return (start==null ? "default" : start + "-" + end) + "=" + rate + "/" + concurrency;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.capitaltg.delta.sync;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.NamingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs sync tasks on a fixed number of lanes.  Every key is always routed
+ * to the same lane, so two tasks for the same unique id never run at the
+ * same time and run in the order they were submitted.  Lanes are bounded,
+ * so a producer that gets ahead of the workers blocks in
+ * {@link #submit(String, SyncTask)}.
+ * 
+ * Workers are virtual threads when the JDK supports them.
+ */
+public class SyncWorkerPool {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final List<BlockingQueue<SyncTask>> lanes = new ArrayList<>();
+	private final List<Thread> workers = new ArrayList<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicReference<NamingException> failure = new AtomicReference<>();
+	private final Object monitor = new Object();
+	private volatile boolean running = true;
+
+	public SyncWorkerPool(String name, int threads, int queueSize) {
+		ThreadFactory threadFactory = createThreadFactory(name);
+		int laneSize = Math.max(1, queueSize / threads);
+		for(int i=0; i<threads; i++) {
+			BlockingQueue<SyncTask> lane = new ArrayBlockingQueue<>(laneSize);
+			lanes.add(lane);
+			Thread worker = threadFactory.newThread(() -> work(lane));
+			worker.setName(name + "-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	public void submit(String key, SyncTask task) throws InterruptedException {
+		pending.incrementAndGet();
+		try {
+			lanes.get(lane(key)).put(task);
+		} catch(InterruptedException e) {
+			complete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits until every submitted task has finished.
+	 * 
+	 * @throws NamingException the first failure reported by a task since
+	 *         the previous call
+	 */
+	public void awaitCompletion() throws InterruptedException, NamingException {
+		synchronized(monitor) {
+			while(pending.get() > 0) {
+				monitor.wait();
+			}
+		}
+		NamingException e = failure.getAndSet(null);
+		if(e != null) {
+			throw e;
+		}
+	}
+
+	public void shutdown() {
+		running = false;
+		workers.forEach(Thread::interrupt);
+	}
+
+	public int getThreads() {
+		return workers.size();
+	}
+
+	/**
+	 * @return tasks submitted and not yet finished
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	private int lane(String key) {
+		return ((key == null ? 0 : key.toLowerCase(Locale.US).hashCode()) & 0x7fffffff) % lanes.size();
+	}
+
+	private void work(BlockingQueue<SyncTask> lane) {
+		while(running) {
+			SyncTask task;
+			try {
+				task = lane.take();
+			} catch(InterruptedException e) {
+				return;
+			}
+			try {
+				task.run();
+			} catch(NamingException e) {
+				logger.error("Failed while synchronizing entry", e);
+				failure.compareAndSet(null, e);
+			} catch(RuntimeException e) {
+				logger.error("Unexpected failure while synchronizing entry", e);
+				NamingException wrapped = new NamingException("Unexpected failure while synchronizing entry: " + e);
+				wrapped.setRootCause(e);
+				failure.compareAndSet(null, wrapped);
+			} finally {
+				complete();
+			}
+		}
+	}
+
+	private void complete() {
+		if(pending.decrementAndGet() == 0) {
+			synchronized(monitor) {
+				monitor.notifyAll();
+			}
+		}
+	}
+
+	private ThreadFactory createThreadFactory(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			logger.info("Using virtual threads for {}", name);
+			return (ThreadFactory)factory.invoke(builder);
+		} catch(ReflectiveOperationException e) {
+			logger.info("Virtual threads are not available, using platform threads for {}", name);
+			return Thread::new;
+		}
+	}
+
+	@FunctionalInterface
+	public interface SyncTask {
+		public void run() throws NamingException;
+	}
+}
@@ -0,0 +1,585 @@
+package com.capitaltg.delta.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.ModificationItem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the creates and modifies made to a destination.
+ * An intent is written and forced to disk before the write is made, and
+ * acknowledged once it completed, so after a crash the unacknowledged
+ * intents are exactly the writes that may or may not have been applied.
+ * Unique ids that failed for good are journaled too.
+ *
+ * The journal is a series of memory-mapped segment files.  Records are
+ * framed as length, CRC32 and payload; a zero length ends a segment and a
+ * bad checksum marks a torn write.  Threads that need their intent on disk
+ * at the same time share one force (group commit), and acknowledgements
+ * are only forced along with later intents.  Once every intent of an
+ * older segment is acknowledged, the segment is deleted.  Every new
+ * segment starts with the failed ids, so old segments never have to be
+ * kept for those.  Opening the journal therefore only reads the segments
+ * that still hold unacknowledged work.  The directory is forced whenever
+ * a segment is created or deleted, and deleted segments are unmapped.
+ */
+public class WriteJournal implements Closeable {
+
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".seg";
+	private static final int FRAME = 8;
+	private static final byte CREATE = 1;
+	private static final byte MODIFY = 2;
+	private static final byte ACK = 3;
+	private static final byte FAILED = 4;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final Path directory;
+	private final int segmentSize;
+	private final Object appendLock = new Object();
+	private final Object syncLock = new Object();
+	private final Map<Long, Segment> pendingSegments = new HashMap<>();
+	private final Set<String> failed = ConcurrentHashMap.newKeySet();
+	private final List<Intent> recovered = new ArrayList<>();
+	private final List<MappedByteBuffer> retired = new ArrayList<>();
+	private Segment active;
+	private long nextSequence = 1L;
+	private long nextSegment = 1L;
+	private long appended;
+	private final AtomicLong durable = new AtomicLong();
+
+	/**
+	 * Reads what is left of the journal in directory and starts a new
+	 * segment.
+	 */
+	public WriteJournal(String directory, int segmentSize) throws IOException {
+		this.directory = Paths.get(directory).toAbsolutePath();
+		this.segmentSize = segmentSize;
+		Files.createDirectories(this.directory);
+		List<Segment> done = recover();
+		rotate();
+		for(Segment segment : done) {
+			delete(segment);
+		}
+	}
+
+	/**
+	 * @return intents that were never acknowledged, in the order they were
+	 *         made.  They stay in the journal until acknowledged.
+	 */
+	public List<Intent> getUnacknowledged() {
+		return Collections.unmodifiableList(recovered);
+	}
+
+	public Set<String> getFailed() {
+		return Collections.unmodifiableSet(failed);
+	}
+
+	/**
+	 * Journals a create and returns once it is on disk.
+	 *
+	 * @return the sequence number to acknowledge it with
+	 */
+	public long intendCreate(String dn, Attributes attributes) throws IOException {
+		return intend(CREATE, dn, out -> writeAttributes(out, attributes));
+	}
+
+	/**
+	 * Journals a modify and returns once it is on disk.
+	 *
+	 * @return the sequence number to acknowledge it with
+	 */
+	public long intendModify(String dn, ModificationItem[] items) throws IOException {
+		return intend(MODIFY, dn, out -> {
+			out.writeInt(items.length);
+			for(ModificationItem item : items) {
+				out.writeByte(item.getModificationOp());
+				writeAttribute(out, item.getAttribute());
+			}
+		});
+	}
+
+	/**
+	 * Marks the write done, whether it was applied or not.  Not forced.
+	 */
+	public void acknowledge(long sequence, boolean applied) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ACK);
+		out.writeLong(sequence);
+		out.writeBoolean(applied);
+		synchronized(appendLock) {
+			append(bytes.toByteArray());
+			recovered.removeIf( intent -> intent.sequence==sequence);
+			Segment segment = pendingSegments.remove(sequence);
+			if(segment!=null && --segment.pending==0 && segment!=active) {
+				delete(segment);
+			}
+		}
+	}
+
+	/**
+	 * Journals a unique id that will not be written again.  Not forced.
+	 */
+	public void recordFailed(String id) throws IOException {
+		if(failed.add(id)) {
+			synchronized(appendLock) {
+				append(failedRecord(id));
+			}
+		}
+	}
+
+	/**
+	 * Forces everything appended so far to disk.
+	 */
+	public void sync() throws IOException {
+		long target;
+		synchronized(appendLock) {
+			target = appended;
+		}
+		sync(target);
+	}
+
+	@Override
+	public void close() throws IOException {
+		sync();
+		synchronized(syncLock) {
+			synchronized(appendLock) {
+				retire(active);
+				for(Segment segment : new ArrayList<>(pendingSegments.values())) {
+					retire(segment);
+				}
+			}
+			unmapRetired();
+		}
+	}
+
+	private long intend(byte type, String dn, Payload payload) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		long target;
+		long sequence;
+		synchronized(appendLock) {
+			sequence = nextSequence++;
+			out.writeByte(type);
+			out.writeLong(sequence);
+			out.writeUTF(dn);
+			payload.write(out);
+			target = append(bytes.toByteArray());
+			pendingSegments.put(sequence, active);
+			active.pending++;
+		}
+		sync(target);
+		return sequence;
+	}
+
+	/*
+	 * Whoever gets the sync lock first forces everything appended until
+	 * then, and the threads waiting behind it usually find their records
+	 * already on disk.
+	 */
+	private void sync(long target) throws IOException {
+		synchronized(syncLock) {
+			unmapRetired();
+			if(durable.get()>=target) {
+				return;
+			}
+			long upTo;
+			MappedByteBuffer buffer;
+			synchronized(appendLock) {
+				upTo = appended;
+				buffer = active.buffer;
+			}
+			buffer.force();
+			durable.accumulateAndGet(upTo, Math::max);
+		}
+	}
+
+	/*
+	 * Returns the journal position after the record.  The caller holds
+	 * the append lock.
+	 */
+	private long append(byte[] payload) throws IOException {
+		if(!put(active, payload)) {
+			rotate();
+			if(!put(active, payload)) {
+				throw new IOException("Journal record of " + payload.length + " bytes does not fit in a segment");
+			}
+		}
+		appended += FRAME+payload.length;
+		return appended;
+	}
+
+	/*
+	 * Returns false if the record does not fit in the segment.
+	 */
+	private static boolean put(Segment segment, byte[] payload) {
+		if(FRAME+payload.length>segment.buffer.remaining()) {
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		segment.buffer.putInt(payload.length).putInt((int)crc.getValue()).put(payload);
+		return true;
+	}
+
+	/*
+	 * Forces the full segment, so that everything appended before the
+	 * rotation counts as durable, and starts the next one with the failed
+	 * ids.  These are put into the new segment directly: failed ids that
+	 * do not fit in one segment would not fit in the next one either.
+	 */
+	private void rotate() throws IOException {
+		synchronized(appendLock) {
+			Segment previous = active;
+			if(previous!=null) {
+				previous.buffer.force();
+				durable.accumulateAndGet(appended, Math::max);
+			}
+			Path path = directory.resolve(String.format("%s%020d%s", PREFIX, nextSegment++, SUFFIX));
+			Segment next = new Segment(path, FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE));
+			next.buffer = next.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			for(String id : failed) {
+				if(!put(next, failedRecord(id))) {
+					delete(next);
+					throw new IOException(failed.size() + " failed ids do not fit in a journal segment of " + segmentSize + " bytes");
+				}
+			}
+			next.buffer.force();
+			syncDirectory();
+			active = next;
+			if(previous!=null && previous.pending==0) {
+				delete(previous);
+			}
+			logger.debug("Started journal segment {}", path);
+		}
+	}
+
+	/*
+	 * Replays every segment left behind in order.  Returns the segments
+	 * whose intents were all acknowledged, to be deleted once the failed
+	 * ids are in the new segment.  The others are kept open until they
+	 * are acknowledged.
+	 */
+	private List<Segment> recover() throws IOException {
+		TreeMap<String, Path> paths = new TreeMap<>();
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			files.forEach( path -> paths.put(path.getFileName().toString(), path));
+		}
+		Map<Long, Intent> unacknowledged = new TreeMap<>();
+		Map<Long, Segment> segmentsBySequence = new HashMap<>();
+		List<Segment> segments = new ArrayList<>();
+		for(Path path : paths.values()) {
+			String name = path.getFileName().toString();
+			nextSegment = Math.max(nextSegment, Long.parseLong(name.substring(PREFIX.length(), name.length()-SUFFIX.length()))+1);
+			Segment segment = new Segment(path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+			segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, segment.channel.size());
+			segments.add(segment);
+			int records = 0;
+			while(segment.buffer.remaining()>=FRAME) {
+				int start = segment.buffer.position();
+				int length = segment.buffer.getInt();
+				int checksum = segment.buffer.getInt();
+				if(length==0) {
+					break;
+				} else if(length<0 || length>segment.buffer.remaining()) {
+					logger.warn("Journal segment {} ends in a torn record at {}", path, start);
+					break;
+				}
+				byte[] payload = new byte[length];
+				segment.buffer.get(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if((int)crc.getValue()!=checksum) {
+					logger.warn("Journal segment {} ends in a torn record at {}", path, start);
+					break;
+				}
+				read(payload, segment, unacknowledged, segmentsBySequence);
+				records++;
+			}
+			logger.debug("Read {} records from journal segment {}", records, path);
+		}
+		for(Map.Entry<Long, Segment> e : segmentsBySequence.entrySet()) {
+			e.getValue().pending++;
+			pendingSegments.put(e.getKey(), e.getValue());
+		}
+		segments.removeIf( segment -> segment.pending>0);
+		recovered.addAll(unacknowledged.values());
+		if(!recovered.isEmpty() || !failed.isEmpty()) {
+			logger.info("Journal {} has {} unacknowledged writes and {} failed ids", directory, recovered.size(), failed.size());
+		}
+		return segments;
+	}
+
+	private void read(byte[] payload, Segment segment, Map<Long, Intent> unacknowledged, Map<Long, Segment> segmentsBySequence) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte type = in.readByte();
+		if(type==FAILED) {
+			failed.add(in.readUTF());
+			return;
+		}
+		long sequence = in.readLong();
+		nextSequence = Math.max(nextSequence, sequence+1);
+		if(type==ACK) {
+			unacknowledged.remove(sequence);
+			segmentsBySequence.remove(sequence);
+			return;
+		}
+		String dn = in.readUTF();
+		Intent intent;
+		if(type==CREATE) {
+			intent = new Intent(sequence, dn, readAttributes(in), null);
+		} else {
+			ModificationItem[] items = new ModificationItem[in.readInt()];
+			for(int i=0; i<items.length; i++) {
+				int operation = in.readByte();
+				items[i] = new ModificationItem(operation, readAttribute(in));
+			}
+			intent = new Intent(sequence, dn, null, items);
+		}
+		unacknowledged.put(sequence, intent);
+		segmentsBySequence.put(sequence, segment);
+	}
+
+	private void delete(Segment segment) throws IOException {
+		retire(segment);
+		Files.deleteIfExists(segment.path);
+		syncDirectory();
+		logger.debug("Deleted journal segment {}", segment.path);
+	}
+
+	/*
+	 * Closes the segment.  Its buffer is unmapped by the next sync, since
+	 * a sync that started earlier may still be forcing it.  The caller
+	 * holds the append lock.
+	 */
+	private void retire(Segment segment) throws IOException {
+		segment.channel.close();
+		if(segment.buffer!=null) {
+			retired.add(segment.buffer);
+			segment.buffer = null;
+		}
+	}
+
+	/*
+	 * The caller holds the sync lock, so no buffer is being forced.
+	 */
+	private void unmapRetired() {
+		List<MappedByteBuffer> buffers;
+		synchronized(appendLock) {
+			if(retired.isEmpty()) {
+				return;
+			}
+			buffers = new ArrayList<>(retired);
+			retired.clear();
+		}
+		buffers.forEach(this::unmap);
+	}
+
+	/*
+	 * Unmaps the buffer at once instead of whenever it is collected,
+	 * through Unsafe.invokeCleaner on Java 9 and later and the buffer's
+	 * cleaner on Java 8.  The buffer must not be touched afterwards.
+	 */
+	private void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			try {
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			} catch(NoSuchMethodException e) {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			logger.debug("Could not unmap a journal segment, leaving it to the garbage collector", e);
+		}
+	}
+
+	/*
+	 * Makes creating or deleting a segment durable.  Not every platform
+	 * can open a directory, and there it is left to the file system.
+	 */
+	private void syncDirectory() {
+		try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch(IOException e) {
+			logger.debug("Could not force journal directory {}", directory, e);
+		}
+	}
+
+	private static byte[] failedRecord(String id) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FAILED);
+		out.writeUTF(id);
+		return bytes.toByteArray();
+	}
+
+	private static void writeAttributes(DataOutputStream out, Attributes attributes) throws IOException {
+		out.writeInt(attributes.size());
+		NamingEnumeration<? extends Attribute> all = attributes.getAll();
+		while(all.hasMoreElements()) {
+			writeAttribute(out, all.nextElement());
+		}
+	}
+
+	private static Attributes readAttributes(DataInputStream in) throws IOException {
+		Attributes attributes = new BasicAttributes(true);
+		int count = in.readInt();
+		for(int i=0; i<count; i++) {
+			attributes.put(readAttribute(in));
+		}
+		return attributes;
+	}
+
+	/*
+	 * Values are strings or byte arrays.  A null value, as in removals of
+	 * every value, is written as such.
+	 */
+	private static void writeAttribute(DataOutputStream out, Attribute attribute) throws IOException {
+		out.writeUTF(attribute.getID());
+		out.writeInt(attribute.size());
+		try {
+			NamingEnumeration<?> values = attribute.getAll();
+			while(values.hasMoreElements()) {
+				Object value = values.nextElement();
+				if(value instanceof byte[]) {
+					out.writeByte(1);
+					out.writeInt(((byte[])value).length);
+					out.write((byte[])value);
+				} else if(value==null) {
+					out.writeByte(2);
+				} else {
+					byte[] text = value.toString().getBytes(StandardCharsets.UTF_8);
+					out.writeByte(0);
+					out.writeInt(text.length);
+					out.write(text);
+				}
+			}
+		} catch(NamingException e) {
+			throw new IOException("Failed to read values of " + attribute.getID(), e);
+		}
+	}
+
+	private static Attribute readAttribute(DataInputStream in) throws IOException {
+		Attribute attribute = new BasicAttribute(in.readUTF());
+		int count = in.readInt();
+		for(int i=0; i<count; i++) {
+			byte kind = in.readByte();
+			if(kind==2) {
+				attribute.add(null);
+				continue;
+			}
+			byte[] value = new byte[in.readInt()];
+			in.readFully(value);
+			attribute.add(kind==1 ? value : new String(value, StandardCharsets.UTF_8));
+		}
+		return attribute;
+	}
+
+	@Override
+	public String toString() {
+		return directory.toString();
+	}
+
+	/**
+	 * A journaled create, with attributes, or modify, with items.
+	 */
+	public static class Intent {
+
+		private final long sequence;
+		private final String dn;
+		private final Attributes attributes;
+		private final ModificationItem[] items;
+
+		private Intent(long sequence, String dn, Attributes attributes, ModificationItem[] items) {
+			this.sequence = sequence;
+			this.dn = dn;
+			this.attributes = attributes;
+			this.items = items;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public String getDn() {
+			return dn;
+		}
+
+		public boolean isCreate() {
+			return attributes!=null;
+		}
+
+		public Attributes getAttributes() {
+			return attributes;
+		}
+
+		public ModificationItem[] getItems() {
+			return items;
+		}
+
+		@Override
+		public String toString() {
+			return (isCreate() ? "create " : "modify ") + dn + " (" + sequence + ")";
+		}
+	}
+
+	@FunctionalInterface
+	private interface Payload {
+		public void write(DataOutputStream out) throws IOException;
+	}
+
+	private static class Segment {
+
+		private final Path path;
+		private final FileChannel channel;
+		private MappedByteBuffer buffer;
+		private int pending;
+
+		private Segment(Path path, FileChannel channel) {
+			this.path = path;
+			this.channel = channel;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.capitaltg.delta.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal BER decoder, the counterpart of {@link BerWriter}.  Constructed
+ * elements are read with {@link #readSequence()}, which returns a reader
+ * over the element's contents.
+ */
+public class BerReader {
+
+	private final byte[] data;
+	private final int end;
+	private int position;
+
+	public BerReader(byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	public BerReader(byte[] data, int offset, int length) {
+		this.data = data;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	public boolean hasMore() {
+		return position < end;
+	}
+
+	/**
+	 * @return tag of the next element, or -1 at the end
+	 */
+	public int peekTag() {
+		return hasMore() ? data[position] & 0xff : -1;
+	}
+
+	public BerReader readSequence() throws IOException {
+		return readSequence(BerWriter.SEQUENCE);
+	}
+
+	public BerReader readSequence(int tag) throws IOException {
+		int length = readHeader(tag);
+		BerReader reader = new BerReader(data, position, length);
+		position += length;
+		return reader;
+	}
+
+	public boolean readBoolean() throws IOException {
+		int length = readHeader(BerWriter.BOOLEAN);
+		boolean value = length > 0 && data[position] != 0;
+		position += length;
+		return value;
+	}
+
+	public long readInt() throws IOException {
+		return readInt(BerWriter.INTEGER);
+	}
+
+	public int readEnumerated() throws IOException {
+		return (int)readInt(BerWriter.ENUMERATED);
+	}
+
+	public long readInt(int tag) throws IOException {
+		int length = readHeader(tag);
+		long value = length > 0 ? data[position] : 0;
+		for(int i=1; i<length; i++) {
+			value = (value << 8) | (data[position + i] & 0xff);
+		}
+		position += length;
+		return value;
+	}
+
+	public byte[] readOctetString() throws IOException {
+		return read(BerWriter.OCTET_STRING);
+	}
+
+	public String readString() throws IOException {
+		return new String(readOctetString(), StandardCharsets.UTF_8);
+	}
+
+	public byte[] read(int tag) throws IOException {
+		int length = readHeader(tag);
+		byte[] value = Arrays.copyOfRange(data, position, position + length);
+		position += length;
+		return value;
+	}
+
+	public void skip() throws IOException {
+		int length = readHeader(peekTag());
+		position += length;
+	}
+
+	private int readHeader(int tag) throws IOException {
+		if(!hasMore()) {
+			throw new IOException("Expected tag " + Integer.toHexString(tag) + " but reached the end");
+		}
+		int actual = data[position++] & 0xff;
+		if(actual != tag) {
+			throw new IOException("Expected tag " + Integer.toHexString(tag) + " but found " + Integer.toHexString(actual));
+		}
+		if(!hasMore()) {
+			throw new IOException("Missing length of tag " + Integer.toHexString(tag));
+		}
+		int length = data[position++] & 0xff;
+		if((length & 0x80) != 0) {
+			int bytes = length & 0x7f;
+			if(bytes > 4 || bytes > end - position) {
+				throw new IOException("Invalid length of " + bytes + " bytes");
+			}
+			length = 0;
+			for(int i=0; i<bytes; i++) {
+				length = (length << 8) | (data[position++] & 0xff);
+			}
+		}
+		if(length < 0 || length > end - position) {
+			throw new IOException("Invalid length " + length);
+		}
+		return length;
+	}
+}
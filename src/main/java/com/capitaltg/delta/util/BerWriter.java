@@ -0,0 +1,110 @@
+package com.capitaltg.delta.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Minimal BER encoder for LDAP control values and messages.  Only definite
+ * lengths are written.
+ */
+public class BerWriter {
+
+	public static final int BOOLEAN = 0x01;
+	public static final int INTEGER = 0x02;
+	public static final int OCTET_STRING = 0x04;
+	public static final int ENUMERATED = 0x0a;
+	public static final int SEQUENCE = 0x30;
+	public static final int SET = 0x31;
+
+	private final Deque<Element> stack = new ArrayDeque<>();
+	private final ByteArrayOutputStream root = new ByteArrayOutputStream();
+
+	public BerWriter beginSequence() {
+		return beginSequence(SEQUENCE);
+	}
+
+	public BerWriter beginSequence(int tag) {
+		stack.push(new Element(tag));
+		return this;
+	}
+
+	public BerWriter endSequence() {
+		Element element = stack.pop();
+		write(element.tag, element.content.toByteArray());
+		return this;
+	}
+
+	public BerWriter writeBoolean(boolean value) {
+		return write(BOOLEAN, new byte[]{ (byte)(value ? 0xff : 0x00) });
+	}
+
+	public BerWriter writeInt(long value) {
+		return writeInt(INTEGER, value);
+	}
+
+	public BerWriter writeEnumerated(int value) {
+		return writeInt(ENUMERATED, value);
+	}
+
+	public BerWriter writeInt(int tag, long value) {
+		int length = 1;
+		while(length < 8 && (value >> (length*8 - 1)) != 0 && (value >> (length*8 - 1)) != -1) {
+			length++;
+		}
+		byte[] bytes = new byte[length];
+		for(int i=0; i<length; i++) {
+			bytes[length - 1 - i] = (byte)(value >> (i*8));
+		}
+		return write(tag, bytes);
+	}
+
+	public BerWriter writeOctetString(byte[] value) {
+		return write(OCTET_STRING, value);
+	}
+
+	public BerWriter writeString(String value) {
+		return writeString(OCTET_STRING, value);
+	}
+
+	public BerWriter writeString(int tag, String value) {
+		return write(tag, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public BerWriter write(int tag, byte[] content) {
+		ByteArrayOutputStream out = stack.isEmpty() ? root : stack.peek().content;
+		out.write(tag);
+		writeLength(out, content.length);
+		out.write(content, 0, content.length);
+		return this;
+	}
+
+	public byte[] toByteArray() {
+		if(!stack.isEmpty()) {
+			throw new IllegalStateException("Unterminated sequence");
+		}
+		return root.toByteArray();
+	}
+
+	private static void writeLength(ByteArrayOutputStream out, int length) {
+		if(length < 0x80) {
+			out.write(length);
+			return;
+		}
+		int bytes = length > 0xffffff ? 4 : length > 0xffff ? 3 : length > 0xff ? 2 : 1;
+		out.write(0x80 | bytes);
+		for(int i=bytes-1; i>=0; i--) {
+			out.write(length >> (i*8));
+		}
+	}
+
+	private static class Element {
+		private final int tag;
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+		private Element(int tag) {
+			this.tag = tag;
+		}
+	}
+}
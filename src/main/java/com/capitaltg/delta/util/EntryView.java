@@ -0,0 +1,170 @@
+package com.capitaltg.delta.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only map over the attributes of one entry, with names looked up
+ * ignoring case.  Built once per entry and shared by every expression
+ * evaluated for it.  A value is the single value of an attribute or an
+ * unmodifiable list of all of them, decoded on first access, and null for
+ * attributes without values.
+ *
+ * Names are lower cased once and interned, so neither building a view nor
+ * looking up a name the mappings use again allocates.
+ */
+public class EntryView extends AbstractMap<String, Object> {
+
+	private static final Logger logger = LoggerFactory.getLogger(EntryView.class);
+	private static final int MAX_NAMES = 10000;
+	private static final ConcurrentHashMap<String, String> NAMES = new ConcurrentHashMap<>();
+	private static final Object UNDECODED = new Object();
+	private static final EntryView EMPTY = new EntryView(new String[0], new Attribute[0]);
+
+	private final String[] names;
+	private final Attribute[] attributes;
+	private final Object[] values;
+
+	private EntryView(String[] names, Attribute[] attributes) {
+		this.names = names;
+		this.attributes = attributes;
+		this.values = new Object[names.length];
+		Arrays.fill(values, UNDECODED);
+	}
+
+	public static EntryView of(Attributes attributes) {
+		if(attributes==null || attributes.size()==0) {
+			return EMPTY;
+		}
+		String[] names = new String[attributes.size()];
+		Attribute[] all = new Attribute[names.length];
+		int count = 0;
+		NamingEnumeration<? extends Attribute> enumeration = attributes.getAll();
+		while(enumeration.hasMoreElements() && count<all.length) {
+			Attribute attribute = enumeration.nextElement();
+			names[count] = normalize(attribute.getID());
+			all[count++] = attribute;
+		}
+		return new EntryView(names, all);
+	}
+
+	/**
+	 * @return the lower case, interned form of the attribute name
+	 */
+	public static String normalize(String name) {
+		String normalized = NAMES.get(name);
+		if(normalized==null) {
+			normalized = name.toLowerCase(Locale.US).intern();
+			if(NAMES.size()<MAX_NAMES) {
+				NAMES.put(name, normalized);
+			}
+		}
+		return normalized;
+	}
+
+	@Override
+	public Object get(Object key) {
+		int index = indexOf(key);
+		return index<0 ? null : value(index);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key)>=0;
+	}
+
+	@Override
+	public int size() {
+		return names.length;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new Iterator<Map.Entry<String, Object>>() {
+					private int next;
+					@Override
+					public boolean hasNext() {
+						return next<names.length;
+					}
+					@Override
+					public Map.Entry<String, Object> next() {
+						if(next>=names.length) {
+							throw new NoSuchElementException();
+						}
+						int index = next++;
+						return new SimpleImmutableEntry<>(names[index], value(index));
+					}
+				};
+			}
+			@Override
+			public int size() {
+				return names.length;
+			}
+		};
+	}
+
+	/*
+	 * Entries have a few dozen attributes at most, which a scan over
+	 * interned names finds faster than hashing would.
+	 */
+	private int indexOf(Object key) {
+		if(key==null) {
+			return -1;
+		}
+		String name = normalize(key.toString());
+		for(int i=0; i<names.length; i++) {
+			if(names[i]==name) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private Object value(int index) {
+		Object value = values[index];
+		if(value==UNDECODED) {
+			value = decode(attributes[index]);
+			values[index] = value;
+		}
+		return value;
+	}
+
+	private static Object decode(Attribute attribute) {
+		try {
+			switch(attribute.size()) {
+			case 0:
+				return null;
+			case 1:
+				return attribute.get();
+			default:
+				Object[] all = new Object[attribute.size()];
+				for(int i=0; i<all.length; i++) {
+					all[i] = attribute.get(i);
+				}
+				return Collections.unmodifiableList(Arrays.asList(all));
+			}
+		} catch(NamingException e) {
+			logger.error("Failed to read values of " + attribute.getID(), e);
+			return null;
+		}
+	}
+}
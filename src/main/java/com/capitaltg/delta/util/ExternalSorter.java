@@ -0,0 +1,142 @@
+package com.capitaltg.delta.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts more lines than fit on the heap.  Lines are collected in chunks of
+ * chunkSize, each chunk is sorted and written to a run file, and
+ * {@link #sorted()} merges the runs.  Memory use is bounded by one chunk
+ * while adding and by one line per run while merging.  Lines must not
+ * contain line breaks.
+ */
+public class ExternalSorter implements Closeable {
+
+	private final Path directory;
+	private final int chunkSize;
+	private final List<String> chunk = new ArrayList<>();
+	private final List<Path> runs = new ArrayList<>();
+	private final List<BufferedReader> readers = new ArrayList<>();
+	private long size;
+
+	public ExternalSorter(Path directory, int chunkSize) {
+		this.directory = directory;
+		this.chunkSize = chunkSize;
+	}
+
+	public void add(String line) throws IOException {
+		chunk.add(line);
+		size++;
+		if(chunk.size()>=chunkSize) {
+			spill();
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns every line added so far in natural order.  Read errors are
+	 * thrown as {@link UncheckedIOException}.
+	 */
+	public Iterator<String> sorted() throws IOException {
+		if(runs.isEmpty()) {
+			Collections.sort(chunk);
+			return chunk.iterator();
+		}
+		spill();
+		PriorityQueue<Run> heads = new PriorityQueue<>();
+		for(Path path : runs) {
+			BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+			readers.add(reader);
+			Run run = new Run(reader);
+			if(run.advance()) {
+				heads.add(run);
+			}
+		}
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				return !heads.isEmpty();
+			}
+			@Override
+			public String next() {
+				Run run = heads.poll();
+				if(run==null) {
+					throw new NoSuchElementException();
+				}
+				String line = run.head;
+				try {
+					if(run.advance()) {
+						heads.add(run);
+					}
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return line;
+			}
+		};
+	}
+
+	private void spill() throws IOException {
+		if(chunk.isEmpty()) {
+			return;
+		}
+		Collections.sort(chunk);
+		Path run = Files.createTempFile(directory, "run", ".txt");
+		runs.add(run);
+		try(BufferedWriter writer = Files.newBufferedWriter(run, StandardCharsets.UTF_8)) {
+			for(String line : chunk) {
+				writer.write(line);
+				writer.newLine();
+			}
+		}
+		chunk.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(BufferedReader reader : readers) {
+			reader.close();
+		}
+		for(Path run : runs) {
+			Files.deleteIfExists(run);
+		}
+		readers.clear();
+		runs.clear();
+		chunk.clear();
+	}
+
+	private static class Run implements Comparable<Run> {
+
+		private final BufferedReader reader;
+		private String head;
+
+		private Run(BufferedReader reader) {
+			this.reader = reader;
+		}
+
+		private boolean advance() throws IOException {
+			head = reader.readLine();
+			return head!=null;
+		}
+
+		@Override
+		public int compareTo(Run other) {
+			return head.compareTo(other.head);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.capitaltg.delta.util;
+
+/**
+ * Set of 64-bit hashes on a primitive array, using open addressing with
+ * linear probing.  Eight bytes per slot instead of an object per element,
+ * which is what makes set differences of very large groups affordable.
+ * 0 is stored out of line since it marks an empty slot.
+ */
+public class LongHashSet {
+
+	private long[] table;
+	private int size;
+	private boolean containsZero;
+
+	public LongHashSet() {
+		this(1024);
+	}
+
+	public LongHashSet(int expected) {
+		table = new long[Integer.highestOneBit(Math.max(16, expected) * 2 - 1) * 2];
+	}
+
+	/**
+	 * @return false if the value was already present
+	 */
+	public boolean add(long value) {
+		if(value==0L) {
+			boolean added = !containsZero;
+			containsZero = true;
+			return added;
+		}
+		int mask = table.length - 1;
+		for(int slot = mix(value) & mask; ; slot = (slot + 1) & mask) {
+			if(table[slot]==value) {
+				return false;
+			} else if(table[slot]==0L) {
+				table[slot] = value;
+				if(++size * 10 > table.length * 7) {
+					grow();
+				}
+				return true;
+			}
+		}
+	}
+
+	public boolean contains(long value) {
+		if(value==0L) {
+			return containsZero;
+		}
+		int mask = table.length - 1;
+		for(int slot = mix(value) & mask; ; slot = (slot + 1) & mask) {
+			if(table[slot]==value) {
+				return true;
+			} else if(table[slot]==0L) {
+				return false;
+			}
+		}
+	}
+
+	public int size() {
+		return size + (containsZero ? 1 : 0);
+	}
+
+	private void grow() {
+		long[] old = table;
+		table = new long[old.length * 2];
+		size = 0;
+		for(long value : old) {
+			if(value!=0L) {
+				add(value);
+			}
+		}
+	}
+
+	private static int mix(long value) {
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
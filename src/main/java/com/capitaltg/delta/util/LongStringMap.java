@@ -0,0 +1,122 @@
+package com.capitaltg.delta.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Map of 64-bit hashes to short strings on primitive arrays.  Keys sit in
+ * an open addressing table with linear probing, and the strings are
+ * appended as UTF-8 to one byte array with their offsets in a parallel
+ * int array.  A million dn hashes with 20 character ids take about 50 MB
+ * instead of several hundred as a map of strings.  Strings that are
+ * replaced are left behind in the byte array.  0 is stored out of line
+ * since it marks an empty slot.  Not thread safe while being filled.
+ */
+public class LongStringMap {
+
+	private long[] keys;
+	private int[] offsets;
+	private byte[] strings = new byte[1024];
+	private int used;
+	private int size;
+	private int zeroOffset = -1;
+
+	public LongStringMap() {
+		this(1024);
+	}
+
+	public LongStringMap(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(16, expected) * 2 - 1) * 2;
+		keys = new long[capacity];
+		offsets = new int[capacity];
+	}
+
+	public void put(long key, String value) {
+		int offset = append(value);
+		if(key==0L) {
+			size += zeroOffset<0 ? 1 : 0;
+			zeroOffset = offset;
+			return;
+		}
+		int mask = keys.length - 1;
+		for(int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+			if(keys[slot]==key) {
+				offsets[slot] = offset;
+				return;
+			} else if(keys[slot]==0L) {
+				keys[slot] = key;
+				offsets[slot] = offset;
+				if(++size * 10 > keys.length * 7) {
+					grow();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the string, or null if the key is not in the map
+	 */
+	public String get(long key) {
+		if(key==0L) {
+			return zeroOffset<0 ? null : read(zeroOffset);
+		}
+		int mask = keys.length - 1;
+		for(int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+			if(keys[slot]==key) {
+				return read(offsets[slot]);
+			} else if(keys[slot]==0L) {
+				return null;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * Strings are stored as a two byte length and their UTF-8 bytes.
+	 */
+	private int append(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(bytes.length, 0xffff);
+		if(used+2+length > strings.length) {
+			strings = Arrays.copyOf(strings, Math.max(strings.length * 2, used+2+length));
+		}
+		int offset = used;
+		strings[used++] = (byte)(length >>> 8);
+		strings[used++] = (byte)length;
+		System.arraycopy(bytes, 0, strings, used, length);
+		used += length;
+		return offset;
+	}
+
+	private String read(int offset) {
+		int length = ((strings[offset] & 0xff) << 8) | (strings[offset+1] & 0xff);
+		return new String(strings, offset+2, length, StandardCharsets.UTF_8);
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldOffsets = offsets;
+		keys = new long[oldKeys.length * 2];
+		offsets = new int[oldKeys.length * 2];
+		int mask = keys.length - 1;
+		for(int i=0; i<oldKeys.length; i++) {
+			if(oldKeys[i]!=0L) {
+				int slot = mix(oldKeys[i]) & mask;
+				while(keys[slot]!=0L) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				offsets[slot] = oldOffsets[i];
+			}
+		}
+	}
+
+	private static int mix(long value) {
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,281 @@
+package com.capitaltg.delta.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.capitaltg.delta.util.BerWriter;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Entry;
+
+public class AsyncLdapClientTest {
+
+	static final String BASE_DN = "dc=example,dc=com";
+	static final String USERNAME = "cn=Directory Manager";
+	static final String PASSWORD = "password";
+
+	private InMemoryDirectoryServer server;
+	private String url;
+
+	@Before
+	public void startServer() throws Exception {
+		server = startDirectory();
+		url = "ldap://localhost:" + server.getListenPort();
+	}
+
+	@After
+	public void stopServer() {
+		server.shutDown(true);
+	}
+
+	static InMemoryDirectoryServer startDirectory() throws Exception {
+		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+		config.addAdditionalBindCredentials(USERNAME, PASSWORD);
+		config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+		config.setSchema(null);
+		InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+		server.add("dn: " + BASE_DN, "objectClass: top", "objectClass: domain", "dc: example");
+		server.startListening();
+		return server;
+	}
+
+	@Test
+	public void addAndModify() throws Exception {
+		try(AsyncLdapClient client = AsyncLdapClient.connect(url, USERNAME, PASSWORD, 4, 5000)) {
+			BasicAttributes attributes = new BasicAttributes(true);
+			BasicAttribute objectClass = new BasicAttribute("objectClass");
+			objectClass.add("top");
+			objectClass.add("person");
+			attributes.put(objectClass);
+			attributes.put("cn", "jdoe");
+			attributes.put("sn", "Doe");
+			attributes.put("userCertificate;binary", new byte[]{ 0, 1, (byte)0xff });
+			assertNull(await(handler -> client.add("cn=jdoe," + BASE_DN, attributes, handler)));
+
+			ModificationItem[] items = {
+				new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("sn", "Roe")),
+				new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute("mail", "jdoe@example.com")),
+				new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute("userCertificate;binary"))
+			};
+			assertNull(await(handler -> client.modify("cn=jdoe," + BASE_DN, items, handler)));
+			assertEquals(0, client.getOutstanding());
+		}
+		Entry entry = server.getEntry("cn=jdoe," + BASE_DN);
+		assertEquals("Roe", entry.getAttributeValue("sn"));
+		assertEquals("jdoe@example.com", entry.getAttributeValue("mail"));
+		assertFalse(entry.hasAttribute("userCertificate;binary"));
+		assertEquals(2, entry.getObjectClassValues().length);
+	}
+
+	@Test
+	public void pipelinedWritesAllComplete() throws Exception {
+		BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+		try(AsyncLdapClient client = AsyncLdapClient.connect(url, USERNAME, PASSWORD, 8, 5000)) {
+			for(int i=0; i<200; i++) {
+				BasicAttributes attributes = new BasicAttributes("objectClass", "person", true);
+				attributes.put("sn", "user" + i);
+				client.add("cn=user" + i + "," + BASE_DN, attributes, failure -> results.add(failure==null ? "ok" : failure));
+			}
+			for(int i=0; i<200; i++) {
+				assertEquals("ok", results.poll(5, TimeUnit.SECONDS));
+			}
+		}
+		assertEquals(201, server.countEntries());
+	}
+
+	@Test
+	public void errorsMapToNamingExceptions() throws Exception {
+		try(AsyncLdapClient client = AsyncLdapClient.connect(url, USERNAME, PASSWORD, 4, 5000)) {
+			ModificationItem[] items = { new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("sn", "x")) };
+			NamingException missing = await(handler -> client.modify("cn=nobody," + BASE_DN, items, handler));
+			assertTrue(String.valueOf(missing), missing instanceof NameNotFoundException);
+			assertTrue(missing.getMessage().contains("error code 32"));
+
+			BasicAttributes attributes = new BasicAttributes("objectClass", "domain", true);
+			NamingException exists = await(handler -> client.add(BASE_DN, attributes, handler));
+			assertTrue(String.valueOf(exists), exists instanceof NameAlreadyBoundException);
+			assertTrue(client.isOpen());
+		}
+	}
+
+	@Test
+	public void badCredentials() {
+		try {
+			AsyncLdapClient.connect(url, USERNAME, "wrong", 4, 5000).close();
+			fail("bound with a wrong password");
+		} catch(NamingException e) {
+			assertTrue(String.valueOf(e), e instanceof AuthenticationException);
+		}
+	}
+
+	@Test
+	public void serverShutdownFailsWrites() throws Exception {
+		AsyncLdapClient client = AsyncLdapClient.connect(url, USERNAME, PASSWORD, 4, 5000);
+		server.shutDown(true);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(client.isOpen() && System.currentTimeMillis()<deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(client.isOpen());
+		ModificationItem[] items = { new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("sn", "x")) };
+		try {
+			client.modify("cn=jdoe," + BASE_DN, items, failure -> {});
+			fail("wrote to a closed connection");
+		} catch(CommunicationException e) {
+			// expected
+		}
+		client.close();
+	}
+
+	@Test
+	public void droppedConnectionFailsOutstandingWrites() throws Exception {
+		try(FakeServer fake = new FakeServer(out -> out.close());
+				AsyncLdapClient client = AsyncLdapClient.connect(fake.url(), USERNAME, PASSWORD, 4, 5000)) {
+			NamingException failure = await(handler -> client.modify("cn=jdoe," + BASE_DN,
+					new ModificationItem[]{ new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("sn", "x")) }, handler));
+			assertTrue(String.valueOf(failure), failure instanceof CommunicationException);
+			assertFalse(client.isOpen());
+			assertEquals(0, client.getOutstanding());
+		}
+	}
+
+	@Test
+	public void unansweredWritesTimeOut() throws Exception {
+		try(FakeServer fake = new FakeServer(out -> {});
+				AsyncLdapClient client = AsyncLdapClient.connect(fake.url(), USERNAME, PASSWORD, 4, 300)) {
+			long start = System.currentTimeMillis();
+			NamingException failure = await(handler -> client.modify("cn=jdoe," + BASE_DN,
+					new ModificationItem[]{ new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("sn", "x")) }, handler));
+			assertTrue(String.valueOf(failure), failure instanceof CommunicationException);
+			assertTrue(System.currentTimeMillis() - start >= 300);
+			assertFalse(client.isOpen());
+		}
+	}
+
+	@Test
+	public void oversizedResponseClosesConnection() throws Exception {
+		try(FakeServer fake = new FakeServer(out -> out.write(new byte[]{ 0x30, (byte)0x84, 0x7f, (byte)0xff, (byte)0xff, (byte)0xff }));
+				AsyncLdapClient client = AsyncLdapClient.connect(fake.url(), USERNAME, PASSWORD, 4, 5000)) {
+			NamingException failure = await(handler -> client.modify("cn=jdoe," + BASE_DN,
+					new ModificationItem[]{ new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("sn", "x")) }, handler));
+			assertTrue(String.valueOf(failure), failure instanceof CommunicationException);
+			assertFalse(client.isOpen());
+		}
+	}
+
+	@Test
+	public void undecodableResponseClosesConnection() throws Exception {
+		// a response to message 2 whose result code is a string
+		byte[] garbage = new BerWriter().beginSequence().writeInt(2).beginSequence(0x67).writeString("x").endSequence()
+				.endSequence().toByteArray();
+		try(FakeServer fake = new FakeServer(out -> out.write(garbage));
+				AsyncLdapClient client = AsyncLdapClient.connect(fake.url(), USERNAME, PASSWORD, 4, 5000)) {
+			NamingException failure = await(handler -> client.modify("cn=jdoe," + BASE_DN,
+					new ModificationItem[]{ new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("sn", "x")) }, handler));
+			assertTrue(String.valueOf(failure), failure instanceof CommunicationException);
+		}
+	}
+
+	private interface Request {
+		void send(AsyncLdapClient.ResultHandler handler) throws NamingException;
+	}
+
+	private static final NamingException SUCCESS = new NamingException();
+
+	private static NamingException await(Request request) throws Exception {
+		BlockingQueue<NamingException> result = new LinkedBlockingQueue<>();
+		request.send(failure -> result.add(failure==null ? SUCCESS : failure));
+		NamingException failure = result.poll(5, TimeUnit.SECONDS);
+		if(failure==null) {
+			fail("no response");
+		}
+		return failure==SUCCESS ? null : failure;
+	}
+
+	private interface Behaviour {
+		void respond(OutputStream out) throws IOException;
+	}
+
+	/*
+	 * Accepts one connection, answers its bind, and then does whatever it
+	 * is told to the first request that follows.
+	 */
+	private static class FakeServer implements AutoCloseable {
+		private final ServerSocket serverSocket = new ServerSocket(0);
+		private final Thread thread;
+
+		private FakeServer(Behaviour behaviour) throws IOException {
+			thread = new Thread(() -> {
+				try(Socket socket = serverSocket.accept()) {
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					OutputStream out = socket.getOutputStream();
+					skipMessage(in);
+					out.write(new BerWriter().beginSequence().writeInt(1).beginSequence(0x61).writeEnumerated(0)
+							.writeString("").writeString("").endSequence().endSequence().toByteArray());
+					out.flush();
+					skipMessage(in);
+					behaviour.respond(out);
+					out.flush();
+					while(in.read()>=0) {
+						// hold the connection open until the client goes
+					}
+				} catch(IOException e) {
+					// the client went away
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private String url() {
+			return "ldap://localhost:" + serverSocket.getLocalPort();
+		}
+
+		@Override
+		public void close() throws IOException {
+			serverSocket.close();
+		}
+
+		private static void skipMessage(InputStream stream) throws IOException {
+			DataInputStream in = new DataInputStream(stream);
+			in.readUnsignedByte();
+			int length = in.readUnsignedByte();
+			if((length & 0x80)!=0) {
+				int bytes = length & 0x7f;
+				length = 0;
+				for(int i=0; i<bytes; i++) {
+					length = (length << 8) | in.readUnsignedByte();
+				}
+			}
+			in.readFully(new byte[length]);
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package com.capitaltg.delta.ldap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.capitaltg.delta.sync.CheckpointStore;
+import com.unboundid.asn1.ASN1Element;
+import com.unboundid.asn1.ASN1Enumerated;
+import com.unboundid.asn1.ASN1Exception;
+import com.unboundid.asn1.ASN1Integer;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.asn1.ASN1Sequence;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchResult;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPResult;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+
+/**
+ * Runs change streams against an in-memory directory, which supports none
+ * of the change controls, so an interceptor plays the server's part.
+ */
+public class ChangeStreamTest {
+
+	static final String BASE_DN = "dc=example,dc=com";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final FakeDirSync dirSync = new FakeDirSync();
+	private final FakePersistentSearch persistentSearch = new FakePersistentSearch();
+	private InMemoryDirectoryServer server;
+	private Hashtable<String, String> environment;
+
+	@Before
+	public void startServer() throws Exception {
+		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+		config.addAdditionalBindCredentials("cn=Directory Manager", "password");
+		config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+		config.setSchema(null);
+		config.addInMemoryOperationInterceptor(dirSync);
+		config.addInMemoryOperationInterceptor(persistentSearch);
+		server = new InMemoryDirectoryServer(config);
+		server.add("dn: " + BASE_DN, "objectClass: domain", "dc: example");
+		server.add("dn: uid=jdoe," + BASE_DN, "objectClass: person", "uid: jdoe", "sn: Doe");
+		server.startListening();
+		environment = new Hashtable<>();
+		environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+		environment.put(Context.PROVIDER_URL, "ldap://localhost:" + server.getListenPort());
+		environment.put(Context.SECURITY_PRINCIPAL, "cn=Directory Manager");
+		environment.put(Context.SECURITY_CREDENTIALS, "password");
+	}
+
+	@After
+	public void stopServer() {
+		persistentSearch.changes.add(END);
+		server.shutDown(true);
+	}
+
+	@Test
+	public void dirSyncKeepsCookiesWithoutCheckpointStore() throws Exception {
+		Map<String, byte[]> cookies = new HashMap<>();
+		List<String> changed = new CopyOnWriteArrayList<>();
+		runRounds(stream(ChangeStream.Mode.DIRSYNC, cookies, null, changed), 3);
+		assertEquals("", dirSync.received.get(0));
+		assertEquals("cookie1", dirSync.received.get(1));
+		assertEquals("cookie2", dirSync.received.get(2));
+		assertEquals("uid=jdoe," + BASE_DN, changed.get(0));
+		assertEquals(1, changed.size());
+
+		// a reconnect resumes from the cookie of the previous stream
+		dirSync.received.clear();
+		runRounds(stream(ChangeStream.Mode.DIRSYNC, cookies, null, changed), 1);
+		assertTrue(dirSync.received.get(0).startsWith("cookie"));
+		assertEquals(1, changed.size());
+	}
+
+	@Test
+	public void dirSyncSavesCookiesToCheckpointStore() throws Exception {
+		String file = new File(folder.getRoot(), "checkpoint.properties").getPath();
+		CheckpointStore store = new CheckpointStore(file);
+		List<String> changed = new CopyOnWriteArrayList<>();
+		runRounds(stream(ChangeStream.Mode.DIRSYNC, new HashMap<>(), store, changed), 2);
+		String saved = new CheckpointStore(file).get("cookie.dirsync");
+		assertTrue(saved, new String(Base64.getDecoder().decode(saved), StandardCharsets.UTF_8).startsWith("cookie"));
+
+		// a restart resumes from the saved cookie
+		dirSync.received.clear();
+		runRounds(stream(ChangeStream.Mode.DIRSYNC, new HashMap<>(), new CheckpointStore(file), changed), 1);
+		assertArrayEquals(Base64.getDecoder().decode(saved), dirSync.received.get(0).getBytes(StandardCharsets.UTF_8));
+		assertEquals(1, changed.size());
+	}
+
+	@Test
+	public void persistentSearchCatchesUpOnceOpen() throws Exception {
+		List<String> changed = new CopyOnWriteArrayList<>();
+		CountDownLatch opened = new CountDownLatch(1);
+		boolean[] searching = {false};
+		ChangeStream stream = stream(ChangeStream.Mode.PSEARCH, 500L, new HashMap<>(), null, changed, () -> {
+			searching[0] = persistentSearch.open.getCount() == 0;
+			opened.countDown();
+		});
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		Thread thread = new Thread(() -> {
+			try {
+				stream.run();
+			} catch(Exception e) {
+				failure.set(e);
+			}
+		});
+		thread.start();
+		assertTrue(opened.await(10, TimeUnit.SECONDS));
+		assertTrue("caught up before the search was open", searching[0]);
+
+		persistentSearch.changes.add(new SearchResultEntry("uid=jdoe," + BASE_DN,
+				new Attribute[]{ new Attribute("uid", "jdoe"), new Attribute("sn", "Doe") }));
+		persistentSearch.changes.add(new SearchResultEntry("uid=gone," + BASE_DN, new Attribute[]{ new Attribute("uid", "gone") },
+				new Control(ChangeStream.ENTRY_CHANGE_OID, false, new ASN1OctetString(new ASN1Sequence(new ASN1Enumerated(2)).encode()))));
+		persistentSearch.changes.add(END);
+		thread.join(10000);
+		assertEquals(Arrays.asList("uid=jdoe," + BASE_DN, "deleted uid=gone," + BASE_DN), changed);
+		assertTrue(failure.get() instanceof NamingException);
+	}
+
+	@Test
+	public void persistentSearchEndsWhenCatchUpFails() throws Exception {
+		ChangeStream stream = stream(ChangeStream.Mode.PSEARCH, 500L, new HashMap<>(), null, new CopyOnWriteArrayList<>(), () -> {
+			throw new NamingException("catch-up failed");
+		});
+		try {
+			stream.run();
+			fail("stream ended without a failure");
+		} catch(NamingException e) {
+			// interrupted by the failed catch-up
+		}
+	}
+
+	private ChangeStream stream(ChangeStream.Mode mode, Map<String, byte[]> cookies, CheckpointStore store, List<String> changed) {
+		return stream(mode, 20L, cookies, store, changed, () -> {});
+	}
+
+	private ChangeStream stream(ChangeStream.Mode mode, long pollMillis, Map<String, byte[]> cookies, CheckpointStore store,
+			List<String> changed, CatchUp catchUp) {
+		return new ChangeStream(mode, environment, BASE_DN, "(objectClass=person)", new String[]{"uid", "sn"}, pollMillis,
+				cookies, store, new ChangeStream.ChangeHandler() {
+			@Override
+			public void changed(SearchResult entry) {
+				changed.add(entry.getNameInNamespace());
+			}
+			@Override
+			public void deleted(String dn) {
+				changed.add("deleted " + dn);
+			}
+			@Override
+			public void opened() throws NamingException {
+				catchUp.run();
+			}
+			@Override
+			public void flush() {
+			}
+		});
+	}
+
+	private interface CatchUp {
+		void run() throws NamingException;
+	}
+
+	/*
+	 * Runs the stream until the given number of rounds completed, which is
+	 * once the server saw the request of the round after them.  Whatever
+	 * the interrupt breaks off in that round does not count.
+	 */
+	private void runRounds(ChangeStream stream, int rounds) throws Exception {
+		int before = dirSync.received.size();
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		AtomicBoolean stopped = new AtomicBoolean();
+		Thread thread = new Thread(() -> {
+			try {
+				stream.run();
+			} catch(Exception e) {
+				if(!stopped.get()) {
+					failure.set(e);
+				}
+			}
+		});
+		thread.start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while(dirSync.received.size() <= before + rounds && thread.isAlive() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		stopped.set(true);
+		thread.interrupt();
+		thread.join(10000);
+		if(failure.get() != null) {
+			throw failure.get();
+		}
+		assertTrue(dirSync.received.size() > before + rounds);
+	}
+
+	/*
+	 * Answers DirSync searches: an empty cookie gets every entry, any
+	 * other cookie nothing, and every round hands out the next cookie.
+	 */
+	private static class FakeDirSync extends InMemoryOperationInterceptor {
+
+		private final List<String> received = new CopyOnWriteArrayList<>();
+		private int rounds;
+
+		@Override
+		public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+			Control control = request.getRequest().getControl(ChangeStream.DIRSYNC_OID);
+			if(control == null) {
+				return;
+			}
+			String cookie;
+			try {
+				ASN1Element[] value = ASN1Sequence.decodeAsSequence(control.getValue().getValue()).elements();
+				cookie = ASN1OctetString.decodeAsOctetString(value[2]).stringValue();
+			} catch(ASN1Exception e) {
+				throw new LDAPException(ResultCode.PROTOCOL_ERROR, e);
+			}
+			SearchRequest stripped = request.getRequest().duplicate();
+			stripped.setControls();
+			if(!cookie.isEmpty()) {
+				stripped.setFilter("(objectClass=nothing)");
+			}
+			request.setRequest(stripped);
+			request.setProperty("dirsync", Boolean.TRUE);
+			received.add(cookie);
+		}
+
+		@Override
+		public void processSearchResult(InMemoryInterceptedSearchResult result) {
+			if(result.getProperty("dirsync") == null) {
+				return;
+			}
+			ASN1OctetString cookie = new ASN1OctetString("cookie" + ++rounds);
+			Control response = new Control(ChangeStream.DIRSYNC_OID, false, new ASN1OctetString(
+					new ASN1Sequence(new ASN1Integer(0), new ASN1Integer(0), cookie).encode()));
+			LDAPResult done = result.getResult();
+			result.setResult(new LDAPResult(done.getMessageID(), done.getResultCode(), done.getDiagnosticMessage(),
+					done.getMatchedDN(), done.getReferralURLs(), new Control[]{ response }));
+		}
+	}
+
+	private static final Entry END = new Entry("cn=end");
+
+	/*
+	 * Holds persistent searches open, sends every change the test queues
+	 * and ends the search at END.
+	 */
+	private static class FakePersistentSearch extends InMemoryOperationInterceptor {
+
+		private final BlockingQueue<Entry> changes = new LinkedBlockingQueue<>();
+		private final CountDownLatch open = new CountDownLatch(1);
+
+		@Override
+		public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+			if(!request.getRequest().hasControl(ChangeStream.PERSISTENT_SEARCH_OID)) {
+				return;
+			}
+			open.countDown();
+			try {
+				for(Entry change = changes.take(); change != END; change = changes.take()) {
+					request.sendSearchEntry(change);
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			SearchRequest stripped = request.getRequest().duplicate();
+			stripped.setControls();
+			stripped.setFilter("(objectClass=nothing)");
+			request.setRequest(stripped);
+		}
+	}
+}
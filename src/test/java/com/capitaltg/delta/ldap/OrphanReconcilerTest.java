@@ -0,0 +1,153 @@
+package com.capitaltg.delta.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.naming.NamingException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.capitaltg.delta.mapping.ConversionMap;
+import com.capitaltg.delta.sync.CheckpointStore;
+
+public class OrphanReconcilerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<String> orphans = new ArrayList<>();
+
+	@Test
+	public void interleavedIdsLeaveOnlyTheMissingOnes() throws Exception {
+		IdDirectory source = new IdDirectory("a", "c", "e", "g");
+		IdDirectory destination = new IdDirectory("a", "B", "c", "d", "f", "g", "h");
+		assertEquals(4L, reconcile(source, destination, 1000L));
+		assertEquals(Arrays.asList("b=uid=B", "d=uid=d", "f=uid=f", "h=uid=h"), orphans);
+	}
+
+	@Test
+	public void duplicateIdsAreMatchedAndReportedEach() throws Exception {
+		IdDirectory source = new IdDirectory("a", "A", "c");
+		IdDirectory destination = new IdDirectory("a", "a", "b", "B", "c");
+		assertEquals(2L, reconcile(source, destination, 1000L));
+		// ids that differ only in case come in the server's order
+		Collections.sort(orphans);
+		assertEquals(Arrays.asList("b=uid=B", "b=uid=b"), orphans);
+	}
+
+	@Test
+	public void emptySourceIsNotActedOn() throws Exception {
+		assertEquals(2L, reconcile(new IdDirectory(), new IdDirectory("x", "y"), 1000L));
+		assertTrue(orphans.isEmpty());
+	}
+
+	@Test
+	public void emptyDestinationHasNoOrphans() throws Exception {
+		assertEquals(0L, reconcile(new IdDirectory("x", "y"), new IdDirectory(), 1000L));
+		assertTrue(orphans.isEmpty());
+	}
+
+	@Test
+	public void orphansOverTheLimitAreOnlyCounted() throws Exception {
+		IdDirectory source = new IdDirectory("m");
+		IdDirectory destination = new IdDirectory("a", "m", "x", "z");
+		assertEquals(3L, reconcile(source, destination, 2L));
+		assertTrue(orphans.isEmpty());
+		assertEquals(3L, reconcile(source, destination, 3L));
+		assertEquals(Arrays.asList("a=uid=a", "x=uid=x", "z=uid=z"), orphans);
+	}
+
+	/*
+	 * The fake server sorts case-sensitively, so lower cased ids arrive out
+	 * of order and both sides are sorted on disk instead.
+	 */
+	@Test
+	public void idsOutOfOrderAreSortedOnDisk() throws Exception {
+		IdDirectory source = new IdDirectory("carol", "Bob", "alice", "Erin", "dave");
+		IdDirectory destination = new IdDirectory("Dave", "bob", "Frank", "alice", "Carol", "eve");
+		assertEquals(2L, reconcile(source, destination, 1000L));
+		assertEquals(Arrays.asList("eve=uid=eve", "frank=uid=Frank"), orphans);
+		for(IdDirectory side : Arrays.asList(source, destination)) {
+			assertTrue(side.reads.get(0));
+			assertFalse(side.reads.get(side.reads.size()-1));
+		}
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	private long reconcile(SourceConnection source, SourceConnection destination, long limit) throws NamingException, IOException {
+		OrphanReconciler reconciler = new OrphanReconciler(folder.getRoot().toPath(), 2);
+		return reconciler.reconcile(source, destination, limit, (id, dn) -> orphans.add(id + "=" + dn));
+	}
+
+	/*
+	 * Unique ids of one side, each with the dn uid=<id>.  Entries without
+	 * an id are passed on as null, as they are for entries lacking the
+	 * unique id attribute.
+	 */
+	private static class IdDirectory implements SourceConnection {
+
+		private final List<String> ids;
+		private final List<Boolean> reads = Collections.synchronizedList(new ArrayList<>());
+
+		private IdDirectory(String... ids) {
+			this.ids = Arrays.asList(ids);
+		}
+
+		@Override
+		public void readUniqueIds(boolean sorted, UniqueIdHandler handler) throws NamingException, IOException {
+			reads.add(sorted);
+			List<String> entries = new ArrayList<>(ids);
+			if(sorted) {
+				Collections.sort(entries);
+			}
+			handler.handle(null, "cn=no id");
+			for(String id : entries) {
+				handler.handle(id, "uid=" + id);
+			}
+		}
+
+		@Override
+		public SyncResult syncAllUsers(LDAPConnection connection, long timestamp, ConversionMap conversionMap) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SyncResult syncAllGroups(LDAPConnection connection, long timestamp) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SyncResult fullSync(LDAPConnection connection, ConversionMap conversionMap, CheckpointStore checkpointStore) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void streamChanges(LDAPConnection connection, ConversionMap conversionMap, String mode, long since, long pollMillis, CheckpointStore checkpointStore) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void readMemberIds(String groupDn, UniqueIdHandler handler) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int readEntries(String filter, ConversionMap conversionMap, EntryHandler handler) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String getUniqueIDByDN(String dn) {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.capitaltg.delta.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.naming.CommunicationException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+
+public class PipelinedEntryWriterTest {
+
+	private static final String DN = "cn=jdoe," + AsyncLdapClientTest.BASE_DN;
+
+	private InMemoryDirectoryServer server;
+	private PipelinedEntryWriter writer;
+
+	@Before
+	public void start() throws Exception {
+		server = AsyncLdapClientTest.startDirectory();
+		writer = new PipelinedEntryWriter("ldap://localhost:" + server.getListenPort(),
+				AsyncLdapClientTest.USERNAME, AsyncLdapClientTest.PASSWORD, 4, 5000);
+	}
+
+	@After
+	public void stop() {
+		writer.close();
+		server.shutDown(true);
+	}
+
+	@Test
+	public void writesToOneEntryStayInOrder() throws Exception {
+		List<NamingException> failures = new CopyOnWriteArrayList<>();
+		BasicAttributes attributes = new BasicAttributes("objectClass", "person", true);
+		attributes.put("sn", "0");
+		writer.add(DN, attributes, failure -> { if(failure!=null) failures.add(failure); });
+		for(int i=1; i<=50; i++) {
+			writer.modify(DN.toUpperCase(), replace("sn", String.valueOf(i)), failure -> { if(failure!=null) failures.add(failure); });
+		}
+		writer.awaitWritten();
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals("50", server.getEntry(DN).getAttributeValue("sn"));
+	}
+
+	@Test
+	public void listenerFailuresSurfaceOnce() throws Exception {
+		NamingException rethrown = new NamingException("rethrown");
+		List<NamingException> seen = new CopyOnWriteArrayList<>();
+		writer.modify(DN, replace("sn", "x"), failure -> {
+			seen.add(failure);
+			throw rethrown;
+		});
+		try {
+			writer.awaitWritten();
+			fail("listener failure was swallowed");
+		} catch(NamingException e) {
+			assertSame(rethrown, e);
+		}
+		assertTrue(seen.get(0) instanceof NameNotFoundException);
+		writer.awaitWritten();
+	}
+
+	@Test
+	public void droppedConnectionFailsWritesAndReconnects() throws Exception {
+		BasicAttributes attributes = new BasicAttributes("objectClass", "person", true);
+		attributes.put("sn", "Doe");
+		writer.add(DN, attributes, failure -> { if(failure!=null) throw failure; });
+		writer.awaitWritten();
+
+		int port = server.getListenPort();
+		server.shutDown(true);
+		List<NamingException> failures = new CopyOnWriteArrayList<>();
+		writer.modify(DN, replace("sn", "Roe"), failure -> {
+			failures.add(failure);
+			if(failure instanceof CommunicationException) {
+				throw failure;
+			}
+		});
+		try {
+			writer.awaitWritten();
+			fail("write to a dropped connection succeeded");
+		} catch(CommunicationException e) {
+			// expected, the sync pass fails rather than skipping the entry
+		}
+		assertEquals(1, failures.size());
+
+		server.startListening();
+		assertEquals(port, server.getListenPort());
+		writer.modify(DN, replace("sn", "Roe"), failure -> assertNull(failure));
+		writer.awaitWritten();
+		assertEquals("Roe", server.getEntry(DN).getAttributeValue("sn"));
+	}
+
+	private static ModificationItem[] replace(String attribute, String value) {
+		return new ModificationItem[]{ new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(attribute, value)) };
+	}
+}
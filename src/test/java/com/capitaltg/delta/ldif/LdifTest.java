@@ -0,0 +1,157 @@
+package com.capitaltg.delta.ldif;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchResult;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldif.LDIFChangeRecord;
+import com.unboundid.ldif.LDIFModifyChangeRecord;
+
+public class LdifTest {
+
+	private static final byte[] BINARY = { (byte)0xff, (byte)0xd8, 0, 1, (byte)0x80 };
+	private static final String LONG = Strings.repeat("0123456789", 20);
+
+	@Test
+	public void entriesRoundTrip() throws Exception {
+		BasicAttributes attributes = new BasicAttributes(true);
+		attributes.put("cn", "Jane Doe");
+		attributes.put("description", LONG);
+		attributes.put("sn", " leading space");
+		attributes.put("givenName", "Zoë");
+		attributes.put("title", "trailing space ");
+		attributes.put("photo", BINARY);
+		attributes.put("userCertificate;binary", "cert".getBytes("UTF-8"));
+		attributes.put("empty", "");
+		BasicAttribute mail = new BasicAttribute("mail");
+		mail.add("jdoe@example.com");
+		mail.add("jane@example.com");
+		attributes.put(mail);
+		String dn = "uid=jdoe,ou=Zürich," + Strings.repeat("ou=unit,", 10) + "dc=example,dc=com";
+
+		StringWriter out = new StringWriter();
+		try(LdifWriter writer = new LdifWriter(out)) {
+			writer.writeComment("written by a test");
+			writer.writeEntry(dn, attributes);
+		}
+		for(String line : out.toString().split("\n")) {
+			assertTrue(line, line.length() <= 76);
+		}
+
+		try(LdifReader reader = new LdifReader(new StringReader(out.toString()))) {
+			SearchResult entry = reader.next();
+			assertEquals(dn, entry.getNameInNamespace());
+			assertEquals("Jane Doe", entry.getAttributes().get("cn").get());
+			assertEquals(LONG, entry.getAttributes().get("description").get());
+			assertEquals(" leading space", entry.getAttributes().get("sn").get());
+			assertEquals("Zoë", entry.getAttributes().get("givenName").get());
+			assertEquals("trailing space ", entry.getAttributes().get("title").get());
+			assertArrayEquals(BINARY, (byte[])entry.getAttributes().get("photo").get());
+			assertArrayEquals("cert".getBytes("UTF-8"), (byte[])entry.getAttributes().get("userCertificate;binary").get());
+			assertEquals("", entry.getAttributes().get("empty").get());
+			assertEquals(2, entry.getAttributes().get("mail").size());
+			assertNull(reader.next());
+		}
+
+		Entry parsed = new com.unboundid.ldif.LDIFReader(new BufferedReader(new StringReader(out.toString()))).readEntry();
+		assertEquals(dn, parsed.getDN());
+		assertEquals(LONG, parsed.getAttributeValue("description"));
+		assertEquals(" leading space", parsed.getAttributeValue("sn"));
+		assertArrayEquals(BINARY, parsed.getAttributeValueBytes("photo"));
+	}
+
+	@Test
+	public void changeRecordsOtherThanAddsAreSkipped() throws Exception {
+		BasicAttributes attributes = new BasicAttributes(true);
+		attributes.put("uid", "jdoe");
+		attributes.put("description", LONG);
+		ModificationItem[] items = {
+			new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("description", LONG)),
+			new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute("mail", "jdoe@example.com")),
+			new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute("telephoneNumber"))
+		};
+
+		StringWriter out = new StringWriter();
+		try(LdifWriter writer = new LdifWriter(out)) {
+			writer.writeModify("uid=jdoe,dc=example,dc=com", items);
+			writer.writeAdd("uid=added,dc=example,dc=com", attributes);
+			writer.writeDelete("uid=gone,dc=example,dc=com");
+			writer.writeModify("uid=jdoe,dc=example,dc=com", items);
+			writer.writeEntry("uid=content,dc=example,dc=com", attributes);
+		}
+
+		try(LdifReader reader = new LdifReader(new StringReader(out.toString()))) {
+			SearchResult added = reader.next();
+			assertEquals("uid=added,dc=example,dc=com", added.getNameInNamespace());
+			assertEquals(LONG, added.getAttributes().get("description").get());
+			assertEquals(2, added.getAttributes().size());
+			assertEquals("uid=content,dc=example,dc=com", reader.next().getNameInNamespace());
+			assertNull(reader.next());
+			assertEquals(3, reader.getSkipped());
+		}
+
+		com.unboundid.ldif.LDIFReader parser = new com.unboundid.ldif.LDIFReader(new BufferedReader(new StringReader(out.toString())));
+		LDIFChangeRecord modify = parser.readChangeRecord();
+		assertTrue(modify instanceof LDIFModifyChangeRecord);
+		assertEquals(3, ((LDIFModifyChangeRecord)modify).getModifications().length);
+		assertEquals(LONG, ((LDIFModifyChangeRecord)modify).getModifications()[0].getValues()[0]);
+	}
+
+	@Test
+	public void foldedLinesAndCommentsAreRead() throws Exception {
+		String ldif = "version: 1\n"
+				+ "# a comment that\n"
+				+ "  goes on\n"
+				+ "\n"
+				+ "dn: uid=jdoe,dc=exam\n"
+				+ " ple,dc=com\n"
+				+ "control: 1.2.3.4 true\n"
+				+ "cn: Jane\n"
+				+ "  Doe\n"
+				+ "# between attributes\n"
+				+ "sn:: RG/DqQ==\n"
+				+ "description:\n"
+				+ "\n"
+				+ "\n"
+				+ "dn: uid=next,dc=example,dc=com\n"
+				+ "changetype: add\n"
+				+ "uid: next\n";
+		try(LdifReader reader = new LdifReader(new StringReader(ldif))) {
+			SearchResult entry = reader.next();
+			assertEquals("uid=jdoe,dc=example,dc=com", entry.getNameInNamespace());
+			assertEquals("Jane Doe", entry.getAttributes().get("cn").get());
+			assertEquals("Doé", entry.getAttributes().get("sn").get());
+			assertEquals("", entry.getAttributes().get("description").get());
+			assertNull(entry.getAttributes().get("control"));
+			assertEquals("uid=next,dc=example,dc=com", reader.next().getNameInNamespace());
+			assertNull(reader.next());
+		}
+	}
+
+	@Test
+	public void linesWithoutAttributesAreRejected() throws Exception {
+		try(LdifReader reader = new LdifReader(new StringReader("dn: uid=jdoe,dc=example,dc=com\nnot an attribute\n"))) {
+			reader.next();
+			fail("read a line without a colon");
+		} catch(IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("line 2"));
+		}
+	}
+}
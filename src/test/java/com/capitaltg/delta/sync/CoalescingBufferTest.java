@@ -0,0 +1,154 @@
+package com.capitaltg.delta.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.capitaltg.delta.sync.SyncWorkerPool.SyncTask;
+
+public class CoalescingBufferTest {
+
+	private static final long LONG_WINDOW = TimeUnit.MINUTES.toMillis(10);
+
+	private final List<String> released = new ArrayList<>();
+	private final List<String> written = new ArrayList<>();
+	private final List<Thread> threads = new ArrayList<>();
+	private CoalescingBuffer buffer;
+
+	@After
+	public void shutdown() {
+		if(buffer!=null) {
+			buffer.shutdown();
+		}
+	}
+
+	@Test
+	public void laterTasksReplaceHeldOnes() throws Exception {
+		buffer = new CoalescingBuffer("test", LONG_WINDOW, 100, this::record);
+		assertFalse(buffer.put("jdoe", write("first")));
+		assertTrue(buffer.put("JDoe", write("second")));
+		assertTrue(buffer.put("jdoe", write("third")));
+		assertFalse(buffer.put("other", write("other")));
+		assertEquals(2, buffer.size());
+		assertEquals(2L, buffer.getAbsorbed());
+		assertEquals(0L, buffer.getAbsorbed());
+
+		buffer.flush();
+		assertEquals(Arrays.asList("jdoe", "other"), released);
+		assertEquals(Arrays.asList("third", "other"), written);
+		assertEquals(0, buffer.size());
+
+		// a key seen again after its release is held anew
+		assertFalse(buffer.put("jdoe", write("fourth")));
+		assertEquals(0L, buffer.getAbsorbed());
+	}
+
+	@Test
+	public void keysAreReleasedInTheOrderTheyWereFirstHeld() throws Exception {
+		buffer = new CoalescingBuffer("test", LONG_WINDOW, 100, this::record);
+		buffer.put("b", write("b1"));
+		buffer.put("a", write("a1"));
+		buffer.put("c", write("c1"));
+		buffer.put("b", write("b2"));
+		buffer.flush();
+		assertEquals(Arrays.asList("b", "a", "c"), released);
+		assertEquals(Arrays.asList("b2", "a1", "c1"), written);
+	}
+
+	@Test
+	public void dueKeysAreReleasedInOrderByTheReleaser() throws Exception {
+		buffer = new CoalescingBuffer("test", 50L, 100, this::record);
+		buffer.put("x", write("x"));
+		buffer.put("y", write("y"));
+		long deadline = System.currentTimeMillis() + 5000L;
+		while(buffer.size()>0 && System.currentTimeMillis()<deadline) {
+			Thread.sleep(10L);
+		}
+		assertEquals(Long.MAX_VALUE, buffer.releaseDue());
+		synchronized(released) {
+			assertEquals(Arrays.asList("x", "y"), released);
+			assertTrue(threads.stream().noneMatch(Thread.currentThread()::equals));
+		}
+	}
+
+	@Test
+	public void oldestKeyIsReleasedOnTheCallerWhenFull() throws Exception {
+		buffer = new CoalescingBuffer("test", LONG_WINDOW, 2, this::record);
+		buffer.put("a", write("a"));
+		buffer.put("b", write("b"));
+		assertTrue(released.isEmpty());
+		buffer.put("c", write("c"));
+		assertEquals(Arrays.asList("a"), released);
+		assertSame(Thread.currentThread(), threads.get(0));
+		assertEquals(2, buffer.size());
+
+		// replacing a held key does not count towards the limit
+		buffer.put("b", write("b2"));
+		assertEquals(1, released.size());
+		buffer.flush();
+		assertEquals(Arrays.asList("a", "b", "c"), released);
+		assertEquals(Arrays.asList("a", "b2", "c"), written);
+	}
+
+	@Test
+	public void releaseDueKeepsTasksThatAreNotDue() throws Exception {
+		buffer = new CoalescingBuffer("test", LONG_WINDOW, 100, this::record);
+		assertEquals(Long.MAX_VALUE, buffer.releaseDue());
+		long before = System.currentTimeMillis();
+		buffer.put("a", write("a"));
+		long after = System.currentTimeMillis();
+		Thread.sleep(5L);
+		buffer.put("b", write("b"));
+		buffer.put("a", write("a2"));
+		long heldSince = buffer.releaseDue();
+		assertTrue(heldSince>=before && heldSince<=after);
+		assertTrue(released.isEmpty());
+		assertEquals(2, buffer.size());
+		buffer.flush();
+		assertEquals(Long.MAX_VALUE, buffer.releaseDue());
+	}
+
+	@Test
+	public void releaserFailuresAreReportedOnce() throws Exception {
+		buffer = new CoalescingBuffer("test", 20L, 100, (key, task) -> {
+			throw new NamingException("cannot write " + key);
+		});
+		buffer.put("broken", write("broken"));
+		long deadline = System.currentTimeMillis() + 5000L;
+		while(buffer.size()>0 && System.currentTimeMillis()<deadline) {
+			Thread.sleep(10L);
+		}
+		Thread.sleep(50L);
+		try {
+			buffer.releaseDue();
+			fail("the releaser's failure was not reported");
+		} catch(NamingException e) {
+			assertEquals("cannot write broken", e.getMessage());
+		}
+		buffer.flush();
+	}
+
+	private SyncTask write(String label) {
+		return () -> written.add(label);
+	}
+
+	private void record(String key, SyncTask task) throws NamingException {
+		synchronized(released) {
+			released.add(key);
+			threads.add(Thread.currentThread());
+			task.run();
+		}
+	}
+}
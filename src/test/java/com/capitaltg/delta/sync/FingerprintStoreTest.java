@@ -0,0 +1,112 @@
+package com.capitaltg.delta.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FingerprintStoreTest {
+
+	private static final int HEADER = 16;
+	private static final int SLOT = 24;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void entriesSurviveGrowthAndReopening() throws Exception {
+		File file = new File(folder.getRoot(), "state/fingerprints.bin");
+		FingerprintStore store = new FingerprintStore(file.getPath(), 512);
+		assertEquals(HEADER + 1024L * SLOT, file.length());
+		for(int i=0; i<5000; i++) {
+			store.put(FingerprintStore.key("user" + i), i, -i);
+		}
+		store.flush();
+		assertEquals(5000, store.size());
+		assertEquals(HEADER + 8192L * SLOT, file.length());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+		for(int i=0; i<5000; i++) {
+			long key = FingerprintStore.key("user" + i);
+			assertTrue(store.matchesSource(key, i));
+			assertEquals(-i, store.getDestination(key));
+		}
+
+		FingerprintStore reopened = new FingerprintStore(file.getPath(), 512);
+		assertEquals(5000, reopened.size());
+		for(int i=0; i<5000; i++) {
+			long key = FingerprintStore.key("USER" + i);
+			assertTrue(reopened.matchesSource(key, i));
+			assertFalse(reopened.matchesSource(key, i + 1));
+			assertEquals(-i, reopened.getDestination(key));
+		}
+		assertEquals(0L, reopened.getDestination(FingerprintStore.key("nobody")));
+	}
+
+	@Test
+	public void putReplacesTheFingerprints() throws Exception {
+		FingerprintStore store = new FingerprintStore(folder.getRoot() + "/fingerprints.bin", 0);
+		long key = FingerprintStore.key("jdoe");
+		store.put(key, 1L, 2L);
+		store.put(key, 3L, 4L);
+		assertEquals(1, store.size());
+		assertFalse(store.matchesSource(key, 1L));
+		assertTrue(store.matchesSource(key, 3L));
+		assertEquals(4L, store.getDestination(key));
+	}
+
+	/*
+	 * Keys whose high half is 0 land in the slot of their low 10 bits, so
+	 * these all probe from the last slot and wrap around to the first.
+	 */
+	@Test
+	public void removalShiftsBackCollidingEntries() throws Exception {
+		FingerprintStore store = new FingerprintStore(folder.getRoot() + "/fingerprints.bin", 1024);
+		long[] keys = { 1023L, 2047L, 1024L, 3071L, 2048L, 1L };
+		for(long key : keys) {
+			store.put(key, key, key * 2);
+		}
+		store.remove(1023L);
+		store.remove(1024L);
+		store.remove(42L);
+		assertEquals(4, store.size());
+		assertFalse(store.matchesSource(1023L, 1023L));
+		assertFalse(store.matchesSource(1024L, 1024L));
+		for(long key : new long[]{ 2047L, 3071L, 2048L, 1L }) {
+			assertTrue("lost " + key, store.matchesSource(key, key));
+			assertEquals(key * 2, store.getDestination(key));
+		}
+		store.put(1024L, 5L, 6L);
+		assertEquals(5, store.size());
+		assertEquals(6L, store.getDestination(1024L));
+	}
+
+	@Test
+	public void keysIgnoreCaseAndAreNeverZero() {
+		assertEquals(FingerprintStore.key("JDoe"), FingerprintStore.key("jdoe"));
+		assertNotEquals(FingerprintStore.key("jdoe"), FingerprintStore.key("jdoe2"));
+		for(int i=0; i<1000; i++) {
+			assertNotEquals(0L, FingerprintStore.key("user" + i));
+		}
+	}
+
+	@Test
+	public void otherFilesAreNotOpened() throws Exception {
+		File file = folder.newFile("checkpoint.properties");
+		Files.write(file.toPath(), "highWaterMark=12345\n".getBytes("UTF-8"));
+		try {
+			new FingerprintStore(file.getPath(), 1024);
+			fail("opened a file that is not a fingerprint store");
+		} catch(IOException e) {
+			assertTrue(e.getMessage().endsWith("is not a fingerprint store"));
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.capitaltg.delta.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class PartitionAssignmentTest {
+
+	private static final long LEASE = 60000L;
+	private static final int IDS = 3000;
+
+	/*
+	 * Members of one cluster, with the checkpoint each last published.
+	 */
+	private final SortedMap<String, Long> members = new TreeMap<>();
+
+	@Test
+	public void everyIdHasExactlyOneOwner() throws Exception {
+		PartitionAssignment a = join("a", LEASE);
+		assertTrue(a.owns("jdoe"));
+		assertTrue(a.isLeader());
+		PartitionAssignment b = join("b", LEASE);
+		PartitionAssignment c = join("c", LEASE);
+		a.heartbeat();
+		b.heartbeat();
+
+		PartitionAssignment[] nodes = { a, b, c };
+		int[] owned = new int[nodes.length];
+		for(int i=0; i<IDS; i++) {
+			String id = "user" + i;
+			int owners = 0;
+			for(int n=0; n<nodes.length; n++) {
+				if(nodes[n].owns(id)) {
+					owners++;
+					owned[n]++;
+				}
+			}
+			assertEquals(id, 1, owners);
+			assertEquals(a.owns(id), a.owns(id.toUpperCase()));
+		}
+		for(int count : owned) {
+			assertTrue(count > IDS/6);
+		}
+		assertTrue(a.isLeader());
+		assertFalse(b.isLeader());
+		assertFalse(c.isLeader());
+	}
+
+	@Test
+	public void joiningNodeOnlyTakesPartitionsOver() throws Exception {
+		PartitionAssignment a = join("a", LEASE);
+		PartitionAssignment b = join("b", LEASE);
+		a.heartbeat();
+		List<Boolean> before = new ArrayList<>();
+		for(int i=0; i<IDS; i++) {
+			before.add(a.owns("user" + i));
+		}
+
+		PartitionAssignment c = join("c", LEASE);
+		a.heartbeat();
+		b.heartbeat();
+		int moved = 0;
+		for(int i=0; i<IDS; i++) {
+			String id = "user" + i;
+			if(a.owns(id)!=before.get(i) || b.owns(id)==before.get(i)) {
+				assertTrue(id, c.owns(id));
+				moved++;
+			}
+		}
+		assertTrue(moved > 0 && moved < IDS/2);
+	}
+
+	@Test
+	public void gainedPartitionsCatchUpFromThePreviousOwner() throws Exception {
+		PartitionAssignment a = join("a", LEASE);
+		assertEquals(0L, a.getCatchUp());
+		a.setHighWaterMark(5000L);
+		a.heartbeat();
+
+		PartitionAssignment b = join("b", LEASE);
+		assertEquals(5000L, b.getCatchUp());
+		b.caughtUp(6000L);
+		assertEquals(5000L, b.getCatchUp());
+		b.caughtUp(5000L);
+		assertEquals(0L, b.getCatchUp());
+
+		a.heartbeat();
+		assertEquals(0L, a.getCatchUp());
+	}
+
+	@Test
+	public void nodeLeavingWithoutACheckpointIsCaughtUpFromTheEpoch() throws Exception {
+		PartitionAssignment a = join("a", LEASE);
+		a.setHighWaterMark(5000L);
+		PartitionAssignment b = join("b", LEASE);
+		a.heartbeat();
+		assertEquals(0L, a.getCatchUp());
+
+		b.shutdown();
+		a.heartbeat();
+		assertEquals(1L, a.getCatchUp());
+		assertTrue(a.owns("jdoe"));
+	}
+
+	@Test
+	public void lapsedNodeOwnsNothingUntilItRejoins() throws Exception {
+		PartitionAssignment a = join("a", 150L);
+		PartitionAssignment b = join("b", LEASE);
+		b.setHighWaterMark(System.currentTimeMillis() + LEASE);
+		b.heartbeat();
+		long before = System.currentTimeMillis();
+		a.heartbeat();
+		long after = System.currentTimeMillis();
+		assertTrue(a.isLeader());
+		Thread.sleep(150L);
+
+		assertFalse(a.isLeader());
+		for(int i=0; i<IDS; i++) {
+			assertFalse(a.owns("user" + i));
+		}
+
+		a.heartbeat();
+		assertTrue(a.isLeader());
+		long catchUp = a.getCatchUp();
+		assertTrue(catchUp >= before + 100L && catchUp <= after + 100L);
+	}
+
+	private PartitionAssignment join(String node, long leaseMillis) throws IOException {
+		PartitionAssignment assignment = new PartitionAssignment(new MemberCoordinator(node, leaseMillis));
+		assignment.heartbeat();
+		return assignment;
+	}
+
+	private class MemberCoordinator implements Coordinator {
+
+		private final String node;
+		private final long leaseMillis;
+
+		MemberCoordinator(String node, long leaseMillis) {
+			this.node = node;
+			this.leaseMillis = leaseMillis;
+		}
+
+		@Override
+		public String getNode() {
+			return node;
+		}
+
+		@Override
+		public long getLeaseMillis() {
+			return leaseMillis;
+		}
+
+		@Override
+		public SortedMap<String, Long> heartbeat(long highWaterMark) {
+			members.put(node, highWaterMark);
+			return new TreeMap<>(members);
+		}
+
+		@Override
+		public void close() {
+			members.remove(node);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.capitaltg.delta.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.capitaltg.delta.sync.RateGovernor.Permit;
+
+public class RateGovernorTest {
+
+	private static final long NEVER = TimeUnit.HOURS.toNanos(1);
+	private static final double DELTA = 0.0001;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void permitsAreReleasedOnce() throws Exception {
+		RateGovernor governor = governor(NEVER, 0, 2);
+		Permit first = governor.acquire();
+		governor.acquire();
+		Future<Permit> third = executor.submit(governor::acquire);
+		assertBlocked(third);
+
+		first.release(false);
+		first.release(false);
+		assertNotNull(third.get(5, TimeUnit.SECONDS));
+		assertBlocked(executor.submit(governor::acquire));
+	}
+
+	@Test
+	public void overloadHalvesBothLimitsDownToOne() throws Exception {
+		RateGovernor governor = governor(0L, 100, 8);
+		List<Permit> permits = acquire(governor, 8);
+		permits.get(0).release(true);
+		assertEquals(50.0, governor.getRate(), DELTA);
+		assertEquals(4, governor.getConcurrency());
+		permits.get(1).release(true);
+		assertEquals(25.0, governor.getRate(), DELTA);
+		assertEquals(2, governor.getConcurrency());
+		for(Permit permit : permits.subList(2, 8)) {
+			permit.release(true);
+		}
+		assertEquals(1.0, governor.getRate(), DELTA);
+		assertEquals(1, governor.getConcurrency());
+	}
+
+	@Test
+	public void rateCreepsBackUpToItsCeiling() throws Exception {
+		RateGovernor governor = governor(0L, 1000, 0);
+		List<Permit> permits = acquire(governor, 18);
+		permits.get(0).release(true);
+		permits.get(1).release(true);
+		assertEquals(250.0, governor.getRate(), DELTA);
+		permits.get(2).release(false);
+		assertEquals(300.0, governor.getRate(), DELTA);
+		for(Permit permit : permits.subList(3, 18)) {
+			permit.release(false);
+		}
+		assertEquals(1000.0, governor.getRate(), DELTA);
+		assertEquals(0, governor.getConcurrency());
+	}
+
+	@Test
+	public void concurrencyCreepsBackUpToItsCeiling() throws Exception {
+		RateGovernor governor = governor(0L, 0, 8);
+		List<Permit> permits = acquire(governor, 8);
+		for(Permit permit : permits.subList(0, 3)) {
+			permit.release(true);
+		}
+		assertEquals(1, governor.getConcurrency());
+		for(Permit permit : permits.subList(3, 7)) {
+			permit.release(false);
+		}
+		assertEquals(5, governor.getConcurrency());
+		permits = acquire(governor, 4);
+		for(Permit permit : permits) {
+			permit.release(false);
+		}
+		assertEquals(8, governor.getConcurrency());
+		assertEquals(0.0, governor.getRate(), DELTA);
+	}
+
+	@Test
+	public void slowWritesBackOff() throws Exception {
+		RateGovernor governor = new RateGovernor(0L);
+		governor.setMaxconcurrency(4);
+		governor.setTargetlatency(1);
+		governor.init();
+		Permit permit = governor.acquire();
+		Thread.sleep(20L);
+		permit.release(false);
+		assertEquals(2, governor.getConcurrency());
+	}
+
+	@Test
+	public void occasionalOverloadIsTolerated() throws Exception {
+		RateGovernor governor = governor(TimeUnit.MILLISECONDS.toNanos(200), 0, 40);
+		List<Permit> permits = acquire(governor, 40);
+		permits.get(0).release(true);
+		for(Permit permit : permits.subList(1, 39)) {
+			permit.release(false);
+		}
+		Thread.sleep(250L);
+		permits.get(39).release(false);
+		assertEquals(40, governor.getConcurrency());
+	}
+
+	@Test
+	public void unlimitedCeilingsAreNotAdapted() throws Exception {
+		RateGovernor governor = governor(0L, 0, 0);
+		assertFalse(governor.isLimited());
+		acquire(governor, 3).forEach(permit -> permit.release(true));
+		assertEquals(0.0, governor.getRate(), DELTA);
+		assertEquals(0, governor.getConcurrency());
+	}
+
+	/*
+	 * A window ending where it starts spans the whole day.
+	 */
+	@Test
+	public void windowsOverrideTheCeilings() throws Exception {
+		RateGovernor governor = new RateGovernor(NEVER);
+		governor.setMaxrate(1000);
+		governor.setMaxconcurrency(10);
+		governor.setWindows("00:00-00:00=50/3;");
+		governor.init();
+		assertTrue(governor.isLimited());
+		assertEquals(50.0, governor.getRate(), DELTA);
+		assertEquals(3, governor.getConcurrency());
+	}
+
+	@Test
+	public void malformedWindowsAreRejected() {
+		RateGovernor governor = new RateGovernor();
+		governor.setWindows("08:00-18:00=50");
+		try {
+			governor.init();
+			fail("accepted a window without a concurrency");
+		} catch(IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("08:00-18:00=50"));
+		}
+	}
+
+	private static RateGovernor governor(long adjustInterval, double maxrate, int maxconcurrency) {
+		RateGovernor governor = new RateGovernor(adjustInterval);
+		governor.setMaxrate(maxrate);
+		governor.setMaxconcurrency(maxconcurrency);
+		governor.init();
+		return governor;
+	}
+
+	private static List<Permit> acquire(RateGovernor governor, int count) throws InterruptedException {
+		List<Permit> permits = new ArrayList<>();
+		for(int i=0; i<count; i++) {
+			permits.add(governor.acquire());
+		}
+		return permits;
+	}
+
+	private static void assertBlocked(Future<Permit> acquire) throws Exception {
+		try {
+			acquire.get(100, TimeUnit.MILLISECONDS);
+			fail("acquired more permits than the concurrency allows");
+		} catch(TimeoutException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package com.capitaltg.delta.sync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Strings;
+
+public class WriteJournalTest {
+
+	private static final int SEGMENT = 4096;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void unacknowledgedIntentsAreRecovered() throws Exception {
+		String directory = folder.getRoot().getPath();
+		BasicAttributes attributes = new BasicAttributes(true);
+		attributes.put("uid", "jdoe");
+		attributes.put("jpegPhoto", new byte[]{ 1, 2, (byte)0xff });
+		ModificationItem[] items = {
+			new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("sn", "Doé")),
+			new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute("mail"))
+		};
+		try(WriteJournal journal = new WriteJournal(directory, SEGMENT)) {
+			long create = journal.intendCreate("uid=jdoe,dc=example,dc=com", attributes);
+			journal.intendModify("uid=jdoe,dc=example,dc=com", items);
+			long applied = journal.intendModify("uid=other,dc=example,dc=com", items);
+			journal.acknowledge(applied, true);
+			journal.recordFailed("broken");
+			assertTrue(create < applied);
+		}
+
+		try(WriteJournal journal = new WriteJournal(directory, SEGMENT)) {
+			List<WriteJournal.Intent> intents = journal.getUnacknowledged();
+			assertEquals(2, intents.size());
+			WriteJournal.Intent create = intents.get(0);
+			assertTrue(create.isCreate());
+			assertEquals("uid=jdoe,dc=example,dc=com", create.getDn());
+			assertEquals("jdoe", create.getAttributes().get("uid").get());
+			assertArrayEquals(new byte[]{ 1, 2, (byte)0xff }, (byte[])create.getAttributes().get("jpegPhoto").get());
+			WriteJournal.Intent modify = intents.get(1);
+			assertEquals(DirContext.REPLACE_ATTRIBUTE, modify.getItems()[0].getModificationOp());
+			assertEquals("Doé", modify.getItems()[0].getAttribute().get());
+			assertEquals(DirContext.REMOVE_ATTRIBUTE, modify.getItems()[1].getModificationOp());
+			assertEquals(0, modify.getItems()[1].getAttribute().size());
+			assertTrue(journal.getFailed().contains("broken"));
+
+			// new intents carry on after the recovered ones
+			assertTrue(journal.intendModify("uid=jdoe,dc=example,dc=com", items) > modify.getSequence());
+			journal.acknowledge(create.getSequence(), true);
+			journal.acknowledge(modify.getSequence(), false);
+			assertTrue(journal.getUnacknowledged().isEmpty());
+		}
+
+		try(WriteJournal journal = new WriteJournal(directory, SEGMENT)) {
+			assertEquals(1, journal.getUnacknowledged().size());
+			assertTrue(journal.getFailed().contains("broken"));
+		}
+	}
+
+	@Test
+	public void tornRecordEndsRecovery() throws Exception {
+		String directory = folder.getRoot().getPath();
+		try(WriteJournal journal = new WriteJournal(directory, SEGMENT)) {
+			journal.intendCreate("uid=first,dc=example,dc=com", new BasicAttributes("uid", "first"));
+			journal.intendCreate("uid=second,dc=example,dc=com", new BasicAttributes("uid", "second"));
+		}
+		Path segment = segments()[0].toPath();
+		byte[] bytes = Files.readAllBytes(segment);
+		int last = bytes.length-1;
+		while(bytes[last]==0) {
+			last--;
+		}
+		bytes[last] ^= 0x55;
+		Files.write(segment, bytes);
+
+		try(WriteJournal journal = new WriteJournal(directory, SEGMENT)) {
+			assertEquals(1, journal.getUnacknowledged().size());
+			assertEquals("uid=first,dc=example,dc=com", journal.getUnacknowledged().get(0).getDn());
+			journal.intendCreate("uid=third,dc=example,dc=com", new BasicAttributes("uid", "third"));
+		}
+		try(WriteJournal journal = new WriteJournal(directory, SEGMENT)) {
+			assertEquals(2, journal.getUnacknowledged().size());
+			assertEquals("uid=third,dc=example,dc=com", journal.getUnacknowledged().get(1).getDn());
+		}
+	}
+
+	@Test
+	public void acknowledgedSegmentsAreDeleted() throws Exception {
+		String directory = folder.getRoot().getPath();
+		ModificationItem[] items = {
+			new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("description", Strings.repeat("x", 200)))
+		};
+		long kept;
+		try(WriteJournal journal = new WriteJournal(directory, SEGMENT)) {
+			journal.recordFailed("broken");
+			kept = journal.intendModify("uid=kept,dc=example,dc=com", items);
+			for(int i=0; i<200; i++) {
+				journal.acknowledge(journal.intendModify("uid=user" + i + ",dc=example,dc=com", items), true);
+			}
+			assertTrue(segments().length < 4);
+		}
+		try(WriteJournal journal = new WriteJournal(directory, SEGMENT)) {
+			assertEquals(1, journal.getUnacknowledged().size());
+			assertEquals(kept, journal.getUnacknowledged().get(0).getSequence());
+			assertTrue(journal.getFailed().contains("broken"));
+			journal.acknowledge(kept, true);
+		}
+		try(WriteJournal journal = new WriteJournal(directory, SEGMENT)) {
+			assertTrue(journal.getUnacknowledged().isEmpty());
+			assertTrue(journal.getFailed().contains("broken"));
+			assertEquals(1, segments().length);
+		}
+	}
+
+	@Test
+	public void failedIdsThatOutgrowASegmentFail() throws Exception {
+		try(WriteJournal journal = new WriteJournal(folder.getRoot().getPath(), 512)) {
+			try {
+				for(int i=0; i<100; i++) {
+					journal.recordFailed("id" + i + Strings.repeat("x", 40));
+				}
+				fail("failed ids outgrew a segment");
+			} catch(IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("do not fit"));
+			}
+		}
+	}
+
+	private File[] segments() {
+		return folder.getRoot().listFiles( (directory, name) -> name.endsWith(".seg"));
+	}
+}
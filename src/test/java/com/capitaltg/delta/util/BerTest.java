@@ -0,0 +1,116 @@
+package com.capitaltg.delta.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.unboundid.asn1.ASN1Element;
+import com.unboundid.asn1.ASN1Enumerated;
+import com.unboundid.asn1.ASN1Long;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.asn1.ASN1Sequence;
+
+public class BerTest {
+
+	private static final long[] INTS = { 0L, 1L, -1L, 127L, 128L, -128L, -129L, 255L, 256L, 65535L,
+		Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+
+	@Test
+	public void integersRoundTrip() throws IOException {
+		for(long value : INTS) {
+			BerReader reader = new BerReader(new BerWriter().writeInt(value).toByteArray());
+			assertEquals(value, reader.readInt());
+			assertFalse(reader.hasMore());
+		}
+	}
+
+	@Test
+	public void integersMatchUnboundID() throws Exception {
+		for(long value : INTS) {
+			assertArrayEquals("encoding of " + value, new ASN1Long(value).encode(), new BerWriter().writeInt(value).toByteArray());
+		}
+		assertArrayEquals(new ASN1Enumerated(2).encode(), new BerWriter().writeEnumerated(2).toByteArray());
+	}
+
+	@Test
+	public void longLengthsMatchUnboundID() throws Exception {
+		for(int length : new int[]{ 0, 127, 128, 255, 256, 65535, 65536, 1 << 24 }) {
+			byte[] value = new byte[length];
+			Arrays.fill(value, (byte)'x');
+			byte[] encoded = new BerWriter().writeOctetString(value).toByteArray();
+			assertArrayEquals("encoding of " + length + " bytes", new ASN1OctetString(value).encode(), encoded);
+			assertArrayEquals(value, new BerReader(encoded).readOctetString());
+		}
+	}
+
+	@Test
+	public void sequencesRoundTrip() throws Exception {
+		byte[] encoded = new BerWriter().beginSequence().writeInt(7).writeString("cn=é")
+				.beginSequence(BerWriter.SET).writeBoolean(true).writeBoolean(false).endSequence()
+				.writeEnumerated(3).endSequence().toByteArray();
+		ASN1Element[] elements = ASN1Sequence.decodeAsSequence(encoded).elements();
+		assertEquals(4, elements.length);
+		assertEquals("cn=é", ASN1OctetString.decodeAsOctetString(elements[1]).stringValue());
+
+		BerReader sequence = new BerReader(encoded).readSequence();
+		assertEquals(7L, sequence.readInt());
+		assertEquals("cn=é", sequence.readString());
+		BerReader set = sequence.readSequence(BerWriter.SET);
+		assertTrue(set.readBoolean());
+		assertFalse(set.readBoolean());
+		assertFalse(set.hasMore());
+		assertEquals(BerWriter.ENUMERATED, sequence.peekTag());
+		sequence.skip();
+		assertFalse(sequence.hasMore());
+		assertEquals(-1, sequence.peekTag());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void unterminatedSequence() {
+		new BerWriter().beginSequence().writeInt(1).toByteArray();
+	}
+
+	@Test(expected = IOException.class)
+	public void unexpectedTag() throws IOException {
+		new BerReader(new BerWriter().writeInt(1).toByteArray()).readString();
+	}
+
+	@Test(expected = IOException.class)
+	public void lengthBeyondEnd() throws IOException {
+		new BerReader(new byte[]{ 0x04, 0x05, 'a', 'b' }).readString();
+	}
+
+	@Test(expected = IOException.class)
+	public void missingLength() throws IOException {
+		new BerReader(new byte[]{ 0x04 }).readString();
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedLongLength() throws IOException {
+		new BerReader(new byte[]{ 0x04, (byte)0x82, 0x01 }).readString();
+	}
+
+	@Test(expected = IOException.class)
+	public void oversizedLengthOfLength() throws IOException {
+		new BerReader(new byte[]{ 0x04, (byte)0x85, 0, 0, 0, 0, 1, 'a' }).readString();
+	}
+
+	@Test(expected = IOException.class)
+	public void negativeLength() throws IOException {
+		new BerReader(new byte[]{ 0x04, (byte)0x84, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 'a' }).readString();
+	}
+
+	@Test(expected = IOException.class)
+	public void lengthBeyondSequence() throws IOException {
+		// the string claims more than its enclosing sequence holds
+		BerReader sequence = new BerReader(new byte[]{ 0x30, 0x03, 0x04, 0x03, 'a', 'b', 'c' }).readSequence();
+		sequence.readString();
+	}
+}
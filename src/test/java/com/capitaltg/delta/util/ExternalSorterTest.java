@@ -0,0 +1,75 @@
+package com.capitaltg.delta.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExternalSorterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void runsAreMergedInOrder() throws Exception {
+		List<String> lines = new ArrayList<>();
+		Random random = new Random(42L);
+		for(int i=0; i<2500; i++) {
+			lines.add("id" + random.nextInt(1000));
+		}
+		List<String> sorted;
+		try(ExternalSorter sorter = new ExternalSorter(folder.getRoot().toPath(), 100)) {
+			for(String line : lines) {
+				sorter.add(line);
+			}
+			assertEquals(2500L, sorter.size());
+			sorted = drain(sorter.sorted());
+			assertEquals(25, folder.getRoot().list().length);
+		}
+		Collections.sort(lines);
+		assertEquals(lines, sorted);
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void smallInputsStayOnTheHeap() throws Exception {
+		File directory = folder.getRoot();
+		try(ExternalSorter sorter = new ExternalSorter(directory.toPath(), 100)) {
+			assertFalse(sorter.sorted().hasNext());
+			sorter.add("b");
+			sorter.add("a");
+			sorter.add("b");
+			assertEquals(Arrays.asList("a", "b", "b"), drain(sorter.sorted()));
+			assertEquals(0, directory.list().length);
+		}
+	}
+
+	/*
+	 * The last partial chunk is spilled as a run of its own before merging.
+	 */
+	@Test
+	public void partialChunksAreMerged() throws Exception {
+		try(ExternalSorter sorter = new ExternalSorter(folder.getRoot().toPath(), 2)) {
+			for(String line : new String[]{ "e", "c", "d", "a", "b" }) {
+				sorter.add(line);
+			}
+			assertEquals(Arrays.asList("a", "b", "c", "d", "e"), drain(sorter.sorted()));
+		}
+	}
+
+	private static List<String> drain(Iterator<String> iterator) {
+		List<String> lines = new ArrayList<>();
+		iterator.forEachRemaining(lines::add);
+		return lines;
+	}
+}
@@ -0,0 +1,46 @@
+package com.capitaltg.delta.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+	@Test
+	public void zeroIsAValueLikeAnyOther() {
+		LongHashSet set = new LongHashSet();
+		assertFalse(set.contains(0L));
+		assertTrue(set.add(0L));
+		assertFalse(set.add(0L));
+		assertTrue(set.contains(0L));
+		assertEquals(1, set.size());
+		assertTrue(set.add(1L));
+		assertEquals(2, set.size());
+	}
+
+	@Test
+	public void valuesSurviveGrowth() {
+		LongHashSet set = new LongHashSet(16);
+		Set<Long> expected = new HashSet<>();
+		Random random = new Random(42L);
+		for(int i=0; i<100000; i++) {
+			long value = i%10==0 ? i : random.nextLong();
+			assertEquals(expected.add(value), set.add(value));
+		}
+		for(int i=0; i<100000; i+=10) {
+			assertFalse(set.add(i));
+		}
+		assertEquals(expected.size(), set.size());
+		for(long value : expected) {
+			assertTrue(set.contains(value));
+		}
+		assertFalse(set.contains(-1L));
+		assertFalse(set.contains(Long.MIN_VALUE));
+	}
+}
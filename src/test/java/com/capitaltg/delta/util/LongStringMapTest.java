@@ -0,0 +1,71 @@
+package com.capitaltg.delta.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongStringMapTest {
+
+	@Test
+	public void zeroIsAKeyLikeAnyOther() {
+		LongStringMap map = new LongStringMap();
+		assertNull(map.get(0L));
+		map.put(0L, "zero");
+		assertEquals("zero", map.get(0L));
+		assertEquals(1, map.size());
+		map.put(0L, "nought");
+		assertEquals("nought", map.get(0L));
+		assertEquals(1, map.size());
+		map.put(1L, "one");
+		assertEquals(2, map.size());
+		assertEquals("one", map.get(1L));
+	}
+
+	@Test
+	public void entriesSurviveGrowth() {
+		LongStringMap map = new LongStringMap(16);
+		Map<Long, String> expected = new HashMap<>();
+		Random random = new Random(42L);
+		for(int i=0; i<100000; i++) {
+			long key = random.nextLong();
+			String value = "user" + i;
+			map.put(key, value);
+			expected.put(key, value);
+		}
+		for(long key = -500L; key<500L; key++) {
+			map.put(key, Long.toString(key));
+			expected.put(key, Long.toString(key));
+		}
+		assertEquals(expected.size(), map.size());
+		for(Map.Entry<Long, String> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		}
+		assertNull(map.get(Long.MIN_VALUE));
+	}
+
+	@Test
+	public void replacedStringsAreNotCounted() {
+		LongStringMap map = new LongStringMap(16);
+		for(int i=0; i<1000; i++) {
+			map.put(7L, "value" + i);
+		}
+		assertEquals(1, map.size());
+		assertEquals("value999", map.get(7L));
+	}
+
+	@Test
+	public void stringsRoundTripAsUtf8() {
+		LongStringMap map = new LongStringMap();
+		map.put(1L, "");
+		map.put(2L, "Doé");
+		map.put(3L, "北京");
+		assertEquals("", map.get(1L));
+		assertEquals("Doé", map.get(2L));
+		assertEquals("北京", map.get(3L));
+	}
+}